@@ -21,6 +21,8 @@ package org.bitcoinj.core;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.bitcoinj.params.Networks;
 import org.bitcoinj.script.Script;
@@ -93,6 +95,42 @@ public class Address extends VersionedChecksummedBytes {
         return new Address(params, base58);
     }
 
+    /**
+     * Constructs addresses from their Base58 representations, for example a batch of deposit addresses received
+     * from elsewhere.
+     * @param params
+     *            The expected NetworkParameters or null if you don't want validation.
+     * @param base58
+     *            The textual forms of the addresses.
+     * @return the addresses, in the same order
+     * @throws AddressFormatException
+     *             if any of the given strings doesn't parse or its checksum is invalid
+     * @throws WrongNetworkException
+     *             if any of the given addresses is valid but for a different chain (eg testnet vs mainnet)
+     */
+    public static List<Address> fromBase58(@Nullable NetworkParameters params, List<String> base58)
+            throws AddressFormatException {
+        List<Address> addresses = new ArrayList<Address>(base58.size());
+        for (String address : base58)
+            addresses.add(new Address(params, address));
+        return addresses;
+    }
+
+    /**
+     * Returns the Base58 representations of the given addresses, in the same order. The working buffer is shared
+     * across the whole batch, so the only allocations are the strings themselves.
+     */
+    public static List<String> toBase58(List<Address> addresses) {
+        List<String> encoded = new ArrayList<String>(addresses.size());
+        StringBuilder builder = new StringBuilder(40);
+        for (Address address : addresses) {
+            builder.setLength(0);
+            address.toBase58(builder);
+            encoded.add(builder.toString());
+        }
+        return encoded;
+    }
+
     /**
      * Construct an address from parameters and the hash160 form. Example:<p>
      *
@@ -17,7 +17,11 @@
 package org.bitcoinj.core;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * Base58 is a way to encode Bitcoin addresses (or arbitrary data) as alphanumeric strings.
@@ -38,6 +42,11 @@ import java.util.Arrays;
  * <p>
  * However, note that the encoding/decoding runs in O(n&sup2;) time, so it is not useful for large data.
  * <p>
+ * Rather than converting one digit at a time, the conversion works on limbs of several digits: the base-58 side is
+ * held in limbs of 58<sup>5</sup> and the base-256 side in limbs of 2<sup>32</sup>, so each step of the long
+ * multiplication handles five base-58 digits or four bytes at once. Working memory is kept per thread and reused, so
+ * the methods that write into a caller's buffer or {@link StringBuilder} don't allocate at all.
+ * <p>
  * The basic idea of the encoding is to treat the data bytes as a large number represented using
  * base-256 digits, convert the number to be represented using base-58 digits, preserve the exact
  * number of leading zeros (which are otherwise lost during the mathematical operations on the
@@ -54,6 +63,53 @@ public class Base58 {
         }
     }
 
+    // Number of base-58 digits in a limb, and the limb base 58^5 which still fits in an int.
+    private static final int DIGITS_PER_LIMB = 5;
+    private static final long LIMB_BASE = 58L * 58 * 58 * 58 * 58;
+    private static final int[] POWERS_OF_58 = { 1, 58, 58 * 58, 58 * 58 * 58, 58 * 58 * 58 * 58 };
+
+    // Working arrays, reused by each thread. Arrays for unusually large inputs are not kept.
+    private static final int MAX_CACHED_SIZE = 1024;
+    private static class Scratch {
+        int[] limbs = new int[16];
+        char[] chars = new char[64];
+        byte[] bytes = new byte[64];
+        final byte[] checksum = new byte[Sha256Hash.LENGTH];
+
+        int[] limbs(int size) {
+            if (size <= limbs.length)
+                return limbs;
+            int[] array = new int[size];
+            if (size <= MAX_CACHED_SIZE)
+                limbs = array;
+            return array;
+        }
+
+        char[] chars(int size) {
+            if (size <= chars.length)
+                return chars;
+            char[] array = new char[size];
+            if (size <= MAX_CACHED_SIZE)
+                chars = array;
+            return array;
+        }
+
+        byte[] bytes(int size) {
+            if (size <= bytes.length)
+                return bytes;
+            byte[] array = new byte[size];
+            if (size <= MAX_CACHED_SIZE)
+                bytes = array;
+            return array;
+        }
+    }
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
     /**
      * Encodes the given bytes as a base58 string (no checksum is appended).
      *
@@ -63,33 +119,77 @@ public class Base58 {
     public static String encode(byte[] input) {
         if (input.length == 0) {
             return "";
-        }       
-        // Count leading zeros.
-        int zeros = 0;
-        while (zeros < input.length && input[zeros] == 0) {
-            ++zeros;
-        }
-        // Convert base-256 digits to base-58 digits (plus conversion to ASCII characters)
-        input = Arrays.copyOf(input, input.length); // since we modify it in-place
-        char[] encoded = new char[input.length * 2]; // upper bound
-        int outputStart = encoded.length;
-        for (int inputStart = zeros; inputStart < input.length; ) {
-            encoded[--outputStart] = ALPHABET[divmod(input, inputStart, 256, 58)];
-            if (input[inputStart] == 0) {
-                ++inputStart; // optimization - skip leading zeros
-            }
         }
-        // Preserve exactly as many leading encoded zeros in output as there were leading zeros in input.
-        while (outputStart < encoded.length && encoded[outputStart] == ENCODED_ZERO) {
-            ++outputStart;
-        }
-        while (--zeros >= 0) {
-            encoded[--outputStart] = ENCODED_ZERO;
+        char[] encoded = SCRATCH.get().chars(maxEncodedLength(input.length));
+        int outputStart = encode(input, 0, input.length, encoded);
+        return new String(encoded, outputStart, encoded.length - outputStart);
+    }
+
+    /**
+     * Encodes part of the given array as base58 (no checksum is appended), and appends it to the given builder.
+     *
+     * @param input the array holding the bytes to encode
+     * @param offset the index of the first byte to encode
+     * @param length the number of bytes to encode
+     * @param output the builder the encoded characters are appended to
+     */
+    public static void encode(byte[] input, int offset, int length, StringBuilder output) {
+        checkArgument(offset >= 0 && length >= 0 && offset + length <= input.length, "Range out of bounds");
+        if (length == 0) {
+            return;
         }
-        // Return encoded string (including encoded leading zeros).
+        char[] encoded = SCRATCH.get().chars(maxEncodedLength(length));
+        int outputStart = encode(input, offset, length, encoded);
+        output.append(encoded, outputStart, encoded.length - outputStart);
+    }
+
+    /**
+     * Encodes the given version and payload as base58, followed by a checksum of four bytes from the double SHA-256
+     * hash of both. This is the format used by addresses and private keys, see {@link VersionedChecksummedBytes}.
+     *
+     * @param version the version byte, 0 to 255
+     * @param payload the bytes to encode
+     * @return the base58-encoded string
+     */
+    public static String encodeChecked(int version, byte[] payload) {
+        byte[] versioned = addChecksum(version, payload);
+        char[] encoded = SCRATCH.get().chars(maxEncodedLength(payload.length + 5));
+        int outputStart = encode(versioned, 0, payload.length + 5, encoded);
         return new String(encoded, outputStart, encoded.length - outputStart);
     }
 
+    /**
+     * Like {@link #encodeChecked(int, byte[])}, but appends the encoded characters to the given builder.
+     */
+    public static void encodeChecked(int version, byte[] payload, StringBuilder output) {
+        encode(addChecksum(version, payload), 0, payload.length + 5, output);
+    }
+
+    /** Returns a working array holding the version, payload and checksum. */
+    private static byte[] addChecksum(int version, byte[] payload) {
+        checkArgument(version >= 0 && version < 256);
+        Scratch scratch = SCRATCH.get();
+        byte[] versioned = scratch.bytes(payload.length + 5);
+        versioned[0] = (byte) version;
+        System.arraycopy(payload, 0, versioned, 1, payload.length);
+        Sha256Hash.hashTwice(versioned, 0, payload.length + 1, scratch.checksum, 0);
+        System.arraycopy(scratch.checksum, 0, versioned, payload.length + 1, 4);
+        return versioned;
+    }
+
+    /**
+     * Encodes each of the given arrays as base58 (no checksum is appended).
+     *
+     * @param inputs the byte arrays to encode
+     * @return the base58-encoded strings, in the same order
+     */
+    public static List<String> encodeAll(List<byte[]> inputs) {
+        List<String> encoded = new ArrayList<String>(inputs.size());
+        for (byte[] input : inputs)
+            encoded.add(encode(input));
+        return encoded;
+    }
+
     /**
      * Decodes the given base58 string into the original data bytes.
      *
@@ -101,38 +201,93 @@ public class Base58 {
         if (input.length() == 0) {
             return new byte[0];
         }
-        // Convert the base58-encoded ASCII chars to a base58 byte sequence (base58 digits).
-        byte[] input58 = new byte[input.length()];
-        for (int i = 0; i < input.length(); ++i) {
-            char c = input.charAt(i);
-            int digit = c < 128 ? INDEXES[c] : -1;
-            if (digit < 0) {
-                throw new AddressFormatException("Illegal character " + c + " at position " + i);
-            }
-            input58[i] = (byte) digit;
-        }
+        byte[] decoded = SCRATCH.get().bytes(input.length());
+        int length = decode(input, decoded, 0);
+        return Arrays.copyOf(decoded, length);
+    }
+
+    /**
+     * Decodes the given base58 characters into the given array. The decoded data is never longer than the input, so
+     * an array with room for {@code input.length()} bytes is always enough.
+     *
+     * @param input the base58-encoded characters to decode
+     * @param output the array to write the decoded data bytes into
+     * @param outputOffset the index in the array to start writing at
+     * @return the number of bytes written
+     * @throws AddressFormatException if the given characters are not valid base58
+     * @throws IllegalArgumentException if the decoded data doesn't fit into the array
+     */
+    public static int decode(CharSequence input, byte[] output, int outputOffset) throws AddressFormatException {
+        int inputLength = input.length();
         // Count leading zeros.
         int zeros = 0;
-        while (zeros < input58.length && input58[zeros] == 0) {
+        while (zeros < inputLength && input.charAt(zeros) == ENCODED_ZERO) {
             ++zeros;
         }
-        // Convert base-58 digits to base-256 digits.
-        byte[] decoded = new byte[input.length()];
-        int outputStart = decoded.length;
-        for (int inputStart = zeros; inputStart < input58.length; ) {
-            decoded[--outputStart] = divmod(input58, inputStart, 58, 256);
-            if (input58[inputStart] == 0) {
-                ++inputStart; // optimization - skip leading zeros
+        // Convert base-58 digits to base-256 digits, five digits at a time into little endian limbs of 32 bits.
+        int[] limbs = SCRATCH.get().limbs((inputLength - zeros) * 3 / 16 + 2);
+        int limbCount = 0;
+        int i = zeros;
+        int chunk = (inputLength - zeros) % DIGITS_PER_LIMB;
+        if (chunk == 0)
+            chunk = DIGITS_PER_LIMB;
+        while (i < inputLength) {
+            long carry = 0;
+            for (int end = i + chunk; i < end; ++i) {
+                char c = input.charAt(i);
+                int digit = c < 128 ? INDEXES[c] : -1;
+                if (digit < 0) {
+                    throw new AddressFormatException("Illegal character " + c + " at position " + i);
+                }
+                carry = carry * 58 + digit;
+            }
+            long multiplier = chunk == DIGITS_PER_LIMB ? LIMB_BASE : POWERS_OF_58[chunk];
+            for (int j = 0; j < limbCount; ++j) {
+                long t = (limbs[j] & 0xFFFFFFFFL) * multiplier + carry;
+                limbs[j] = (int) t;
+                carry = t >>> 32;
+            }
+            while (carry != 0) {
+                limbs[limbCount++] = (int) carry;
+                carry >>>= 32;
             }
+            chunk = DIGITS_PER_LIMB;
         }
-        // Ignore extra leading zeroes that were added during the calculation.
-        while (outputStart < decoded.length && decoded[outputStart] == 0) {
-            ++outputStart;
+        // Write out the limbs big endian, skipping leading zero bytes of the top limb, after the original zeros.
+        int topBytes = 0;
+        if (limbCount > 0) {
+            int top = limbs[limbCount - 1];
+            topBytes = 4 - Integer.numberOfLeadingZeros(top) / 8;
+        }
+        int length = zeros + (limbCount == 0 ? 0 : topBytes + 4 * (limbCount - 1));
+        checkArgument(outputOffset >= 0 && outputOffset + length <= output.length, "Output array too small");
+        int pos = outputOffset;
+        Arrays.fill(output, pos, pos + zeros, (byte) 0);
+        pos += zeros;
+        for (int j = limbCount - 1; j >= 0; --j) {
+            int limb = limbs[j];
+            for (int shift = 8 * ((j == limbCount - 1 ? topBytes : 4) - 1); shift >= 0; shift -= 8)
+                output[pos++] = (byte) (limb >>> shift);
+        }
+        return length;
+    }
+
+    /**
+     * Decodes each of the given base58 strings into the original data bytes.
+     *
+     * @param inputs the base58-encoded strings to decode
+     * @return the decoded data bytes, in the same order
+     * @throws AddressFormatException if any of the strings is not valid base58
+     */
+    public static List<byte[]> decodeAll(List<? extends CharSequence> inputs) throws AddressFormatException {
+        List<byte[]> decoded = new ArrayList<byte[]>(inputs.size());
+        for (CharSequence input : inputs) {
+            byte[] buffer = SCRATCH.get().bytes(input.length());
+            decoded.add(Arrays.copyOf(buffer, decode(input, buffer, 0)));
         }
-        // Return decoded data (including original number of leading zeros).
-        return Arrays.copyOfRange(decoded, outputStart - zeros, decoded.length);
+        return decoded;
     }
-    
+
     public static BigInteger decodeToBigInteger(String input) throws AddressFormatException {
         return new BigInteger(1, decode(input));
     }
@@ -146,39 +301,99 @@ public class Base58 {
      * @throws AddressFormatException if the input is not base 58 or the checksum does not validate.
      */
     public static byte[] decodeChecked(String input) throws AddressFormatException {
-        byte[] decoded  = decode(input);
-        if (decoded.length < 4)
-            throw new AddressFormatException("Input too short");
-        byte[] data = Arrays.copyOfRange(decoded, 0, decoded.length - 4);
-        byte[] checksum = Arrays.copyOfRange(decoded, decoded.length - 4, decoded.length);
-        byte[] actualChecksum = Arrays.copyOfRange(Sha256Hash.hashTwice(data), 0, 4);
-        if (!Arrays.equals(checksum, actualChecksum))
-            throw new AddressFormatException("Checksum does not validate");
-        return data;
+        byte[] decoded = SCRATCH.get().bytes(input.length());
+        int length = decodeChecked(decoded, decode(input, decoded, 0));
+        return Arrays.copyOf(decoded, length);
     }
 
     /**
-     * Divides a number, represented as an array of bytes each containing a single digit
-     * in the specified base, by the given divisor. The given number is modified in-place
-     * to contain the quotient, and the return value is the remainder.
+     * Like {@link #decodeChecked(String)}, but writes the data bytes into the given array.
      *
-     * @param number the number to divide
-     * @param firstDigit the index within the array of the first non-zero digit
-     *        (this is used for optimization by skipping the leading zeros)
-     * @param base the base in which the number's digits are represented (up to 256)
-     * @param divisor the number to divide by (up to 256)
-     * @return the remainder of the division operation
+     * @param input the base58-encoded characters to decode (which should include the checksum)
+     * @param output the array to write the data bytes into
+     * @param outputOffset the index in the array to start writing at
+     * @return the number of bytes written, not counting the checksum, which isn't written
+     * @throws AddressFormatException if the input is not base 58 or the checksum does not validate.
+     * @throws IllegalArgumentException if the data doesn't fit into the array
      */
-    private static byte divmod(byte[] number, int firstDigit, int base, int divisor) {
-        // this is just long division which accounts for the base of the input digits
-        int remainder = 0;
-        for (int i = firstDigit; i < number.length; i++) {
-            int digit = (int) number[i] & 0xFF;
-            int temp = remainder * base + digit;
-            number[i] = (byte) (temp / divisor);
-            remainder = temp % divisor;
-        }
-        return (byte) remainder;
+    public static int decodeChecked(CharSequence input, byte[] output, int outputOffset) throws AddressFormatException {
+        byte[] decoded = SCRATCH.get().bytes(input.length());
+        int length = decodeChecked(decoded, decode(input, decoded, 0));
+        checkArgument(outputOffset >= 0 && outputOffset + length <= output.length, "Output array too small");
+        System.arraycopy(decoded, 0, output, outputOffset, length);
+        return length;
+    }
+
+    /** Checks the checksum at the end of the given data and returns the length without it. */
+    private static int decodeChecked(byte[] decoded, int length) throws AddressFormatException {
+        if (length < 4)
+            throw new AddressFormatException("Input too short");
+        byte[] actualChecksum = SCRATCH.get().checksum;
+        Sha256Hash.hashTwice(decoded, 0, length - 4, actualChecksum, 0);
+        for (int i = 0; i < 4; i++)
+            if (decoded[length - 4 + i] != actualChecksum[i])
+                throw new AddressFormatException("Checksum does not validate");
+        return length - 4;
     }
 
+    /** Returns an upper bound for the number of characters the given number of bytes encode to. */
+    private static int maxEncodedLength(int length) {
+        // Each limb of 58^5 holds more than 29 bits, and each leading zero byte becomes one character.
+        return DIGITS_PER_LIMB * (length * 8 / 29 + 2) + length;
+    }
+
+    /**
+     * Encodes the given range of bytes into the end of the given array, which must have room for
+     * {@link #maxEncodedLength(int)} characters, and returns the index of the first character.
+     */
+    private static int encode(byte[] input, int offset, int length, char[] encoded) {
+        int end = offset + length;
+        // Count leading zeros.
+        int zeros = 0;
+        while (offset + zeros < end && input[offset + zeros] == 0) {
+            ++zeros;
+        }
+        // Convert base-256 digits to base-58 digits, four bytes at a time into little endian limbs of 58^5.
+        int[] limbs = SCRATCH.get().limbs((length - zeros) * 8 / 29 + 2);
+        int limbCount = 0;
+        int i = offset + zeros;
+        int chunk = (length - zeros) % 4;
+        if (chunk == 0)
+            chunk = 4;
+        while (i < end) {
+            long carry = 0;
+            for (int chunkEnd = i + chunk; i < chunkEnd; ++i) {
+                carry = (carry << 8) | (input[i] & 0xFF);
+            }
+            int shift = 8 * chunk;
+            for (int j = 0; j < limbCount; ++j) {
+                long t = ((long) limbs[j] << shift) + carry;
+                limbs[j] = (int) (t % LIMB_BASE);
+                carry = t / LIMB_BASE;
+            }
+            while (carry != 0) {
+                limbs[limbCount++] = (int) (carry % LIMB_BASE);
+                carry /= LIMB_BASE;
+            }
+            chunk = 4;
+        }
+        // Write the digits from the least significant end, five per limb.
+        int outputStart = encoded.length;
+        for (int j = 0; j < limbCount; ++j) {
+            int limb = limbs[j];
+            for (int k = 0; k < DIGITS_PER_LIMB; ++k) {
+                encoded[--outputStart] = ALPHABET[limb % 58];
+                limb /= 58;
+            }
+        }
+        // The top limb was padded with zero digits, take those off again.
+        while (outputStart < encoded.length && encoded[outputStart] == ENCODED_ZERO) {
+            ++outputStart;
+        }
+        // Preserve exactly as many leading encoded zeros in output as there were leading zeros in input.
+        while (--zeros >= 0) {
+            encoded[--outputStart] = ENCODED_ZERO;
+        }
+        return outputStart;
+    }
 }
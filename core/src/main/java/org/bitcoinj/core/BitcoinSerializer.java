@@ -20,10 +20,12 @@ package org.bitcoinj.core;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -47,6 +49,7 @@ public class BitcoinSerializer extends MessageSerializer {
 
     private final NetworkParameters params;
     private final boolean parseRetain;
+    private final boolean parseLazy;
 
     private static final Map<Class<? extends Message>, String> names = new HashMap<Class<? extends Message>, String>();
 
@@ -54,8 +57,10 @@ public class BitcoinSerializer extends MessageSerializer {
         names.put(VersionMessage.class, "version");
         names.put(InventoryMessage.class, "inv");
         names.put(Block.class, "block");
+        names.put(BlockView.class, "block");
         names.put(GetDataMessage.class, "getdata");
         names.put(Transaction.class, "tx");
+        names.put(TransactionView.class, "tx");
         names.put(AddressMessage.class, "addr");
         names.put(Ping.class, "ping");
         names.put(Pong.class, "pong");
@@ -80,8 +85,22 @@ public class BitcoinSerializer extends MessageSerializer {
      * @param parseRetain      retain the backing byte array of a message for fast reserialization.
      */
     public BitcoinSerializer(NetworkParameters params, boolean parseRetain) {
+        this(params, parseRetain, false);
+    }
+
+    /**
+     * Constructs a BitcoinSerializer with the given behavior.
+     *
+     * @param params           networkParams used to create Messages instances and termining packetMagic
+     * @param parseRetain      retain the backing byte array of a message for fast reserialization.
+     * @param parseLazy        deserialize tx and block messages as {@link TransactionView}s and {@link BlockView}s,
+     *                         which only parse what is asked of them, rather than as {@link Transaction}s and
+     *                         {@link Block}s. Code that expects the latter, like {@link Peer}, won't handle them.
+     */
+    public BitcoinSerializer(NetworkParameters params, boolean parseRetain, boolean parseLazy) {
         this.params = params;
         this.parseRetain = parseRetain;
+        this.parseLazy = parseLazy;
     }
 
     /**
@@ -89,6 +108,33 @@ public class BitcoinSerializer extends MessageSerializer {
      */
     @Override
     public void serialize(String name, byte[] message, OutputStream out) throws IOException {
+        byte[] header = makeHeader(name, message.length, Sha256Hash.hashTwice(message));
+        out.write(header);
+        out.write(message);
+
+        if (log.isDebugEnabled())
+            log.debug("Sending {} message: {}", name, HEX.encode(header) + HEX.encode(message));
+    }
+
+    /**
+     * Returns the header for a message with the given name and the remaining bytes of the given buffer as payload.
+     * The buffer is only read for the checksum, its position is left untouched.
+     */
+    @Override
+    public byte[] serializeHeader(String name, ByteBuffer payload) {
+        int length = payload.remaining();
+        byte[] hash;
+        if (payload.hasArray()) {
+            hash = Sha256Hash.hashTwice(payload.array(), payload.arrayOffset() + payload.position(), length);
+        } else {
+            MessageDigest digest = Sha256Hash.newDigest();
+            digest.update(payload.duplicate());
+            hash = digest.digest(digest.digest());
+        }
+        return makeHeader(name, length, hash);
+    }
+
+    private byte[] makeHeader(String name, int length, byte[] hash) {
         byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
         uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
 
@@ -98,15 +144,10 @@ public class BitcoinSerializer extends MessageSerializer {
             header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
         }
 
-        Utils.uint32ToByteArrayLE(message.length, header, 4 + COMMAND_LEN);
+        Utils.uint32ToByteArrayLE(length, header, 4 + COMMAND_LEN);
 
-        byte[] hash = Sha256Hash.hashTwice(message);
         System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
-        out.write(header);
-        out.write(message);
-
-        if (log.isDebugEnabled())
-            log.debug("Sending {} message: {}", name, HEX.encode(header) + HEX.encode(message));
+        return header;
     }
 
     /**
@@ -194,7 +235,7 @@ public class BitcoinSerializer extends MessageSerializer {
         } else if (command.equals("inv")) { 
             message = makeInventoryMessage(payloadBytes, length);
         } else if (command.equals("block")) {
-            message = makeBlock(payloadBytes, length);
+            message = parseLazy ? makeBlockView(payloadBytes, 0, length) : makeBlock(payloadBytes, length);
         } else if (command.equals("merkleblock")) {
             message = makeFilteredBlock(payloadBytes);
         } else if (command.equals("getdata")) {
@@ -204,7 +245,8 @@ public class BitcoinSerializer extends MessageSerializer {
         } else if (command.equals("getheaders")) {
             message = new GetHeadersMessage(params, payloadBytes);
         } else if (command.equals("tx")) {
-            message = makeTransaction(payloadBytes, 0, length, hash);
+            message = parseLazy ? makeTransactionView(payloadBytes, 0, length, hash)
+                    : makeTransaction(payloadBytes, 0, length, hash);
         } else if (command.equals("addr")) {
             message = makeAddressMessage(payloadBytes, length);
         } else if (command.equals("ping")) {
@@ -223,6 +265,8 @@ public class BitcoinSerializer extends MessageSerializer {
             return new NotFoundMessage(params, payloadBytes);
         } else if (command.equals("mempool")) {
             return new MemoryPoolMessage();
+        } else if (command.equals("getaddr")) {
+            return new GetAddrMessage(params);
         } else if (command.equals("reject")) {
             return new RejectMessage(params, payloadBytes);
         } else if (command.equals("utxos")) {
@@ -310,6 +354,24 @@ public class BitcoinSerializer extends MessageSerializer {
         return tx;
     }
 
+    /**
+     * Make a view of the transaction in the payload, which is used in lazy parsing mode. Extension point for
+     * alternative serialization format support.
+     */
+    public TransactionView makeTransactionView(byte[] payloadBytes, int offset, int length, @Nullable byte[] hash)
+            throws ProtocolException {
+        return new TransactionView(params, payloadBytes, offset, hash != null ? Sha256Hash.wrapReversed(hash) : null,
+                this, length);
+    }
+
+    /**
+     * Make a view of the block in the payload, which is used in lazy parsing mode. Extension point for alternative
+     * serialization format support.
+     */
+    public BlockView makeBlockView(byte[] payloadBytes, int offset, int length) throws ProtocolException {
+        return new BlockView(params, payloadBytes, offset, this, length);
+    }
+
     @Override
     public void seekPastMagicBytes(ByteBuffer in) throws BufferUnderflowException {
         int magicCursor = 3;  // Which byte of the magic we're looking for currently.
@@ -340,6 +402,13 @@ public class BitcoinSerializer extends MessageSerializer {
         return parseRetain;
     }
 
+    /**
+     * Whether the serializer will produce {@link TransactionView}s and {@link BlockView}s for tx and block messages
+     */
+    public boolean isParseLazyMode() {
+        return parseLazy;
+    }
+
 
     public static class BitcoinPacketHeader {
         /** The largest number of bytes that a header can represent */
@@ -404,9 +404,9 @@ public class Block extends Message {
      */
     private Sha256Hash calculateHash() {
         try {
-            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(HEADER_SIZE);
-            writeHeader(bos);
-            return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(bos.toByteArray()));
+            HashingOutputStream stream = new HashingOutputStream();
+            writeHeader(stream);
+            return Sha256Hash.wrapReversed(stream.hashTwice().getBytes());
         } catch (IOException e) {
             throw new RuntimeException(e); // Cannot happen.
         }
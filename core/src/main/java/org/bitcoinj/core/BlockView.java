@@ -0,0 +1,183 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A read only view of a serialized block, the block counterpart of {@link TransactionView}. Parsing only finds
+ * where each transaction starts and ends. The block and transaction hashes are calculated from the bytes in place,
+ * and {@link TransactionView}s, or the whole {@link Block}, are only built when asked for.</p>
+ *
+ * <p>Views are made by a {@link BitcoinSerializer} in lazy parsing mode. The underlying array must not be changed
+ * while the view is in use.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class BlockView extends Message {
+    // All of these are set by parse(), which runs before field initializers would, so they mustn't have any.
+    private byte[] rawBytes;
+    private int[] transactionOffsets;  // Null for a header without transactions.
+    private Sha256Hash hash;
+    private TransactionView[] transactions;
+    private Block block;
+
+    public BlockView(NetworkParameters params, byte[] payload, int offset, MessageSerializer serializer, int length)
+            throws ProtocolException {
+        super(params, payload, offset, serializer, length);
+    }
+
+    public BlockView(NetworkParameters params, byte[] payload) throws ProtocolException {
+        this(params, payload, 0, params.getDefaultSerializer(), UNKNOWN_LENGTH);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        rawBytes = payload;
+        int pos = offset + Block.HEADER_SIZE;
+        if (pos > payload.length)
+            throw new ProtocolException("Block header runs past the end of the message");
+        if (pos < payload.length) {
+            try {
+                int count = TransactionView.checkCount(TransactionView.varIntAt(payload, pos));
+                pos += TransactionView.varIntSize(payload, pos);
+                // The last entry is the end of the last transaction.
+                transactionOffsets = new int[count + 1];
+                for (int i = 0; i < count; i++) {
+                    transactionOffsets[i] = pos;
+                    pos = TransactionView.scan(payload, pos, null);
+                }
+                transactionOffsets[count] = pos;
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new ProtocolException(e);
+            }
+        }
+        cursor = pos;
+        length = pos - offset;
+    }
+
+    /** Returns the hash of the block, hashing the header bytes in place. */
+    @Override
+    public Sha256Hash getHash() {
+        if (hash == null)
+            hash = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(rawBytes, offset, Block.HEADER_SIZE));
+        return hash;
+    }
+
+    /** Returns the array the block is read from. Do NOT mutate it. */
+    public byte[] getRawBytes() {
+        return rawBytes;
+    }
+
+    /** Returns the offset of the block within {@link #getRawBytes()}. */
+    public int getOffset() {
+        return offset;
+    }
+
+    public long getVersion() {
+        return Utils.readUint32(rawBytes, offset);
+    }
+
+    public Sha256Hash getPrevBlockHash() {
+        return readHashAt(offset + 4);
+    }
+
+    public Sha256Hash getMerkleRoot() {
+        return readHashAt(offset + 36);
+    }
+
+    /** Returns the time at which the block was solved, in seconds since the epoch. */
+    public long getTimeSeconds() {
+        return Utils.readUint32(rawBytes, offset + 68);
+    }
+
+    public long getDifficultyTarget() {
+        return Utils.readUint32(rawBytes, offset + 72);
+    }
+
+    public long getNonce() {
+        return Utils.readUint32(rawBytes, offset + 76);
+    }
+
+    /** Returns true if the block has transactions, false if it is just a header. */
+    public boolean hasTransactions() {
+        return transactionOffsets != null;
+    }
+
+    public int getTransactionCount() {
+        checkState(hasTransactions(), "Block has no transactions");
+        return transactionOffsets.length - 1;
+    }
+
+    /** Returns the hash of the given transaction, calculated from its bytes in place without building a view. */
+    public Sha256Hash getTransactionHash(int index) {
+        checkElementIndex(index, getTransactionCount());
+        if (transactions != null && transactions[index] != null)
+            return transactions[index].getHash();
+        int start = transactionOffsets[index];
+        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(rawBytes, start, transactionOffsets[index + 1] - start));
+    }
+
+    /** Returns a view of the given transaction, making it the first time it is asked for. */
+    public TransactionView getTransaction(int index) {
+        checkElementIndex(index, getTransactionCount());
+        if (transactions == null)
+            transactions = new TransactionView[getTransactionCount()];
+        if (transactions[index] == null) {
+            int start = transactionOffsets[index];
+            try {
+                transactions[index] = new TransactionView(params, rawBytes, start, null, serializer,
+                        transactionOffsets[index + 1] - start);
+            } catch (ProtocolException e) {
+                throw new RuntimeException(e);  // Cannot happen, the bytes were checked when the view was made.
+            }
+        }
+        return transactions[index];
+    }
+
+    /** Returns the full block, parsing it the first time it is asked for. */
+    public Block getBlock() {
+        if (block == null) {
+            try {
+                block = new Block(params, rawBytes, offset, serializer, length);
+            } catch (ProtocolException e) {
+                throw new RuntimeException(e);  // Cannot happen, the bytes were checked when the view was made.
+            }
+        }
+        return block;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(rawBytes, offset, length);
+    }
+
+    @Override
+    public String toString() {
+        return "block view " + getHash() + (hasTransactions() ? ": " + getTransactionCount() + " transactions" : "");
+    }
+
+    private Sha256Hash readHashAt(int pos) {
+        byte[] hash = new byte[Sha256Hash.LENGTH];
+        System.arraycopy(rawBytes, pos, hash, 0, Sha256Hash.LENGTH);
+        return Sha256Hash.wrapReversed(hash);
+    }
+}
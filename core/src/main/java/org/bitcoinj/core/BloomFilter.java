@@ -41,7 +41,8 @@ import static java.lang.Math.*;
  * a useful privacy feature - if you have spare bandwidth the false positive rate can be increased so the remote peer
  * gets a noisy picture of what transactions are relevant to your wallet.</p>
  * 
- * <p>Instances of this class are not safe for use by multiple threads.</p>
+ * <p>Instances of this class are not safe for use by multiple threads. To match against a filter from many threads at
+ * once, use an {@link ImmutableBloomFilter} from {@link #toImmutable()}.</p>
  */
 public class BloomFilter extends Message {
     /** The BLOOM_UPDATE_* constants control when the bloom filter is auto-updated by the peer using
@@ -120,6 +121,14 @@ public class BloomFilter extends Message {
         this.nFlags = (byte)(0xff & updateFlag.ordinal());
     }
     
+    // Used by ImmutableBloomFilter to turn back into a message.
+    BloomFilter(byte[] data, long hashFuncs, long nTweak, byte nFlags) {
+        this.data = data;
+        this.hashFuncs = hashFuncs;
+        this.nTweak = nTweak;
+        this.nFlags = nFlags;
+    }
+
     /**
      * Returns the theoretical false positive rate of this filter if were to contain the given number of elements.
      */
@@ -166,54 +175,90 @@ public class BloomFilter extends Message {
      * See this <a href="https://github.com/aappleby/smhasher/blob/master/src/MurmurHash3.cpp">C++ code for the original.</a>
      */
     public static int murmurHash3(byte[] data, long nTweak, int hashNum, byte[] object) {
+        int h1 = murmurHash3(nTweak, hashNum, object, 0, object.length);
+        return (int)((h1&0xFFFFFFFFL) % (data.length * 8));
+    }
+
+    /**
+     * Returns the plain 32 bit MurmurHash3 of length bytes of object starting at offset, seeded for the given hash
+     * function and tweak. Reducing it to a bit index is left to the caller.
+     */
+    static int murmurHash3(long nTweak, int hashNum, byte[] object, int offset, int length) {
         int h1 = (int)(hashNum * 0xFBA4C795L + nTweak);
-        final int c1 = 0xcc9e2d51;
-        final int c2 = 0x1b873593;
 
-        int numBlocks = (object.length / 4) * 4;
+        int numBlocks = (length / 4) * 4;
         // body
-        for(int i = 0; i < numBlocks; i += 4) {
+        for(int i = offset; i < offset + numBlocks; i += 4) {
             int k1 = (object[i] & 0xFF) |
                   ((object[i+1] & 0xFF) << 8) |
                   ((object[i+2] & 0xFF) << 16) |
                   ((object[i+3] & 0xFF) << 24);
-            
-            k1 *= c1;
-            k1 = rotateLeft32(k1, 15);
-            k1 *= c2;
-
-            h1 ^= k1;
-            h1 = rotateLeft32(h1, 13);
-            h1 = h1*5+0xe6546b64;
+            h1 = murmurHash3Round(h1, k1);
         }
         
         int k1 = 0;
-        switch(object.length & 3)
+        int tail = offset + numBlocks;
+        switch(length & 3)
         {
             case 3:
-                k1 ^= (object[numBlocks + 2] & 0xff) << 16;
+                k1 ^= (object[tail + 2] & 0xff) << 16;
                 // Fall through.
             case 2:
-                k1 ^= (object[numBlocks + 1] & 0xff) << 8;
+                k1 ^= (object[tail + 1] & 0xff) << 8;
                 // Fall through.
             case 1:
-                k1 ^= (object[numBlocks] & 0xff);
-                k1 *= c1; k1 = rotateLeft32(k1, 15); k1 *= c2; h1 ^= k1;
+                k1 ^= (object[tail] & 0xff);
+                k1 *= C1; k1 = rotateLeft32(k1, 15); k1 *= C2; h1 ^= k1;
                 // Fall through.
             default:
                 // Do nothing.
                 break;
         }
 
+        return murmurHash3Finish(h1, length);
+    }
+
+    /**
+     * Returns the same as {@link #murmurHash3(long, int, byte[], int, int)} over the serialized form of the outpoint
+     * with the given hash and index, without serializing it.
+     */
+    static int murmurHash3OutPoint(long nTweak, int hashNum, Sha256Hash hash, long index) {
+        int h1 = (int)(hashNum * 0xFBA4C795L + nTweak);
+        // The hash goes over the wire in reverse, followed by the little endian index.
+        byte[] bytes = hash.getBytes();
+        for (int i = 31; i > 0; i -= 4) {
+            int k1 = (bytes[i] & 0xFF) |
+                  ((bytes[i-1] & 0xFF) << 8) |
+                  ((bytes[i-2] & 0xFF) << 16) |
+                  ((bytes[i-3] & 0xFF) << 24);
+            h1 = murmurHash3Round(h1, k1);
+        }
+        h1 = murmurHash3Round(h1, (int) index);
+        return murmurHash3Finish(h1, 36);
+    }
+
+    private static final int C1 = 0xcc9e2d51;
+    private static final int C2 = 0x1b873593;
+
+    private static int murmurHash3Round(int h1, int k1) {
+        k1 *= C1;
+        k1 = rotateLeft32(k1, 15);
+        k1 *= C2;
+
+        h1 ^= k1;
+        h1 = rotateLeft32(h1, 13);
+        return h1*5+0xe6546b64;
+    }
+
+    private static int murmurHash3Finish(int h1, int length) {
         // finalization
-        h1 ^= object.length;
+        h1 ^= length;
         h1 ^= h1 >>> 16;
         h1 *= 0x85ebca6b;
         h1 ^= h1 >>> 13;
         h1 *= 0xc2b2ae35;
         h1 ^= h1 >>> 16;
-        
-        return (int)((h1&0xFFFFFFFFL) % (data.length * 8));
+        return h1;
     }
     
     /**
@@ -267,6 +312,38 @@ public class BloomFilter extends Message {
         }
     }
 
+    /**
+     * Returns true if the given filter has the same size, number of hash functions and tweak as this one, so that one
+     * can be merged into the other.
+     */
+    public synchronized boolean isMergeableWith(BloomFilter filter) {
+        return filter.data.length == this.data.length && filter.hashFuncs == this.hashFuncs
+                && filter.nTweak == this.nTweak;
+    }
+
+    /**
+     * Returns true if this filter has the same parameters as the given one and all of its bits set, so it matches
+     * everything the given filter matches. A peer that has this filter loaded doesn't need to be sent the other one,
+     * except to lower the false positive rate.
+     */
+    public synchronized boolean covers(BloomFilter filter) {
+        if (filter.data.length != this.data.length || filter.hashFuncs != this.hashFuncs ||
+                filter.nTweak != this.nTweak || filter.nFlags != this.nFlags)
+            return false;
+        for (int i = 0; i < data.length; i++)
+            if ((filter.data[i] & ~this.data[i]) != 0)
+                return false;
+        return true;
+    }
+
+    /**
+     * Returns an immutable copy of this filter, which can be matched against by many threads at once. See
+     * {@link ImmutableBloomFilter}.
+     */
+    public synchronized ImmutableBloomFilter toImmutable() {
+        return new ImmutableBloomFilter(data, hashFuncs, nTweak, nFlags);
+    }
+
     /**
      * Returns true if this filter will match anything. See {@link org.bitcoinj.core.BloomFilter#setMatchAll()}
      * for when this can be a useful thing to do.
@@ -0,0 +1,262 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import net.jcip.annotations.GuardedBy;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Announces the transactions being broadcast by a {@link PeerGroup} in batches. Instead of every transaction being
+ * sent to its peers on its own as soon as it is broadcast, transactions are queued per peer and announced with a single
+ * inv message every trickle interval, parents before the children spending them. The peers then fetch the ones they
+ * don't have yet with getdata, which the PeerGroup answers from here.</p>
+ *
+ * <p>Propagation is still measured by the {@link TxConfidenceTable}: peers we didn't announce a transaction to will
+ * announce it back to us once they got it from the network.</p>
+ */
+class BroadcastScheduler {
+    private static final Logger log = LoggerFactory.getLogger(BroadcastScheduler.class);
+
+    /** How long announced transactions are kept to answer getdata with, the same as the relay memory of Bitcoin Core. */
+    static final long RELAY_EXPIRY_MILLIS = 15 * 60 * 1000;
+
+    private final ReentrantLock lock = Threading.lock("broadcastscheduler");
+    private final NetworkParameters params;
+
+    private static class Announcement {
+        final Transaction tx;
+        final SettableFuture<Transaction> future = SettableFuture.create();
+
+        Announcement(Transaction tx) {
+            this.tx = tx;
+        }
+    }
+
+    private static class Relayed {
+        final Transaction tx;
+        final long timeMillis;
+
+        Relayed(Transaction tx, long timeMillis) {
+            this.tx = tx;
+            this.timeMillis = timeMillis;
+        }
+    }
+
+    // Transactions waiting for the next trickle, per peer, in the order they were queued.
+    @GuardedBy("lock") private final Map<Peer, Map<Sha256Hash, Announcement>> queues =
+            new LinkedHashMap<Peer, Map<Sha256Hash, Announcement>>();
+    // Transactions that were announced, kept until they expire so the peers can fetch them.
+    @GuardedBy("lock") private final Map<Sha256Hash, Relayed> relayed = new LinkedHashMap<Sha256Hash, Relayed>();
+
+    BroadcastScheduler(NetworkParameters params) {
+        this.params = checkNotNull(params);
+    }
+
+    /**
+     * Queues the transaction to be announced to the given peer with the next trickle. The returned future completes
+     * once the announcement was written to the peer, and is cancelled if the peer goes away first.
+     */
+    ListenableFuture<Transaction> announce(Peer peer, Transaction tx) {
+        lock.lock();
+        try {
+            Map<Sha256Hash, Announcement> queue = queues.get(peer);
+            if (queue == null) {
+                queue = new LinkedHashMap<Sha256Hash, Announcement>();
+                queues.put(peer, queue);
+            }
+            Announcement announcement = queue.get(tx.getHash());
+            if (announcement == null) {
+                announcement = new Announcement(tx);
+                queue.put(tx.getHash(), announcement);
+            }
+            return announcement.future;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Announces everything queued so far, with one inv message per peer (or more, if there are more transactions
+     * queued for it than fit into one). Also forgets about the transactions that were announced long enough ago.
+     */
+    void trickle() {
+        Map<Peer, Map<Sha256Hash, Announcement>> batches;
+        long now = Utils.currentTimeMillis();
+        lock.lock();
+        try {
+            Iterator<Relayed> it = relayed.values().iterator();
+            while (it.hasNext() && it.next().timeMillis + RELAY_EXPIRY_MILLIS < now)
+                it.remove();
+            if (queues.isEmpty())
+                return;
+            batches = new LinkedHashMap<Peer, Map<Sha256Hash, Announcement>>(queues);
+            queues.clear();
+            for (Map<Sha256Hash, Announcement> batch : batches.values()) {
+                for (Announcement announcement : batch.values()) {
+                    // Re-announcing moves the transaction to the end, so the oldest ones are expired first.
+                    relayed.remove(announcement.tx.getHash());
+                    relayed.put(announcement.tx.getHash(), new Relayed(announcement.tx, now));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        // Send outside the lock, as writing to a peer can block.
+        for (Map.Entry<Peer, Map<Sha256Hash, Announcement>> entry : batches.entrySet()) {
+            Peer peer = entry.getKey();
+            Map<Sha256Hash, Announcement> batch = entry.getValue();
+            List<Transaction> txns = new ArrayList<Transaction>(batch.size());
+            for (Announcement announcement : batch.values())
+                txns.add(announcement.tx);
+            try {
+                InventoryMessage inv = new InventoryMessage(params);
+                for (Transaction tx : sortByDependencies(txns)) {
+                    inv.addTransaction(tx);
+                    if (inv.getItems().size() == InventoryMessage.MAX_INVENTORY_ITEMS) {
+                        peer.sendMessage(inv);
+                        inv = new InventoryMessage(params);
+                    }
+                }
+                if (!inv.getItems().isEmpty())
+                    peer.sendMessage(inv);
+                log.info("{}: Announced {} transactions", peer, txns.size());
+                for (Announcement announcement : batch.values())
+                    announcement.future.set(announcement.tx);
+            } catch (Exception e) {
+                log.error("Caught exception announcing to {}", peer, e);
+                for (Announcement announcement : batch.values())
+                    announcement.future.setException(e);
+            }
+        }
+    }
+
+    /** Returns the transaction with the given hash if it was announced recently, so that a peer can fetch it. */
+    @Nullable
+    Transaction getTransaction(Sha256Hash hash) {
+        lock.lock();
+        try {
+            Relayed entry = relayed.get(hash);
+            return entry == null ? null : entry.tx;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stops announcing the given transaction and serving it to peers, for example because it was rejected. */
+    void forget(Sha256Hash hash) {
+        List<Announcement> cancelled = new ArrayList<Announcement>();
+        lock.lock();
+        try {
+            relayed.remove(hash);
+            for (Map<Sha256Hash, Announcement> queue : queues.values()) {
+                Announcement announcement = queue.remove(hash);
+                if (announcement != null)
+                    cancelled.add(announcement);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Announcement announcement : cancelled)
+            announcement.future.cancel(false);
+    }
+
+    /** Drops everything still queued for a peer that disconnected. */
+    void removePeer(Peer peer) {
+        Map<Sha256Hash, Announcement> queue;
+        lock.lock();
+        try {
+            queue = queues.remove(peer);
+        } finally {
+            lock.unlock();
+        }
+        if (queue != null)
+            for (Announcement announcement : queue.values())
+                announcement.future.cancel(false);
+    }
+
+    /** Returns the number of transactions waiting for the next trickle, summed over all peers. */
+    int numQueued() {
+        lock.lock();
+        try {
+            int num = 0;
+            for (Map<Sha256Hash, Announcement> queue : queues.values())
+                num += queue.size();
+            return num;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the given transactions ordered so that every transaction comes after those it spends outputs of, and
+     * otherwise in the order given. Duplicates are dropped.
+     */
+    static List<Transaction> sortByDependencies(List<Transaction> txns) {
+        Map<Sha256Hash, Transaction> byHash = new HashMap<Sha256Hash, Transaction>();
+        for (Transaction tx : txns)
+            byHash.put(tx.getHash(), tx);
+        List<Transaction> sorted = new ArrayList<Transaction>(byHash.size());
+        Set<Sha256Hash> done = new HashSet<Sha256Hash>();
+        // Depth first, with an explicit stack as chains of unconfirmed transactions can be long.
+        Deque<Transaction> stack = new ArrayDeque<Transaction>();
+        for (Transaction tx : txns) {
+            stack.push(tx);
+            while (!stack.isEmpty()) {
+                Transaction top = stack.peek();
+                if (done.contains(top.getHash())) {
+                    stack.pop();
+                    continue;
+                }
+                Transaction parent = null;
+                for (TransactionInput input : top.getInputs()) {
+                    Transaction candidate = byHash.get(input.getOutpoint().getHash());
+                    if (candidate != null && !done.contains(candidate.getHash())) {
+                        parent = candidate;
+                        break;
+                    }
+                }
+                if (parent != null) {
+                    stack.push(parent);
+                } else {
+                    stack.pop();
+                    done.add(top.getHash());
+                    sorted.add(top);
+                }
+            }
+        }
+        return sorted;
+    }
+}
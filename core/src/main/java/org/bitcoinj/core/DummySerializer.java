@@ -98,6 +98,11 @@ class DummySerializer extends MessageSerializer {
         throw new UnsupportedOperationException(DEFAULT_EXCEPTION_MESSAGE);
     }
 
+    @Override
+    public byte[] serializeHeader(String name, ByteBuffer payload) {
+        throw new UnsupportedOperationException(DEFAULT_EXCEPTION_MESSAGE);
+    }
+
     @Override
     public void serialize(Message message, OutputStream out) throws IOException {
         throw new UnsupportedOperationException(DEFAULT_EXCEPTION_MESSAGE);
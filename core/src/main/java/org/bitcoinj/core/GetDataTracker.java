@@ -0,0 +1,342 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.utils.Threading;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Keeps track of the transactions and blocks explicitly requested with getdata from the peers of a
+ * {@link PeerGroup}, that is by {@link Peer#getBlock(Sha256Hash)}, {@link Peer#getPeerMempoolTransaction(Sha256Hash)}
+ * and {@link Peer#downloadDependencies(Transaction)}. It is used by the PeerGroup and does nothing on its own.</p>
+ *
+ * <p>Requests for an item that is already in flight, from whichever peer, don't go to the network again but share
+ * the answer of the first. If a peer doesn't answer within the timeout or disconnects, the item is requested from
+ * another peer that wasn't asked yet, up to a maximum number of attempts, after which the future is cancelled. The same
+ * happens on notfound, except for dependencies of transactions: those are expected to be missing from memory pools once
+ * they confirmed, so the future is cancelled right away. Each peer has at most a limited number of these requests in flight, further ones wait until a peer has
+ * room.</p>
+ */
+public class GetDataTracker {
+    private static final Logger log = LoggerFactory.getLogger(GetDataTracker.class);
+
+    /** The most requests in flight to a single peer at any time. */
+    public static final int DEFAULT_MAX_IN_FLIGHT_PER_PEER = 64;
+    /** How many peers are asked for an item before giving up. */
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    /** How long a peer has to answer before the item is requested from another. */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 30 * 1000;
+
+    private final ReentrantLock lock = Threading.lock("getdatatracker");
+    private final NetworkParameters params;
+    private final int maxInFlightPerPeer;
+    private final int maxAttempts;
+    private final long timeoutMillis;
+
+    private static class Request {
+        final InventoryItem item;
+        // The peer that made the request, whose callbacks on the future may take its lock.
+        final Peer origin;
+        final SettableFuture<Message> future = SettableFuture.create();
+        boolean retryIfNotFound;
+        // The peers asked so far, the last one of which is asked right now unless the request is waiting.
+        final List<Peer> asked = Lists.newArrayList();
+        @Nullable Peer peer;
+        long timeMillis;
+
+        Request(InventoryItem item, Peer origin) {
+            this.item = item;
+            this.origin = origin;
+        }
+    }
+
+    @GuardedBy("lock") private final HashMap<Sha256Hash, Request> requests = Maps.newHashMap();
+    @GuardedBy("lock") private final LinkedHashMap<Peer, Integer> inFlight = Maps.newLinkedHashMap();
+    // Requests waiting for a peer to have room.
+    @GuardedBy("lock") private final ArrayDeque<Request> waiting = new ArrayDeque<Request>();
+
+    public GetDataTracker(NetworkParameters params) {
+        this(params, DEFAULT_MAX_IN_FLIGHT_PER_PEER, DEFAULT_MAX_ATTEMPTS, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    public GetDataTracker(NetworkParameters params, int maxInFlightPerPeer, int maxAttempts, long timeoutMillis) {
+        checkArgument(maxInFlightPerPeer > 0);
+        this.params = checkNotNull(params);
+        checkArgument(maxAttempts > 0);
+        this.maxInFlightPerPeer = maxInFlightPerPeer;
+        this.maxAttempts = maxAttempts;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /** Lets the tracker ask the given peer for items that another peer didn't deliver. */
+    public void addPeer(Peer peer) {
+        Map<Peer, GetDataMessage> getdatas = Maps.newLinkedHashMap();
+        List<Request> failed = Lists.newArrayList();
+        lock.lock();
+        try {
+            if (!inFlight.containsKey(peer))
+                inFlight.put(peer, 0);
+            assignWaiting(getdatas, failed);
+        } finally {
+            lock.unlock();
+        }
+        finish(getdatas, failed);
+    }
+
+    /** Forgets about the given peer, requesting what it didn't deliver yet from the others. */
+    public void removePeer(Peer peer) {
+        Map<Peer, GetDataMessage> getdatas = Maps.newLinkedHashMap();
+        List<Request> failed = Lists.newArrayList();
+        lock.lock();
+        try {
+            inFlight.remove(peer);
+            for (Request request : Lists.newArrayList(requests.values())) {
+                if (request.peer == peer) {
+                    log.info("{}: Disconnected before delivering {}", peer, request.item.hash);
+                    retry(request, getdatas, failed);
+                }
+            }
+            assignWaiting(getdatas, failed);
+        } finally {
+            lock.unlock();
+        }
+        finish(getdatas, failed);
+    }
+
+    /**
+     * Returns futures for the given items, in the same order, requesting the ones not already in flight from the given
+     * peer. The futures complete with the {@link Transaction} or {@link Block} once any peer delivered it and are
+     * cancelled if no peer could. Cancelling one of them doesn't affect other requests for the same item.
+     *
+     * @param retryIfNotFound whether to ask other peers when one doesn't have the item, or give up right away
+     */
+    public List<ListenableFuture<Message>> request(Peer peer, List<InventoryItem> items, boolean retryIfNotFound) {
+        Map<Peer, GetDataMessage> getdatas = Maps.newLinkedHashMap();
+        List<Request> failed = Lists.newArrayList();
+        List<ListenableFuture<Message>> futures = Lists.newArrayListWithCapacity(items.size());
+        lock.lock();
+        try {
+            for (InventoryItem item : items) {
+                Request request = requests.get(item.hash);
+                if (request == null) {
+                    request = new Request(item, peer);
+                    requests.put(item.hash, request);
+                    Integer count = inFlight.get(peer);
+                    if (count == null || count < maxInFlightPerPeer)
+                        send(request, peer, getdatas);
+                    else
+                        retry(request, getdatas, failed);
+                } else {
+                    log.debug("{}: {} is already being requested from {}", peer, item.hash, request.peer);
+                }
+                request.retryIfNotFound |= retryIfNotFound;
+                futures.add(Futures.nonCancellationPropagating(request.future));
+            }
+        } finally {
+            lock.unlock();
+        }
+        finish(getdatas, failed);
+        return futures;
+    }
+
+    /**
+     * Called by peers for each transaction and block they receive. Completes the request for it, if there is one.
+     *
+     * @return true if the message was requested from this peer, and so shouldn't be processed any further
+     */
+    boolean receive(Peer peer, final Message m) {
+        Map<Peer, GetDataMessage> getdatas = Maps.newLinkedHashMap();
+        List<Request> failed = Lists.newArrayList();
+        final Request request;
+        lock.lock();
+        try {
+            request = requests.remove(m.getHash());
+            if (request == null)
+                return false;
+            if (request.peer != null)
+                release(request.peer);
+            else
+                waiting.remove(request);
+            assignWaiting(getdatas, failed);
+        } finally {
+            lock.unlock();
+        }
+        if (request.origin == peer) {
+            request.future.set(m);
+        } else {
+            // The receiving peer may hold its lock, so don't run the callbacks of another peer here.
+            Threading.USER_THREAD.execute(new Runnable() {
+                @Override
+                public void run() {
+                    request.future.set(m);
+                }
+            });
+        }
+        finish(getdatas, failed);
+        return request.peer == peer;
+    }
+
+    /** Called by peers when they receive a notfound, requests the items from another peer. */
+    void notFound(Peer peer, List<InventoryItem> items) {
+        Map<Peer, GetDataMessage> getdatas = Maps.newLinkedHashMap();
+        List<Request> failed = Lists.newArrayList();
+        lock.lock();
+        try {
+            for (InventoryItem item : items) {
+                Request request = requests.get(item.hash);
+                if (request == null || request.peer != peer)
+                    continue;
+                release(peer);
+                if (request.retryIfNotFound)
+                    retry(request, getdatas, failed);
+                else
+                    fail(request, failed);
+            }
+            assignWaiting(getdatas, failed);
+        } finally {
+            lock.unlock();
+        }
+        finish(getdatas, failed);
+    }
+
+    /**
+     * Requests the items peers didn't deliver within the timeout from other peers. Called regularly by the
+     * {@link PeerGroup}.
+     */
+    public void checkForTimeouts() {
+        Map<Peer, GetDataMessage> getdatas = Maps.newLinkedHashMap();
+        List<Request> failed = Lists.newArrayList();
+        lock.lock();
+        try {
+            long now = Utils.currentTimeMillis();
+            for (Request request : Lists.newArrayList(requests.values())) {
+                if (request.peer != null && now - request.timeMillis >= timeoutMillis) {
+                    log.info("{}: Timed out waiting for {}", request.peer, request.item.hash);
+                    release(request.peer);
+                    retry(request, getdatas, failed);
+                }
+            }
+            assignWaiting(getdatas, failed);
+        } finally {
+            lock.unlock();
+        }
+        finish(getdatas, failed);
+    }
+
+    /** Returns the number of items currently requested or waiting to be. */
+    public int numRequests() {
+        lock.lock();
+        try {
+            return requests.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void send(Request request, Peer peer, Map<Peer, GetDataMessage> getdatas) {
+        request.peer = peer;
+        request.asked.add(peer);
+        request.timeMillis = Utils.currentTimeMillis();
+        Integer count = inFlight.get(peer);
+        if (count != null)
+            inFlight.put(peer, count + 1);
+        GetDataMessage getdata = getdatas.get(peer);
+        if (getdata == null) {
+            getdata = new GetDataMessage(params);
+            getdatas.put(peer, getdata);
+        }
+        getdata.addItem(request.item);
+    }
+
+    @GuardedBy("lock")
+    private void release(Peer peer) {
+        Integer count = inFlight.get(peer);
+        if (count != null && count > 0)
+            inFlight.put(peer, count - 1);
+    }
+
+    // Requests the item from the peer with the most room that wasn't asked yet, or makes it wait for one to have room.
+    @GuardedBy("lock")
+    private void retry(Request request, Map<Peer, GetDataMessage> getdatas, List<Request> failed) {
+        request.peer = null;
+        if (request.asked.size() >= maxAttempts) {
+            fail(request, failed);
+            return;
+        }
+        boolean candidates = false;
+        Peer best = null;
+        int bestCount = Integer.MAX_VALUE;
+        for (Map.Entry<Peer, Integer> entry : inFlight.entrySet()) {
+            if (request.asked.contains(entry.getKey()))
+                continue;
+            candidates = true;
+            if (entry.getValue() < maxInFlightPerPeer && entry.getValue() < bestCount) {
+                best = entry.getKey();
+                bestCount = entry.getValue();
+            }
+        }
+        if (best != null)
+            send(request, best, getdatas);
+        else if (candidates)
+            waiting.add(request);
+        else
+            fail(request, failed);
+    }
+
+    @GuardedBy("lock")
+    private void assignWaiting(Map<Peer, GetDataMessage> getdatas, List<Request> failed) {
+        int count = waiting.size();
+        for (int i = 0; i < count; i++)
+            retry(waiting.poll(), getdatas, failed);
+    }
+
+    @GuardedBy("lock")
+    private void fail(Request request, List<Request> failed) {
+        log.info("Giving up on {} after asking {} peer(s)", request.item.hash, request.asked.size());
+        requests.remove(request.item.hash);
+        failed.add(request);
+    }
+
+    // Sends the getdatas and cancels the failed requests, without holding the lock.
+    private void finish(Map<Peer, GetDataMessage> getdatas, List<Request> failed) {
+        for (Map.Entry<Peer, GetDataMessage> entry : getdatas.entrySet()) {
+            try {
+                entry.getKey().sendMessage(entry.getValue());
+            } catch (Exception e) {
+                // The peer will be removed shortly, which requests these from someone else.
+                log.warn("{}: Failed to send getdata: {}", entry.getKey(), e.toString());
+            }
+        }
+        for (Request request : failed)
+            request.future.cancel(true);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>An output stream that calculates the SHA-256 hash of everything written to it, and optionally passes the bytes on
+ * to another stream. Serializing a message into one gives its hash without building a byte array of the whole message
+ * first, for example {@code message.bitcoinSerialize(stream)} followed by {@link #hashTwice()}.</p>
+ *
+ * <p>Small writes, like the single bytes and integers messages are made of, are collected in a buffer and handed to the
+ * digest in bulk. Finishing a hash resets the stream, so it can be reused. Not thread safe.</p>
+ */
+public class HashingOutputStream extends OutputStream {
+    private static final int BUFFER_SIZE = 256;
+
+    private final MessageDigest digest = Sha256Hash.newDigest();
+    @Nullable private final OutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int buffered;
+    private long count;
+
+    /** Creates a stream that only hashes what is written to it. */
+    public HashingOutputStream() {
+        this(null);
+    }
+
+    /** Creates a stream that hashes what is written to it and writes it on to the given stream. */
+    public HashingOutputStream(@Nullable OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (buffered == BUFFER_SIZE)
+            flushBuffer();
+        buffer[buffered++] = (byte) b;
+        count++;
+        if (out != null)
+            out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len >= BUFFER_SIZE) {
+            flushBuffer();
+            digest.update(b, off, len);
+        } else {
+            if (buffered + len > BUFFER_SIZE)
+                flushBuffer();
+            System.arraycopy(b, off, buffer, buffered, len);
+            buffered += len;
+        }
+        count += len;
+        if (out != null)
+            out.write(b, off, len);
+    }
+
+    /** Returns the number of bytes written since the stream was created or last finished a hash. */
+    public long getCount() {
+        return count;
+    }
+
+    /** Returns the SHA-256 hash of the bytes written, and resets the stream. */
+    public Sha256Hash hash() {
+        flushBuffer();
+        count = 0;
+        return Sha256Hash.wrap(digest.digest());
+    }
+
+    /** Returns the double SHA-256 hash of the bytes written, and resets the stream. */
+    public Sha256Hash hashTwice() {
+        byte[] hash = new byte[Sha256Hash.LENGTH];
+        hashTwice(hash, 0);
+        return Sha256Hash.wrap(hash);
+    }
+
+    /**
+     * Writes the double SHA-256 hash of the bytes written into the given array, in big-endian order, and resets the
+     * stream.
+     */
+    public void hashTwice(byte[] output, int outputOffset) {
+        checkArgument(outputOffset >= 0 && outputOffset + Sha256Hash.LENGTH <= output.length, "Output array too small");
+        flushBuffer();
+        count = 0;
+        Sha256Hash.finishTwice(digest, output, outputOffset);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (out != null)
+            out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (out != null)
+            out.close();
+    }
+
+    private void flushBuffer() {
+        if (buffered > 0) {
+            digest.update(buffer, 0, buffered);
+            buffered = 0;
+        }
+    }
+}
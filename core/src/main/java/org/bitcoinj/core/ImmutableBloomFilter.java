@@ -0,0 +1,269 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.core.BloomFilter.BloomUpdate;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptChunk;
+import com.google.common.base.Objects;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.google.common.base.Preconditions.checkPositionIndexes;
+
+/**
+ * <p>A {@link BloomFilter} that can't be modified, so any number of threads can match against it at the same time
+ * without locking. This suits the serving side, where the filter a peer loaded is matched against every transaction
+ * and block going out to it.</p>
+ *
+ * <p>Updates are copy-on-write: {@link #applyAndUpdate(Transaction)} returns a new filter with the matched outpoints
+ * added, which can be published for the other threads to pick up. {@link #applyAndUpdate(AtomicReference, Transaction)}
+ * does that for a filter held in an {@link AtomicReference}.</p>
+ *
+ * <p>The bits are kept in longs, and the hashing runs over the bytes already at hand: script pushes are hashed where
+ * they are and outpoints are hashed without serializing them. {@link #toBloomFilter()} converts back into the
+ * message, with the same wire format.</p>
+ *
+ * <p>A filter without any bits, which a {@code filterload} message may carry, matches nothing.</p>
+ */
+public final class ImmutableBloomFilter {
+    private final long[] bits;
+    private final int numBits;
+    private final int hashFuncs;
+    private final long nTweak;
+    private final byte nFlags;
+
+    private ImmutableBloomFilter(long[] bits, int numBits, int hashFuncs, long nTweak, byte nFlags) {
+        this.bits = bits;
+        this.numBits = numBits;
+        this.hashFuncs = hashFuncs;
+        this.nTweak = nTweak;
+        this.nFlags = nFlags;
+    }
+
+    ImmutableBloomFilter(byte[] data, long hashFuncs, long nTweak, byte nFlags) {
+        this.bits = new long[(data.length + 7) / 8];
+        for (int i = 0; i < data.length; i++)
+            bits[i >>> 3] |= (data[i] & 0xFFL) << ((i & 7) * 8);
+        this.numBits = data.length * 8;
+        this.hashFuncs = (int) hashFuncs;
+        this.nTweak = nTweak;
+        this.nFlags = nFlags;
+    }
+
+    /** Returns an immutable copy of the given filter as it is now, see {@link BloomFilter#toImmutable()}. */
+    public static ImmutableBloomFilter copyOf(BloomFilter filter) {
+        return filter.toImmutable();
+    }
+
+    /** Returns a new {@link BloomFilter} message with the same contents, for sending or further modification. */
+    public BloomFilter toBloomFilter() {
+        byte[] data = new byte[numBits / 8];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) (bits[i >>> 3] >>> ((i & 7) * 8));
+        return new BloomFilter(data, hashFuncs, nTweak, nFlags);
+    }
+
+    private static boolean isSet(long[] bits, int numBits, int hash) {
+        int bit = (int) ((hash & 0xFFFFFFFFL) % numBits);
+        return (bits[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    private static void set(long[] bits, int numBits, int hash) {
+        int bit = (int) ((hash & 0xFFFFFFFFL) % numBits);
+        bits[bit >>> 6] |= 1L << bit;
+    }
+
+    /** See {@link BloomFilter#contains(byte[])}. */
+    public boolean contains(byte[] object) {
+        return contains(object, 0, object.length);
+    }
+
+    /** Like {@link #contains(byte[])}, for length bytes of buffer starting at offset. */
+    public boolean contains(byte[] buffer, int offset, int length) {
+        checkPositionIndexes(offset, offset + length, buffer.length);
+        return contains(bits, buffer, offset, length);
+    }
+
+    private boolean contains(long[] bits, byte[] buffer, int offset, int length) {
+        if (numBits == 0)
+            return false;
+        for (int i = 0; i < hashFuncs; i++) {
+            if (!isSet(bits, numBits, BloomFilter.murmurHash3(nTweak, i, buffer, offset, length)))
+                return false;
+        }
+        return true;
+    }
+
+    /** Returns true if the serialized form of the given outpoint matches the filter. */
+    public boolean contains(TransactionOutPoint outpoint) {
+        return containsOutPoint(outpoint.getHash(), outpoint.getIndex());
+    }
+
+    private boolean containsOutPoint(Sha256Hash hash, long index) {
+        if (numBits == 0)
+            return false;
+        for (int i = 0; i < hashFuncs; i++) {
+            if (!isSet(bits, numBits, BloomFilter.murmurHash3OutPoint(nTweak, i, hash, index)))
+                return false;
+        }
+        return true;
+    }
+
+    /** Returns a copy of this filter with the given object inserted. */
+    public ImmutableBloomFilter insert(byte[] object) {
+        if (numBits == 0)
+            return this;
+        long[] newBits = bits.clone();
+        for (int i = 0; i < hashFuncs; i++)
+            set(newBits, numBits, BloomFilter.murmurHash3(nTweak, i, object, 0, object.length));
+        return new ImmutableBloomFilter(newBits, numBits, hashFuncs, nTweak, nFlags);
+    }
+
+    /** See {@link BloomFilter#matchesAll()}. */
+    public boolean matchesAll() {
+        if (numBits == 0)
+            return false;
+        for (int i = 0; i < bits.length - 1; i++)
+            if (bits[i] != -1L)
+                return false;
+        // The last word may be partly used.
+        int used = numBits - (bits.length - 1) * 64;
+        long mask = used == 64 ? -1L : (1L << used) - 1;
+        return (bits[bits.length - 1] & mask) == mask;
+    }
+
+    /** See {@link BloomFilter#getUpdateFlag()}. */
+    public BloomUpdate getUpdateFlag() {
+        if (nFlags == 0)
+            return BloomUpdate.UPDATE_NONE;
+        else if (nFlags == 1)
+            return BloomUpdate.UPDATE_ALL;
+        else if (nFlags == 2)
+            return BloomUpdate.UPDATE_P2PUBKEY_ONLY;
+        else
+            throw new IllegalStateException("Unknown flag combination");
+    }
+
+    /**
+     * Matches the transaction like {@link BloomFilter#applyAndUpdate(Transaction)}. Returns null if it doesn't match,
+     * otherwise the filter to use from now on: a copy with the outpoints of the matched outputs inserted if the update
+     * flag asks for that, or this filter if nothing had to be added.
+     */
+    @Nullable
+    public ImmutableBloomFilter applyAndUpdate(Transaction tx) {
+        if (contains(tx.getHash().getBytes()))
+            return this;
+        List<TransactionOutput> outputs = tx.getOutputs();
+        long[] newBits = null;
+        boolean found = false;
+        BloomUpdate flag = getUpdateFlag();
+        for (int index = 0; index < outputs.size(); index++) {
+            Script script = outputs.get(index).getScriptPubKey();
+            for (ScriptChunk chunk : script.getChunks()) {
+                if (!chunk.isPushData())
+                    continue;
+                // Outpoints inserted for earlier outputs count, as they would when updating a BloomFilter in place.
+                if (contains(newBits == null ? bits : newBits, chunk.data, 0, chunk.data.length)) {
+                    boolean isSendingToPubKeys = script.isSentToRawPubKey() || script.isSentToMultiSig();
+                    if (flag == BloomUpdate.UPDATE_ALL || (flag == BloomUpdate.UPDATE_P2PUBKEY_ONLY && isSendingToPubKeys)) {
+                        if (newBits == null)
+                            newBits = bits.clone();
+                        for (int i = 0; i < hashFuncs; i++)
+                            set(newBits, numBits, BloomFilter.murmurHash3OutPoint(nTweak, i, tx.getHash(), index));
+                    }
+                    found = true;
+                }
+            }
+        }
+        if (found)
+            return newBits == null ? this : new ImmutableBloomFilter(newBits, numBits, hashFuncs, nTweak, nFlags);
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutPoint outpoint = input.getOutpoint();
+            if (containsOutPoint(outpoint.getHash(), outpoint.getIndex()))
+                return this;
+            for (ScriptChunk chunk : input.getScriptSig().getChunks()) {
+                if (chunk.isPushData() && contains(chunk.data))
+                    return this;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Matches the transaction against the filter held by the reference, and publishes the updated filter if the match
+     * changed it. Safe to call from any number of threads, none of them block. Returns true if the transaction matched.
+     */
+    public static boolean applyAndUpdate(AtomicReference<ImmutableBloomFilter> filter, Transaction tx) {
+        while (true) {
+            ImmutableBloomFilter current = filter.get();
+            ImmutableBloomFilter updated = current.applyAndUpdate(tx);
+            if (updated == null)
+                return false;
+            // If another thread got in first, match again against its filter so neither update is lost.
+            if (updated == current || filter.compareAndSet(current, updated))
+                return true;
+        }
+    }
+
+    /**
+     * Creates a new FilteredBlock from the given Block like {@link BloomFilter#applyAndUpdate(Block)}, using and
+     * updating the filter held by the reference.
+     */
+    public static FilteredBlock applyAndUpdate(AtomicReference<ImmutableBloomFilter> filter, Block block) {
+        List<Transaction> txns = block.getTransactions();
+        List<Sha256Hash> txHashes = new ArrayList<Sha256Hash>(txns.size());
+        List<Transaction> matched = new ArrayList<Transaction>();
+        byte[] bits = new byte[(int) Math.ceil(txns.size() / 8.0)];
+        for (int i = 0; i < txns.size(); i++) {
+            Transaction tx = txns.get(i);
+            txHashes.add(tx.getHash());
+            if (applyAndUpdate(filter, tx)) {
+                Utils.setBitLE(bits, i);
+                matched.add(tx);
+            }
+        }
+        PartialMerkleTree pmt = PartialMerkleTree.buildFromLeaves(block.getParams(), bits, txHashes);
+        FilteredBlock filteredBlock = new FilteredBlock(block.getParams(), block.cloneAsHeader(), pmt);
+        for (Transaction transaction : matched)
+            filteredBlock.provideTransaction(transaction);
+        return filteredBlock;
+    }
+
+    @Override
+    public String toString() {
+        return "Immutable Bloom Filter of size " + numBits / 8 + " with " + hashFuncs + " hash functions.";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ImmutableBloomFilter other = (ImmutableBloomFilter) o;
+        return numBits == other.numBits && hashFuncs == other.hashFuncs && nTweak == other.nTweak
+                && nFlags == other.nFlags && Arrays.equals(bits, other.bits);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(numBits, hashFuncs, nTweak, nFlags, Arrays.hashCode(bits));
+    }
+}
@@ -18,10 +18,12 @@
 
 package org.bitcoinj.core;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Generic interface for classes which serialize/deserialize messages. Implementing
@@ -154,6 +156,29 @@ public abstract class MessageSerializer {
      */
     public abstract void serialize(String name, byte[] message, OutputStream out) throws IOException, UnsupportedOperationException;
 
+    /**
+     * Returns the header for a message with the given name and the remaining bytes of the given buffer as payload,
+     * for sending messages whose payload is already serialized, without copying it. The buffer's position is left
+     * untouched.
+     *
+     * <p>This implementation serializes a copy of the whole message with {@link #serialize(String, byte[],
+     * OutputStream)} and cuts the header off it. Subclasses should override it to avoid the copy.</p>
+     * 
+     * @throws UnsupportedOperationException if this serializer/deserializer
+     * does not support serialization.
+     */
+    public byte[] serializeHeader(String name, ByteBuffer payload) throws UnsupportedOperationException {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.duplicate().get(bytes);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            serialize(name, bytes, out);
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        return Arrays.copyOf(out.toByteArray(), out.size() - bytes.length);
+    }
+
     /**
      * Writes message to to the output stream.
      * 
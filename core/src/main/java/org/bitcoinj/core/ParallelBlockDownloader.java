@@ -0,0 +1,630 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.utils.Threading;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Downloads the block chain from several peers at once. It is used by {@link PeerGroup} when
+ * {@link PeerGroup#setMaxParallelDownloadPeers(int)} is set to more than one, and does nothing on its own.</p>
+ *
+ * <p>The download peer picked by the PeerGroup is asked for block headers with "getheaders". Headers are checked to
+ * connect to each other and to have valid proof of work. Those that predate the fast catchup time are added to the
+ * block chain straight away, for the rest the (filtered or full) blocks are requested from all the peers taking part,
+ * with a window of blocks in flight per peer that grows while the peer delivers and shrinks when it stalls. Blocks can
+ * arrive in any order, and are buffered and handed to {@link AbstractBlockChain#add(Block)} in chain order by whichever
+ * thread delivered the next block needed. If the block needed next isn't delivered within the stall timeout, the
+ * blocks requested from that peer are taken back and requested from the others.</p>
+ *
+ * <p>When a filtered block exhausts the Bloom filter, it and all blocks after it are requested again once each peer
+ * was sent the new filter. Replies to requests made before that are recognised as such and dropped, as peers answer
+ * requests in order.</p>
+ *
+ * <p>Once the download peer has no more headers to give and all blocks are in the chain, the downloader goes idle
+ * and newly solved blocks are downloaded by the download peer alone as usual, until the next call to
+ * {@link #start(Peer)}.</p>
+ */
+public class ParallelBlockDownloader {
+    private static final Logger log = LoggerFactory.getLogger(ParallelBlockDownloader.class);
+
+    /** How many blocks may be downloaded ahead of the next one the block chain needs. */
+    public static final int BLOCK_DOWNLOAD_WINDOW = 1024;
+    /** The most blocks requested from a single peer at any time. */
+    public static final int MAX_BLOCKS_IN_FLIGHT_PER_PEER = 32;
+    /** How long the next block the chain needs may be in flight before it is requested from someone else. */
+    public static final long DEFAULT_STALL_TIMEOUT_MILLIS = 5000;
+    // Ask for more headers when fewer than this many blocks are left to be requested.
+    private static final int HEADERS_LOW_WATER_MARK = 2 * BLOCK_DOWNLOAD_WINDOW;
+
+    private final ReentrantLock lock = Threading.lock("parallelblockdownloader");
+    private final AbstractBlockChain chain;
+    private final int maxPeers;
+    private final long stallTimeoutMillis;
+
+    // One of these for each block we know the header of but which isn't in the chain yet.
+    private static class Slot {
+        final Sha256Hash hash;
+        final int height;
+        @Nullable PeerState assignedTo;
+        @Nullable Message data;  // Block or FilteredBlock
+
+        Slot(Sha256Hash hash, int height) {
+            this.hash = hash;
+            this.height = height;
+        }
+    }
+
+    private static class Request {
+        final Sha256Hash hash;
+        final long timeMillis;
+        // Set when the block was taken back or the filter it was requested under got exhausted. The reply is dropped.
+        boolean stale;
+
+        Request(Sha256Hash hash, long timeMillis) {
+            this.hash = hash;
+            this.timeMillis = timeMillis;
+        }
+    }
+
+    private static class PeerState {
+        final Peer peer;
+        // In the order sent, which is also the order the peer will reply in.
+        final LinkedList<Request> inFlight = new LinkedList<Request>();
+        int window = MAX_BLOCKS_IN_FLIGHT_PER_PEER / 4;
+        long penaltyUntilMillis;
+        long filterSequence;
+
+        PeerState(Peer peer) {
+            this.peer = peer;
+        }
+
+        int activeRequests() {
+            int count = 0;
+            for (Request request : inFlight)
+                if (!request.stale)
+                    count++;
+            return count;
+        }
+    }
+
+    @GuardedBy("lock") private final LinkedHashMap<Peer, PeerState> peers = Maps.newLinkedHashMap();
+    @GuardedBy("lock") private final ArrayDeque<Slot> queue = new ArrayDeque<Slot>();
+    @GuardedBy("lock") private final HashMap<Sha256Hash, Slot> slots = Maps.newHashMap();
+    @GuardedBy("lock") private boolean active;
+    @GuardedBy("lock") @Nullable private PeerState headersPeer;
+    @GuardedBy("lock") private boolean filtered;
+    @GuardedBy("lock") private long fastCatchupTimeSecs;
+    @GuardedBy("lock") private boolean downloadingBodies;
+    @GuardedBy("lock") private Sha256Hash lastHeaderHash;
+    @GuardedBy("lock") private int lastHeaderHeight;
+    @GuardedBy("lock") private boolean moreHeaders, headersInFlight;
+    @GuardedBy("lock") private boolean draining;
+    // Counts Bloom filters sent to peers. Peers sent their last filter at or before requiredFilterSequence may not be
+    // asked for filtered blocks, because that filter was exhausted.
+    @GuardedBy("lock") private long filterSequence, requiredFilterSequence;
+
+    /**
+     * @param chain the chain to add blocks to
+     * @param maxPeers how many peers to download blocks from at most, including the download peer
+     * @param stallTimeoutMillis how long the block needed next may be in flight before it is requested elsewhere
+     */
+    public ParallelBlockDownloader(AbstractBlockChain chain, int maxPeers, long stallTimeoutMillis) {
+        checkArgument(maxPeers > 0);
+        checkArgument(stallTimeoutMillis > 0);
+        this.chain = checkNotNull(chain);
+        this.maxPeers = maxPeers;
+        this.stallTimeoutMillis = stallTimeoutMillis;
+    }
+
+    /** Lets the given peer take part in downloading blocks. */
+    public void addPeer(Peer peer) {
+        lock.lock();
+        try {
+            if (!peers.containsKey(peer)) {
+                PeerState state = new PeerState(peer);
+                // The PeerGroup usually sends a connecting peer its filter before adding it here, in which case
+                // onBloomFilterSent() didn't know about the peer yet. Count that filter as sent now.
+                if (peer.getBloomFilter() != null)
+                    state.filterSequence = ++filterSequence;
+                peers.put(peer, state);
+            }
+        } finally {
+            lock.unlock();
+        }
+        sendRequests();
+    }
+
+    /** Takes back whatever was requested from the given peer, usually because it disconnected. */
+    public void removePeer(Peer peer) {
+        lock.lock();
+        try {
+            PeerState state = peers.remove(peer);
+            if (state == null)
+                return;
+            takeBackLocked(state);
+            if (state == headersPeer) {
+                // Wait for the PeerGroup to pick a new download peer and call start() again.
+                log.info("{}: Lost headers peer, pausing parallel block download", peer);
+                headersPeer = null;
+                active = false;
+            }
+        } finally {
+            lock.unlock();
+        }
+        sendRequests();
+    }
+
+    /** Returns true if a download is in progress, false if caught up with the download peer or not yet started. */
+    public boolean isActive() {
+        lock.lock();
+        try {
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of blocks whose headers are known but which aren't in the block chain yet. */
+    public int getPendingBlocks() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts downloading from the current chain head, asking the given peer for headers. Called by
+     * {@link Peer#startBlockChainDownload()}.
+     */
+    void start(Peer peer) {
+        GetHeadersMessage message;
+        lock.lock();
+        try {
+            PeerState state = peers.get(peer);
+            if (state == null) {
+                state = new PeerState(peer);
+                peers.put(peer, state);
+            }
+            // Forget whatever a previous download was doing.
+            for (PeerState other : peers.values())
+                takeBackLocked(other);
+            queue.clear();
+            slots.clear();
+            headersPeer = state;
+            filtered = peer.isUsingFilteredBlocks();
+            fastCatchupTimeSecs = peer.getFastCatchupTimeSecs();
+            downloadingBodies = false;
+            StoredBlock head = chain.getChainHead();
+            lastHeaderHash = head.getHeader().getHash();
+            lastHeaderHeight = head.getHeight();
+            moreHeaders = true;
+            headersInFlight = true;
+            active = true;
+            message = new GetHeadersMessage(chain.params, buildLocator(), Sha256Hash.ZERO_HASH);
+            log.info("{}: Starting parallel {} block download from height {} with up to {} peers", peer,
+                    filtered ? "filtered" : "full", lastHeaderHeight, maxPeers);
+        } finally {
+            lock.unlock();
+        }
+        peer.sendMessage(message);
+    }
+
+    /** Called by the peer when it received headers. Returns false if they weren't asked for by this object. */
+    boolean receiveHeaders(Peer peer, HeadersMessage message) {
+        List<Block> headersOnly = Lists.newArrayList();
+        lock.lock();
+        try {
+            if (!active || headersPeer == null || headersPeer.peer != peer)
+                return false;
+            headersInFlight = false;
+            long bestHeight = peer.getBestHeight();
+            for (Block header : message.getBlockHeaders()) {
+                if (!header.getPrevBlockHash().equals(lastHeaderHash)) {
+                    log.warn("{}: Got unconnected header {}, falling back to single peer download", peer,
+                            header.getHashAsString());
+                    stopLocked();
+                    break;
+                }
+                header.verifyHeader();
+                lastHeaderHash = header.getHash();
+                lastHeaderHeight++;
+                // Like the single peer download, always get the top block in full to catch up with the peer.
+                if (!downloadingBodies && header.getTimeSeconds() < fastCatchupTimeSecs && lastHeaderHeight < bestHeight) {
+                    headersOnly.add(header);
+                } else {
+                    downloadingBodies = true;
+                    Slot slot = new Slot(lastHeaderHash, lastHeaderHeight);
+                    queue.add(slot);
+                    slots.put(lastHeaderHash, slot);
+                }
+            }
+            moreHeaders = message.getBlockHeaders().size() >= HeadersMessage.MAX_HEADERS;
+        } catch (VerificationException e) {
+            log.warn("{}: Block header verification failed, falling back to single peer download", peer, e);
+            stopLocked();
+        } finally {
+            lock.unlock();
+        }
+        if (!isActive()) {
+            peer.onParallelDownloadFinished(true);
+            return true;
+        }
+        // No slots were created before these, so no blocks can be added to the chain before them.
+        for (Block header : headersOnly) {
+            try {
+                if (!chain.add(header))
+                    throw new VerificationException("Header does not connect: " + header.getHashAsString());
+            } catch (VerificationException e) {
+                log.warn("{}: Header did not go into the chain, falling back to single peer download", peer, e);
+                stop();
+                peer.onParallelDownloadFinished(true);
+                return true;
+            } catch (PrunedException e) {
+                // Unreachable when in SPV mode.
+                throw new RuntimeException(e);
+            }
+            peer.invokeOnBlocksDownloaded(header, null);
+        }
+        sendRequests();
+        drain(peer);
+        return true;
+    }
+
+    /**
+     * Called by the peer when it received a block or a filtered block. Returns false if it wasn't asked for by this
+     * object, in which case the peer goes on to handle it as usual.
+     */
+    boolean receive(Peer peer, Message block) {
+        checkArgument(block instanceof Block || block instanceof FilteredBlock);
+        Sha256Hash hash = block.getHash();
+        lock.lock();
+        try {
+            PeerState state = peers.get(peer);
+            if (state == null)
+                return false;
+            Request request = null;
+            for (Iterator<Request> it = state.inFlight.iterator(); it.hasNext(); ) {
+                Request candidate = it.next();
+                if (candidate.hash.equals(hash)) {
+                    it.remove();
+                    request = candidate;
+                    break;
+                }
+            }
+            if (request == null)
+                return false;
+            // The peer delivers, so it can be trusted with a little more.
+            state.window = Math.min(MAX_BLOCKS_IN_FLIGHT_PER_PEER, state.window + 1);
+            state.penaltyUntilMillis = 0;
+            Slot slot = slots.get(hash);
+            if (!request.stale && slot != null && slot.assignedTo == state)
+                slot.data = block;
+        } finally {
+            lock.unlock();
+        }
+        sendRequests();
+        drain(peer);
+        return true;
+    }
+
+    /**
+     * Called by the peer when block announcements came in. Returns true if they shouldn't be acted upon because a
+     * download is in progress.
+     */
+    boolean onBlocksAnnounced(Peer peer) {
+        lock.lock();
+        try {
+            if (!active)
+                return false;
+            if (headersPeer != null && headersPeer.peer == peer && !moreHeaders) {
+                // We got to the end of the peers headers but are still downloading blocks. Get the new ones too.
+                moreHeaders = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        sendRequests();
+        return true;
+    }
+
+    /** Called by the peer when it was sent a new Bloom filter. */
+    void onBloomFilterSent(Peer peer) {
+        lock.lock();
+        try {
+            PeerState state = peers.get(peer);
+            if (state == null)
+                return;
+            state.filterSequence = ++filterSequence;
+        } finally {
+            lock.unlock();
+        }
+        sendRequests();
+    }
+
+    /**
+     * Takes back blocks from a peer that has been sitting on the block needed next for longer than the stall
+     * timeout. Called regularly by the {@link PeerGroup}.
+     */
+    public void checkForStalls() {
+        lock.lock();
+        try {
+            if (!active)
+                return;
+            Slot next = queue.peek();
+            if (next == null || next.data != null || next.assignedTo == null)
+                return;
+            PeerState state = next.assignedTo;
+            long now = Utils.currentTimeMillis();
+            Request request = null;
+            for (Request candidate : state.inFlight)
+                if (!candidate.stale && candidate.hash.equals(next.hash))
+                    request = candidate;
+            if (request == null || now - request.timeMillis < stallTimeoutMillis)
+                return;
+            log.info("{}: Stalled on block {} at height {}, requesting {} blocks from other peers", state.peer,
+                    next.hash, next.height, state.activeRequests());
+            takeBackLocked(state);
+            state.window = Math.max(1, state.window / 2);
+            state.penaltyUntilMillis = now + stallTimeoutMillis;
+        } finally {
+            lock.unlock();
+        }
+        sendRequests();
+    }
+
+    /** Stops the download, so that blocks go to the peers as usual. */
+    public void stop() {
+        lock.lock();
+        try {
+            stopLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void stopLocked() {
+        for (PeerState state : peers.values())
+            takeBackLocked(state);
+        queue.clear();
+        slots.clear();
+        active = false;
+    }
+
+    // Marks everything requested from the peer as stale and makes it available to others.
+    private void takeBackLocked(PeerState state) {
+        for (Request request : state.inFlight) {
+            if (request.stale)
+                continue;
+            request.stale = true;
+            Slot slot = slots.get(request.hash);
+            if (slot != null && slot.assignedTo == state && slot.data == null)
+                slot.assignedTo = null;
+        }
+    }
+
+    // Works out what to request from whom under the lock, then sends it without holding it.
+    private void sendRequests() {
+        Map<PeerState, List<Sha256Hash>> requests = Maps.newLinkedHashMap();
+        GetHeadersMessage getHeaders = null;
+        Peer headersTarget = null;
+        boolean useFilteredBlocks;
+        lock.lock();
+        try {
+            if (!active)
+                return;
+            useFilteredBlocks = filtered;
+            long now = Utils.currentTimeMillis();
+            List<PeerState> eligible = Lists.newArrayList();
+            for (PeerState state : peers.values()) {
+                if (eligible.size() >= maxPeers)
+                    break;
+                VersionMessage version = state.peer.getPeerVersionMessage();
+                if (version == null || !version.hasBlockChain())
+                    continue;
+                if (filtered && (!version.isBloomFilteringSupported() || state.filterSequence <= requiredFilterSequence))
+                    continue;
+                if (state.penaltyUntilMillis > now)
+                    continue;
+                eligible.add(state);
+            }
+            if (!eligible.isEmpty()) {
+                int[] free = new int[eligible.size()];
+                for (int i = 0; i < free.length; i++)
+                    free[i] = eligible.get(i).window - eligible.get(i).activeRequests();
+                int scanned = 0;
+                for (Slot slot : queue) {
+                    if (++scanned > BLOCK_DOWNLOAD_WINDOW)
+                        break;
+                    if (slot.data != null || slot.assignedTo != null)
+                        continue;
+                    // Give it to the peer with the most room that has the block.
+                    int best = -1;
+                    for (int i = 0; i < free.length; i++)
+                        if (free[i] > 0 && eligible.get(i).peer.getBestHeight() >= slot.height
+                                && (best < 0 || free[i] > free[best]))
+                            best = i;
+                    if (best < 0)
+                        continue;
+                    PeerState state = eligible.get(best);
+                    free[best]--;
+                    slot.assignedTo = state;
+                    state.inFlight.add(new Request(slot.hash, now));
+                    List<Sha256Hash> hashes = requests.get(state);
+                    if (hashes == null) {
+                        hashes = Lists.newArrayList();
+                        requests.put(state, hashes);
+                    }
+                    hashes.add(slot.hash);
+                }
+            }
+            if (headersPeer != null && moreHeaders && !headersInFlight && queue.size() < HEADERS_LOW_WATER_MARK) {
+                headersInFlight = true;
+                List<Sha256Hash> locator = Lists.newArrayList(lastHeaderHash, chain.params.getGenesisBlock().getHash());
+                getHeaders = new GetHeadersMessage(chain.params, locator, Sha256Hash.ZERO_HASH);
+                headersTarget = headersPeer.peer;
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Map.Entry<PeerState, List<Sha256Hash>> entry : requests.entrySet())
+            entry.getKey().peer.requestBlocks(entry.getValue(), useFilteredBlocks);
+        if (getHeaders != null)
+            headersTarget.sendMessage(getHeaders);
+    }
+
+    // Adds buffered blocks to the chain in order, until the next one isn't there yet. Only one thread does this at a
+    // time, others just leave their blocks for it.
+    private void drain(Peer deliveringPeer) {
+        while (true) {
+            Slot slot = null;
+            Peer notifier = null, finished = null;
+            long sequenceBefore = 0;
+            lock.lock();
+            try {
+                if (draining || !active)
+                    return;
+                Slot next = queue.peek();
+                if (next != null && next.data != null) {
+                    slot = queue.poll();
+                    slots.remove(slot.hash);
+                    draining = true;
+                    notifier = headersPeer != null ? headersPeer.peer : deliveringPeer;
+                    sequenceBefore = filterSequence;
+                } else if (next == null && !moreHeaders && !headersInFlight && headersPeer != null) {
+                    log.info("Parallel block download caught up at height {}", lastHeaderHeight);
+                    active = false;
+                    finished = headersPeer.peer;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (slot == null) {
+                if (finished != null)
+                    finished.onParallelDownloadFinished(false);
+                return;
+            }
+            boolean added = false;
+            try {
+                added = addToChain(slot, notifier, sequenceBefore);
+            } finally {
+                lock.lock();
+                try {
+                    draining = false;
+                } finally {
+                    lock.unlock();
+                }
+            }
+            if (!added)
+                return;
+        }
+    }
+
+    private boolean addToChain(Slot slot, Peer notifier, long sequenceBefore) {
+        try {
+            boolean connected;
+            if (slot.data instanceof FilteredBlock) {
+                FilteredBlock block = (FilteredBlock) slot.data;
+                if (notifier.checkForFilterExhaustion(block)) {
+                    filterExhausted(slot, sequenceBefore);
+                    return false;
+                }
+                connected = chain.add(block);
+                if (connected)
+                    notifier.invokeOnBlocksDownloaded(block.getBlockHeader(), block);
+            } else {
+                Block block = (Block) checkNotNull(slot.data);
+                connected = chain.add(block);
+                if (connected)
+                    notifier.invokeOnBlocksDownloaded(block, null);
+            }
+            if (!connected) {
+                log.warn("Block {} at height {} did not connect, falling back to single peer download", slot.hash,
+                        slot.height);
+                stop();
+                notifier.onParallelDownloadFinished(true);
+                return false;
+            }
+            return true;
+        } catch (VerificationException e) {
+            log.warn("Block {} failed verification, falling back to single peer download", slot.hash, e);
+            stop();
+            notifier.onParallelDownloadFinished(true);
+            return false;
+        } catch (PrunedException e) {
+            // Same as for single peer download.
+            throw new RuntimeException(e);
+        }
+    }
+
+    // The block in the slot made the wallets extend their keys beyond the current filter. Everything from that block on
+    // has to be requested again with the new filter.
+    private void filterExhausted(Slot exhausted, long sequenceBefore) {
+        lock.lock();
+        try {
+            log.info("Bloom filter exhausted whilst processing block {}, requesting it and {} more again", exhausted.hash,
+                    queue.size());
+            for (PeerState state : peers.values())
+                takeBackLocked(state);
+            exhausted.data = null;
+            exhausted.assignedTo = null;
+            queue.addFirst(exhausted);
+            slots.put(exhausted.hash, exhausted);
+            for (Slot slot : queue) {
+                slot.data = null;
+                slot.assignedTo = null;
+            }
+            requiredFilterSequence = Math.max(requiredFilterSequence, sequenceBefore);
+        } finally {
+            lock.unlock();
+        }
+        // Nothing gets requested until the peers were sent the new filter, see onBloomFilterSent.
+    }
+
+    // Same kind of locator as the single peer download uses: the top 100 blocks and the genesis block.
+    private List<Sha256Hash> buildLocator() {
+        List<Sha256Hash> locator = new ArrayList<Sha256Hash>(101);
+        BlockStore store = chain.getBlockStore();
+        StoredBlock cursor = chain.getChainHead();
+        for (int i = 100; cursor != null && i > 0; i--) {
+            locator.add(cursor.getHeader().getHash());
+            try {
+                cursor = cursor.getPrev(store);
+            } catch (BlockStoreException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        if (cursor != null)
+            locator.add(chain.params.getGenesisBlock().getHash());
+        return locator;
+    }
+}
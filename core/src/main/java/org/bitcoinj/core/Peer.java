@@ -36,6 +36,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
@@ -103,6 +104,10 @@ public class Peer extends PeerSocketHandler {
     @GuardedBy("lock") private boolean useFilteredBlocks = false;
     // The current Bloom filter set on the connection, used to tell the remote peer what transactions to send us.
     private volatile BloomFilter vBloomFilter;
+    // Set by the PeerGroup when blocks are downloaded from several peers at once. Blocks it asked for go to it.
+    @Nullable private volatile ParallelBlockDownloader vParallelDownloader;
+    // Set by the PeerGroup, so that getdata requests are shared with and retried against its other peers.
+    @Nullable private volatile GetDataTracker vGetDataTracker;
     // The last filtered block we received, we're waiting to fill it out with transactions.
     private FilteredBlock currentFilteredBlock = null;
     // How many filtered blocks have been received during the lifetime of this connection. Used to decide when to
@@ -153,6 +158,8 @@ public class Peer extends PeerSocketHandler {
     @GuardedBy("lastPingTimesLock") private long[] lastPingTimes = null;
     private final CopyOnWriteArrayList<PendingPing> pendingPings;
     private static final int PING_MOVING_AVERAGE_WINDOW = 20;
+    // Throughput and block latency measurements, used to pick the download peer.
+    private final PeerStats stats = new PeerStats();
 
     private volatile VersionMessage vPeerVersionMessage;
 
@@ -450,6 +457,13 @@ public class Peer extends PeerSocketHandler {
         return versionHandshakeFuture;
     }
 
+    @Override
+    public int receiveBytes(ByteBuffer buff) {
+        int bytesRead = super.receiveBytes(buff);
+        stats.addBytesReceived(bytesRead);
+        return bytesRead;
+    }
+
     @Override
     protected void processMessage(Message m) throws Exception {
         // Allow event listeners to filter the message stream. Listeners are allowed to drop messages by
@@ -628,6 +642,9 @@ public class Peer extends PeerSocketHandler {
         // in the chain).
         //
         // We go through and cancel the pending getdata futures for the items we were told weren't found.
+        GetDataTracker tracker = vGetDataTracker;
+        if (tracker != null)
+            tracker.notFound(this, m.getItems());
         for (GetDataRequest req : getDataFutures) {
             for (InventoryItem item : m.getItems()) {
                 if (item.hash.equals(req.hash)) {
@@ -677,6 +694,9 @@ public class Peer extends PeerSocketHandler {
         } finally {
             lock.unlock();
         }
+        ParallelBlockDownloader downloader = vParallelDownloader;
+        if (downloader != null && downloader.receiveHeaders(this, m))
+            return;
 
         try {
             checkState(!downloadBlockBodies, toString());
@@ -910,11 +930,19 @@ public class Peer extends PeerSocketHandler {
             GetDataMessage getdata = new GetDataMessage(params);
             if (needToRequest.size() > 1)
                 log.info("{}: Requesting {} transactions for depth {} dep resolution", getAddress(), needToRequest.size(), depth + 1);
-            for (Sha256Hash hash : needToRequest) {
+            for (Sha256Hash hash : needToRequest)
                 getdata.addTransaction(hash);
-                GetDataRequest req = new GetDataRequest(hash, SettableFuture.create());
-                futures.add(req.future);
-                getDataFutures.add(req);
+            GetDataTracker tracker = vGetDataTracker;
+            if (tracker != null) {
+                // The tracker sends the getdata, leaving out what was already requested from any peer.
+                for (ListenableFuture future : tracker.request(this, getdata.getItems(), false))
+                    futures.add(future);
+            } else {
+                for (Sha256Hash hash : needToRequest) {
+                    GetDataRequest req = new GetDataRequest(hash, SettableFuture.create());
+                    futures.add(req.future);
+                    getDataFutures.add(req);
+                }
             }
             ListenableFuture<List<Transaction>> successful = Futures.successfulAsList(futures);
             Futures.addCallback(successful, new FutureCallback<List<Transaction>>() {
@@ -957,7 +985,8 @@ public class Peer extends PeerSocketHandler {
                 }
             });
             // Start the operation.
-            sendMessage(getdata);
+            if (tracker == null)
+                sendMessage(getdata);
         } catch (Exception e) {
             log.error("{}: Couldn't send getdata in downloadDependencies({})", this, tx.getHash());
             resultFuture.setException(e);
@@ -972,12 +1001,16 @@ public class Peer extends PeerSocketHandler {
         if (log.isDebugEnabled()) {
             log.debug("{}: Received broadcast block {}", getAddress(), m.getHashAsString());
         }
+        stats.blockReceived(m.getHash());
         // Was this block requested by getBlock()?
         if (maybeHandleRequestedData(m)) return;
         if (blockChain == null) {
             log.debug("Received block but was not configured with an AbstractBlockChain");
             return;
         }
+        // Was it requested as part of a parallel download?
+        ParallelBlockDownloader downloader = vParallelDownloader;
+        if (downloader != null && downloader.receive(this, m)) return;
         // Did we lose download peer status after requesting block data?
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHashAsString());
@@ -1033,6 +1066,10 @@ public class Peer extends PeerSocketHandler {
     protected void endFilteredBlock(FilteredBlock m) {
         if (log.isDebugEnabled())
             log.debug("{}: Received broadcast filtered block {}", getAddress(), m.getHash().toString());
+        stats.blockReceived(m.getHash());
+        ParallelBlockDownloader downloader = vParallelDownloader;
+        if (downloader != null && blockChain != null && downloader.receive(this, m))
+            return;
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
             return;
@@ -1128,7 +1165,7 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
-    private boolean checkForFilterExhaustion(FilteredBlock m) {
+    boolean checkForFilterExhaustion(FilteredBlock m) {
         boolean exhausted = false;
         for (Wallet wallet : wallets) {
             exhausted |= wallet.checkForFilterExhaustion(m);
@@ -1139,6 +1176,9 @@ public class Peer extends PeerSocketHandler {
     private boolean maybeHandleRequestedData(Message m) {
         boolean found = false;
         Sha256Hash hash = m.getHash();
+        GetDataTracker tracker = vGetDataTracker;
+        if (tracker != null && tracker.receive(this, m))
+            found = true;
         for (GetDataRequest req : getDataFutures) {
             if (hash.equals(req.hash)) {
                 req.future.set(m);
@@ -1150,7 +1190,7 @@ public class Peer extends PeerSocketHandler {
         return found;
     }
 
-    private void invokeOnBlocksDownloaded(final Block block, @Nullable final FilteredBlock fb) {
+    void invokeOnBlocksDownloaded(final Block block, @Nullable final FilteredBlock fb) {
         // It is possible for the peer block height difference to be negative when blocks have been solved and broadcast
         // since the time we first connected to the peer. However, it's weird and unexpected to receive a callback
         // with negative "blocks left" in this case, so we clamp to zero so the API user doesn't have to think about it.
@@ -1233,6 +1273,11 @@ public class Peer extends PeerSocketHandler {
         // end to the final FilteredBlock's transactions (in the form of a pong) sent to us
         boolean pingAfterGetData = false;
 
+        // Whilst downloading from several peers, new blocks are picked up via their headers.
+        ParallelBlockDownloader downloader = vParallelDownloader;
+        if (blocks.size() > 0 && downloader != null && downloader.onBlocksAnnounced(this))
+            blocks.clear();
+
         lock.lock();
         try {
             if (blocks.size() > 0 && downloadData && blockChain != null) {
@@ -1266,6 +1311,7 @@ public class Peer extends PeerSocketHandler {
                                 getdata.addItem(item);
                             }
                             pendingBlockDownloads.add(item.hash);
+                            stats.blockRequested(item.hash);
                         }
                     }
                 }
@@ -1327,6 +1373,9 @@ public class Peer extends PeerSocketHandler {
     private ListenableFuture sendSingleGetData(GetDataMessage getdata) {
         // This does not need to be locked.
         Preconditions.checkArgument(getdata.getItems().size() == 1);
+        GetDataTracker tracker = vGetDataTracker;
+        if (tracker != null)
+            return tracker.request(this, getdata.getItems(), true).get(0);
         GetDataRequest req = new GetDataRequest(getdata.getItems().get(0).hash, SettableFuture.create());
         getDataFutures.add(req);
         sendMessage(getdata);
@@ -1496,6 +1545,18 @@ public class Peer extends PeerSocketHandler {
                     }
                 });
             }
+            ParallelBlockDownloader downloader = vParallelDownloader;
+            if (downloader != null && blockChain != null) {
+                // Stop announcements of blocks the downloader is fetching from triggering a getblocks of our own.
+                lock.lock();
+                try {
+                    downloadBlockBodies = false;
+                } finally {
+                    lock.unlock();
+                }
+                downloader.start(this);
+                return;
+            }
             // When we just want as many blocks as possible, we can set the target hash to zero.
             lock.lock();
             try {
@@ -1506,6 +1567,72 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    /**
+     * Lets the given downloader fetch the block chain from this and other peers on the next
+     * {@link #startBlockChainDownload()}, or stops using one if null. Normally called by the {@link PeerGroup}.
+     */
+    void setParallelDownloader(@Nullable ParallelBlockDownloader downloader) {
+        this.vParallelDownloader = downloader;
+    }
+
+    /**
+     * Makes getdata requests of this peer go through the given tracker, or directly to this peer if null. Normally
+     * called by the {@link PeerGroup}.
+     */
+    void setGetDataTracker(@Nullable GetDataTracker tracker) {
+        this.vGetDataTracker = tracker;
+    }
+
+    // Called by the parallel downloader once it caught up, so that new blocks are fetched as usual again, or when it
+    // gave up, in which case this peer downloads the rest of the chain on its own.
+    void onParallelDownloadFinished(boolean continueDownload) {
+        lock.lock();
+        try {
+            downloadBlockBodies = blockChain == null
+                    || blockChain.getChainHead().getHeader().getTimeSeconds() >= fastCatchupTimeSecs;
+            lastGetBlocksBegin = lastGetBlocksEnd = null;
+            if (continueDownload && blockChain != null)
+                blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Whether blocks requested from this peer should be filtered ones.
+    boolean isUsingFilteredBlocks() {
+        lock.lock();
+        try {
+            return useFilteredBlocks && vPeerVersionMessage.isBloomFilteringSupported();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getFastCatchupTimeSecs() {
+        lock.lock();
+        try {
+            return fastCatchupTimeSecs;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Requests the given blocks for the parallel downloader. Filtered blocks are followed by a ping, so that the last
+    // one is known to be complete once the pong arrives.
+    void requestBlocks(List<Sha256Hash> hashes, boolean filtered) {
+        GetDataMessage getdata = new GetDataMessage(params);
+        for (Sha256Hash hash : hashes) {
+            stats.blockRequested(hash);
+            if (filtered)
+                getdata.addFilteredBlock(hash);
+            else
+                getdata.addBlock(hash);
+        }
+        sendMessage(getdata);
+        if (filtered)
+            sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+    }
+
     private class PendingPing {
         // The future that will be invoked when the pong is heard back.
         public SettableFuture<Long> future;
@@ -1570,6 +1697,11 @@ public class Peer extends PeerSocketHandler {
         return pendingPing.future;
     }
 
+    /** Returns the throughput and latency measurements of this peer, see {@link PeerStats}. */
+    public PeerStats getStats() {
+        return stats;
+    }
+
     /**
      * Returns the elapsed time of the last ping/pong cycle. If {@link org.bitcoinj.core.Peer#ping()} has never
      * been called or we did not hear back the "pong" message yet, returns {@link Long#MAX_VALUE}.
@@ -1732,6 +1864,9 @@ public class Peer extends PeerSocketHandler {
         sendMessage(filter);
         if (andQueryMemPool)
             sendMessage(new MemoryPoolMessage());
+        ParallelBlockDownloader downloader = vParallelDownloader;
+        if (downloader != null)
+            downloader.onBloomFilterSent(this);
         maybeRestartChainDownload();
     }
 
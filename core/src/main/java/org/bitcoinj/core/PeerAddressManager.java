@@ -0,0 +1,381 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.utils.Threading;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Remembers the addresses of peers across restarts, so that a {@link PeerGroup} can reconnect to peers that worked
+ * well last time straight away instead of waiting for {@link org.bitcoinj.net.discovery.PeerDiscovery} to run. Set it
+ * with {@link PeerGroup#setAddressManager(PeerAddressManager)} before starting the group.</p>
+ *
+ * <p>For each address it keeps the services announced, when it was last heard of in an "addr" message, when we last
+ * managed to connect to it, how many connection attempts failed since then, and the ping time measured whilst
+ * connected. Addresses we connected to recently and with a low ping time are considered the best, addresses that keep
+ * failing the worst. At most {@link #MAX_ENTRIES} addresses are kept, dropping the worst ones.</p>
+ *
+ * <p>The table is saved to a small binary file with fixed size records by {@link #save()}, which the PeerGroup calls
+ * regularly and when stopping. The file is replaced atomically. An unreadable or damaged file is ignored.</p>
+ */
+public class PeerAddressManager {
+    private static final Logger log = LoggerFactory.getLogger(PeerAddressManager.class);
+
+    /** How many addresses are kept at most. */
+    public static final int MAX_ENTRIES = 2500;
+    // After this many failed attempts in a row, an address that used to work is no longer preferred.
+    private static final int MAX_FAILURES_FOR_GOOD = 3;
+    private static final int FILE_MAGIC = 0x50414452;  // "PADR"
+    private static final int FILE_VERSION = 1;
+    private static final int ADDRESS_LENGTH = 16;
+
+    private static class Entry {
+        final InetSocketAddress address;
+        long services;
+        long lastSeenSecs, lastSuccessSecs, lastAttemptSecs;
+        int failures;
+        int latencyMillis = Integer.MAX_VALUE;
+
+        Entry(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        boolean isGood() {
+            return lastSuccessSecs > 0 && failures < MAX_FAILURES_FOR_GOOD;
+        }
+    }
+
+    // Best first: addresses that worked and don't keep failing by ping time, then the rest by fewest failures and most
+    // recently heard of.
+    private static final Comparator<Entry> BEST_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            if (a.isGood() != b.isGood())
+                return a.isGood() ? -1 : 1;
+            if (a.isGood()) {
+                int result = Ints.compare(a.latencyMillis, b.latencyMillis);
+                return result != 0 ? result : Longs.compare(b.lastSuccessSecs, a.lastSuccessSecs);
+            }
+            int result = Ints.compare(a.failures, b.failures);
+            return result != 0 ? result : Longs.compare(b.lastSeenSecs, a.lastSeenSecs);
+        }
+    };
+
+    private final ReentrantLock lock = Threading.lock("peeraddressmanager");
+    private final NetworkParameters params;
+    @Nullable private final File file;
+    @GuardedBy("lock") private final HashMap<InetSocketAddress, Entry> entries = Maps.newHashMap();
+    @GuardedBy("lock") private boolean dirty;
+
+    /** Creates a manager that is not backed by a file, so forgets everything on restart. */
+    public PeerAddressManager(NetworkParameters params) {
+        this.params = checkNotNull(params);
+        this.file = null;
+    }
+
+    /** Creates a manager saving to the given file, loading the addresses it holds if it exists. */
+    public PeerAddressManager(NetworkParameters params, File file) {
+        this.params = checkNotNull(params);
+        this.file = checkNotNull(file);
+        if (file.exists()) {
+            try {
+                load(file);
+                log.info("Loaded {} peer addresses from {}", entries.size(), file);
+            } catch (IOException e) {
+                log.warn("Could not read peer addresses from {}, starting afresh", file, e);
+                entries.clear();
+            }
+        }
+    }
+
+    private static long nowSecs() {
+        return Utils.currentTimeMillis() / 1000;
+    }
+
+    @Nullable
+    private static InetSocketAddress toSocketAddress(PeerAddress address) {
+        InetAddress addr = address.getAddr();
+        if (addr == null)
+            return null;  // Hostname only, for example a Tor hidden service.
+        return new InetSocketAddress(addr, address.getPort());
+    }
+
+    @GuardedBy("lock")
+    private Entry getOrCreate(InetSocketAddress address) {
+        Entry entry = entries.get(address);
+        if (entry == null) {
+            entry = new Entry(address);
+            entries.put(address, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Adds addresses we heard about, for example from an {@link AddressMessage}. Known addresses get their services
+     * and last seen time updated.
+     */
+    public void addAddresses(Collection<PeerAddress> addresses) {
+        addAddresses(addresses, 0);
+    }
+
+    /**
+     * Adds addresses we heard about, assuming the given services for those that don't announce any and aren't known
+     * yet. Used for addresses found by peer discoveries asked for peers offering these services.
+     */
+    public void addAddresses(Collection<PeerAddress> addresses, long assumedServices) {
+        long now = nowSecs();
+        lock.lock();
+        try {
+            for (PeerAddress address : addresses) {
+                InetSocketAddress socketAddress = toSocketAddress(address);
+                if (socketAddress == null)
+                    continue;
+                Entry entry = getOrCreate(socketAddress);
+                // Don't trust the time announced if it is in the future.
+                long time = address.getTime();
+                long seen = time > 0 ? Math.min(time, now) : now;
+                entry.lastSeenSecs = Math.max(entry.lastSeenSecs, seen);
+                BigInteger services = address.getServices();
+                if (services != null && services.signum() != 0)
+                    entry.services = services.longValue();
+                else if (entry.services == 0)
+                    entry.services = assumedServices;
+            }
+            dirty = true;
+            trimLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that the version handshake with the given address succeeded, and the services it announced. */
+    public void markConnected(PeerAddress address, long services) {
+        InetSocketAddress socketAddress = toSocketAddress(address);
+        if (socketAddress == null)
+            return;
+        long now = nowSecs();
+        lock.lock();
+        try {
+            Entry entry = getOrCreate(socketAddress);
+            entry.services = services;
+            entry.lastSuccessSecs = entry.lastAttemptSecs = entry.lastSeenSecs = now;
+            entry.failures = 0;
+            dirty = true;
+            trimLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records the ping time measured whilst connected to the given address, see {@link Peer#getPingTime()}. */
+    public void markLatency(PeerAddress address, long latencyMillis) {
+        InetSocketAddress socketAddress = toSocketAddress(address);
+        if (socketAddress == null || latencyMillis < 0 || latencyMillis == Long.MAX_VALUE)
+            return;
+        lock.lock();
+        try {
+            Entry entry = entries.get(socketAddress);
+            if (entry == null)
+                return;
+            entry.latencyMillis = (int) Math.min(latencyMillis, Integer.MAX_VALUE - 1);
+            dirty = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that connecting to the given address failed. */
+    public void markFailed(PeerAddress address) {
+        InetSocketAddress socketAddress = toSocketAddress(address);
+        if (socketAddress == null)
+            return;
+        lock.lock();
+        try {
+            Entry entry = entries.get(socketAddress);
+            if (entry == null)
+                return;  // Not worth remembering.
+            entry.failures = Math.min(entry.failures + 1, Short.MAX_VALUE);
+            entry.lastAttemptSecs = nowSecs();
+            dirty = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns up to the given number of addresses known to offer the required services, best first.
+     */
+    public List<PeerAddress> getBestAddresses(int max, long requiredServices) {
+        List<Entry> candidates;
+        lock.lock();
+        try {
+            candidates = Lists.newArrayListWithCapacity(entries.size());
+            for (Entry entry : entries.values())
+                if ((entry.services & requiredServices) == requiredServices)
+                    candidates.add(entry);
+            Collections.sort(candidates, BEST_FIRST);
+            List<PeerAddress> result = Lists.newArrayListWithCapacity(Math.min(max, candidates.size()));
+            for (Entry entry : candidates) {
+                if (result.size() >= max)
+                    break;
+                result.add(new PeerAddress(params, entry.address));
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of addresses known. */
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void trimLocked() {
+        if (entries.size() <= MAX_ENTRIES)
+            return;
+        List<Entry> sorted = new ArrayList<Entry>(entries.values());
+        Collections.sort(sorted, BEST_FIRST);
+        for (Entry entry : sorted.subList(MAX_ENTRIES, sorted.size()))
+            entries.remove(entry.address);
+    }
+
+    /**
+     * Writes the addresses to the file given in the constructor, if there were changes since the last save. Writes to
+     * a temporary file in the same directory first and renames it over the old one once complete.
+     */
+    public void save() throws IOException {
+        if (file == null)
+            return;
+        lock.lock();
+        try {
+            if (!dirty)
+                return;
+            File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+            FileOutputStream stream = new FileOutputStream(temp);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+                write(out);
+                out.flush();
+                stream.getFD().sync();
+            } finally {
+                stream.close();
+            }
+            if (Utils.isWindows()) {
+                // Work around an issue on Windows whereby you can't rename over existing files.
+                File canonical = file.getCanonicalFile();
+                if (canonical.exists() && !canonical.delete())
+                    throw new IOException("Failed to delete " + canonical + " for replacement");
+                if (!temp.renameTo(canonical))
+                    throw new IOException("Failed to rename " + temp + " to " + canonical);
+            } else if (!temp.renameTo(file)) {
+                throw new IOException("Failed to rename " + temp + " to " + file);
+            }
+            dirty = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Format: magic, version, network packet magic, record count, then per record the IPv6 (or IPv4 mapped) address,
+    // port, services, last seen, last success and last attempt times, failure count and latency.
+    @GuardedBy("lock")
+    private void write(DataOutputStream out) throws IOException {
+        out.writeInt(FILE_MAGIC);
+        out.writeByte(FILE_VERSION);
+        out.writeInt((int) params.getPacketMagic());
+        out.writeInt(entries.size());
+        for (Entry entry : entries.values()) {
+            byte[] addr = entry.address.getAddress().getAddress();
+            if (addr.length == 4) {
+                byte[] mapped = new byte[ADDRESS_LENGTH];
+                System.arraycopy(addr, 0, mapped, 12, 4);
+                mapped[10] = (byte) 0xFF;
+                mapped[11] = (byte) 0xFF;
+                addr = mapped;
+            }
+            out.write(addr);
+            out.writeShort(entry.address.getPort());
+            out.writeLong(entry.services);
+            out.writeInt((int) entry.lastSeenSecs);
+            out.writeInt((int) entry.lastSuccessSecs);
+            out.writeInt((int) entry.lastAttemptSecs);
+            out.writeShort(entry.failures);
+            out.writeInt(entry.latencyMillis);
+        }
+    }
+
+    private void load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != FILE_MAGIC)
+                throw new IOException("Not a peer address file");
+            int version = in.readUnsignedByte();
+            if (version != FILE_VERSION)
+                throw new IOException("Unknown peer address file version " + version);
+            if (in.readInt() != (int) params.getPacketMagic())
+                throw new IOException("Peer address file is for a different network");
+            int count = in.readInt();
+            if (count < 0)
+                throw new IOException("Bad peer address count " + count);
+            byte[] addr = new byte[ADDRESS_LENGTH];
+            lock.lock();
+            try {
+                for (int i = 0; i < count; i++) {
+                    in.readFully(addr);
+                    int port = in.readUnsignedShort();
+                    // Turns IPv4 mapped addresses back into IPv4 ones.
+                    Entry entry = new Entry(new InetSocketAddress(InetAddress.getByAddress(addr), port));
+                    entry.services = in.readLong();
+                    entry.lastSeenSecs = in.readInt() & 0xFFFFFFFFL;
+                    entry.lastSuccessSecs = in.readInt() & 0xFFFFFFFFL;
+                    entry.lastAttemptSecs = in.readInt() & 0xFFFFFFFFL;
+                    entry.failures = in.readUnsignedShort();
+                    entry.latencyMillis = in.readInt();
+                    entries.put(entry.address, entry);
+                }
+                trimLocked();
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
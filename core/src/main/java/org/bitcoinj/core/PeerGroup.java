@@ -148,6 +148,15 @@ public class PeerGroup implements TransactionBroadcaster {
     // How many connections we want to have open at the current time. If we lose connections, we'll try opening more
     // until we reach this count.
     @GuardedBy("lock") private int maxConnections;
+    // How many peers to download the block chain from at once. With one, the download peer does it on its own.
+    @GuardedBy("lock") private int maxParallelDownloadPeers = 1;
+    @Nullable @GuardedBy("lock") private ParallelBlockDownloader parallelDownloader;
+    // Remembers peer addresses across restarts, if set.
+    @Nullable private volatile PeerAddressManager vAddressManager;
+    /** How often the addresses known to the address manager are saved, in minutes. */
+    public static final int ADDRESS_MANAGER_SAVE_INTERVAL_MINS = 5;
+    // Below this many known addresses, new peers are asked for theirs.
+    private static final int ADDRESS_MANAGER_GETADDR_THRESHOLD = 1000;
     // Minimum protocol version we will allow ourselves to connect to: require Bloom filtering.
     private volatile int vMinRequiredProtocolVersion;
 
@@ -166,16 +175,31 @@ public class PeerGroup implements TransactionBroadcaster {
     // peer can fetch them.
     private final PeerListener peerListener = new PeerListener();
 
+    // Added to every peer when there's an address manager, to remember the addresses they tell us about.
+    private final PreMessageReceivedEventListener addressListener = new PreMessageReceivedEventListener() {
+        @Override
+        public Message onPreMessageReceived(Peer peer, Message m) {
+            PeerAddressManager addressManager = vAddressManager;
+            if (m instanceof AddressMessage && addressManager != null)
+                addressManager.addAddresses(((AddressMessage) m).getAddresses());
+            return m;
+        }
+    };
+
     private int minBroadcastConnections = 0;
     private final ScriptsChangeEventListener walletScriptEventListener = new ScriptsChangeEventListener() {
         @Override public void onScriptsChanged(Wallet wallet, List<Script> scripts, boolean isAddingScripts) {
-            recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
+            // Only this wallet is asked for its filter again, and it reuses the filter of its watched scripts that the
+            // new ones were inserted into, so this doesn't go over everything watched by the whole group.
+            bloomFilterMerger.markChanged(wallet);
+            scheduleFilterRecalculation(FilterRecalculateMode.SEND_IF_CHANGED);
         }
     };
 
     private final KeyChainEventListener walletKeyEventListener = new KeyChainEventListener() {
         @Override public void onKeysAdded(List<ECKey> keys) {
-            recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
+            // Adding keys always grows the element count of the wallet, which is enough for the merger to ask it again.
+            scheduleFilterRecalculation(FilterRecalculateMode.SEND_IF_CHANGED);
         }
     };
 
@@ -206,10 +230,11 @@ public class PeerGroup implements TransactionBroadcaster {
             // and shouldn't, we should just recalculate and cache the new filter for next time.
             for (TransactionOutput output : tx.getOutputs()) {
                 if (output.getScriptPubKey().isSentToRawPubKey() && output.isMine(wallet)) {
+                    bloomFilterMerger.markChanged(wallet);
                     if (tx.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING)
-                        recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
+                        scheduleFilterRecalculation(FilterRecalculateMode.SEND_IF_CHANGED);
                     else
-                        recalculateFastCatchupAndFilter(FilterRecalculateMode.DONT_SEND);
+                        scheduleFilterRecalculation(FilterRecalculateMode.DONT_SEND);
                     return;
                 }
             }
@@ -245,7 +270,8 @@ public class PeerGroup implements TransactionBroadcaster {
                 // TODO: Avoid hitting this path if the remote peer didn't acknowledge applying a new filter yet.
                 if (log.isDebugEnabled())
                     log.debug("Force update Bloom filter due to high false positive rate ({} vs {})", rate, target);
-                recalculateFastCatchupAndFilter(FilterRecalculateMode.FORCE_SEND_FOR_REFRESH);
+                // The providers haven't changed, so the filters they gave last time can be reused.
+                scheduleFilterRecalculation(FilterRecalculateMode.FORCE_SEND_FOR_REFRESH);
             }
         }
     }
@@ -283,7 +309,18 @@ public class PeerGroup implements TransactionBroadcaster {
     /** The default timeout between when a connection attempt begins and version message exchange completes */
     public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
     private volatile int vConnectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    // Peers parse and process their messages here instead of on the network thread, if set.
+    @Nullable private volatile Executor vMessageExecutor;
+    // Shares getdata requests made by peers between them, see GetDataTracker.
+    private final GetDataTracker getDataTracker;
+    // Batches the announcements of broadcast transactions, if a trickle interval is set.
+    private final BroadcastScheduler broadcastScheduler;
+    @GuardedBy("lock") private long broadcastTrickleIntervalMillis = 0;
+    @GuardedBy("lock") @Nullable private ScheduledFuture<?> broadcastTrickleTask;
     
+    // How long to wait before recalculating the Bloom filter, so changes made meanwhile are taken in one go.
+    private volatile long vFilterRecalculationDelayMillis = 0;
+
     /** Whether bloom filter support is enabled when using a non FullPrunedBlockchain*/
     private volatile boolean vBloomFilteringEnabled = true;
 
@@ -405,6 +442,14 @@ public class PeerGroup implements TransactionBroadcaster {
         this.torClient = torClient;
 
         executor = createPrivateExecutor();
+        getDataTracker = new GetDataTracker(params);
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                getDataTracker.checkForTimeouts();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+        broadcastScheduler = new BroadcastScheduler(params);
 
         // This default sentinel value will be overridden by one of two actions:
         //   - adding a peer discovery source sets it to the default
@@ -487,6 +532,49 @@ public class PeerGroup implements TransactionBroadcaster {
             channels.closeConnections(-adjustment);
     }
 
+    /**
+     * Sets the address manager used to remember peers across restarts. On start, the best addresses it knows are
+     * tried before any {@link PeerDiscovery} is run, and addresses learned from discoveries and from peers are added to
+     * it. Must be called before the PeerGroup is started. The addresses are saved every
+     * {@link #ADDRESS_MANAGER_SAVE_INTERVAL_MINS} minutes and when the PeerGroup stops.
+     */
+    public void setAddressManager(@Nullable PeerAddressManager addressManager) {
+        checkState(!vUsedUp, "Address manager must be set before starting");
+        this.vAddressManager = addressManager;
+    }
+
+    /** Returns the address manager set with {@link #setAddressManager(PeerAddressManager)}, or null. */
+    @Nullable
+    public PeerAddressManager getAddressManager() {
+        return vAddressManager;
+    }
+
+    /**
+     * Sets how many peers the block chain is downloaded from at once. By default it is one, meaning the download peer
+     * fetches the chain on its own. With more, the download peer is asked for headers only and the blocks are fetched
+     * from up to this many peers in parallel, see {@link ParallelBlockDownloader}. Takes effect on the next chain
+     * download, for example after calling {@link #startBlockChainDownload(PeerDataEventListener)}.
+     */
+    public void setMaxParallelDownloadPeers(int maxParallelDownloadPeers) {
+        checkArgument(maxParallelDownloadPeers > 0);
+        lock.lock();
+        try {
+            this.maxParallelDownloadPeers = maxParallelDownloadPeers;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many peers the block chain is downloaded from at once, see {@link #setMaxParallelDownloadPeers(int)}. */
+    public int getMaxParallelDownloadPeers() {
+        lock.lock();
+        try {
+            return maxParallelDownloadPeers;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Configure download of pending transaction dependencies. A change of values only takes effect for newly connected
      * peers.
@@ -631,6 +719,14 @@ public class PeerGroup implements TransactionBroadcaster {
                     break;
                 }
             }
+            // Then the transactions we announced without sending them.
+            it = items.iterator();
+            while (it.hasNext()) {
+                Transaction tx = broadcastScheduler.getTransaction(it.next().hash);
+                if (tx == null) continue;
+                transactions.add(tx);
+                it.remove();
+            }
             return transactions;
         } finally {
             lock.unlock();
@@ -1054,6 +1150,9 @@ public class PeerGroup implements TransactionBroadcaster {
             for (PeerAddress address : addressList) {
                 addInactive(address);
             }
+            PeerAddressManager addressManager = vAddressManager;
+            if (addressManager != null)
+                addressManager.addAddresses(addressList, requiredServices);
             final ImmutableSet<PeerAddress> peersDiscoveredSet = ImmutableSet.copyOf(addressList);
             for (final ListenerRegistration<PeerDiscoveredEventListener> registration : peerDiscoveredEventListeners /* COW */) {
                 registration.executor.execute(new Runnable() {
@@ -1149,6 +1248,7 @@ public class PeerGroup implements TransactionBroadcaster {
                     }
                     channels.startAsync();
                     channels.awaitRunning();
+                    seedFromAddressManager();
                     triggerConnections();
                     setupPinging();
                 } catch (Throwable e) {
@@ -1158,6 +1258,37 @@ public class PeerGroup implements TransactionBroadcaster {
         });
     }
 
+    // Queues the best addresses remembered from last time, so they are tried before running peer discovery.
+    private void seedFromAddressManager() {
+        final PeerAddressManager addressManager = vAddressManager;
+        if (addressManager == null)
+            return;
+        lock.lock();
+        try {
+            List<PeerAddress> addresses = addressManager.getBestAddresses(Math.max(getMaxConnections() * 2, 8),
+                    requiredServices);
+            for (PeerAddress address : addresses)
+                addInactive(address);
+            log.info("Trying {} peers remembered by the address manager", addresses.size());
+        } finally {
+            lock.unlock();
+        }
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                saveAddresses(addressManager);
+            }
+        }, ADDRESS_MANAGER_SAVE_INTERVAL_MINS, ADDRESS_MANAGER_SAVE_INTERVAL_MINS, TimeUnit.MINUTES);
+    }
+
+    private void saveAddresses(PeerAddressManager addressManager) {
+        try {
+            addressManager.save();
+        } catch (IOException e) {
+            log.warn("Failed to save peer addresses", e);
+        }
+    }
+
     /** Does a blocking startup. */
     public void start() {
         Futures.getUnchecked(startAsync());
@@ -1183,6 +1314,9 @@ public class PeerGroup implements TransactionBroadcaster {
                     for (PeerDiscovery peerDiscovery : peerDiscoverers) {
                         peerDiscovery.shutdown();
                     }
+                    PeerAddressManager addressManager = vAddressManager;
+                    if (addressManager != null)
+                        saveAddresses(addressManager);
                     if (torClient != null) {
                         torClient.stop();
                     }
@@ -1339,6 +1473,12 @@ public class PeerGroup implements TransactionBroadcaster {
      * @return a future that completes once the filter has been calculated (note: this does not mean acknowledged by remote peers).
      */
     public ListenableFuture<BloomFilter> recalculateFastCatchupAndFilter(final FilterRecalculateMode mode) {
+        // We don't know what changed, so ask every provider again.
+        bloomFilterMerger.markAllChanged();
+        return scheduleFilterRecalculation(mode);
+    }
+
+    private ListenableFuture<BloomFilter> scheduleFilterRecalculation(final FilterRecalculateMode mode) {
         final SettableFuture<BloomFilter> future = SettableFuture.create();
         synchronized (inFlightRecalculations) {
             if (inFlightRecalculations.get(mode) != null)
@@ -1357,6 +1497,10 @@ public class PeerGroup implements TransactionBroadcaster {
 
             public void go() {
                 checkState(!lock.isHeldByCurrentThread());
+                // From here on a change needs another recalculation, as we may already have asked the provider.
+                synchronized (inFlightRecalculations) {
+                    inFlightRecalculations.put(mode, null);
+                }
                 // Fully verifying mode doesn't use this optimization (it can't as it needs to see all transactions).
                 if ((chain != null && chain.shouldVerifyTransactions()) || !vBloomFilteringEnabled)
                     return;
@@ -1377,27 +1521,36 @@ public class PeerGroup implements TransactionBroadcaster {
                         throw new UnsupportedOperationException();
                 }
                 if (send) {
+                    boolean sent = false;
                     for (Peer peer : peers /* COW */) {
+                        // If the peer's filter already matches everything the new one would, sending it would only
+                        // lower the false positive rate. We leave that to FORCE_SEND_FOR_REFRESH, once the rate is too
+                        // high. Peers that connected in between may hold a different filter, so check each one.
+                        BloomFilter current = peer.getBloomFilter();
+                        if (mode == FilterRecalculateMode.SEND_IF_CHANGED && current != null && current.covers(result.filter))
+                            continue;
                         // Only query the mempool if this recalculation request is not in order to lower the observed FP
                         // rate. There's no point querying the mempool when doing this because the FP rate can only go
                         // down, and we will have seen all the relevant txns before: it's pointless to ask for them again.
                         peer.setBloomFilter(result.filter, mode != FilterRecalculateMode.FORCE_SEND_FOR_REFRESH);
+                        sent = true;
                     }
                     // Reset the false positive estimate so that we don't send a flood of filter updates
                     // if the estimate temporarily overshoots our threshold.
-                    if (chain != null)
+                    if (sent && chain != null)
                         chain.resetFalsePositiveEstimate();
                 }
                 // Do this last so that bloomFilter is already set when it gets called.
                 setFastCatchupTimeSecs(result.earliestKeyTimeSecs);
-                synchronized (inFlightRecalculations) {
-                    inFlightRecalculations.put(mode, null);
-                }
                 future.set(result.filter);
             }
         };
         try {
-            executor.execute(command);
+            long delayMillis = vFilterRecalculationDelayMillis;
+            if (delayMillis > 0)
+                executor.schedule(command, delayMillis, TimeUnit.MILLISECONDS);
+            else
+                executor.execute(command);
         } catch (RejectedExecutionException e) {
             // Can happen during shutdown.
         }
@@ -1423,6 +1576,24 @@ public class PeerGroup implements TransactionBroadcaster {
         }
     }
 
+    /**
+     * <p>Sets how long to wait before recalculating the Bloom filter after a wallet or other provider changed. Changes
+     * made within that time, such as a batch of new keys, are then taken into a single new filter instead of sending
+     * the peers one filter for each. Only the providers that changed are asked for their filter again.</p>
+     *
+     * <p>The default is zero, which recalculates straight away. Calls to
+     * {@link #recalculateFastCatchupAndFilter(FilterRecalculateMode)} are delayed too.</p>
+     */
+    public void setBloomFilterRecalculationDelay(long delayMillis) {
+        checkArgument(delayMillis >= 0);
+        this.vFilterRecalculationDelayMillis = delayMillis;
+    }
+
+    /** Returns the delay set with {@link #setBloomFilterRecalculationDelay(long)}, zero by default. */
+    public long getBloomFilterRecalculationDelay() {
+        return vFilterRecalculationDelayMillis;
+    }
+
     /**
      * Returns the number of currently connected peers. To be informed when this count changes, register a 
      * {@link org.bitcoinj.core.listeners.PeerConnectionEventListener} and use the onPeerConnected/onPeerDisconnected methods.
@@ -1483,6 +1654,9 @@ public class PeerGroup implements TransactionBroadcaster {
         ver.time = Utils.currentTimeSeconds();
 
         Peer peer = createPeer(address, ver);
+        Executor messageExecutor = vMessageExecutor;
+        if (messageExecutor != null)
+            peer.setMessageExecutor(messageExecutor);
         peer.addConnectedEventListener(Threading.SAME_THREAD, startupListener);
         peer.addDisconnectedEventListener(Threading.SAME_THREAD, startupListener);
         peer.setMinProtocolVersion(vMinRequiredProtocolVersion);
@@ -1525,6 +1699,23 @@ public class PeerGroup implements TransactionBroadcaster {
         this.vConnectTimeoutMillis = connectTimeoutMillis;
     }
 
+    /**
+     * Returns the tracker that coalesces getdata requests of the connected peers for the same transaction or block, and
+     * requests them from another peer if the first doesn't deliver.
+     */
+    public GetDataTracker getGetDataTracker() {
+        return getDataTracker;
+    }
+
+    /**
+     * Makes peers connected from now on parse and process their messages on the given executor, typically a small
+     * thread pool, instead of on the network thread. See {@link PeerSocketHandler#setMessageExecutor(Executor)}. Pass
+     * null to go back to processing messages on the network thread.
+     */
+    public void setMessageExecutor(@Nullable Executor executor) {
+        this.vMessageExecutor = executor;
+    }
+
     /**
      * <p>Start downloading the blockchain from the first available peer.</p>
      *
@@ -1616,6 +1807,19 @@ public class PeerGroup implements TransactionBroadcaster {
             // TODO: The peer should calculate the fast catchup time from the added wallets here.
             for (Wallet wallet : wallets)
                 peer.addWallet(wallet);
+            if (parallelDownloader != null) {
+                parallelDownloader.addPeer(peer);
+                peer.setParallelDownloader(parallelDownloader);
+            }
+            getDataTracker.addPeer(peer);
+            peer.setGetDataTracker(getDataTracker);
+            PeerAddressManager addressManager = vAddressManager;
+            if (addressManager != null && peer.getAddress() != null) {
+                addressManager.markConnected(peer.getAddress(), peer.getPeerVersionMessage().localServices);
+                peer.addPreMessageReceivedEventListener(Threading.SAME_THREAD, addressListener);
+                if (addressManager.size() < ADDRESS_MANAGER_GETADDR_THRESHOLD)
+                    peer.sendMessage(new GetAddrMessage(params));
+            }
             if (downloadPeer == null) {
                 // Kick off chain download if we aren't already doing it.
                 setDownloadPeer(selectDownloadPeer(peers));
@@ -1763,7 +1967,21 @@ public class PeerGroup implements TransactionBroadcaster {
         lock.lock();
         try {
             pendingPeers.remove(peer);
-            peers.remove(peer);
+            boolean wasConnected = peers.remove(peer);
+            PeerAddressManager addressManager = vAddressManager;
+            if (addressManager != null && peer.getAddress() != null) {
+                if (wasConnected)
+                    addressManager.markLatency(peer.getAddress(), peer.getPingTime());
+                else
+                    addressManager.markFailed(peer.getAddress());
+            }
+            if (parallelDownloader != null) {
+                peer.setParallelDownloader(null);
+                parallelDownloader.removePeer(peer);
+            }
+            peer.setGetDataTracker(null);
+            getDataTracker.removePeer(peer);
+            broadcastScheduler.removePeer(peer);
 
             PeerAddress address = peer.getAddress();
 
@@ -1805,6 +2023,7 @@ public class PeerGroup implements TransactionBroadcaster {
 
         peer.removeBlocksDownloadedEventListener(peerListener);
         peer.removeGetDataEventListener(peerListener);
+        peer.removePreMessageReceivedEventListener(addressListener);
         for (Wallet wallet : wallets) {
             peer.removeWallet(wallet);
         }
@@ -1835,11 +2054,15 @@ public class PeerGroup implements TransactionBroadcaster {
     @GuardedBy("lock") private int stallPeriodSeconds = 10;
     @GuardedBy("lock") private int stallMinSpeedBytesSec = Block.HEADER_SIZE * 20;
 
+    /** How long a download peer that was replaced for being too slow is passed over when picking a new one. */
+    public static final long SLOW_DOWNLOAD_PEER_PENALTY_MILLIS = 5 * 60 * 1000;
+
     /**
      * Configures the stall speed: the speed at which a peer is considered to be serving us the block chain
      * unacceptably slowly. Once a peer has served us data slower than the given data rate for the given
-     * number of seconds, it is considered stalled and will be disconnected, forcing the chain download to continue
-     * from a different peer. The defaults are chosen conservatively, but if you are running on a platform that is
+     * number of seconds, it is considered stalled and the chain download switches to the fastest other peer, see
+     * {@link Peer#getStats()}. If there is no other peer to switch to, the stalled one is disconnected so that a new
+     * connection is made. The defaults are chosen conservatively, but if you are running on a platform that is
      * CPU constrained or on a very slow network e.g. EDGE, the default settings may need adjustment to
      * avoid false stalls.
      *
@@ -1904,6 +2127,7 @@ public class PeerGroup implements TransactionBroadcaster {
         private void calculate() {
             int minSpeedBytesPerSec;
             int period;
+            Peer stalledPeer = null;
 
             lock.lock();
             try {
@@ -1949,9 +2173,8 @@ public class PeerGroup implements TransactionBroadcaster {
                                 // deal.
                                 log.warn("This network seems to be slower than the requested stall threshold - won't do stall disconnects any more.");
                             } else {
-                                Peer peer = getDownloadPeer();
-                                log.warn(String.format(Locale.US, "Chain download stalled: received %.2f KB/sec for %d seconds, require average of %.2f KB/sec, disconnecting %s", average / 1024.0, samples.length, minSpeedBytesPerSec / 1024.0, peer));
-                                peer.close();
+                                stalledPeer = getDownloadPeer();
+                                log.warn(String.format(Locale.US, "Chain download stalled: received %.2f KB/sec for %d seconds, require average of %.2f KB/sec, replacing %s", average / 1024.0, samples.length, minSpeedBytesPerSec / 1024.0, stalledPeer));
                                 // Reset the sample buffer and give the next peer time to get going.
                                 samples = null;
                                 warmupSeconds = period;
@@ -1969,7 +2192,35 @@ public class PeerGroup implements TransactionBroadcaster {
                 origTxnsInLastSecond = 0;
                 bytesInLastSecond = 0;
             }
+            if (stalledPeer != null)
+                replaceStalledDownloadPeer(stalledPeer);
+        }
+    }
+
+    // Continues the chain download from the best other peer, or disconnects the stalled one if there is none.
+    private void replaceStalledDownloadPeer(Peer stalled) {
+        stalled.getStats().recordDownloadStall();
+        lock.lock();
+        try {
+            if (stalled != downloadPeer)
+                return;  // Already replaced, for example because it died.
+            List<Peer> others = new ArrayList<Peer>(peers);
+            others.remove(stalled);
+            Peer replacement = selectDownloadPeer(others);
+            if (replacement != null) {
+                log.info("Switching chain download from {} ({}) to {} ({})", stalled, stalled.getStats(),
+                        replacement, replacement.getStats());
+                if (chainDownloadSpeedCalculator != null)
+                    stalled.removeBlocksDownloadedEventListener(chainDownloadSpeedCalculator);
+                stalled.setDownloadData(false);
+                startBlockChainDownloadFromPeer(replacement);
+                return;
+            }
+        } finally {
+            lock.unlock();
         }
+        log.info("No other peer to download the chain from, disconnecting {}", stalled);
+        stalled.close();
     }
     @Nullable private ChainDownloadSpeedCalculator chainDownloadSpeedCalculator;
 
@@ -1985,6 +2236,24 @@ public class PeerGroup implements TransactionBroadcaster {
             }
             peer.addBlocksDownloadedEventListener(Threading.SAME_THREAD, chainDownloadSpeedCalculator);
 
+            if (chain != null && maxParallelDownloadPeers > 1) {
+                if (parallelDownloader == null) {
+                    final ParallelBlockDownloader downloader = new ParallelBlockDownloader(chain,
+                            maxParallelDownloadPeers, ParallelBlockDownloader.DEFAULT_STALL_TIMEOUT_MILLIS);
+                    executor.scheduleAtFixedRate(new Runnable() {
+                        @Override
+                        public void run() {
+                            downloader.checkForStalls();
+                        }
+                    }, 1, 1, TimeUnit.SECONDS);
+                    parallelDownloader = downloader;
+                }
+                for (Peer p : peers) {
+                    parallelDownloader.addPeer(p);
+                    p.setParallelDownloader(parallelDownloader);
+                }
+            }
+
             // startBlockChainDownload will setDownloadData(true) on itself automatically.
             peer.startBlockChainDownload();
         } finally {
@@ -2192,6 +2461,7 @@ public class PeerGroup implements TransactionBroadcaster {
             public void onFailure(Throwable throwable) {
                 // This can happen if we get a reject message from a peer.
                 runningBroadcasts.remove(broadcast);
+                broadcastScheduler.forget(tx.getHash());
             }
         });
         // Keep a reference to the TransactionBroadcast object. This is important because otherwise, the entire tree
@@ -2203,6 +2473,78 @@ public class PeerGroup implements TransactionBroadcaster {
         return broadcast;
     }
 
+    /**
+     * Calls {@link PeerGroup#broadcastTransactions(List, int)} with getMinBroadcastConnections() as the number of
+     * connections to wait for before commencing broadcast.
+     */
+    public List<TransactionBroadcast> broadcastTransactions(List<Transaction> txns) {
+        return broadcastTransactions(txns, Math.max(1, getMinBroadcastConnections()));
+    }
+
+    /**
+     * <p>Broadcasts all the given transactions like {@link PeerGroup#broadcastTransaction(Transaction, int)} does,
+     * parents before the transactions spending their outputs so that peers don't see any of them as orphans. The
+     * broadcasts are returned in that order.</p>
+     *
+     * <p>When sending many transactions at once, consider setting a trickle interval with
+     * {@link PeerGroup#setBroadcastTrickleInterval(long)} so they are announced with a few inv messages rather than
+     * sent to the peers one by one.</p>
+     */
+    public List<TransactionBroadcast> broadcastTransactions(List<Transaction> txns, int minConnections) {
+        List<TransactionBroadcast> broadcasts = new ArrayList<TransactionBroadcast>(txns.size());
+        for (Transaction tx : BroadcastScheduler.sortByDependencies(txns))
+            broadcasts.add(broadcastTransaction(tx, minConnections));
+        return broadcasts;
+    }
+
+    /**
+     * <p>Sets the interval at which broadcast transactions are announced to peers. With a positive interval, rather
+     * than sending every transaction to its peers straight away, the transactions are queued and every interval each
+     * peer gets a single inv message listing those queued for it. The peers then fetch the transactions they are
+     * missing. This saves a lot of messages when broadcasting many transactions, at the cost of a delay of up to one
+     * interval.</p>
+     *
+     * <p>The default is zero, which sends each transaction as soon as it is broadcast.</p>
+     */
+    public void setBroadcastTrickleInterval(long trickleIntervalMillis) {
+        checkArgument(trickleIntervalMillis >= 0);
+        lock.lock();
+        try {
+            broadcastTrickleIntervalMillis = trickleIntervalMillis;
+            if (broadcastTrickleTask != null) {
+                broadcastTrickleTask.cancel(false);
+                broadcastTrickleTask = null;
+            }
+            if (trickleIntervalMillis > 0) {
+                broadcastTrickleTask = executor.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        broadcastScheduler.trickle();
+                    }
+                }, trickleIntervalMillis, trickleIntervalMillis, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+        // Don't leave behind what was queued under the previous interval.
+        if (trickleIntervalMillis == 0)
+            broadcastScheduler.trickle();
+    }
+
+    /** Returns the interval set with {@link PeerGroup#setBroadcastTrickleInterval(long)}, zero by default. */
+    public long getBroadcastTrickleInterval() {
+        lock.lock();
+        try {
+            return broadcastTrickleIntervalMillis;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    BroadcastScheduler getBroadcastScheduler() {
+        return broadcastScheduler;
+    }
+
     /**
      * Returns the period between pings for an individual peer. Setting this lower means more accurate and timely ping
      * times are available via {@link org.bitcoinj.core.Peer#getLastPingTime()} but it increases load on the
@@ -2284,6 +2626,8 @@ public class PeerGroup implements TransactionBroadcaster {
         // Characteristics to select for in order of importance:
         //  - Chain height is reasonable (majority of nodes)
         //  - High enough protocol version for the features we want (but we'll settle for less)
+        //  - Not recently replaced for serving the chain too slowly
+        //  - Highest measured block download throughput, then lowest ping time
         //  - Randomly, to try and spread the load.
         if (peers.isEmpty())
             return null;
@@ -2310,8 +2654,30 @@ public class PeerGroup implements TransactionBroadcaster {
                 candidates2.add(peer);
             }
         }
-        int index = (int) (Math.random() * candidates2.size());
-        return candidates2.get(index);
+        long now = Utils.currentTimeMillis();
+        ArrayList<Peer> candidates3 = new ArrayList<Peer>(candidates2.size());
+        for (Peer peer : candidates2) {
+            long lastStall = peer.getStats().getLastDownloadStallTimeMillis();
+            if (lastStall == 0 || now - lastStall >= SLOW_DOWNLOAD_PEER_PENALTY_MILLIS)
+                candidates3.add(peer);
+        }
+        if (candidates3.isEmpty())
+            candidates3 = candidates2;
+        // Shuffle so that ties, for example between peers nothing is known about yet, are broken randomly.
+        Collections.shuffle(candidates3);
+        Peer best = null;
+        long bestThroughput = -1, bestPing = Long.MAX_VALUE;
+        for (Peer peer : candidates3) {
+            PeerStats stats = peer.getStats();
+            long throughput = stats.isDeliveringBlocks() ? stats.getBytesPerSecond() : -1;
+            long ping = peer.getPingTime();
+            if (best == null || throughput > bestThroughput || (throughput == bestThroughput && ping < bestPing)) {
+                best = peer;
+                bestThroughput = throughput;
+                bestPing = ping;
+            }
+        }
+        return best;
     }
 
     /**
@@ -17,13 +17,16 @@
 package org.bitcoinj.core;
 
 import org.bitcoinj.net.AbstractTimeoutHandler;
+import org.bitcoinj.net.ByteBufferWriteTarget;
 import org.bitcoinj.net.MessageWriteTarget;
 import org.bitcoinj.net.StreamConnection;
 import org.bitcoinj.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
+import net.jcip.annotations.GuardedBy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.ConnectException;
@@ -31,6 +34,9 @@ import java.net.InetSocketAddress;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
 import java.util.concurrent.locks.Lock;
 
 import static com.google.common.base.Preconditions.*;
@@ -42,6 +48,12 @@ import static com.google.common.base.Preconditions.*;
 public abstract class PeerSocketHandler extends AbstractTimeoutHandler implements StreamConnection {
     private static final Logger log = LoggerFactory.getLogger(PeerSocketHandler.class);
 
+    /**
+     * How many bytes of messages may wait for the message executor before reading from the peer is paused. It resumes
+     * once half of them are processed.
+     */
+    public static final long DEFAULT_MAX_QUEUED_MESSAGE_BYTES = 4 * Block.MAX_BLOCK_SIZE;
+
     private final MessageSerializer serializer;
     protected PeerAddress peerAddress;
     // If we close() before we know our writeTarget, set this to true to call writeTarget.closeConnection() right away.
@@ -58,6 +70,13 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
 
     private Lock lock = Threading.lock("PeerSocketHandler");
 
+    @Nullable private volatile SerialExecutor messageExecutor;
+    private volatile long maxQueuedMessageBytes = DEFAULT_MAX_QUEUED_MESSAGE_BYTES;
+    // Bytes of messages handed to the message executor and not processed yet, and whether reading is paused for them.
+    private final Lock queueLock = Threading.lock("PeerSocketHandler queue");
+    @GuardedBy("queueLock") private long queuedMessageBytes;
+    @GuardedBy("queueLock") private boolean readingPaused;
+
     public PeerSocketHandler(NetworkParameters params, InetSocketAddress remoteIp) {
         checkNotNull(params);
         serializer = params.getDefaultSerializer();
@@ -93,6 +112,34 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         }
     }
 
+    /**
+     * Sends a message of the given command whose payload is already serialized, for example a block read from disk.
+     * If the write target is a {@link ByteBufferWriteTarget}, the remaining bytes of the payload are written as they
+     * are, without copying them, so the buffer must not be modified afterwards. Throws NotYetConnectedException if we
+     * are not yet connected to the remote peer.
+     */
+    public void sendRawMessage(String command, ByteBuffer payload) throws NotYetConnectedException {
+        lock.lock();
+        try {
+            if (writeTarget == null)
+                throw new NotYetConnectedException();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            byte[] header = serializer.serializeHeader(command, payload);
+            if (writeTarget instanceof ByteBufferWriteTarget) {
+                ((ByteBufferWriteTarget) writeTarget).writeBuffers(ByteBuffer.wrap(header), payload.duplicate());
+            } else {
+                byte[] message = Arrays.copyOf(header, header.length + payload.remaining());
+                payload.duplicate().get(message, header.length, payload.remaining());
+                writeTarget.writeBytes(message);
+            }
+        } catch (IOException e) {
+            exceptionCaught(e);
+        }
+    }
+
     /**
      * Closes the connection to the peer if one exists, or immediately closes the connection as soon as it opens
      */
@@ -139,7 +186,7 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     // Check the largeReadBuffer's status
                     if (largeReadBufferPos == largeReadBuffer.length) {
                         // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
+                        dispatch(header, largeReadBuffer);
                         largeReadBuffer = null;
                         header = null;
                         firstMessage = false;
@@ -147,10 +194,21 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                         return buff.position();
                 }
                 // Now try to deserialize any messages left in buff
-                Message message;
+                Message message = null;
                 int preSerializePosition = buff.position();
                 try {
-                    message = serializer.deserialize(buff);
+                    if (messageExecutor == null) {
+                        message = serializer.deserialize(buff);
+                    } else {
+                        // Only cut the message out of the buffer here, it is parsed by the executor.
+                        serializer.seekPastMagicBytes(buff);
+                        BitcoinSerializer.BitcoinPacketHeader messageHeader = serializer.deserializeHeader(buff);
+                        if (buff.remaining() < messageHeader.size)
+                            throw new BufferUnderflowException();
+                        byte[] payload = new byte[messageHeader.size];
+                        buff.get(payload);
+                        dispatch(messageHeader, payload);
+                    }
                 } catch (BufferUnderflowException e) {
                     // If we went through the whole buffer without a full message, we need to use the largeReadBuffer
                     if (firstMessage && buff.limit() == buff.capacity()) {
@@ -179,7 +237,8 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     return buff.position();
                 }
                 // Process our freshly deserialized message
-                processMessage(message);
+                if (message != null)
+                    processMessage(message);
                 firstMessage = false;
             }
         } catch (Exception e) {
@@ -188,6 +247,89 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         }
     }
 
+    // Parses and processes a complete message, either right away or on the message executor.
+    private void dispatch(final BitcoinSerializer.BitcoinPacketHeader header, final byte[] payload) throws Exception {
+        final SerialExecutor executor = messageExecutor;
+        if (executor == null) {
+            processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(payload)));
+            return;
+        }
+        messageQueued(payload.length);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(payload)));
+                } catch (Exception e) {
+                    exceptionCaught(e);
+                } finally {
+                    messageProcessed(payload.length);
+                }
+            }
+        });
+    }
+
+    // Without a limit, a peer sending faster than the executor keeps up would fill the heap with queued messages.
+    private void messageQueued(int size) throws ProtocolException {
+        queueLock.lock();
+        try {
+            queuedMessageBytes += size;
+            if (readingPaused || queuedMessageBytes <= maxQueuedMessageBytes)
+                return;
+            if (!(writeTarget instanceof ByteBufferWriteTarget))
+                throw new ProtocolException("More than " + maxQueuedMessageBytes + " bytes of messages queued");
+            log.debug("{}: Pausing reading, {} bytes of messages queued", getAddress(), queuedMessageBytes);
+            readingPaused = true;
+            ((ByteBufferWriteTarget) writeTarget).setReadingPaused(true);
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    private void messageProcessed(int size) {
+        queueLock.lock();
+        try {
+            queuedMessageBytes -= size;
+            if (!readingPaused || queuedMessageBytes > maxQueuedMessageBytes / 2)
+                return;
+            log.debug("{}: Resuming reading", getAddress());
+            readingPaused = false;
+            ((ByteBufferWriteTarget) writeTarget).setReadingPaused(false);
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Sets how many bytes of messages may wait for the message executor before reading from the peer is paused, see
+     * {@link #DEFAULT_MAX_QUEUED_MESSAGE_BYTES}. Connections whose write target can't pause reading are closed instead.
+     */
+    public void setMaxQueuedMessageBytes(long maxQueuedMessageBytes) {
+        checkArgument(maxQueuedMessageBytes > 0);
+        this.maxQueuedMessageBytes = maxQueuedMessageBytes;
+    }
+
+    @VisibleForTesting
+    boolean isReadingPaused() {
+        queueLock.lock();
+        try {
+            return readingPaused;
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Makes the messages from this peer be parsed and processed on the given executor, typically a thread pool shared
+     * by all peers, instead of on the network thread that reads them. This keeps a large block from holding up reading
+     * and pings of every other connection served by the same thread. Messages of one peer are still processed one at a
+     * time and in the order they arrived. While too many bytes of messages wait to be processed, reading from the peer
+     * is paused, see {@link #setMaxQueuedMessageBytes(long)}. Must be called before the connection is opened.
+     */
+    public void setMessageExecutor(@Nullable Executor executor) {
+        messageExecutor = executor == null ? null : new SerialExecutor(executor);
+    }
+
     /**
      * Sets the {@link MessageWriteTarget} used to write messages to the peer. This should almost never be called, it is
      * called automatically by {@link org.bitcoinj.net.NioClient} or
@@ -237,4 +379,43 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
 
         close();
     }
+
+    // Runs the tasks given to it one after the other on an underlying executor, in the order they were given.
+    private static class SerialExecutor implements Executor {
+        private final Executor executor;
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+        private boolean running;
+
+        SerialExecutor(Executor executor) {
+            this.executor = checkNotNull(executor);
+        }
+
+        @Override
+        public synchronized void execute(Runnable task) {
+            tasks.add(task);
+            if (!running) {
+                running = true;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        runTasks();
+                    }
+                });
+            }
+        }
+
+        private void runTasks() {
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        running = false;
+                        return;
+                    }
+                }
+                task.run();
+            }
+        }
+    }
 }
@@ -0,0 +1,177 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Rolling measurements of how well a {@link Peer} serves us: bytes received per second, how long it takes to
+ * deliver blocks after they were requested, and how often it stalled the chain download. They are used by the
+ * {@link PeerGroup} to pick the download peer and can be read with {@link Peer#getStats()} for monitoring. The ping
+ * time is available from {@link Peer#getPingTime()}.</p>
+ *
+ * <p>Throughput is averaged over one second buckets covering the last {@link #DEFAULT_WINDOW_SECONDS} seconds, the
+ * block latency over the last {@link #LATENCY_SAMPLES} blocks. All methods are thread safe.</p>
+ */
+public class PeerStats {
+    /** How many seconds the throughput is averaged over. */
+    public static final int DEFAULT_WINDOW_SECONDS = 20;
+    /** How many block deliveries the latency is averaged over. */
+    public static final int LATENCY_SAMPLES = 16;
+    // Bounds the memory used for blocks that were requested but never arrive.
+    private static final int MAX_TRACKED_REQUESTS = 1000;
+
+    private final int windowSeconds;
+    // One more than the window, so that the window is covered by completed seconds.
+    private final long[] buckets;
+    private long newestSecond;
+    private final long createdSecond;
+    private long totalBytes;
+
+    private final LinkedHashMap<Sha256Hash, Long> requestTimes = new LinkedHashMap<Sha256Hash, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Long> eldest) {
+            return size() > MAX_TRACKED_REQUESTS;
+        }
+    };
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    private int latencyCount, latencyCursor;
+    private long blocksReceived;
+    private long lastBlockTimeMillis;
+
+    private int downloadStalls;
+    private long lastDownloadStallTimeMillis;
+
+    public PeerStats() {
+        this(DEFAULT_WINDOW_SECONDS);
+    }
+
+    public PeerStats(int windowSeconds) {
+        checkArgument(windowSeconds > 0);
+        this.windowSeconds = windowSeconds;
+        buckets = new long[windowSeconds + 1];
+        createdSecond = newestSecond = Utils.currentTimeMillis() / 1000;
+    }
+
+    // Moves the window forward to the current second, clearing the buckets of seconds nothing was received in.
+    private void advance(long nowSecond) {
+        if (nowSecond <= newestSecond)
+            return;
+        long steps = Math.min(nowSecond - newestSecond, buckets.length);
+        for (long i = 1; i <= steps; i++)
+            buckets[(int) ((newestSecond + i) % buckets.length)] = 0;
+        newestSecond = nowSecond;
+    }
+
+    /** Records bytes read from the network. */
+    public synchronized void addBytesReceived(int bytes) {
+        advance(Utils.currentTimeMillis() / 1000);
+        buckets[(int) (newestSecond % buckets.length)] += bytes;
+        totalBytes += bytes;
+    }
+
+    /** Records that the given block was requested, so its latency can be measured when it arrives. */
+    public synchronized void blockRequested(Sha256Hash hash) {
+        if (!requestTimes.containsKey(hash))
+            requestTimes.put(hash, Utils.currentTimeMillis());
+    }
+
+    /** Records that the given block (or filtered block) arrived. */
+    public synchronized void blockReceived(Sha256Hash hash) {
+        long now = Utils.currentTimeMillis();
+        Long requested = requestTimes.remove(hash);
+        if (requested == null)
+            return;  // Pushed to us without asking, or asked for too long ago.
+        latencies[latencyCursor] = now - requested;
+        latencyCursor = (latencyCursor + 1) % latencies.length;
+        latencyCount = Math.min(latencyCount + 1, latencies.length);
+        blocksReceived++;
+        lastBlockTimeMillis = now;
+    }
+
+    /** Records that the peer was found too slow whilst serving the chain download. */
+    public synchronized void recordDownloadStall() {
+        downloadStalls++;
+        lastDownloadStallTimeMillis = Utils.currentTimeMillis();
+    }
+
+    /**
+     * Returns the average number of bytes received per second over the window, not counting the current second. For
+     * peers connected for less than the window, the average is over the time they were connected.
+     */
+    public synchronized long getBytesPerSecond() {
+        long nowSecond = Utils.currentTimeMillis() / 1000;
+        advance(nowSecond);
+        long seconds = Math.min(nowSecond - createdSecond, windowSeconds);
+        if (seconds <= 0)
+            return 0;
+        long sum = 0;
+        for (long i = 1; i <= seconds; i++)
+            sum += buckets[(int) ((nowSecond - i) % buckets.length)];
+        return sum / seconds;
+    }
+
+    /** Returns the number of bytes received since the peer connected. */
+    public synchronized long getTotalBytesReceived() {
+        return totalBytes;
+    }
+
+    /**
+     * Returns the average time in milliseconds between requesting a block and receiving it, over the last
+     * {@link #LATENCY_SAMPLES} blocks. Returns {@link Long#MAX_VALUE} if no requested block arrived yet.
+     */
+    public synchronized long getBlockLatency() {
+        if (latencyCount == 0)
+            return Long.MAX_VALUE;
+        long sum = 0;
+        for (int i = 0; i < latencyCount; i++)
+            sum += latencies[i];
+        return sum / latencyCount;
+    }
+
+    /** Returns how many requested blocks arrived since the peer connected. */
+    public synchronized long getBlocksReceived() {
+        return blocksReceived;
+    }
+
+    /** Returns true if a requested block arrived within the throughput window, making the throughput meaningful. */
+    public synchronized boolean isDeliveringBlocks() {
+        return blocksReceived > 0
+                && Utils.currentTimeMillis() - lastBlockTimeMillis < windowSeconds * 1000L;
+    }
+
+    /** Returns how many times the peer was found too slow whilst serving the chain download. */
+    public synchronized int getDownloadStalls() {
+        return downloadStalls;
+    }
+
+    /** Returns when the peer was last found too slow whilst serving the chain download, or 0 if never. */
+    public synchronized long getLastDownloadStallTimeMillis() {
+        return lastDownloadStallTimeMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long latency = getBlockLatency();
+        return String.format(Locale.US, "%.2f KB/sec, %d blocks, latency %s, %d stalls", getBytesPerSecond() / 1024.0,
+                blocksReceived, latency == Long.MAX_VALUE ? "unknown" : latency + " ms", downloadStalls);
+    }
+}
@@ -0,0 +1,572 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.AbstractIdleService;
+import net.jcip.annotations.GuardedBy;
+import org.bitcoinj.core.listeners.NewBestBlockListener;
+import org.bitcoinj.core.listeners.ReorganizeListener;
+import org.bitcoinj.net.ByteBufferWriteTarget;
+import org.bitcoinj.net.NioServer;
+import org.bitcoinj.net.StreamConnection;
+import org.bitcoinj.net.StreamConnectionFactory;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.RawBlockSource;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Accepts inbound connections from other peers, typically light clients such as other bitcoinj instances, and
+ * serves them the block chain: headers from the {@link BlockStore} of the given chain, and full and filtered blocks
+ * from a {@link RawBlockSource}. It answers {@code getheaders}, {@code getblocks}, {@code getdata} for blocks,
+ * filtered blocks and transactions, {@code filterload} and {@code mempool}, and announces new best blocks and
+ * transactions given to {@link #relayTransaction(Transaction)} to the connected peers.</p>
+ *
+ * <p>Full blocks are written to the network straight from the buffers of the block source, so when that is a memory
+ * mapped file they are never copied onto the Java heap. Filtered blocks need the block to be parsed and matched
+ * against the peer's filter.</p>
+ *
+ * <p>Headers are served for the best chain as far back as the block store has them, which for an
+ * {@link org.bitcoinj.store.SPVBlockStore} is only the most recent few thousand blocks. Start the server with
+ * {@link #startAsync()} and stop it with {@link #stopAsync()}.</p>
+ */
+public class RelayServer extends AbstractIdleService {
+    private static final Logger log = LoggerFactory.getLogger(RelayServer.class);
+
+    /** The default maximum number of inbound connections. */
+    public static final int DEFAULT_MAX_CONNECTIONS = 500;
+    // How many block hashes are announced in reply to a getblocks, as Bitcoin Core does.
+    private static final int MAX_BLOCKS_PER_INV = 500;
+    // How many transactions given to relayTransaction are kept around for peers to ask for.
+    private static final int MAX_RELAY_TRANSACTIONS = 5000;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 20000;
+    // Blocks asked for by a getdata are only sent while fewer bytes than this wait to be written to the peer, the rest
+    // follow as the connection catches up. This keeps a getdata for hundreds of blocks from overflowing its buffer.
+    private static final long DEFAULT_MAX_PENDING_WRITE_BYTES = 4 * Block.MAX_BLOCK_SIZE;
+    // How many messages may arrive while a getdata is being served before the peer is considered to be flooding us.
+    private static final int MAX_DEFERRED_MESSAGES = 1000;
+
+    private final NetworkParameters params;
+    private final AbstractBlockChain chain;
+    private final BlockStore blockStore;
+    @Nullable private final RawBlockSource blockSource;
+    private final InetSocketAddress bindAddress;
+    private final int selectorThreads;
+    private volatile int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private volatile long maxPendingWriteBytes = DEFAULT_MAX_PENDING_WRITE_BYTES;
+    private final CopyOnWriteArrayList<RelayPeer> peers = new CopyOnWriteArrayList<RelayPeer>();
+    @Nullable private NioServer server;
+
+    private final ReentrantLock lock = Threading.lock("relayserver");
+    // Hashes of the best chain by height, starting at bestChainStart. Block stores only link blocks backwards, so this
+    // is what lets us find the blocks following a peer's locator.
+    @GuardedBy("lock") private final ArrayList<Sha256Hash> bestChain = new ArrayList<Sha256Hash>();
+    @GuardedBy("lock") private int bestChainStart;
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, Transaction> relayTransactions =
+            new LinkedHashMap<Sha256Hash, Transaction>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Transaction> eldest) {
+            return size() > MAX_RELAY_TRANSACTIONS;
+        }
+    };
+
+    private final NewBestBlockListener newBestBlockListener = new NewBestBlockListener() {
+        @Override
+        public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
+            onNewBestBlock(block);
+        }
+    };
+
+    private final ReorganizeListener reorganizeListener = new ReorganizeListener() {
+        @Override
+        public void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks)
+                throws VerificationException {
+            onNewBestBlock(newBlocks.get(0));
+        }
+    };
+
+    /**
+     * Creates a server listening on the given address, serving connections on a single thread.
+     *
+     * @param chain the chain whose best chain is served, and whose block store the headers are read from
+     * @param blockSource where full blocks are read from, or null to serve only headers
+     */
+    public RelayServer(NetworkParameters params, AbstractBlockChain chain, @Nullable RawBlockSource blockSource,
+                       InetSocketAddress bindAddress) {
+        this(params, chain, blockSource, bindAddress, 1);
+    }
+
+    /**
+     * Creates a server listening on the given address, spreading connections over the given number of selector
+     * threads, see {@link NioServer#NioServer(StreamConnectionFactory, InetSocketAddress, int)}.
+     *
+     * @param chain the chain whose best chain is served, and whose block store the headers are read from
+     * @param blockSource where full blocks are read from, or null to serve only headers
+     */
+    public RelayServer(NetworkParameters params, AbstractBlockChain chain, @Nullable RawBlockSource blockSource,
+                       InetSocketAddress bindAddress, int selectorThreads) {
+        checkArgument(selectorThreads > 0);
+        this.params = checkNotNull(params);
+        this.chain = checkNotNull(chain);
+        this.blockStore = chain.getBlockStore();
+        this.blockSource = blockSource;
+        this.bindAddress = checkNotNull(bindAddress);
+        this.selectorThreads = selectorThreads;
+    }
+
+    /** Sets the maximum number of inbound connections, further ones are refused. */
+    public void setMaxConnections(int maxConnections) {
+        checkArgument(maxConnections >= 0);
+        this.maxConnections = maxConnections;
+    }
+
+    @VisibleForTesting
+    void setMaxPendingWriteBytes(long maxPendingWriteBytes) {
+        checkArgument(maxPendingWriteBytes > 0);
+        this.maxPendingWriteBytes = maxPendingWriteBytes;
+    }
+
+    /** Returns the number of peers currently connected to us. */
+    public int numConnectedPeers() {
+        return peers.size();
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+        onNewBestBlock(chain.getChainHead());
+        chain.addNewBestBlockListener(Threading.SAME_THREAD, newBestBlockListener);
+        chain.addReorganizeListener(Threading.SAME_THREAD, reorganizeListener);
+        server = new NioServer(new StreamConnectionFactory() {
+            @Nullable
+            @Override
+            public StreamConnection getNewConnection(InetAddress inetAddress, int port) {
+                if (peers.size() >= maxConnections) {
+                    log.info("Refusing connection from {}, already serving {} peers", inetAddress, peers.size());
+                    return null;
+                }
+                return new RelayPeer(new InetSocketAddress(inetAddress, port));
+            }
+        }, bindAddress, selectorThreads);
+        server.startAsync().awaitRunning();
+        log.info("Serving the block chain on {}", bindAddress);
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        chain.removeNewBestBlockListener(newBestBlockListener);
+        chain.removeReorganizeListener(reorganizeListener);
+        if (server != null)
+            server.stopAsync().awaitTerminated();
+    }
+
+    /**
+     * Keeps the given transaction around to be served to peers and announces it to the connected ones, to those that
+     * loaded a filter only if it matches.
+     */
+    public void relayTransaction(Transaction tx) {
+        lock.lock();
+        try {
+            relayTransactions.put(tx.getHash(), tx);
+        } finally {
+            lock.unlock();
+        }
+        for (RelayPeer peer : peers) {
+            // One peer's bad filter mustn't stop the transaction from reaching the peers after it.
+            try {
+                if (peer.wantsTransaction(tx))
+                    peer.sendMessage(InventoryMessage.with(tx));
+            } catch (RuntimeException e) {
+                log.warn("{}: Failed to relay {}, disconnecting", peer.getAddress(), tx.getHash(), e);
+                peer.close();
+            }
+        }
+    }
+
+    private void onNewBestBlock(StoredBlock head) {
+        try {
+            updateBestChain(head);
+        } catch (BlockStoreException e) {
+            log.error("Failed to follow the best chain", e);
+            return;
+        }
+        for (RelayPeer peer : peers) {
+            if (peer.isReady()) {
+                InventoryMessage inv = new InventoryMessage(params);
+                inv.addItem(new InventoryItem(InventoryItem.Type.Block, head.getHeader().getHash()));
+                peer.sendMessage(inv);
+            }
+        }
+    }
+
+    // Walks back from the new head until it meets the indexed best chain, then replaces the part after that. On the
+    // first call, this indexes everything the block store has.
+    private void updateBestChain(StoredBlock head) throws BlockStoreException {
+        lock.lock();
+        try {
+            LinkedList<Sha256Hash> branch = new LinkedList<Sha256Hash>();
+            StoredBlock cursor = head;
+            while (cursor != null && !isOnBestChain(cursor.getHeader().getHash(), cursor.getHeight())) {
+                branch.addFirst(cursor.getHeader().getHash());
+                if (cursor.getHeight() <= bestChainStart)
+                    cursor = null;  // Walked past the start of the index, so it has to start over.
+                else
+                    cursor = cursor.getPrev(blockStore);
+            }
+            if (cursor == null) {
+                bestChain.clear();
+                bestChainStart = head.getHeight() - branch.size() + 1;
+            } else {
+                int keep = cursor.getHeight() - bestChainStart + 1;
+                bestChain.subList(keep, bestChain.size()).clear();
+            }
+            bestChain.addAll(branch);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private boolean isOnBestChain(Sha256Hash hash, int height) {
+        int index = height - bestChainStart;
+        return index >= 0 && index < bestChain.size() && bestChain.get(index).equals(hash);
+    }
+
+    // Returns the hashes of the best chain following the first block of the locator we know, up to and including the
+    // stop hash.
+    private List<Sha256Hash> getBlocksAfter(List<Sha256Hash> locator, Sha256Hash stopHash, int max)
+            throws BlockStoreException {
+        // Look the heights up without holding the lock, as it can take a while.
+        List<StoredBlock> known = new ArrayList<StoredBlock>(locator.size());
+        for (Sha256Hash hash : locator) {
+            StoredBlock block = blockStore.get(hash);
+            if (block != null)
+                known.add(block);
+        }
+        lock.lock();
+        try {
+            int start = bestChainStart;
+            for (StoredBlock block : known) {
+                if (isOnBestChain(block.getHeader().getHash(), block.getHeight())) {
+                    start = block.getHeight() + 1;
+                    break;
+                }
+            }
+            List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+            for (int i = start - bestChainStart; i < bestChain.size() && hashes.size() < max; i++) {
+                Sha256Hash hash = bestChain.get(i);
+                hashes.add(hash);
+                if (hash.equals(stopHash))
+                    break;
+            }
+            return hashes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    private Sha256Hash getBestChainHead() {
+        lock.lock();
+        try {
+            return bestChain.isEmpty() ? null : bestChain.get(bestChain.size() - 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    private Transaction getRelayTransaction(Sha256Hash hash) {
+        lock.lock();
+        try {
+            return relayTransactions.get(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<Transaction> getRelayTransactions() {
+        lock.lock();
+        try {
+            return new ArrayList<Transaction>(relayTransactions.values());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * An inbound connection. Messages of one connection are processed one at a time, on the network thread serving
+     * it, which is also the thread that tells it when its writes have drained.
+     */
+    private class RelayPeer extends PeerSocketHandler {
+        @Nullable private volatile VersionMessage peerVersion;
+        private volatile boolean ready;
+        // Matched against from the peer's thread and from whichever thread relays a transaction, so it's immutable
+        // and updated by swapping in a new one. Holds null until the peer loads a filter.
+        private final AtomicReference<ImmutableBloomFilter> filter = new AtomicReference<ImmutableBloomFilter>();
+        // Once the peer fetched this block, it is told about the chain head so it asks for more, like Bitcoin Core
+        // does when a getblocks was cut short.
+        @Nullable private Sha256Hash hashContinue;
+        // Items of a getdata that haven't been served yet. While there are any, further messages wait in
+        // deferredMessages so that the replies keep their order, a ping following a getdata for filtered blocks must
+        // be answered after the last block for example.
+        private final ArrayDeque<InventoryItem> pendingGetData = new ArrayDeque<InventoryItem>();
+        private final List<InventoryItem> notFound = new ArrayList<InventoryItem>();
+        private final ArrayDeque<Message> deferredMessages = new ArrayDeque<Message>();
+
+        RelayPeer(InetSocketAddress address) {
+            super(params, address);
+            setSocketTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        }
+
+        boolean isReady() {
+            return ready;
+        }
+
+        boolean wantsTransaction(Transaction tx) {
+            if (!ready)
+                return false;
+            if (filter.get() != null)
+                return ImmutableBloomFilter.applyAndUpdate(filter, tx);
+            VersionMessage version = peerVersion;
+            return version != null && version.relayTxesBeforeFilter;
+        }
+
+        @Override
+        public void connectionOpened() {
+            peers.add(this);
+            VersionMessage version = new VersionMessage(params, chain.getBestChainHeight());
+            version.localServices = VersionMessage.NODE_NETWORK;
+            version.relayTxesBeforeFilter = true;
+            sendMessage(version);
+        }
+
+        @Override
+        public void connectionClosed() {
+            peers.remove(this);
+        }
+
+        @Override
+        protected void processMessage(Message m) throws Exception {
+            if (!pendingGetData.isEmpty()) {
+                if (deferredMessages.size() >= MAX_DEFERRED_MESSAGES)
+                    throw new ProtocolException("Too many messages while serving a getdata");
+                deferredMessages.add(m);
+                return;
+            }
+            handleMessage(m);
+        }
+
+        private void handleMessage(Message m) throws Exception {
+            if (m instanceof VersionMessage) {
+                if (peerVersion != null)
+                    throw new ProtocolException("Got two version messages from peer");
+                peerVersion = (VersionMessage) m;
+                sendMessage(new VersionAck());
+            } else if (m instanceof VersionAck) {
+                if (peerVersion == null)
+                    throw new ProtocolException("got a version ack before version");
+                ready = true;
+                setTimeoutEnabled(false);
+                log.info("{}: Serving {}", getAddress(), peerVersion.subVer);
+            } else if (!ready) {
+                throw new ProtocolException("Received " + m.getClass().getSimpleName() + " before the handshake");
+            } else if (m instanceof Ping) {
+                if (((Ping) m).hasNonce())
+                    sendMessage(new Pong(((Ping) m).getNonce()));
+            } else if (m instanceof GetHeadersMessage) {
+                processGetHeaders((GetHeadersMessage) m);
+            } else if (m instanceof GetBlocksMessage) {
+                processGetBlocks((GetBlocksMessage) m);
+            } else if (m instanceof GetDataMessage) {
+                processGetData((GetDataMessage) m);
+            } else if (m instanceof BloomFilter) {
+                processFilterLoad((BloomFilter) m);
+            } else if (m instanceof MemoryPoolMessage) {
+                processMemoryPool();
+            } else {
+                log.debug("{}: Ignoring {}", getAddress(), m);
+            }
+        }
+
+        // Checks the filter before installing it, as it's matched from the threads relaying transactions to all peers.
+        private void processFilterLoad(BloomFilter m) throws ProtocolException {
+            ImmutableBloomFilter loaded = m.toImmutable();
+            try {
+                loaded.getUpdateFlag();
+            } catch (IllegalStateException e) {
+                throw new ProtocolException("Bloom filter with unknown update flags");
+            }
+            filter.set(loaded);
+        }
+
+        private void processGetHeaders(GetHeadersMessage m) throws BlockStoreException {
+            List<Block> headers = new ArrayList<Block>();
+            if (m.getLocator().isEmpty()) {
+                // Asking for a single header.
+                StoredBlock block = blockStore.get(m.getStopHash());
+                if (block != null)
+                    headers.add(block.getHeader());
+            } else {
+                for (Sha256Hash hash : getBlocksAfter(m.getLocator(), m.getStopHash(), HeadersMessage.MAX_HEADERS)) {
+                    StoredBlock block = blockStore.get(hash);
+                    if (block == null)
+                        break;  // Fell out of the store whilst we were looking.
+                    headers.add(block.getHeader());
+                }
+            }
+            sendMessage(new HeadersMessage(params, headers));
+        }
+
+        private void processGetBlocks(GetBlocksMessage m) throws BlockStoreException {
+            List<Sha256Hash> hashes = getBlocksAfter(m.getLocator(), m.getStopHash(), MAX_BLOCKS_PER_INV);
+            if (hashes.isEmpty())
+                return;
+            InventoryMessage inv = new InventoryMessage(params);
+            for (Sha256Hash hash : hashes)
+                inv.addItem(new InventoryItem(InventoryItem.Type.Block, hash));
+            Sha256Hash last = hashes.get(hashes.size() - 1);
+            if (hashes.size() == MAX_BLOCKS_PER_INV && !last.equals(getBestChainHead()))
+                hashContinue = last;
+            sendMessage(inv);
+        }
+
+        private void processGetData(GetDataMessage m) throws Exception {
+            pendingGetData.addAll(m.getItems());
+            serveGetData();
+        }
+
+        // Serves the pending getdata items until enough bytes wait to be written, and then carries on once they were.
+        // When all are served, handles the messages that arrived meanwhile.
+        private void serveGetData() throws Exception {
+            while (!pendingGetData.isEmpty()) {
+                if (getPendingWriteBytes() >= maxPendingWriteBytes) {
+                    continueWhenDrained();
+                    return;
+                }
+                serveItem(pendingGetData.poll());
+            }
+            if (!notFound.isEmpty()) {
+                sendMessage(new NotFoundMessage(params, new ArrayList<InventoryItem>(notFound)));
+                notFound.clear();
+            }
+            while (pendingGetData.isEmpty() && !deferredMessages.isEmpty())
+                handleMessage(deferredMessages.poll());
+        }
+
+        private void continueWhenDrained() {
+            checkState(writeTarget instanceof ByteBufferWriteTarget);
+            ((ByteBufferWriteTarget) writeTarget).getWritesDrainedFuture().addListener(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serveGetData();
+                    } catch (Exception e) {
+                        log.warn("{}: Failed to serve getdata, disconnecting", getAddress(), e);
+                        close();
+                    }
+                }
+            }, Threading.SAME_THREAD);
+        }
+
+        private long getPendingWriteBytes() {
+            // Writes to any other target can't be waited for, so they are never held back.
+            return writeTarget instanceof ByteBufferWriteTarget
+                    ? ((ByteBufferWriteTarget) writeTarget).getPendingWriteBytes() : 0;
+        }
+
+        private void serveItem(InventoryItem item) throws BlockStoreException {
+            boolean found;
+            if (item.type == InventoryItem.Type.Transaction) {
+                Transaction tx = getRelayTransaction(item.hash);
+                if (tx != null)
+                    sendMessage(tx);
+                found = tx != null;
+            } else if (item.type == InventoryItem.Type.Block) {
+                ByteBuffer block = blockSource == null ? null : blockSource.getRawBlock(item.hash);
+                if (block != null)
+                    sendRawMessage("block", block);
+                found = block != null;
+            } else if (item.type == InventoryItem.Type.FilteredBlock) {
+                if (filter.get() == null)
+                    return;  // Like Bitcoin Core, don't answer at all.
+                found = sendFilteredBlock(item.hash);
+            } else {
+                return;
+            }
+            if (!found) {
+                notFound.add(item);
+            } else if (item.hash.equals(hashContinue)) {
+                hashContinue = null;
+                Sha256Hash head = getBestChainHead();
+                if (head != null) {
+                    InventoryMessage inv = new InventoryMessage(params);
+                    inv.addItem(new InventoryItem(InventoryItem.Type.Block, head));
+                    sendMessage(inv);
+                }
+            }
+        }
+
+        // Sends the merkleblock followed by the transactions matching the filter, in block order.
+        private boolean sendFilteredBlock(Sha256Hash hash) throws BlockStoreException {
+            ByteBuffer raw = blockSource == null ? null : blockSource.getRawBlock(hash);
+            if (raw == null)
+                return false;
+            byte[] bytes = new byte[raw.remaining()];
+            raw.duplicate().get(bytes);
+            Block block = params.getDefaultSerializer().makeBlock(bytes);
+            FilteredBlock filteredBlock = ImmutableBloomFilter.applyAndUpdate(filter, block);
+            sendMessage(filteredBlock);
+            Map<Sha256Hash, Transaction> matched = filteredBlock.getAssociatedTransactions();
+            for (Transaction tx : block.getTransactions()) {
+                if (matched.containsKey(tx.getHash()))
+                    sendMessage(tx);
+            }
+            return true;
+        }
+
+        private void processMemoryPool() {
+            InventoryMessage inv = new InventoryMessage(params);
+            for (Transaction tx : getRelayTransactions()) {
+                if (wantsTransaction(tx))
+                    inv.addTransaction(tx);
+            }
+            if (!inv.getItems().isEmpty())
+                sendMessage(inv);
+        }
+    }
+}
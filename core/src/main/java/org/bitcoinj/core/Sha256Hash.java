@@ -25,6 +25,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -39,6 +40,17 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
     public static final int LENGTH = 32; // bytes
     public static final Sha256Hash ZERO_HASH = wrap(new byte[LENGTH]);
 
+    // Looking up a digest by name goes through the security providers each time, cloning one is much cheaper.
+    private static final MessageDigest PROTOTYPE_DIGEST = lookupDigest();
+
+    // Used by the hashing methods here, which never hand them out or call back into other code while using them.
+    private static final ThreadLocal<MessageDigest> POOLED_DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return newDigest();
+        }
+    };
+
     private final byte[] bytes;
 
     /**
@@ -154,6 +166,14 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      * @return a new SHA-256 MessageDigest instance
      */
     public static MessageDigest newDigest() {
+        try {
+            return (MessageDigest) PROTOTYPE_DIGEST.clone();
+        } catch (CloneNotSupportedException e) {
+            return lookupDigest();
+        }
+    }
+
+    private static MessageDigest lookupDigest() {
         try {
             return MessageDigest.getInstance("SHA-256");
         } catch (NoSuchAlgorithmException e) {
@@ -161,6 +181,13 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
         }
     }
 
+    // Returns this thread's digest, ready for use.
+    private static MessageDigest pooledDigest() {
+        MessageDigest digest = POOLED_DIGEST.get();
+        digest.reset();  // In case an earlier use threw half way through.
+        return digest;
+    }
+
     /**
      * Calculates the SHA-256 hash of the given bytes.
      *
@@ -180,7 +207,7 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      * @return the hash (in big-endian order)
      */
     public static byte[] hash(byte[] input, int offset, int length) {
-        MessageDigest digest = newDigest();
+        MessageDigest digest = pooledDigest();
         digest.update(input, offset, length);
         return digest.digest();
     }
@@ -206,18 +233,46 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      * @return the double-hash (in big-endian order)
      */
     public static byte[] hashTwice(byte[] input, int offset, int length) {
-        MessageDigest digest = newDigest();
+        MessageDigest digest = pooledDigest();
         digest.update(input, offset, length);
         return digest.digest(digest.digest());
     }
 
+    /**
+     * Calculates the SHA-256 hash of the given byte range, and then hashes the resulting hash again, writing the
+     * result into the given array rather than allocating a new one.
+     *
+     * @param output the array to write the double-hash to (in big-endian order)
+     * @param outputOffset where in the array to write the {@link #LENGTH} bytes of the double-hash
+     */
+    public static void hashTwice(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+        checkArgument(outputOffset >= 0 && outputOffset + LENGTH <= output.length, "Output array too small");
+        MessageDigest digest = pooledDigest();
+        digest.update(input, offset, length);
+        finishTwice(digest, output, outputOffset);
+    }
+
+    /**
+     * Finishes the first hash of a double-hash in the given digest, hashes the result again and writes it into the
+     * given array. The digest is reset afterwards.
+     */
+    static void finishTwice(MessageDigest digest, byte[] output, int outputOffset) {
+        try {
+            digest.digest(output, outputOffset, LENGTH);
+            digest.update(output, outputOffset, LENGTH);
+            digest.digest(output, outputOffset, LENGTH);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);  // Can't happen, the output range was checked.
+        }
+    }
+
     /**
      * Calculates the hash of hash on the given byte ranges. This is equivalent to
      * concatenating the two ranges and then passing the result to {@link #hashTwice(byte[])}.
      */
     public static byte[] hashTwice(byte[] input1, int offset1, int length1,
                                    byte[] input2, int offset2, int length2) {
-        MessageDigest digest = newDigest();
+        MessageDigest digest = pooledDigest();
         digest.update(input1, offset1, length1);
         digest.update(input2, offset2, length2);
         return digest.digest(digest.digest());
@@ -126,7 +126,9 @@ public class Transaction extends ChildMessage {
     // list of transactions from a wallet, which is helpful for presenting to users.
     private Date updatedAt;
 
-    // This is an in memory helper only.
+    // This is an in memory helper only. Unless the serializer retains the bytes as the payload, only the hash is kept
+    // for a built or changed tx, not its serialized form: a second copy of every wallet tx would cost more memory than
+    // serializing again saves, and the bytes would go stale on any change that misses unCache().
     private Sha256Hash hash;
 
     // Data about how confirmed this tx is. Serialized, may be null.
@@ -242,7 +244,21 @@ public class Transaction extends ChildMessage {
     @Override
     public Sha256Hash getHash() {
         if (hash == null) {
-            hash = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(unsafeBitcoinSerialize()));
+            if (payload == null && serializer.isParseRetainMode()) {
+                // Serializing keeps the bytes around in this mode, which saves doing it again when the tx is sent.
+                hash = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(unsafeBitcoinSerialize()));
+            } else {
+                // Hash the cached bytes in place, or the tx as it is serialized, without copying it into an array.
+                HashingOutputStream stream = new HashingOutputStream();
+                try {
+                    bitcoinSerialize(stream);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);  // Cannot happen.
+                }
+                if (payload == null)
+                    length = (int) stream.getCount();  // As unsafeBitcoinSerialize() would have recorded it.
+                hash = Sha256Hash.wrapReversed(stream.hashTwice().getBytes());
+            }
         }
         return hash;
     }
@@ -1075,16 +1091,13 @@ public class Transaction extends ChildMessage {
                 tx.inputs.add(input);
             }
 
-            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(tx.length == UNKNOWN_LENGTH ? 256 : tx.length + 4);
-            tx.bitcoinSerialize(bos);
+            HashingOutputStream stream = new HashingOutputStream();
+            tx.bitcoinSerialize(stream);
             // We also have to write a hash type (sigHashType is actually an unsigned char)
-            uint32ToByteStreamLE(0x000000ff & sigHashType, bos);
+            uint32ToByteStreamLE(0x000000ff & sigHashType, stream);
             // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
             // however then we would expect that it is IS reversed.
-            Sha256Hash hash = Sha256Hash.twiceOf(bos.toByteArray());
-            bos.close();
-
-            return hash;
+            return stream.hashTwice();
         } catch (IOException e) {
             throw new RuntimeException(e);  // Cannot happen.
         }
@@ -1173,6 +1186,7 @@ public class Transaction extends ChildMessage {
 
     /** Randomly re-orders the transaction outputs: good for privacy */
     public void shuffleOutputs() {
+        unCache();
         Collections.shuffle(outputs);
     }
 
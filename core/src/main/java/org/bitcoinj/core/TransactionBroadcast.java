@@ -147,9 +147,17 @@ public class TransactionBroadcast {
             peers = peers.subList(0, numToBroadcastTo);
             log.info("broadcastTransaction: We have {} peers, adding {} to the memory pool", numConnected, tx.getHashAsString());
             log.info("Sending to {} peers, will wait for {}, sending to: {}", numToBroadcastTo, numWaitingFor, Joiner.on(",").join(peers));
+            // If the PeerGroup trickles its broadcasts, the tx is only announced with the next batch and the peers
+            // fetch it from us, so it doesn't go out to them one by one.
+            BroadcastScheduler scheduler = peerGroup.getBroadcastTrickleInterval() > 0 ?
+                    peerGroup.getBroadcastScheduler() : null;
+            List<ListenableFuture<Transaction>> announcements = new ArrayList<ListenableFuture<Transaction>>();
             for (Peer peer : peers) {
                 try {
-                    peer.sendMessage(tx);
+                    if (scheduler != null)
+                        announcements.add(scheduler.announce(peer, tx));
+                    else
+                        peer.sendMessage(tx);
                     // We don't record the peer as having seen the tx in the memory pool because we want to track only
                     // how many peers announced to us.
                 } catch (Exception e) {
@@ -161,8 +169,13 @@ public class TransactionBroadcast {
             // So we just have to assume we're done, at that point. This happens when we're not given
             // any peer discovery source and the user just calls connectTo() once.
             if (minConnections == 1) {
-                peerGroup.removePreMessageReceivedEventListener(rejectionListener);
-                future.set(tx);
+                Futures.successfulAsList(announcements).addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        peerGroup.removePreMessageReceivedEventListener(rejectionListener);
+                        future.set(tx);
+                    }
+                }, Threading.SAME_THREAD);
             }
         }
     }
@@ -84,6 +84,10 @@ public class TransactionInput extends ChildMessage {
         this.outpoint = outpoint;
         this.sequence = NO_SEQUENCE;
         this.value = value;
+        // Take ownership of the outpoint so changes to it reach the transaction, unless it already belongs to another
+        // input: outpoints are often shared, and re-parenting would invalidate the other transaction's caches.
+        if (outpoint.parent == null)
+            outpoint.setParent(this);
         setParent(parentTransaction);
         length = 40 + (scriptBytes == null ? 1 : VarInt.sizeOf(scriptBytes.length) + scriptBytes.length);
     }
@@ -99,6 +103,7 @@ public class TransactionInput extends ChildMessage {
         } else {
             outpoint = new TransactionOutPoint(params, output);
         }
+        outpoint.setParent(this);
         scriptBytes = EMPTY_ARRAY;
         sequence = NO_SEQUENCE;
         setParent(parentTransaction);
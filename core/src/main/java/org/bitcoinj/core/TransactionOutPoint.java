@@ -192,6 +192,7 @@ public class TransactionOutPoint extends ChildMessage {
     }
 
     void setHash(Sha256Hash hash) {
+        unCache();
         this.hash = hash;
     }
 
@@ -200,6 +201,7 @@ public class TransactionOutPoint extends ChildMessage {
     }
     
     public void setIndex(long index) {
+        unCache();
         this.index = index;
     }
 
@@ -0,0 +1,289 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+
+/**
+ * <p>A read only view of a serialized transaction. Parsing only records where each input and output starts, nothing
+ * is copied and no inputs, outputs or scripts are built. The hash is calculated from the bytes in place, and scripts
+ * are exposed as offsets into {@link #getRawBytes()}, which is enough for things like matching output scripts against
+ * a {@link BloomFilter}. {@link TransactionInput}s and {@link TransactionOutput}s, or the whole {@link Transaction},
+ * are only built when asked for.</p>
+ *
+ * <p>Views are made by a {@link BitcoinSerializer} in lazy parsing mode, or by {@link BlockView}. The underlying
+ * array must not be changed while the view is in use.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class TransactionView extends Message {
+    // All of these are set by parse(), which runs before field initializers would, so they mustn't have any.
+    private byte[] rawBytes;
+    private int[] inputOffsets;
+    private int[] outputOffsets;
+    private int lockTimeOffset;
+    private Sha256Hash hash;
+    private TransactionInput[] inputs;
+    private TransactionOutput[] outputs;
+    private Transaction transaction;
+
+    /**
+     * Creates a view of the transaction at the given offset of the array.
+     *
+     * @param hash the hash of the transaction if it is already known, for example from the message checksum
+     * @param length the length of the transaction if known, or {@link Message#UNKNOWN_LENGTH}
+     */
+    public TransactionView(NetworkParameters params, byte[] payload, int offset, @Nullable Sha256Hash hash,
+                           MessageSerializer serializer, int length) throws ProtocolException {
+        super(params, payload, offset, serializer, length);
+        if (hash != null)
+            this.hash = hash;
+    }
+
+    public TransactionView(NetworkParameters params, byte[] payload) throws ProtocolException {
+        this(params, payload, 0, null, params.getDefaultSerializer(), UNKNOWN_LENGTH);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        rawBytes = payload;
+        cursor = scan(payload, offset, this);
+        length = cursor - offset;
+    }
+
+    /**
+     * Finds the end of the transaction at the given offset, checking it doesn't run past the end of the array. If a
+     * view is given, also records where its inputs and outputs start.
+     */
+    static int scan(byte[] buf, int offset, @Nullable TransactionView view) throws ProtocolException {
+        try {
+            int pos = offset + 4;  // version
+            int count = checkCount(varIntAt(buf, pos));
+            pos += varIntSize(buf, pos);
+            if (view != null)
+                view.inputOffsets = new int[count];
+            for (int i = 0; i < count; i++) {
+                if (view != null)
+                    view.inputOffsets[i] = pos;
+                pos += 36;  // outpoint
+                pos += varIntSize(buf, pos) + checkCount(varIntAt(buf, pos));
+                pos += 4;  // sequence
+                checkEnd(buf, pos);
+            }
+            count = checkCount(varIntAt(buf, pos));
+            pos += varIntSize(buf, pos);
+            if (view != null)
+                view.outputOffsets = new int[count];
+            for (int i = 0; i < count; i++) {
+                if (view != null)
+                    view.outputOffsets[i] = pos;
+                pos += 8;  // value
+                pos += varIntSize(buf, pos) + checkCount(varIntAt(buf, pos));
+                checkEnd(buf, pos);
+            }
+            if (view != null)
+                view.lockTimeOffset = pos;
+            pos += 4;
+            checkEnd(buf, pos);
+            return pos;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new ProtocolException(e);
+        }
+    }
+
+    /** Returns the transaction hash as you see them in the block explorer, hashing the bytes in place. */
+    @Override
+    public Sha256Hash getHash() {
+        if (hash == null)
+            hash = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(rawBytes, offset, length));
+        return hash;
+    }
+
+    /**
+     * Returns the array the transaction is read from. Offsets returned by this class index into it. Do NOT mutate
+     * it.
+     */
+    public byte[] getRawBytes() {
+        return rawBytes;
+    }
+
+    /** Returns the offset of the transaction within {@link #getRawBytes()}. */
+    public int getOffset() {
+        return offset;
+    }
+
+    public long getVersion() {
+        return Utils.readUint32(rawBytes, offset);
+    }
+
+    public long getLockTime() {
+        return Utils.readUint32(rawBytes, lockTimeOffset);
+    }
+
+    public int getInputCount() {
+        return inputOffsets.length;
+    }
+
+    public int getOutputCount() {
+        return outputOffsets.length;
+    }
+
+    /** Returns the hash of the transaction the given input spends from. */
+    public Sha256Hash getOutPointHash(int index) {
+        checkElementIndex(index, inputOffsets.length);
+        byte[] hash = new byte[Sha256Hash.LENGTH];
+        System.arraycopy(rawBytes, inputOffsets[index], hash, 0, Sha256Hash.LENGTH);
+        return Sha256Hash.wrapReversed(hash);
+    }
+
+    /** Returns the index of the output the given input spends. */
+    public long getOutPointIndex(int index) {
+        checkElementIndex(index, inputOffsets.length);
+        return Utils.readUint32(rawBytes, inputOffsets[index] + 32);
+    }
+
+    /** Returns the offset of the given input's script within {@link #getRawBytes()}. */
+    public int getInputScriptOffset(int index) {
+        checkElementIndex(index, inputOffsets.length);
+        int pos = inputOffsets[index] + 36;
+        return pos + varIntSize(rawBytes, pos);
+    }
+
+    /** Returns the length of the given input's script. */
+    public int getInputScriptLength(int index) {
+        checkElementIndex(index, inputOffsets.length);
+        return (int) varIntAt(rawBytes, inputOffsets[index] + 36);
+    }
+
+    public long getInputSequenceNumber(int index) {
+        return Utils.readUint32(rawBytes, getInputScriptOffset(index) + getInputScriptLength(index));
+    }
+
+    /** Returns the value of the given output in satoshis. */
+    public long getOutputValue(int index) {
+        checkElementIndex(index, outputOffsets.length);
+        return Utils.readInt64(rawBytes, outputOffsets[index]);
+    }
+
+    /** Returns the offset of the given output's script within {@link #getRawBytes()}. */
+    public int getOutputScriptOffset(int index) {
+        checkElementIndex(index, outputOffsets.length);
+        int pos = outputOffsets[index] + 8;
+        return pos + varIntSize(rawBytes, pos);
+    }
+
+    /** Returns the length of the given output's script. */
+    public int getOutputScriptLength(int index) {
+        checkElementIndex(index, outputOffsets.length);
+        return (int) varIntAt(rawBytes, outputOffsets[index] + 8);
+    }
+
+    /**
+     * Returns the given input, parsing it the first time it is asked for. It isn't connected to a parent transaction,
+     * use {@link #getTransaction()} for that.
+     */
+    public TransactionInput getInput(int index) {
+        checkElementIndex(index, inputOffsets.length);
+        if (inputs == null)
+            inputs = new TransactionInput[inputOffsets.length];
+        if (inputs[index] == null) {
+            try {
+                inputs[index] = new TransactionInput(params, null, rawBytes, inputOffsets[index], serializer);
+            } catch (ProtocolException e) {
+                throw new RuntimeException(e);  // Cannot happen, the bytes were checked when the view was made.
+            }
+        }
+        return inputs[index];
+    }
+
+    /**
+     * Returns the given output, parsing it the first time it is asked for. It isn't connected to a parent
+     * transaction, use {@link #getTransaction()} for that.
+     */
+    public TransactionOutput getOutput(int index) {
+        checkElementIndex(index, outputOffsets.length);
+        if (outputs == null)
+            outputs = new TransactionOutput[outputOffsets.length];
+        if (outputs[index] == null) {
+            try {
+                outputs[index] = new TransactionOutput(params, null, rawBytes, outputOffsets[index], serializer);
+            } catch (ProtocolException e) {
+                throw new RuntimeException(e);  // Cannot happen, the bytes were checked when the view was made.
+            }
+        }
+        return outputs[index];
+    }
+
+    /** Returns the full transaction, parsing it the first time it is asked for. */
+    public Transaction getTransaction() {
+        if (transaction == null) {
+            try {
+                transaction = new Transaction(params, rawBytes, offset, null, serializer, length);
+            } catch (ProtocolException e) {
+                throw new RuntimeException(e);  // Cannot happen, the bytes were checked when the view was made.
+            }
+            transaction.setHash(getHash());
+        }
+        return transaction;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(rawBytes, offset, length);
+    }
+
+    @Override
+    public String toString() {
+        return "transaction view " + getHash() + ": " + getInputCount() + " inputs, " + getOutputCount() + " outputs";
+    }
+
+    // Reading var ints without the VarInt objects Message.readVarInt() makes.
+
+    static long varIntAt(byte[] buf, int pos) {
+        int first = buf[pos] & 0xFF;
+        if (first < 253)
+            return first;
+        else if (first == 253)
+            return (buf[pos + 1] & 0xFF) | ((buf[pos + 2] & 0xFF) << 8);
+        else if (first == 254)
+            return Utils.readUint32(buf, pos + 1);
+        else
+            return Utils.readInt64(buf, pos + 1);
+    }
+
+    static int varIntSize(byte[] buf, int pos) {
+        int first = buf[pos] & 0xFF;
+        return first < 253 ? 1 : first == 253 ? 3 : first == 254 ? 5 : 9;
+    }
+
+    private static void checkEnd(byte[] buf, int pos) throws ProtocolException {
+        // Positions stay well inside the int range, as counts and lengths are checked against MAX_SIZE as they're read.
+        if (pos > buf.length)
+            throw new ProtocolException("Transaction runs past the end of the message");
+    }
+
+    /** Checks a count or length read from the bytes is small enough to be real, so arithmetic on it can't overflow. */
+    static int checkCount(long count) throws ProtocolException {
+        if (count < 0 || count > MAX_SIZE)
+            throw new ProtocolException("Count or length too large: " + count);
+        return (int) count;
+    }
+}
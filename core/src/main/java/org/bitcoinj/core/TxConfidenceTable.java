@@ -16,13 +16,16 @@
 
 package org.bitcoinj.core;
 
+import net.jcip.annotations.GuardedBy;
 import org.bitcoinj.utils.*;
 
 import javax.annotation.*;
 import java.lang.ref.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 import java.util.concurrent.locks.*;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -35,46 +38,142 @@ import static com.google.common.base.Preconditions.checkNotNull;
  *
  * <p>It is <b>not</b> at this time directly equivalent to the Bitcoin Core memory pool, which tracks
  * all transactions not currently included in the best chain - it's simply a cache.</p>
+ *
+ * <p>The table is hit from every peer thread, so it is split into shards by transaction hash, each with its own lock.
+ * Each shard evicts its least recently used entry once it holds its share of the maximum size, which makes eviction
+ * across the whole table approximately least recently used. {@link #getShardStats()} reports how often each shard's
+ * lock was contended.</p>
  */
 public class TxConfidenceTable {
-    protected ReentrantLock lock = Threading.lock("txconfidencetable");
-
     private static class WeakConfidenceReference extends WeakReference<TransactionConfidence> {
         public Sha256Hash hash;
-        public WeakConfidenceReference(TransactionConfidence confidence, ReferenceQueue<TransactionConfidence> queue) {
+        public int shard;
+        public WeakConfidenceReference(TransactionConfidence confidence, ReferenceQueue<TransactionConfidence> queue,
+                                       int shard) {
             super(confidence, queue);
             hash = confidence.getTransactionHash();
+            this.shard = shard;
         }
     }
-    private LinkedHashMap<Sha256Hash, WeakConfidenceReference> table;
+
+    private static class Shard {
+        private final ReentrantLock lock = Threading.lock("txconfidencetable");
+        @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, WeakConfidenceReference> table;
+        @GuardedBy("lock") private long lockAcquisitions, contendedAcquisitions, evictions;
+
+        Shard(final int capacity) {
+            // Access ordered, so the eldest entry is the least recently used one.
+            table = new LinkedHashMap<Sha256Hash, WeakConfidenceReference>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Sha256Hash, WeakConfidenceReference> entry) {
+                    // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the
+                    // event of some kind of DoS attack.
+                    if (size() <= capacity)
+                        return false;
+                    evictions++;
+                    return true;
+                }
+            };
+        }
+
+        void lock() {
+            if (!lock.tryLock()) {
+                lock.lock();
+                contendedAcquisitions++;
+            }
+            lockAcquisitions++;
+        }
+
+        void unlock() {
+            lock.unlock();
+        }
+    }
+
+    /** Lock statistics and size of one shard of the table, as returned by {@link #getShardStats()}. */
+    public static class ShardStats {
+        private final int size;
+        private final long lockAcquisitions, contendedAcquisitions, evictions;
+
+        private ShardStats(int size, long lockAcquisitions, long contendedAcquisitions, long evictions) {
+            this.size = size;
+            this.lockAcquisitions = lockAcquisitions;
+            this.contendedAcquisitions = contendedAcquisitions;
+            this.evictions = evictions;
+        }
+
+        /** Returns the number of transactions in the shard, including ones the GC has collected but not yet removed. */
+        public int getSize() {
+            return size;
+        }
+
+        /** Returns how many times the shard's lock has been taken. */
+        public long getLockAcquisitions() {
+            return lockAcquisitions;
+        }
+
+        /** Returns how many times a thread had to wait for the shard's lock because another thread held it. */
+        public long getContendedAcquisitions() {
+            return contendedAcquisitions;
+        }
+
+        /** Returns how many entries have been evicted because the shard was full. */
+        public long getEvictions() {
+            return evictions;
+        }
+
+        @Override
+        public String toString() {
+            return "size " + size + ", " + lockAcquisitions + " lock acquisitions, " + contendedAcquisitions +
+                    " contended, " + evictions + " evictions";
+        }
+    }
+
+    private final Shard[] shards;
 
     // This ReferenceQueue gets entries added to it when they are only weakly reachable, ie, the TxConfidenceTable is the
     // only thing that is tracking the confidence data anymore. We check it from time to time and delete table entries
     // corresponding to expired transactions. In this way memory usage of the system is in line with however many
     // transactions you actually care to track the confidence of. We can still end up with lots of hashes being stored
     // if our peers flood us with invs but the MAX_SIZE param caps this.
-    private ReferenceQueue<TransactionConfidence> referenceQueue;
+    private final ReferenceQueue<TransactionConfidence> referenceQueue;
+    // Only one thread cleans the table at a time, the others carry on rather than queueing up behind it.
+    private final AtomicBoolean cleaning = new AtomicBoolean();
 
     /** The max size of a table created with the no-args constructor. */
     public static final int MAX_SIZE = 1000;
 
+    /** The number of shards used by the constructors that don't take a shard count, unless the table is smaller. */
+    public static final int DEFAULT_SHARDS = 16;
+
+    // The most references removed in one go, so a thread doesn't get stuck cleaning up after a large GC.
+    private static final int CLEANUP_BATCH_SIZE = 256;
+
     /**
-     * Creates a table that will track at most the given number of transactions (allowing you to bound memory
-     * usage).
-     * @param size Max number of transactions to track. The table will fill up to this size then stop growing.
+     * Creates a table that will track approximately at most the given number of transactions (allowing you to bound
+     * memory usage).
+     * @param size Max number of transactions to track. The table will fill up to about this size then stop growing.
+     * @param numShards Number of independently locked shards to split the table into, rounded down to a power of two.
      */
-    public TxConfidenceTable(final int size) {
-        table = new LinkedHashMap<Sha256Hash, WeakConfidenceReference>() {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, WeakConfidenceReference> entry) {
-                // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the event
-                // of some kind of DoS attack.
-                return size() > size;
-            }
-        };
+    public TxConfidenceTable(int size, int numShards) {
+        checkArgument(size > 0, "size must be positive");
+        checkArgument(numShards > 0 && numShards <= size, "numShards must be between 1 and size");
+        numShards = Integer.highestOneBit(numShards);
+        int capacity = (size + numShards - 1) / numShards;
+        shards = new Shard[numShards];
+        for (int i = 0; i < numShards; i++)
+            shards[i] = new Shard(capacity);
         referenceQueue = new ReferenceQueue<TransactionConfidence>();
     }
 
+    /**
+     * Creates a table that will track approximately at most the given number of transactions (allowing you to bound
+     * memory usage).
+     * @param size Max number of transactions to track. The table will fill up to about this size then stop growing.
+     */
+    public TxConfidenceTable(final int size) {
+        this(size, Math.min(DEFAULT_SHARDS, size));
+    }
+
     /**
      * Creates a table that will track at most {@link TxConfidenceTable#MAX_SIZE} entries. You should normally use
      * this constructor.
@@ -83,6 +182,11 @@ public class TxConfidenceTable {
         this(MAX_SIZE);
     }
 
+    private int shardIndex(Sha256Hash hash) {
+        // Mix the bits, as the shard's own hash map picks buckets from the same hash code.
+        return ((hash.hashCode() * 0x9E3779B9) >>> 16) & (shards.length - 1);
+    }
+
     /**
      * If any transactions have expired due to being only weakly reachable through us, go ahead and delete their
      * table entries - it means we downloaded the transaction and sent it to various event listeners, none of
@@ -90,17 +194,43 @@ public class TxConfidenceTable {
      * are relevant to any of our wallets.
      */
     private void cleanTable() {
-        lock.lock();
+        if (!cleaning.compareAndSet(false, true))
+            return;
         try {
+            List<WeakConfidenceReference> batch = null;
             Reference<? extends TransactionConfidence> ref;
-            while ((ref = referenceQueue.poll()) != null) {
-                // Find which transaction got deleted by the GC.
-                WeakConfidenceReference txRef = (WeakConfidenceReference) ref;
-                // And remove the associated map entry so the other bits of memory can also be reclaimed.
-                table.remove(txRef.hash);
+            while ((batch == null || batch.size() < CLEANUP_BATCH_SIZE) && (ref = referenceQueue.poll()) != null) {
+                if (batch == null)
+                    batch = new ArrayList<WeakConfidenceReference>();
+                batch.add((WeakConfidenceReference) ref);
+            }
+            if (batch == null)
+                return;
+            // Group the references by shard, so each shard's lock is only taken once for the whole batch.
+            Collections.sort(batch, new Comparator<WeakConfidenceReference>() {
+                @Override
+                public int compare(WeakConfidenceReference a, WeakConfidenceReference b) {
+                    return a.shard < b.shard ? -1 : a.shard == b.shard ? 0 : 1;
+                }
+            });
+            int i = 0;
+            while (i < batch.size()) {
+                Shard shard = shards[batch.get(i).shard];
+                shard.lock();
+                try {
+                    do {
+                        WeakConfidenceReference txRef = batch.get(i);
+                        // The transaction may have been seen again since, in which case its new entry must stay.
+                        if (shard.table.get(txRef.hash) == txRef)
+                            shard.table.remove(txRef.hash);
+                        i++;
+                    } while (i < batch.size() && shards[batch.get(i).shard] == shard);
+                } finally {
+                    shard.unlock();
+                }
             }
         } finally {
-            lock.unlock();
+            cleaning.set(false);
         }
     }
 
@@ -108,24 +238,25 @@ public class TxConfidenceTable {
      * Returns the number of peers that have seen the given hash recently.
      */
     public int numBroadcastPeers(Sha256Hash txHash) {
-        lock.lock();
+        cleanTable();
+        Shard shard = shards[shardIndex(txHash)];
+        shard.lock();
         try {
-            cleanTable();
-            WeakConfidenceReference entry = table.get(txHash);
+            WeakConfidenceReference entry = shard.table.get(txHash);
             if (entry == null) {
                 return 0;  // No such TX known.
             } else {
                 TransactionConfidence confidence = entry.get();
                 if (confidence == null) {
                     // Such a TX hash was seen, but nothing seemed to care so we ended up throwing away the data.
-                    table.remove(txHash);
+                    shard.table.remove(txHash);
                     return 0;
                 } else {
                     return confidence.numBroadcastPeers();
                 }
             }
         } finally {
-            lock.unlock();
+            shard.unlock();
         }
     }
 
@@ -136,15 +267,10 @@ public class TxConfidenceTable {
      * @return the number of peers that have now announced this hash (including the caller)
      */
     public TransactionConfidence seen(Sha256Hash hash, PeerAddress byPeer) {
-        TransactionConfidence confidence;
-        boolean fresh = false;
-        lock.lock();
-        {
-            cleanTable();
-            confidence = getOrCreate(hash);
-            fresh = confidence.markBroadcastBy(byPeer);
-        }
-        lock.unlock();
+        cleanTable();
+        TransactionConfidence confidence = getOrCreate(hash);
+        // TransactionConfidence is thread safe, so there's no need to hold the shard lock while marking it.
+        boolean fresh = confidence.markBroadcastBy(byPeer);
         if (fresh)
             confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
         return confidence;
@@ -156,19 +282,21 @@ public class TxConfidenceTable {
      */
     public TransactionConfidence getOrCreate(Sha256Hash hash) {
         checkNotNull(hash);
-        lock.lock();
+        int index = shardIndex(hash);
+        Shard shard = shards[index];
+        shard.lock();
         try {
-            WeakConfidenceReference reference = table.get(hash);
+            WeakConfidenceReference reference = shard.table.get(hash);
             if (reference != null) {
                 TransactionConfidence confidence = reference.get();
                 if (confidence != null)
                     return confidence;
             }
             TransactionConfidence newConfidence = new TransactionConfidence(hash);
-            table.put(hash, new WeakConfidenceReference(newConfidence, referenceQueue));
+            shard.table.put(hash, new WeakConfidenceReference(newConfidence, referenceQueue, index));
             return newConfidence;
         } finally {
-            lock.unlock();
+            shard.unlock();
         }
     }
 
@@ -178,9 +306,10 @@ public class TxConfidenceTable {
      */
     @Nullable
     public TransactionConfidence get(Sha256Hash hash) {
-        lock.lock();
+        Shard shard = shards[shardIndex(hash)];
+        shard.lock();
         try {
-            WeakConfidenceReference ref = table.get(hash);
+            WeakConfidenceReference ref = shard.table.get(hash);
             if (ref == null)
                 return null;
             TransactionConfidence confidence = ref.get();
@@ -189,7 +318,44 @@ public class TxConfidenceTable {
             else
                 return null;
         } finally {
-            lock.unlock();
+            shard.unlock();
+        }
+    }
+
+    /** Returns the number of shards the table is split into. */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Returns the number of transactions in the table. Entries whose confidence has been collected by the GC are
+     * counted until the table gets round to removing them.
+     */
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                size += shard.table.size();
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    /** Returns the size and lock statistics of each shard, in shard order. Reading them doesn't count as contention. */
+    public List<ShardStats> getShardStats() {
+        List<ShardStats> stats = new ArrayList<ShardStats>(shards.length);
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                stats.add(new ShardStats(shard.table.size(), shard.lockAcquisitions, shard.contendedAcquisitions,
+                        shard.evictions));
+            } finally {
+                shard.lock.unlock();
+            }
         }
+        return stats;
     }
 }
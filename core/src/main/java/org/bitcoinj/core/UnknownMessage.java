@@ -29,6 +29,12 @@ public class UnknownMessage extends EmptyMessage {
         this.name = name;
     }
 
+    @Override
+    protected void parse() throws ProtocolException {
+        // Nothing to parse, but the message must know its length so that it can be skipped.
+        length = payload.length - offset;
+    }
+
     @Override
     public String toString() {
         return "Unknown message [" + name + "]: " + (payload == null ? "" : Utils.HEX.encode(payload));
@@ -41,8 +41,7 @@ public class VersionedChecksummedBytes implements Serializable, Cloneable, Compa
         byte[] versionAndDataBytes = Base58.decodeChecked(encoded);
         byte versionByte = versionAndDataBytes[0];
         version = versionByte & 0xFF;
-        bytes = new byte[versionAndDataBytes.length - 1];
-        System.arraycopy(versionAndDataBytes, 1, bytes, 0, versionAndDataBytes.length - 1);
+        bytes = Arrays.copyOfRange(versionAndDataBytes, 1, versionAndDataBytes.length);
     }
 
     protected VersionedChecksummedBytes(int version, byte[] bytes) {
@@ -58,12 +57,15 @@ public class VersionedChecksummedBytes implements Serializable, Cloneable, Compa
     public final String toBase58() {
         // A stringified buffer is:
         //   1 byte version + data bytes + 4 bytes check code (a truncated hash)
-        byte[] addressBytes = new byte[1 + bytes.length + 4];
-        addressBytes[0] = (byte) version;
-        System.arraycopy(bytes, 0, addressBytes, 1, bytes.length);
-        byte[] checksum = Sha256Hash.hashTwice(addressBytes, 0, bytes.length + 1);
-        System.arraycopy(checksum, 0, addressBytes, bytes.length + 1, 4);
-        return Base58.encode(addressBytes);
+        return Base58.encodeChecked(version, bytes);
+    }
+
+    /**
+     * Appends the base-58 encoded String representation of this object, including version and checksum bytes, to the
+     * given builder. Unlike {@link #toBase58()} this doesn't allocate anything once the builder is large enough.
+     */
+    public final void toBase58(StringBuilder builder) {
+        Base58.encodeChecked(version, bytes, builder);
     }
 
     @Override
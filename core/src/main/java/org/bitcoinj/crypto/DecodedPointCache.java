@@ -0,0 +1,93 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.bitcoinj.core.ECKey;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.protobuf.ByteString;
+import org.spongycastle.math.ec.ECPoint;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A bounded cache of decoded secp256k1 points, keyed by their encoding. Decoding a compressed public key takes a
+ * modular square root, which is a good part of the cost of verifying a signature. Inputs spending to the same few busy
+ * addresses would otherwise decode the same keys over and over.</p>
+ *
+ * <p>{@link ECKey#fromPublicOnly(byte[])}, {@link LazyECPoint}, signature verification in {@link ECKey} and
+ * {@link SignatureBatchVerifier} all use the instance returned by {@link #getDefault()}, which can be replaced or
+ * turned off with {@link #setDefault(DecodedPointCache)}. The points are immutable, so they can be shared freely.
+ * Instances are thread safe, and keep hit and miss counts, see {@link #getStats()}.</p>
+ */
+public class DecodedPointCache {
+    /** The number of points the default cache holds. */
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    private static volatile DecodedPointCache vDefault = new DecodedPointCache(DEFAULT_MAX_SIZE);
+
+    private final Cache<ByteString, ECPoint> cache;
+
+    /** Creates a cache holding at most maxSize points, evicting the least recently used. */
+    public DecodedPointCache(int maxSize) {
+        checkArgument(maxSize >= 0);
+        cache = CacheBuilder.newBuilder().maximumSize(maxSize).recordStats().build();
+    }
+
+    /** Returns the cache used by bitcoinj when decoding public keys. */
+    public static DecodedPointCache getDefault() {
+        return vDefault;
+    }
+
+    /** Replaces the cache used by bitcoinj when decoding public keys. A cache of size zero turns caching off. */
+    public static void setDefault(DecodedPointCache cache) {
+        vDefault = checkNotNull(cache);
+    }
+
+    /**
+     * Returns the point with the given encoding on {@link ECKey#CURVE}, decoding it if it's not in the cache.
+     *
+     * @throws IllegalArgumentException if the bytes don't encode a point on the curve. Invalid encodings aren't cached.
+     */
+    public ECPoint decode(byte[] encoded) {
+        ByteString key = ByteString.copyFrom(encoded);
+        ECPoint point = cache.getIfPresent(key);
+        if (point == null) {
+            // Two threads may both decode the same point, which is harmless.
+            point = ECKey.CURVE.getCurve().decodePoint(encoded);
+            cache.put(key, point);
+        }
+        return point;
+    }
+
+    /** Returns the number of points currently cached. */
+    public long size() {
+        return cache.size();
+    }
+
+    /** Removes all points from the cache. The statistics are kept. */
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    /** Returns how often points were found in the cache or had to be decoded, see {@link CacheStats#hitRate()}. */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+}
@@ -147,6 +147,25 @@ public class DeterministicHierarchy {
         return deriveChild(get(parentPath, relative, createParent), createChildNumber);
     }
 
+    /**
+     * Extends the tree by {@code count} consecutive children of the given parent, starting at {@code first} and
+     * skipping child numbers that don't give valid keys. The keys are derived in parallel, see
+     * {@link HDKeyDerivation#deriveChildKeys(DeterministicKey, ChildNumber, int)}.
+     *
+     * @param parentPath the path to the parent
+     * @param relative whether the path is relative to the root path
+     * @param createParent whether the parent corresponding to path should be created (with any necessary ancestors) if it doesn't exist already
+     * @return the new keys, in order of child number.
+     * @throws IllegalArgumentException if the parent doesn't exist and createParent is false.
+     */
+    public List<DeterministicKey> deriveChildren(List<ChildNumber> parentPath, boolean relative, boolean createParent,
+                                                 ChildNumber first, int count) {
+        List<DeterministicKey> children = HDKeyDerivation.deriveChildKeys(get(parentPath, relative, createParent), first, count);
+        for (DeterministicKey child : children)
+            putKey(child);
+        return children;
+    }
+
     private DeterministicKey deriveChild(DeterministicKey parent, ChildNumber createChildNumber) {
         DeterministicKey childKey = HDKeyDerivation.deriveChildKey(parent, createChildNumber);
         putKey(childKey);
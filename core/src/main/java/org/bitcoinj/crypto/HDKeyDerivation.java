@@ -16,14 +16,18 @@
 
 package org.bitcoinj.crypto;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.*;
+import com.google.common.util.concurrent.*;
 import org.bitcoinj.core.*;
+import org.bitcoinj.utils.Threading;
 import org.spongycastle.math.ec.*;
 
 import java.math.*;
 import java.nio.*;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -123,6 +127,115 @@ public final class HDKeyDerivation {
 
     }
 
+    // Ranges smaller than this are derived on the calling thread, as handing them to the thread pool costs more.
+    private static final int MIN_PARALLEL_BATCH_SIZE = 32;
+
+    /**
+     * <p>Derives {@code count} consecutive children of the given parent, starting at {@code first}. As with
+     * {@link #deriveThisOrNextChildKey(DeterministicKey, int)}, child numbers that don't give a valid key are skipped,
+     * so the result always holds {@code count} keys, in order of child number.</p>
+     *
+     * <p>This is a lot faster than deriving the keys one by one. Large ranges are split into batches that are derived
+     * in parallel on {@link Threading#THREAD_POOL}, and each batch brings its public keys back to affine coordinates
+     * all at once, which costs a single field inversion instead of one per key.</p>
+     *
+     * @throws IllegalArgumentException if hardened children are requested for a public-only parent key.
+     */
+    public static List<DeterministicKey> deriveChildKeys(DeterministicKey parent, ChildNumber first, int count) {
+        checkArgument(count >= 0);
+        checkArgument(parent.hasPrivKey() || !first.isHardened(), "Can't use private derivation with public keys only.");
+        List<DeterministicKey> result = new ArrayList<DeterministicKey>(count);
+        int next = first.num();
+        while (result.size() < count) {
+            int needed = count - result.size();
+            for (DeterministicKey key : deriveRange(parent, next, needed, first.isHardened()))
+                if (key != null)
+                    result.add(key);
+            next += needed;
+        }
+        return result;
+    }
+
+    private static List<DeterministicKey> deriveRange(final DeterministicKey parent, int start, int count,
+                                                      final boolean hardened) {
+        int batches = Math.min(Runtime.getRuntime().availableProcessors(), count / MIN_PARALLEL_BATCH_SIZE);
+        if (batches <= 1)
+            return Arrays.asList(deriveBatch(parent, start, count, hardened));
+        int batchSize = (count + batches - 1) / batches;
+        List<ListenableFuture<DeterministicKey[]>> futures = Lists.newArrayList();
+        for (int offset = 0; offset < count; offset += batchSize) {
+            final int batchStart = start + offset;
+            final int batchCount = Math.min(batchSize, count - offset);
+            futures.add(Threading.THREAD_POOL.submit(new Callable<DeterministicKey[]>() {
+                @Override
+                public DeterministicKey[] call() {
+                    return deriveBatch(parent, batchStart, batchCount, hardened);
+                }
+            }));
+        }
+        List<DeterministicKey> result = new ArrayList<DeterministicKey>(count);
+        try {
+            for (DeterministicKey[] batch : Futures.allAsList(futures).get())
+                result.addAll(Arrays.asList(batch));
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+        return result;
+    }
+
+    // Derives children start to start + count - 1, leaving nulls for those that aren't valid keys.
+    private static DeterministicKey[] deriveBatch(DeterministicKey parent, int start, int count, boolean hardened) {
+        final BigInteger n = ECKey.CURVE.getN();
+        final boolean fromPrivate = parent.hasPrivKey();
+        final ECPoint parentPoint = parent.getPubKeyPoint();
+        final byte[] parentPublicKey = parentPoint.getEncoded(true);
+        final byte[] parentData = hardened ? parent.getPrivKeyBytes33() : parentPublicKey;
+        final FixedPointCombMultiplier multiplier = new FixedPointCombMultiplier();
+        ChildNumber[] childNumbers = new ChildNumber[count];
+        byte[][] chainCodes = new byte[count][];
+        BigInteger[] privKeys = new BigInteger[count];
+        ECPoint[] points = new ECPoint[count];
+        int valid = 0;
+        for (int i = 0; i < count; i++) {
+            ChildNumber childNumber = new ChildNumber(start + i, hardened);
+            ByteBuffer data = ByteBuffer.allocate(37);
+            data.put(parentData);
+            data.putInt(childNumber.i());
+            byte[] i64 = HDUtils.hmacSha512(parent.getChainCode(), data.array());
+            BigInteger ilInt = new BigInteger(1, Arrays.copyOfRange(i64, 0, 32));
+            if (ilInt.compareTo(n) > 0)
+                continue;  // Same test as the single key derivation, see assertLessThanN.
+            // The points are left in projective coordinates and normalized together below.
+            ECPoint point;
+            if (fromPrivate) {
+                BigInteger ki = parent.getPrivKey().add(ilInt).mod(n);
+                if (ki.signum() == 0)
+                    continue;
+                privKeys[valid] = ki;
+                point = multiplier.multiply(ECKey.CURVE.getG(), ki);
+            } else {
+                point = multiplier.multiply(ECKey.CURVE.getG(), ilInt).add(parentPoint);
+                if (point.isInfinity())
+                    continue;
+            }
+            childNumbers[valid] = childNumber;
+            chainCodes[valid] = Arrays.copyOfRange(i64, 32, 64);
+            points[valid] = point;
+            valid++;
+        }
+        ECPoint[] normalized = Arrays.copyOf(points, valid);
+        ECKey.CURVE.getCurve().normalizeAll(normalized);
+        DeterministicKey[] keys = new DeterministicKey[count];
+        for (int i = 0; i < valid; i++) {
+            int index = childNumbers[i].num() - start;
+            keys[index] = new DeterministicKey(HDUtils.append(parent.getPath(), childNumbers[i]), chainCodes[i],
+                    new LazyECPoint(normalized[i]), privKeys[i], parent);
+        }
+        return keys;
+    }
+
     /**
      * @throws HDDerivationException if private derivation is attempted for a public-only parent key, or
      * if the resulting derived key is invalid (eg. private key == 0).
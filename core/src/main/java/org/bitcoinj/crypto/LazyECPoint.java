@@ -16,6 +16,7 @@
 
 package org.bitcoinj.crypto;
 
+import org.bitcoinj.core.ECKey;
 import org.spongycastle.math.ec.ECCurve;
 import org.spongycastle.math.ec.ECFieldElement;
 import org.spongycastle.math.ec.ECPoint;
@@ -55,7 +56,7 @@ public class LazyECPoint {
 
     public ECPoint get() {
         if (point == null)
-            point = curve.decodePoint(bits);
+            point = curve == ECKey.CURVE.getCurve() ? DecodedPointCache.getDefault().decode(bits) : curve.decodePoint(bits);
         return point;
     }
 
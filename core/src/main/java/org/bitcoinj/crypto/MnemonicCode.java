@@ -19,10 +19,15 @@ package org.bitcoinj.crypto;
 
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.Utils;
+import org.bitcoinj.utils.Threading;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import java.io.BufferedReader;
 import java.io.FileNotFoundException;
@@ -31,8 +36,10 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 import static org.bitcoinj.core.Utils.HEX;
 
@@ -46,6 +53,8 @@ public class MnemonicCode {
     private static final Logger log = LoggerFactory.getLogger(MnemonicCode.class);
 
     private ArrayList<String> wordList;
+    // Position of each word in the list, for converting mnemonics back to entropy.
+    private HashMap<String, Integer> wordIndex;
 
     private static final String BIP39_ENGLISH_RESOURCE_NAME = "mnemonic/wordlist/english.txt";
     private static final String BIP39_ENGLISH_SHA256 = "ad90bf3beb7b0eb7e5acd74727dc0da96e0a280a258354e7293fb7e211ac03db";
@@ -55,6 +64,9 @@ public class MnemonicCode {
 
     private static final int PBKDF2_ROUNDS = 2048;
 
+    // Seeds are derived on the calling thread in batches smaller than this.
+    private static final int MIN_PARALLEL_BATCH_SIZE = 4;
+
     public static MnemonicCode INSTANCE;
 
     static {
@@ -99,6 +111,10 @@ public class MnemonicCode {
         if (this.wordList.size() != 2048)
             throw new IllegalArgumentException("input stream did not contain 2048 words");
 
+        this.wordIndex = new HashMap<String, Integer>(4096);
+        for (int i = 0; i < wordList.size(); i++)
+            wordIndex.put(wordList.get(i), i);
+
         // If a wordListDigest is supplied check to make sure it matches.
         if (wordListDigest != null) {
             byte[] digest = md.digest();
@@ -127,16 +143,58 @@ public class MnemonicCode {
         // used as a pseudo-random function. Desired length of the
         // derived key is 512 bits (= 64 bytes).
         //
-        String pass = Utils.join(words);
-        String salt = "mnemonic" + passphrase;
-
         final Stopwatch watch = Stopwatch.createStarted();
-        byte[] seed = PBKDF2SHA512.derive(pass, salt, PBKDF2_ROUNDS, 64);
+        byte[] seed = deriveSeed(words, passphrase);
         watch.stop();
         log.info("PBKDF2 took {}", watch);
         return seed;
     }
 
+    /**
+     * Converts many mnemonic word lists to seeds, as {@link #toSeed(List, String)} does for one. Large batches are
+     * split up and derived in parallel on {@link Threading#THREAD_POOL}. The seeds are returned in the same order.
+     */
+    public static List<byte[]> toSeeds(final List<? extends List<String>> mnemonics, final String passphrase) {
+        final Stopwatch watch = Stopwatch.createStarted();
+        List<byte[]> seeds = new ArrayList<byte[]>(mnemonics.size());
+        int batches = Math.min(Runtime.getRuntime().availableProcessors(), mnemonics.size() / MIN_PARALLEL_BATCH_SIZE);
+        if (batches <= 1) {
+            for (List<String> words : mnemonics)
+                seeds.add(deriveSeed(words, passphrase));
+        } else {
+            int batchSize = (mnemonics.size() + batches - 1) / batches;
+            List<ListenableFuture<List<byte[]>>> futures = Lists.newArrayList();
+            for (final List<? extends List<String>> batch : Lists.partition(mnemonics, batchSize)) {
+                futures.add(Threading.THREAD_POOL.submit(new Callable<List<byte[]>>() {
+                    @Override
+                    public List<byte[]> call() {
+                        List<byte[]> result = new ArrayList<byte[]>(batch.size());
+                        for (List<String> words : batch)
+                            result.add(deriveSeed(words, passphrase));
+                        return result;
+                    }
+                }));
+            }
+            try {
+                for (List<byte[]> batch : Futures.allAsList(futures).get())
+                    seeds.addAll(batch);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+        watch.stop();
+        log.info("PBKDF2 of {} mnemonics took {}", mnemonics.size(), watch);
+        return seeds;
+    }
+
+    private static byte[] deriveSeed(List<String> words, String passphrase) {
+        String pass = Utils.join(words);
+        String salt = "mnemonic" + passphrase;
+        return PBKDF2SHA512.derive(pass, salt, PBKDF2_ROUNDS, 64);
+    }
+
     /**
      * Convert mnemonic word list to original entropy value.
      */
@@ -155,8 +213,8 @@ public class MnemonicCode {
         int wordindex = 0;
         for (String word : words) {
             // Find the words index in the wordlist.
-            int ndx = Collections.binarySearch(this.wordList, word);
-            if (ndx < 0)
+            Integer ndx = wordIndex.get(word);
+            if (ndx == null)
                 throw new MnemonicException.MnemonicWordException(word);
 
             // Set the next 11 bits to the value of the index.
@@ -238,6 +296,23 @@ public class MnemonicCode {
         toEntropy(words);
     }
 
+    /**
+     * Checks many mnemonic word lists, returning for each whether it is valid. Checking takes a hash per mnemonic, so
+     * unlike {@link #toSeeds(List, String)} this doesn't bother with other threads.
+     */
+    public boolean[] checkAll(List<? extends List<String>> mnemonics) {
+        boolean[] valid = new boolean[mnemonics.size()];
+        for (int i = 0; i < valid.length; i++) {
+            try {
+                toEntropy(mnemonics.get(i));
+                valid[i] = true;
+            } catch (MnemonicException e) {
+                valid[i] = false;
+            }
+        }
+        return valid;
+    }
+
     private static boolean[] bytesToBits(byte[] data) {
         boolean[] bits = new boolean[data.length * 8];
         for (int i = 0; i < data.length; ++i)
@@ -23,11 +23,12 @@
 
 package org.bitcoinj.crypto;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
-import java.io.ByteArrayOutputStream;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import com.google.common.base.Charsets;
+import org.spongycastle.crypto.digests.SHA512Digest;
+import org.spongycastle.crypto.macs.HMac;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * <p>This is a clean-room implementation of PBKDF2 using RFC 2898 as a reference.</p>
@@ -38,75 +39,172 @@ import java.nio.ByteOrder;
  *
  * <p>http://cryptofreek.org/2012/11/29/pbkdf2-pure-java-implementation/<br>
  * Modified to use SHA-512 - Ken Sedgwick ken@bonsai.com</p>
+ *
+ * <p>Nearly all the time goes into the iterations after the first, which each take an HMAC of the previous 64 byte
+ * result. Those are done on 64 bit words: the SHA-512 states after the inner and outer key pads are computed once,
+ * the padding of the fixed size messages is constant, and nothing is allocated per round.</p>
  */
 public class PBKDF2SHA512 {
+    private static final int H_LEN = 64;
+    private static final int BLOCK_LEN = 128;
+    // Length in bits of a key pad block followed by a 64 byte message, as written into the SHA-512 padding.
+    private static final long PADDED_MESSAGE_BITS = (BLOCK_LEN + H_LEN) * 8;
+
+    private static final long[] IV = {
+            0x6a09e667f3bcc908L, 0xbb67ae8584caa73bL, 0x3c6ef372fe94f82bL, 0xa54ff53a5f1d36f1L,
+            0x510e527fade682d1L, 0x9b05688c2b3e6c1fL, 0x1f83d9abfb41bd6bL, 0x5be0cd19137e2179L,
+    };
+
+    private static final long[] K = {
+            0x428a2f98d728ae22L, 0x7137449123ef65cdL, 0xb5c0fbcfec4d3b2fL, 0xe9b5dba58189dbbcL,
+            0x3956c25bf348b538L, 0x59f111f1b605d019L, 0x923f82a4af194f9bL, 0xab1c5ed5da6d8118L,
+            0xd807aa98a3030242L, 0x12835b0145706fbeL, 0x243185be4ee4b28cL, 0x550c7dc3d5ffb4e2L,
+            0x72be5d74f27b896fL, 0x80deb1fe3b1696b1L, 0x9bdc06a725c71235L, 0xc19bf174cf692694L,
+            0xe49b69c19ef14ad2L, 0xefbe4786384f25e3L, 0x0fc19dc68b8cd5b5L, 0x240ca1cc77ac9c65L,
+            0x2de92c6f592b0275L, 0x4a7484aa6ea6e483L, 0x5cb0a9dcbd41fbd4L, 0x76f988da831153b5L,
+            0x983e5152ee66dfabL, 0xa831c66d2db43210L, 0xb00327c898fb213fL, 0xbf597fc7beef0ee4L,
+            0xc6e00bf33da88fc2L, 0xd5a79147930aa725L, 0x06ca6351e003826fL, 0x142929670a0e6e70L,
+            0x27b70a8546d22ffcL, 0x2e1b21385c26c926L, 0x4d2c6dfc5ac42aedL, 0x53380d139d95b3dfL,
+            0x650a73548baf63deL, 0x766a0abb3c77b2a8L, 0x81c2c92e47edaee6L, 0x92722c851482353bL,
+            0xa2bfe8a14cf10364L, 0xa81a664bbc423001L, 0xc24b8b70d0f89791L, 0xc76c51a30654be30L,
+            0xd192e819d6ef5218L, 0xd69906245565a910L, 0xf40e35855771202aL, 0x106aa07032bbd1b8L,
+            0x19a4c116b8d2d0c8L, 0x1e376c085141ab53L, 0x2748774cdf8eeb99L, 0x34b0bcb5e19b48a8L,
+            0x391c0cb3c5c95a63L, 0x4ed8aa4ae3418acbL, 0x5b9cca4f7763e373L, 0x682e6ff3d6b2b8a3L,
+            0x748f82ee5defb2fcL, 0x78a5636f43172f60L, 0x84c87814a1f0ab72L, 0x8cc702081a6439ecL,
+            0x90befffa23631e28L, 0xa4506cebde82bde9L, 0xbef9a3f7b2c67915L, 0xc67178f2e372532bL,
+            0xca273eceea26619cL, 0xd186b8c721c0c207L, 0xeada7dd6cde0eb1eL, 0xf57d4f7fee6ed178L,
+            0x06f067aa72176fbaL, 0x0a637dc5a2c898a6L, 0x113f9804bef90daeL, 0x1b710b35131c471bL,
+            0x28db77f523047d84L, 0x32caab7b40c72493L, 0x3c9ebe0a15c9bebcL, 0x431d67c49c100d4cL,
+            0x4cc5d4becb3e42b6L, 0x597f299cfc657e2aL, 0x5fcb6fab3ad6faecL, 0x6c44198c4a475817L,
+    };
+
+    /** Derives a key from the UTF-8 encodings of the password and salt. */
     public static byte[] derive(String P, String S, int c, int dkLen) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-        try {
-            int hLen = 20;
-
-            if (dkLen > ((Math.pow(2, 32)) - 1) * hLen) {
-                throw new IllegalArgumentException("derived key too long");
-            } else {
-                int l = (int) Math.ceil((double) dkLen / (double) hLen);
-                // int r = dkLen - (l-1)*hLen;
+        return derive(P.getBytes(Charsets.UTF_8), S.getBytes(Charsets.UTF_8), c, dkLen);
+    }
 
-                for (int i = 1; i <= l; i++) {
-                    byte[] T = F(P, S, c, i);
-                    baos.write(T);
-                }
-            }
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+    public static byte[] derive(byte[] password, byte[] salt, int c, int dkLen) {
+        checkArgument(c > 0, "Iteration count must be positive");
+        checkArgument(dkLen > 0, "Derived key length must be positive");
+
+        // HMAC keys longer than a block are hashed first, shorter ones are padded with zeros.
+        byte[] key = new byte[BLOCK_LEN];
+        if (password.length > BLOCK_LEN) {
+            SHA512Digest digest = new SHA512Digest();
+            digest.update(password, 0, password.length);
+            digest.doFinal(key, 0);
+        } else {
+            System.arraycopy(password, 0, key, 0, password.length);
         }
+        long[] innerState = padState(key, (byte) 0x36);
+        long[] outerState = padState(key, (byte) 0x5c);
+
+        HMac mac = new HMac(new SHA512Digest());
+        mac.init(new KeyParameter(password));
+        byte[] firstU = new byte[H_LEN];
+        long[] u = new long[8];
+        long[] t = new long[8];
+        long[] w = new long[80];
+        long[] h = new long[8];
+        byte[] derived = new byte[dkLen];
+        for (int i = 1, offset = 0; offset < dkLen; i++, offset += H_LEN) {
+            // The first iteration hashes the salt, which can be of any length.
+            mac.update(salt, 0, salt.length);
+            mac.update((byte) (i >>> 24));
+            mac.update((byte) (i >>> 16));
+            mac.update((byte) (i >>> 8));
+            mac.update((byte) i);
+            mac.doFinal(firstU, 0);
+            for (int k = 0; k < 8; k++)
+                u[k] = t[k] = readLong(firstU, k * 8);
+
+            for (int j = 1; j < c; j++) {
+                // Inner hash of the previous U, continuing from the state after the key pad.
+                System.arraycopy(u, 0, w, 0, 8);
+                setPadding(w);
+                System.arraycopy(innerState, 0, h, 0, 8);
+                compress(h, w);
+                // Outer hash of that.
+                System.arraycopy(h, 0, w, 0, 8);
+                setPadding(w);
+                System.arraycopy(outerState, 0, u, 0, 8);
+                compress(u, w);
+                for (int k = 0; k < 8; k++)
+                    t[k] ^= u[k];
+            }
 
-        byte[] baDerived = new byte[dkLen];
-        System.arraycopy(baos.toByteArray(), 0, baDerived, 0, baDerived.length);
-
-        return baDerived;
+            for (int k = 0; k < 8 && offset + k * 8 < dkLen; k++)
+                writeLong(t[k], derived, offset + k * 8, Math.min(8, dkLen - offset - k * 8));
+        }
+        return derived;
     }
 
-    private static byte[] F(String P, String S, int c, int i) throws Exception {
-        byte[] U_LAST = null;
-        byte[] U_XOR = null;
-
-        SecretKeySpec key = new SecretKeySpec(P.getBytes("UTF-8"), "HmacSHA512");
-        Mac mac = Mac.getInstance(key.getAlgorithm());
-        mac.init(key);
-
-        for (int j = 0; j < c; j++) {
-            if (j == 0) {
-                byte[] baS = S.getBytes("UTF-8");
-                byte[] baI = INT(i);
-                byte[] baU = new byte[baS.length + baI.length];
-
-                System.arraycopy(baS, 0, baU, 0, baS.length);
-                System.arraycopy(baI, 0, baU, baS.length, baI.length);
-
-                U_XOR = mac.doFinal(baU);
-                U_LAST = U_XOR;
-                mac.reset();
-            } else {
-                byte[] baU = mac.doFinal(U_LAST);
-                mac.reset();
+    // Returns the SHA-512 state after processing the key XORed with the given pad byte.
+    private static long[] padState(byte[] key, byte pad) {
+        long[] w = new long[80];
+        for (int k = 0; k < 16; k++) {
+            long word = 0;
+            for (int b = 0; b < 8; b++)
+                word = (word << 8) | ((key[k * 8 + b] ^ pad) & 0xff);
+            w[k] = word;
+        }
+        long[] state = IV.clone();
+        compress(state, w);
+        return state;
+    }
 
-                for (int k = 0; k < U_XOR.length; k++) {
-                    U_XOR[k] = (byte) (U_XOR[k] ^ baU[k]);
-                }
+    // Fills in words 8 to 15 of the block for a 64 byte message that follows a full block.
+    private static void setPadding(long[] w) {
+        w[8] = 0x8000000000000000L;
+        w[9] = w[10] = w[11] = w[12] = w[13] = w[14] = 0;
+        w[15] = PADDED_MESSAGE_BITS;
+    }
 
-                U_LAST = baU;
-            }
+    // The SHA-512 compression function. Words 0 to 15 of w hold the block, the rest is overwritten.
+    private static void compress(long[] state, long[] w) {
+        for (int t = 16; t < 80; t++) {
+            long x = w[t - 2];
+            long y = w[t - 15];
+            long s1 = ((x >>> 19) | (x << 45)) ^ ((x >>> 61) | (x << 3)) ^ (x >>> 6);
+            long s0 = ((y >>> 1) | (y << 63)) ^ ((y >>> 8) | (y << 56)) ^ (y >>> 7);
+            w[t] = s1 + w[t - 7] + s0 + w[t - 16];
         }
-
-        return U_XOR;
+        long a = state[0], b = state[1], c = state[2], d = state[3];
+        long e = state[4], f = state[5], g = state[6], h = state[7];
+        for (int t = 0; t < 80; t++) {
+            long t1 = h + (((e >>> 14) | (e << 50)) ^ ((e >>> 18) | (e << 46)) ^ ((e >>> 41) | (e << 23)))
+                    + ((e & f) ^ (~e & g)) + K[t] + w[t];
+            long t2 = (((a >>> 28) | (a << 36)) ^ ((a >>> 34) | (a << 30)) ^ ((a >>> 39) | (a << 25)))
+                    + ((a & b) ^ (a & c) ^ (b & c));
+            h = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+        state[0] += a;
+        state[1] += b;
+        state[2] += c;
+        state[3] += d;
+        state[4] += e;
+        state[5] += f;
+        state[6] += g;
+        state[7] += h;
     }
 
-    private static byte[] INT(int i) {
-        ByteBuffer bb = ByteBuffer.allocate(4);
-        bb.order(ByteOrder.BIG_ENDIAN);
-        bb.putInt(i);
+    private static long readLong(byte[] bytes, int offset) {
+        long word = 0;
+        for (int b = 0; b < 8; b++)
+            word = (word << 8) | (bytes[offset + b] & 0xff);
+        return word;
+    }
 
-        return bb.array();
+    // Writes the first length bytes of the big endian encoding of the word.
+    private static void writeLong(long word, byte[] bytes, int offset, int length) {
+        for (int b = 0; b < length; b++)
+            bytes[offset + b] = (byte) (word >>> (56 - b * 8));
     }
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.utils.Threading;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.jcip.annotations.GuardedBy;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Holds an AES key derived from a password for a limited time, so that a wallet can be unlocked once and then sign
+ * many transactions without running {@link KeyCrypter#deriveKey(CharSequence)} for each of them. For
+ * {@link KeyCrypterScrypt} that takes a good fraction of a second.</p>
+ *
+ * <p>When the key expires or is cleared, its bytes are overwritten with zeros rather than left for the garbage
+ * collector. Expired keys are wiped by a background thread even if the cache isn't used again. The cache keeps its own
+ * copy of the key, and hands out copies, so the caller's arrays are never wiped from under it.</p>
+ *
+ * <p>Instances are thread safe.</p>
+ */
+public class SessionKeyCache {
+    private static final ScheduledThreadPoolExecutor wiper = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Session key wiper").build());
+
+    private final ReentrantLock lock = Threading.lock("SessionKeyCache");
+    @GuardedBy("lock") @Nullable private KeyParameter key;
+    @GuardedBy("lock") private long expiryTimeMillis;
+    @GuardedBy("lock") @Nullable private ScheduledFuture<?> scheduledWipe;
+
+    /** Stores a copy of the given key, replacing any earlier one, until the timeout passes or {@link #clear()}. */
+    public void put(KeyParameter aesKey, long timeout, TimeUnit unit) {
+        checkNotNull(aesKey);
+        checkArgument(timeout > 0, "Timeout must be positive");
+        lock.lock();
+        try {
+            clearLocked();
+            key = new KeyParameter(aesKey.getKey());
+            expiryTimeMillis = Utils.currentTimeMillis() + unit.toMillis(timeout);
+            scheduledWipe = wiper.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    clear();
+                }
+            }, timeout, unit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns a copy of the key, or null if there is none or it has expired. */
+    @Nullable
+    public KeyParameter get() {
+        lock.lock();
+        try {
+            if (!hasKeyLocked())
+                return null;
+            return new KeyParameter(key.getKey());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true if a key is held that hasn't expired yet. */
+    public boolean hasKey() {
+        lock.lock();
+        try {
+            return hasKeyLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the time the key expires at, in milliseconds since the epoch, or zero if no key is held. */
+    public long getExpiryTimeMillis() {
+        lock.lock();
+        try {
+            return hasKeyLocked() ? expiryTimeMillis : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Wipes the key, if there is one. */
+    public void clear() {
+        lock.lock();
+        try {
+            clearLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private boolean hasKeyLocked() {
+        if (key != null && Utils.currentTimeMillis() >= expiryTimeMillis)
+            clearLocked();
+        return key != null;
+    }
+
+    @GuardedBy("lock")
+    private void clearLocked() {
+        if (key != null) {
+            // KeyParameter hands out its own array, so this zeroes the only copy we made.
+            Arrays.fill(key.getKey(), (byte) 0);
+            key = null;
+        }
+        if (scheduledWipe != null) {
+            scheduledWipe.cancel(false);
+            scheduledWipe = null;
+            // Don't let cancelled wipes pile up in the queue when keys are replaced often.
+            wiper.purge();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.bitcoin.NativeSecp256k1;
+import org.bitcoin.NativeSecp256k1Util;
+import org.bitcoin.Secp256k1Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.utils.Threading;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.params.ECPublicKeyParameters;
+import org.spongycastle.crypto.signers.ECDSASigner;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Verifies many ECDSA signatures in one go, such as all the inputs of a block or of a set of transactions. The
+ * result holds one entry per item, in the order they were given, so callers can tell which signatures failed.</p>
+ *
+ * <p>Large batches are split up and verified in parallel. When the native secp256k1 library is loaded each item is
+ * handed to it, otherwise Bouncy Castle is used, and the public keys are decoded through a {@link DecodedPointCache}.
+ * Keys that sign many inputs, like those of a busy address, are then decoded only once.</p>
+ *
+ * <p>Before any elliptic curve math, signatures can be checked to be strict DER and to have a low S value, which are
+ * the rules Bitcoin Core applies to relayed transactions. Signatures failing those checks are reported as invalid.</p>
+ *
+ * <p>Instances are thread safe.</p>
+ */
+public class SignatureBatchVerifier {
+    private static final Logger log = LoggerFactory.getLogger(SignatureBatchVerifier.class);
+
+    // Batches smaller than this are verified on the calling thread, as handing them to the thread pool costs more.
+    private static final int MIN_PARALLEL_BATCH_SIZE = 16;
+
+    /** A signature to verify, with the hash that was signed and the public key that should have signed it. */
+    public static class Item {
+        public final byte[] hash;
+        public final byte[] signature;
+        public final byte[] pubKey;
+
+        /**
+         * @param hash      Hash of the signed data.
+         * @param signature ASN.1 DER encoded signature, without a sighash byte.
+         * @param pubKey    The public key bytes, compressed or not.
+         */
+        public Item(byte[] hash, byte[] signature, byte[] pubKey) {
+            this.hash = checkNotNull(hash);
+            this.signature = checkNotNull(signature);
+            this.pubKey = checkNotNull(pubKey);
+        }
+    }
+
+    private final ListeningExecutorService executor;
+    private final boolean requireStrictEncoding;
+    private final boolean requireLowS;
+    private final DecodedPointCache pointCache;
+
+    /**
+     * Creates a verifier that runs on {@link Threading#THREAD_POOL} and uses {@link DecodedPointCache#getDefault()}.
+     *
+     * @param requireStrictEncoding fail signatures that aren't strict DER, see BIP 66.
+     * @param requireLowS           fail signatures with an S value above half the curve order, see BIP 62.
+     */
+    public SignatureBatchVerifier(boolean requireStrictEncoding, boolean requireLowS) {
+        this(Threading.THREAD_POOL, DecodedPointCache.getDefault(), requireStrictEncoding, requireLowS);
+    }
+
+    public SignatureBatchVerifier(ListeningExecutorService executor, DecodedPointCache pointCache,
+                                  boolean requireStrictEncoding, boolean requireLowS) {
+        this.executor = checkNotNull(executor);
+        this.pointCache = checkNotNull(pointCache);
+        this.requireStrictEncoding = requireStrictEncoding;
+        this.requireLowS = requireLowS;
+    }
+
+    /**
+     * Verifies the given signatures, returning for each item whether its signature is valid. Items that can't be
+     * parsed are invalid, this method doesn't throw for bad input.
+     */
+    public boolean[] verify(final List<Item> items) {
+        final boolean[] results = new boolean[items.size()];
+        int batches = Math.min(Runtime.getRuntime().availableProcessors(), items.size() / MIN_PARALLEL_BATCH_SIZE);
+        if (batches <= 1) {
+            verifyBatch(items, 0, items.size(), results);
+            return results;
+        }
+        int batchSize = (items.size() + batches - 1) / batches;
+        List<ListenableFuture<Object>> futures = Lists.newArrayList();
+        for (int offset = 0; offset < items.size(); offset += batchSize) {
+            final int from = offset;
+            final int to = Math.min(offset + batchSize, items.size());
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    verifyBatch(items, from, to, results);
+                }
+            }, null));
+        }
+        try {
+            // Each batch writes its own part of the results, and waiting for them makes the writes visible here.
+            Futures.allAsList(futures).get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+        return results;
+    }
+
+    /** Verifies a single signature, with the same checks and key cache as a batch. */
+    public boolean verify(Item item) {
+        if (ECKey.FAKE_SIGNATURES)
+            return true;
+        if (requireStrictEncoding && !isStrictDER(item.signature))
+            return false;
+        ECKey.ECDSASignature signature;
+        try {
+            signature = ECKey.ECDSASignature.decodeFromDER(item.signature);
+        } catch (RuntimeException e) {
+            return false;  // Garbage, or not a sequence of two integers.
+        }
+        if (requireLowS && !signature.isCanonical())
+            return false;
+
+        if (Secp256k1Context.isEnabled()) {
+            try {
+                return NativeSecp256k1.verify(item.hash, item.signature, item.pubKey);
+            } catch (NativeSecp256k1Util.AssertFailException e) {
+                log.error("Caught AssertFailException inside secp256k1", e);
+                return false;
+            } catch (IllegalArgumentException e) {
+                return false;  // Wrong hash length or oversized items.
+            }
+        }
+
+        ECPublicKeyParameters key = getKey(item.pubKey);
+        if (key == null)
+            return false;
+        ECDSASigner signer = new ECDSASigner();
+        signer.init(false, key);
+        try {
+            return signer.verifySignature(item.hash, signature.r, signature.s);
+        } catch (NullPointerException e) {
+            // Bouncy Castle contains a bug that can cause NPEs given specially crafted signatures, see ECKey.verify.
+            log.error("Caught NPE inside bouncy castle", e);
+            return false;
+        }
+    }
+
+    private void verifyBatch(List<Item> items, int from, int to, boolean[] results) {
+        for (int i = from; i < to; i++)
+            results[i] = verify(items.get(i));
+    }
+
+    // Returns the decoded key, or null if the bytes aren't a point on the curve.
+    @Nullable
+    private ECPublicKeyParameters getKey(byte[] pubKey) {
+        try {
+            return new ECPublicKeyParameters(pointCache.decode(pubKey), ECKey.CURVE);
+        } catch (RuntimeException e) {
+            return null;  // Not a valid encoding, or not on the curve.
+        }
+    }
+
+    /**
+     * Returns true if the signature is strict DER, as required by BIP 66. This is the same check as
+     * {@link TransactionSignature#isEncodingCanonical(byte[])}, for a signature without the trailing sighash byte.
+     */
+    public static boolean isStrictDER(byte[] signature) {
+        // <30> <total len> <02> <len R> <R> <02> <len S> <S>
+        if (signature.length < 8 || signature.length > 72)
+            return false;
+        if ((signature[0] & 0xff) != 0x30 || (signature[1] & 0xff) != signature.length - 2)
+            return false;
+        int lenR = signature[3] & 0xff;
+        if (5 + lenR >= signature.length || lenR == 0)
+            return false;
+        int lenS = signature[5 + lenR] & 0xff;
+        if (lenR + lenS + 6 != signature.length || lenS == 0)
+            return false;
+        //    R value type mismatch          R value negative
+        if (signature[2] != 0x02 || (signature[4] & 0x80) == 0x80)
+            return false;
+        if (lenR > 1 && signature[4] == 0x00 && (signature[5] & 0x80) != 0x80)
+            return false; // R value excessively padded
+        //       S value type mismatch                    S value negative
+        if (signature[4 + lenR] != 0x02 || (signature[6 + lenR] & 0x80) == 0x80)
+            return false;
+        if (lenS > 1 && signature[6 + lenR] == 0x00 && (signature[6 + lenR + 1] & 0x80) != 0x80)
+            return false; // S value excessively padded
+        return true;
+    }
+}
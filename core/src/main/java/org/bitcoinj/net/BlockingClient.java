@@ -36,7 +36,7 @@ import static com.google.common.base.Preconditions.*;
  * and {@link BlockingClientManager}, unless you wish to connect over a proxy or use some other network settings that
  * cannot be set using NIO.</p>
  */
-public class BlockingClient implements MessageWriteTarget {
+public class BlockingClient implements ByteBufferWriteTarget {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(BlockingClient.class);
 
     private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
@@ -44,6 +44,9 @@ public class BlockingClient implements MessageWriteTarget {
 
     private Socket socket;
     private volatile boolean vCloseRequested = false;
+    // Guards readingPaused, which the read loop waits on.
+    private final Object readPauseLock = new Object();
+    private boolean readingPaused = false;
     private SettableFuture<SocketAddress> connectFuture;
 
     /**
@@ -78,7 +81,7 @@ public class BlockingClient implements MessageWriteTarget {
                     connection.connectionOpened();
                     connectFuture.set(serverAddress);
                     InputStream stream = socket.getInputStream();
-                    runReadLoop(stream, connection);
+                    runReadLoop(stream, connection, BlockingClient.this);
                 } catch (Exception e) {
                     if (!vCloseRequested) {
                         log.error("Error trying to open/read from connection: {}: {}", serverAddress, e.getMessage());
@@ -106,11 +109,18 @@ public class BlockingClient implements MessageWriteTarget {
      * and feeds them to the provided {@link StreamConnection}, for example, a {@link Peer}.
      */
     public static void runReadLoop(InputStream stream, StreamConnection connection) throws Exception {
+        runReadLoop(stream, connection, null);
+    }
+
+    private static void runReadLoop(InputStream stream, StreamConnection connection,
+                                    @Nullable BlockingClient client) throws Exception {
         ByteBuffer dbuf = ByteBuffer.allocateDirect(Math.min(Math.max(connection.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
         byte[] readBuff = new byte[dbuf.capacity()];
         while (true) {
             // TODO Kill the message duplication here
             checkState(dbuf.remaining() > 0 && dbuf.remaining() <= readBuff.length);
+            if (client != null)
+                client.waitWhileReadingPaused();
             int read = stream.read(readBuff, 0, Math.max(1, Math.min(dbuf.remaining(), stream.available())));
             if (read == -1)
                 return;
@@ -136,6 +146,9 @@ public class BlockingClient implements MessageWriteTarget {
         // Closes the channel, triggering an exception in the network-handling thread triggering connectionClosed()
         try {
             vCloseRequested = true;
+            synchronized (readPauseLock) {
+                readPauseLock.notifyAll();
+            }
             socket.close();
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -155,6 +168,59 @@ public class BlockingClient implements MessageWriteTarget {
         }
     }
 
+    @Override
+    public synchronized void writeBuffers(ByteBuffer... buffers) throws IOException {
+        try {
+            OutputStream stream = socket.getOutputStream();
+            byte[] chunk = null;
+            for (ByteBuffer buffer : buffers) {
+                buffer = buffer.duplicate();
+                if (buffer.hasArray()) {
+                    stream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                    continue;
+                }
+                // Streams can only write arrays, so direct and mapped buffers have to go through one.
+                if (chunk == null)
+                    chunk = new byte[BUFFER_SIZE_UPPER_BOUND];
+                while (buffer.hasRemaining()) {
+                    int length = Math.min(chunk.length, buffer.remaining());
+                    buffer.get(chunk, 0, length);
+                    stream.write(chunk, 0, length);
+                }
+            }
+            stream.flush();
+        } catch (IOException e) {
+            log.error("Error writing message to connection, closing connection", e);
+            closeConnection();
+            throw e;
+        }
+    }
+
+    @Override
+    public long getPendingWriteBytes() {
+        return 0;  // Writes block until they are done.
+    }
+
+    @Override
+    public ListenableFuture<Void> getWritesDrainedFuture() {
+        return Futures.immediateFuture(null);
+    }
+
+    @Override
+    public void setReadingPaused(boolean paused) {
+        synchronized (readPauseLock) {
+            readingPaused = paused;
+            readPauseLock.notifyAll();
+        }
+    }
+
+    private void waitWhileReadingPaused() throws InterruptedException {
+        synchronized (readPauseLock) {
+            while (readingPaused && !vCloseRequested)
+                readPauseLock.wait();
+        }
+    }
+
     /** Returns a future that completes once connection has occurred at the socket level or with an exception if failed to connect. */
     public ListenableFuture<SocketAddress> getConnectFuture() {
         return connectFuture;
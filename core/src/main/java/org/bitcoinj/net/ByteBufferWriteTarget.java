@@ -0,0 +1,53 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link MessageWriteTarget} that can also write {@link ByteBuffer}s without copying them into arrays first, and
+ * lets the receiving side hold back reading. The
+ * connections created by {@link NioClientManager}, {@link NioServer}, {@link NioClient} and {@link BlockingClient}
+ * all are. It is a separate interface so that other implementations of {@link MessageWriteTarget} don't have to change.
+ */
+public interface ByteBufferWriteTarget extends MessageWriteTarget {
+    /**
+     * Writes the remaining bytes of the given buffers to the remote server, one after the other and without
+     * interleaving other writes. Implementations avoid copying the buffers where they can, so they must not be
+     * modified afterwards. This allows large messages to be sent straight from memory mapped files.
+     */
+    void writeBuffers(ByteBuffer... buffers) throws IOException;
+    /**
+     * Returns the number of bytes given to this target that haven't been handed to the network yet.
+     */
+    long getPendingWriteBytes();
+    /**
+     * Returns a future that completes once everything written so far has been handed to the network, which is right
+     * away if nothing is pending. Lets writers with a lot to send do so a piece at a time instead of overflowing the
+     * outbound buffer. If the connection is closed first, the future may never complete.
+     */
+    ListenableFuture<Void> getWritesDrainedFuture();
+    /**
+     * Stops or resumes reading from the connection. While paused no more bytes are read from the network, so a
+     * receiver that processes messages on another thread can hold back a peer that sends faster than it keeps up.
+     * Bytes already read are still delivered.
+     */
+    void setReadingPaused(boolean paused);
+}
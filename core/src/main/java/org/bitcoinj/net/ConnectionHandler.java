@@ -19,6 +19,9 @@ package org.bitcoinj.net;
 import org.bitcoinj.core.Message;
 import org.bitcoinj.utils.Threading;
 import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
@@ -37,13 +40,11 @@ import java.util.concurrent.locks.ReentrantLock;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
-// TODO: The locking in all this class is horrible and not really necessary. We should just run all network stuff on one thread.
-
 /**
  * A simple NIO MessageWriteTarget which handles all the business logic of a connection (reading+writing bytes).
  * Used only by the NioClient and NioServer classes
  */
-class ConnectionHandler implements MessageWriteTarget {
+class ConnectionHandler implements ByteBufferWriteTarget {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(ConnectionHandler.class);
 
     private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
@@ -51,8 +52,9 @@ class ConnectionHandler implements MessageWriteTarget {
 
     private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte message header
 
-    // We lock when touching local flags and when writing data, but NEVER when calling any methods which leave this
-    // class into non-Java classes.
+    // A connection is only ever read from the selector thread it was registered with, so reading needs no locking.
+    // Messages are written from any thread though, so we lock when touching local flags and when writing data, but
+    // NEVER when calling any methods which leave this class into non-Java classes.
     private final ReentrantLock lock = Threading.lock("nioConnectionHandler");
     @GuardedBy("lock") private final ByteBuffer readBuff;
     @GuardedBy("lock") private final SocketChannel channel;
@@ -62,6 +64,8 @@ class ConnectionHandler implements MessageWriteTarget {
 
     @GuardedBy("lock") private long bytesToWriteRemaining = 0;
     @GuardedBy("lock") private final LinkedList<ByteBuffer> bytesToWrite = new LinkedList<ByteBuffer>();
+    // Completed, outside the lock, once bytesToWrite runs empty.
+    @GuardedBy("lock") @Nullable private SettableFuture<Void> writesDrained;
 
     private Set<ConnectionHandler> connectedHandlers;
 
@@ -110,6 +114,7 @@ class ConnectionHandler implements MessageWriteTarget {
 
     // Tries to write any outstanding write bytes, runs in any thread (possibly unlocked)
     private void tryWriteBytes() throws IOException {
+        SettableFuture<Void> drained = null;
         lock.lock();
         try {
             // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
@@ -125,16 +130,27 @@ class ConnectionHandler implements MessageWriteTarget {
                 }
             }
             // If we are done writing, clear the OP_WRITE interestOps
-            if (bytesToWrite.isEmpty())
+            if (bytesToWrite.isEmpty()) {
                 key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                drained = writesDrained;
+                writesDrained = null;
+            }
             // Don't bother waking up the selector here, since we're just removing an op, not adding
         } finally {
             lock.unlock();
         }
+        if (drained != null)
+            drained.set(null);
     }
 
     @Override
     public void writeBytes(byte[] message) throws IOException {
+        // TODO: Kill the needless message duplication when the write completes right away
+        writeBuffers(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
+    }
+
+    @Override
+    public void writeBuffers(ByteBuffer... buffers) throws IOException {
         boolean andUnlock = true;
         lock.lock();
         try {
@@ -142,13 +158,15 @@ class ConnectionHandler implements MessageWriteTarget {
             // thus we have to buffer outbound messages sometimes. To do this, we use a queue of ByteBuffers and just
             // append to it when we want to send a message. We then let tryWriteBytes() either send the message or
             // register our SelectionKey to wakeup when we have free outbound buffer space available.
-
-            if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
+            long length = 0;
+            for (ByteBuffer buffer : buffers)
+                length += buffer.remaining();
+            if (bytesToWriteRemaining + length > OUTBOUND_BUFFER_BYTE_COUNT)
                 throw new IOException("Outbound buffer overflowed");
-            // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
-            bytesToWriteRemaining += message.length;
+            // Just dump the buffers onto the write queue and call tryWriteBytes
+            for (ByteBuffer buffer : buffers)
+                bytesToWrite.offer(buffer.duplicate());
+            bytesToWriteRemaining += length;
             setWriteOps();
         } catch (IOException e) {
             lock.unlock();
@@ -168,6 +186,47 @@ class ConnectionHandler implements MessageWriteTarget {
         }
     }
 
+    @Override
+    public long getPendingWriteBytes() {
+        lock.lock();
+        try {
+            return bytesToWriteRemaining;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void setReadingPaused(boolean paused) {
+        lock.lock();
+        try {
+            if (paused) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                key.selector().wakeup();
+            }
+        } catch (CancelledKeyException e) {
+            // Closed already, nothing to read anyway.
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public ListenableFuture<Void> getWritesDrainedFuture() {
+        lock.lock();
+        try {
+            if (bytesToWrite.isEmpty())
+                return Futures.immediateFuture(null);
+            if (writesDrained == null)
+                writesDrained = SettableFuture.create();
+            return writesDrained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     // May NOT be called with lock held
     @Override
     public void closeConnection() {
@@ -21,7 +21,13 @@ import org.bitcoinj.core.BloomFilter;
 import org.bitcoinj.core.PeerFilterProvider;
 import com.google.common.collect.ImmutableList;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 // This code is unit tested by the PeerGroup tests.
 
@@ -36,6 +42,11 @@ import java.util.LinkedList;
  * not hold any locks whilst this object is used, relying on the single thread to prevent multiple filters being
  * calculated in parallel, thus a filter provider can do things like make blocking calls into PeerGroup from a separate
  * thread. However the bloomFilterFPRate property IS thread safe, for convenience.</p>
+ *
+ * <p>The filter of each provider is kept between calculations, and only asked for again if the provider was marked as
+ * changed with {@link #markChanged(PeerFilterProvider)}, if its element count changed or if the merged filter has to
+ * be resized. Building a wallet's filter means going over all its keys and scripts, so this saves most of the work when
+ * one of many providers changed, or the same one changed many times in a row. Marking is thread safe too.</p>
  */
 public class FilterMerger {
     // We use a constant tweak to avoid giving up privacy when we regenerate our filter with new keys
@@ -45,6 +56,27 @@ public class FilterMerger {
     private int lastBloomFilterElementCount;
     private BloomFilter lastFilter;
 
+    private static class ProviderFilter {
+        final int elementCount;
+        final int size;
+        final double fpRate;
+        final BloomFilter filter;
+
+        ProviderFilter(int elementCount, int size, double fpRate, BloomFilter filter) {
+            this.elementCount = elementCount;
+            this.size = size;
+            this.fpRate = fpRate;
+            this.filter = filter;
+        }
+    }
+
+    // The filters the providers gave us last time round.
+    private final Map<PeerFilterProvider, ProviderFilter> providerFilters = new HashMap<PeerFilterProvider, ProviderFilter>();
+    // Providers whose filter has to be asked for again, even if their element count stayed the same.
+    private final Set<PeerFilterProvider> changedProviders =
+            Collections.newSetFromMap(new ConcurrentHashMap<PeerFilterProvider, Boolean>());
+    private final AtomicBoolean allChanged = new AtomicBoolean();
+
     public FilterMerger(double bloomFilterFPRate) {
         this.vBloomFilterFPRate = bloomFilterFPRate;
     }
@@ -66,13 +98,24 @@ public class FilterMerger {
                 provider.beginBloomFilterCalculation();
                 begunProviders.add(provider);
             }
+            // Take the marks before asking the providers, so a change made meanwhile is picked up next time.
+            if (allChanged.getAndSet(false))
+                providerFilters.clear();
+            providerFilters.keySet().retainAll(providers);
+            for (PeerFilterProvider provider : providers) {
+                if (changedProviders.remove(provider))
+                    providerFilters.remove(provider);
+            }
+            Map<PeerFilterProvider, Integer> elementCounts = new HashMap<PeerFilterProvider, Integer>();
             Result result = new Result();
             result.earliestKeyTimeSecs = Long.MAX_VALUE;
             int elements = 0;
             boolean requiresUpdateAll = false;
             for (PeerFilterProvider p : providers) {
                 result.earliestKeyTimeSecs = Math.min(result.earliestKeyTimeSecs, p.getEarliestKeyCreationTime());
-                elements += p.getBloomFilterElementCount();
+                int count = p.getBloomFilterElementCount();
+                elementCounts.put(p, count);
+                elements += count;
                 requiresUpdateAll = requiresUpdateAll || p.isRequiringUpdateAllBloomFilter();
             }
 
@@ -80,14 +123,17 @@ public class FilterMerger {
                 // We stair-step our element count so that we avoid creating a filter with different parameters
                 // as much as possible as that results in a loss of privacy.
                 // The constant 100 here is somewhat arbitrary, but makes sense for small to medium wallets -
-                // it will likely mean we never need to create a filter with different parameters.
-                lastBloomFilterElementCount = elements > lastBloomFilterElementCount ? elements + 100 : lastBloomFilterElementCount;
+                // it will likely mean we never need to create a filter with different parameters. Bigger sets grow
+                // by half their size, so adding addresses in bulk only changes the parameters (and makes providers
+                // rebuild their filters from scratch) a logarithmic number of times.
+                lastBloomFilterElementCount = elements > lastBloomFilterElementCount
+                        ? elements + Math.max(100, elements / 2) : lastBloomFilterElementCount;
                 BloomFilter.BloomUpdate bloomFlags =
                         requiresUpdateAll ? BloomFilter.BloomUpdate.UPDATE_ALL : BloomFilter.BloomUpdate.UPDATE_P2PUBKEY_ONLY;
                 double fpRate = vBloomFilterFPRate;
                 BloomFilter filter = new BloomFilter(lastBloomFilterElementCount, fpRate, bloomFilterTweak, bloomFlags);
                 for (PeerFilterProvider p : providers)
-                    filter.merge(p.getBloomFilter(lastBloomFilterElementCount, fpRate, bloomFilterTweak));
+                    filter.merge(getBloomFilter(p, elementCounts.get(p), lastBloomFilterElementCount, fpRate));
 
                 result.changed = !filter.equals(lastFilter);
                 result.filter = lastFilter = filter;
@@ -104,6 +150,29 @@ public class FilterMerger {
         }
     }
 
+    // Returns the filter of the provider, asking it only if what we got last time may be out of date.
+    private BloomFilter getBloomFilter(PeerFilterProvider provider, int elementCount, int size, double fpRate) {
+        ProviderFilter cached = providerFilters.get(provider);
+        if (cached == null || cached.elementCount != elementCount || cached.size != size || cached.fpRate != fpRate) {
+            cached = new ProviderFilter(elementCount, size, fpRate, provider.getBloomFilter(size, fpRate, bloomFilterTweak));
+            providerFilters.put(provider, cached);
+        }
+        return cached.filter;
+    }
+
+    /**
+     * Makes the next calculation ask the given provider for its filter again, for changes that may leave its element
+     * count the same.
+     */
+    public void markChanged(PeerFilterProvider provider) {
+        changedProviders.add(provider);
+    }
+
+    /** Makes the next calculation ask all providers for their filters again. */
+    public void markAllChanged() {
+        allChanged.set(true);
+    }
+
     public void setBloomFilterFPRate(double bloomFilterFPRate) {
         this.vBloomFilterFPRate = bloomFilterFPRate;
     }
@@ -28,7 +28,7 @@ import java.nio.*;
 /**
  * Creates a simple connection to a server using a {@link StreamConnection} to process data.
  */
-public class NioClient implements MessageWriteTarget {
+public class NioClient implements ByteBufferWriteTarget {
     private static final Logger log = LoggerFactory.getLogger(NioClient.class);
 
     private final Handler handler;
@@ -123,4 +123,24 @@ public class NioClient implements MessageWriteTarget {
     public synchronized void writeBytes(byte[] message) throws IOException {
         handler.writeTarget.writeBytes(message);
     }
+
+    @Override
+    public synchronized void writeBuffers(ByteBuffer... buffers) throws IOException {
+        ((ByteBufferWriteTarget) handler.writeTarget).writeBuffers(buffers);
+    }
+
+    @Override
+    public long getPendingWriteBytes() {
+        return ((ByteBufferWriteTarget) handler.writeTarget).getPendingWriteBytes();
+    }
+
+    @Override
+    public ListenableFuture<Void> getWritesDrainedFuture() {
+        return ((ByteBufferWriteTarget) handler.writeTarget).getWritesDrainedFuture();
+    }
+
+    @Override
+    public void setReadingPaused(boolean paused) {
+        ((ByteBufferWriteTarget) handler.writeTarget).setReadingPaused(paused);
+    }
 }
@@ -25,18 +25,24 @@ import java.io.IOException;
 import java.net.ConnectException;
 import java.net.SocketAddress;
 import java.nio.channels.*;
-import java.nio.channels.spi.SelectorProvider;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * A class which manages a set of client connections. Uses Java NIO to select network events and processes them in a
- * single network processing thread.
+ * single network processing thread by default. Busy nodes can spread their connections over several selector threads
+ * with {@link #NioClientManager(int)}, so that reading and parsing a large message from one peer doesn't delay
+ * everybody else. Each connection stays on the thread it was given when it was opened.
  */
 public class NioClientManager extends AbstractExecutionThreadService implements ClientConnectionManager {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioClientManager.class);
 
-    private final Selector selector;
+    // The first loop runs on the service thread, the others on threads of their own.
+    private final SelectorLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
 
     class PendingConnect {
         SocketChannel sc;
@@ -46,7 +52,6 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
         PendingConnect(SocketChannel sc, StreamConnection connection, SocketAddress address) { this.sc = sc; this.connection = connection; this.address = address; }
     }
-    final Queue<PendingConnect> newConnectionChannels = new LinkedBlockingQueue<PendingConnect>();
 
     // Added to/removed from by the individual ConnectionHandler's, thus must by synchronized on its own.
     private final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
@@ -91,56 +96,48 @@ public class NioClientManager extends AbstractExecutionThreadService implements
      * calls.
      */
     public NioClientManager() {
-        try {
-            selector = SelectorProvider.provider().openSelector();
-        } catch (IOException e) {
-            throw new RuntimeException(e); // Shouldn't ever happen
+        this(1);
+    }
+
+    /**
+     * Creates a new client manager which uses Java NIO for socket management, spreading the connections round-robin
+     * over the given number of selector threads.
+     */
+    public NioClientManager(int selectorThreads) {
+        checkArgument(selectorThreads > 0);
+        loops = new SelectorLoop[selectorThreads];
+        for (int i = 0; i < selectorThreads; i++) {
+            loops[i] = new SelectorLoop() {
+                @Override
+                protected void handleKey(SelectionKey key) throws IOException {
+                    NioClientManager.this.handleKey(key);
+                }
+            };
         }
     }
 
+    /** Returns the number of selector threads connections are spread over. */
+    public int getSelectorThreads() {
+        return loops.length;
+    }
+
     @Override
     public void run() {
+        Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+        List<Thread> threads = new ArrayList<Thread>(loops.length - 1);
+        for (int i = 1; i < loops.length; i++) {
+            Thread thread = new ContextPropagatingThreadFactory("NioClientManager " + i, Thread.MIN_PRIORITY)
+                    .newThread(loops[i]);
+            thread.start();
+            threads.add(thread);
+        }
         try {
-            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-            while (isRunning()) {
-                PendingConnect conn;
-                while ((conn = newConnectionChannels.poll()) != null) {
-                    try {
-                        SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
-                        key.attach(conn);
-                    } catch (ClosedChannelException e) {
-                        log.warn("SocketChannel was closed before it could be registered");
-                    }
-                }
-
-                selector.select();
-
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-                    handleKey(key);
-                }
-            }
-        } catch (Exception e) {
-            log.warn("Error trying to open/read from connection: ", e);
+            loops[0].run();
         } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    key.channel().close();
-                } catch (IOException e) {
-                    log.warn("Error closing channel", e);
-                }
-                key.cancel();
-                if (key.attachment() instanceof ConnectionHandler)
-                    ConnectionHandler.handleKey(key); // Close connection if relevant
-            }
-            try {
-                selector.close();
-            } catch (IOException e) {
-                log.warn("Error closing client manager selector", e);
-            }
+            for (SelectorLoop loop : loops)
+                loop.stop();
+            for (Thread thread : threads)
+                Uninterruptibles.joinUninterruptibly(thread);
         }
     }
 
@@ -153,9 +150,19 @@ public class NioClientManager extends AbstractExecutionThreadService implements
             SocketChannel sc = SocketChannel.open();
             sc.configureBlocking(false);
             sc.connect(serverAddress);
-            PendingConnect data = new PendingConnect(sc, connection, serverAddress);
-            newConnectionChannels.offer(data);
-            selector.wakeup();
+            final PendingConnect data = new PendingConnect(sc, connection, serverAddress);
+            final SelectorLoop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        SelectionKey key = data.sc.register(loop.selector, SelectionKey.OP_CONNECT);
+                        key.attach(data);
+                    } catch (ClosedChannelException e) {
+                        log.warn("SocketChannel was closed before it could be registered");
+                    }
+                }
+            });
             return data.future;
         } catch (Throwable e) {
             return Futures.immediateFailedFuture(e);
@@ -164,7 +171,8 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
     @Override
     public void triggerShutdown() {
-        selector.wakeup();
+        for (SelectorLoop loop : loops)
+            loop.stop();
     }
 
     @Override
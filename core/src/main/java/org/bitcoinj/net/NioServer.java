@@ -19,17 +19,22 @@ package org.bitcoinj.net;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.*;
-import java.nio.channels.spi.SelectorProvider;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
 import org.slf4j.LoggerFactory;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * Creates a simple server listener which listens for incoming client connections and uses a {@link StreamConnection} to
- * process data.
+ * process data. Connections are served by the listening thread, or spread round-robin over a group of selector threads
+ * when created with {@link #NioServer(StreamConnectionFactory, InetSocketAddress, int)}.
  */
 public class NioServer extends AbstractExecutionThreadService {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioServer.class);
@@ -37,29 +42,53 @@ public class NioServer extends AbstractExecutionThreadService {
     private final StreamConnectionFactory connectionFactory;
 
     private final ServerSocketChannel sc;
+    private final SelectorLoop acceptLoop;
     @VisibleForTesting final Selector selector;
+    // Serve the accepted connections, empty if the accepting thread serves them itself.
+    private final SelectorLoop[] connectionLoops;
+    private int nextLoop;
 
     // Handle a SelectionKey which was selected
     private void handleKey(Selector selector, SelectionKey key) throws IOException {
         if (key.isValid() && key.isAcceptable()) {
             // Accept a new connection, give it a stream connection as an attachment
-            SocketChannel newChannel = sc.accept();
+            final SocketChannel newChannel = sc.accept();
+            if (newChannel == null)
+                return;
             newChannel.configureBlocking(false);
-            SelectionKey newKey = newChannel.register(selector, SelectionKey.OP_READ);
-            try {
-                ConnectionHandler handler = new ConnectionHandler(connectionFactory, newKey);
-                newKey.attach(handler);
-                handler.connection.connectionOpened();
-            } catch (IOException e) {
-                // This can happen if ConnectionHandler's call to get a new handler returned null
-                log.error("Error handling new connection", Throwables.getRootCause(e).getMessage());
-                newKey.channel().close();
+            if (connectionLoops.length == 0) {
+                register(selector, newChannel);
+            } else {
+                final SelectorLoop loop = connectionLoops[nextLoop++ % connectionLoops.length];
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            register(loop.selector, newChannel);
+                        } catch (IOException e) {
+                            log.error("Error registering new connection", e);
+                        }
+                    }
+                });
             }
         } else { // Got a closing channel or a channel to a client connection
             ConnectionHandler.handleKey(key);
         }
     }
 
+    private void register(Selector selector, SocketChannel newChannel) throws IOException {
+        SelectionKey newKey = newChannel.register(selector, SelectionKey.OP_READ);
+        try {
+            ConnectionHandler handler = new ConnectionHandler(connectionFactory, newKey);
+            newKey.attach(handler);
+            handler.connection.connectionOpened();
+        } catch (IOException e) {
+            // This can happen if ConnectionHandler's call to get a new handler returned null
+            log.error("Error handling new connection", Throwables.getRootCause(e).getMessage());
+            newKey.channel().close();
+        }
+    }
+
     /**
      * Creates a new server which is capable of listening for incoming connections and processing client provided data
      * using {@link StreamConnection}s created by the given {@link StreamConnectionFactory}
@@ -67,56 +96,74 @@ public class NioServer extends AbstractExecutionThreadService {
      * @throws IOException If there is an issue opening the server socket or binding fails for some reason
      */
     public NioServer(final StreamConnectionFactory connectionFactory, InetSocketAddress bindAddress) throws IOException {
+        this(connectionFactory, bindAddress, 1);
+    }
+
+    /**
+     * Creates a new server like {@link #NioServer(StreamConnectionFactory, InetSocketAddress)}, which serves the
+     * connections it accepts on the given number of selector threads. With more than one, the listening thread only
+     * accepts connections and hands them out round-robin.
+     *
+     * @throws IOException If there is an issue opening the server socket or binding fails for some reason
+     */
+    public NioServer(final StreamConnectionFactory connectionFactory, InetSocketAddress bindAddress,
+                     int selectorThreads) throws IOException {
+        checkArgument(selectorThreads > 0);
         this.connectionFactory = connectionFactory;
 
         sc = ServerSocketChannel.open();
         sc.configureBlocking(false);
         sc.socket().bind(bindAddress);
-        selector = SelectorProvider.provider().openSelector();
+        acceptLoop = new SelectorLoop() {
+            @Override
+            protected void handleKey(SelectionKey key) throws IOException {
+                NioServer.this.handleKey(selector, key);
+            }
+        };
+        selector = acceptLoop.selector;
         sc.register(selector, SelectionKey.OP_ACCEPT);
+        connectionLoops = new SelectorLoop[selectorThreads == 1 ? 0 : selectorThreads];
+        for (int i = 0; i < connectionLoops.length; i++) {
+            connectionLoops[i] = new SelectorLoop() {
+                @Override
+                protected void handleKey(SelectionKey key) throws IOException {
+                    ConnectionHandler.handleKey(key);
+                }
+            };
+        }
     }
 
     @Override
     protected void run() throws Exception {
+        List<Thread> threads = new ArrayList<Thread>(connectionLoops.length);
+        for (int i = 0; i < connectionLoops.length; i++) {
+            Thread thread = new ContextPropagatingThreadFactory("NioServer " + i).newThread(connectionLoops[i]);
+            thread.start();
+            threads.add(thread);
+        }
         try {
-            while (isRunning()) {
-                selector.select();
-
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-
-                    handleKey(selector, key);
-                }
-            }
-        } catch (Exception e) {
-            log.error("Error trying to open/read from connection: {}", e);
+            acceptLoop.run();
         } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    key.channel().close();
-                } catch (IOException e) {
-                    log.error("Error closing channel", e);
-                }
-                try {
-                    key.cancel();
-                    handleKey(selector, key);
-                } catch (IOException e) {
-                    log.error("Error closing selection key", e);
-                }
-            }
-            try {
-                selector.close();
-            } catch (IOException e) {
-                log.error("Error closing server selector", e);
-            }
-            try {
-                sc.close();
-            } catch (IOException e) {
-                log.error("Error closing server channel", e);
-            }
+            for (SelectorLoop loop : connectionLoops)
+                loop.stop();
+            for (Thread thread : threads)
+                Uninterruptibles.joinUninterruptibly(thread);
+        }
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        // run() is skipped entirely if we are stopped before it gets going, so the listening socket can't be left to
+        // the accept loop. It is only released once the selector it is registered with is closed too.
+        try {
+            sc.close();
+        } catch (IOException e) {
+            log.error("Error closing server channel", e);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.error("Error closing selector", e);
         }
     }
 
@@ -127,7 +174,9 @@ public class NioServer extends AbstractExecutionThreadService {
      */
     @Override
     public void triggerShutdown() {
-        // Wake up the selector and let the selection thread break its loop as the ExecutionService !isRunning()
-        selector.wakeup();
+        // Wake up the selectors and let the selection threads break their loops
+        acceptLoop.stop();
+        for (SelectorLoop loop : connectionLoops)
+            loop.stop();
     }
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A selector together with the loop that selects on it, used by {@link NioClientManager} and {@link NioServer}. Each
+ * loop runs on its own thread and the connections registered with it are only ever read from that thread, so several
+ * loops can serve a large number of connections without a slow one holding up all the others.
+ */
+abstract class SelectorLoop implements Runnable {
+    private static final org.slf4j.Logger log = LoggerFactory.getLogger(SelectorLoop.class);
+
+    final Selector selector;
+    // Work that has to be done on the loop thread, like registering channels which blocks whilst another thread selects.
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private volatile boolean running = true;
+
+    SelectorLoop() {
+        try {
+            selector = SelectorProvider.provider().openSelector();
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Shouldn't ever happen
+        }
+    }
+
+    /** Handles a key selected by this loop, on the loop thread. */
+    protected abstract void handleKey(SelectionKey key) throws IOException;
+
+    /** Runs the given task on the loop thread before it selects again. */
+    void execute(Runnable task) {
+        tasks.offer(task);
+        selector.wakeup();
+    }
+
+    /** Makes the loop close all its channels and return. */
+    void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+
+                selector.select();
+
+                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                while (keyIterator.hasNext()) {
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+                    handleKey(key);
+                }
+            }
+        } catch (Exception e) {
+            log.warn("Error trying to open/read from connection: ", e);
+        } finally {
+            // Go through and close everything, without letting IOExceptions get in our way
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    log.warn("Error closing channel", e);
+                }
+                key.cancel();
+                if (key.attachment() instanceof ConnectionHandler)
+                    ConnectionHandler.handleKey(key); // Close connection if relevant
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                log.warn("Error closing selector", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,500 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import net.jcip.annotations.GuardedBy;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Keeps full blocks on disk, so they can be served to other peers (see {@link org.bitcoinj.core.RelayServer}) or
+ * scanned again without downloading them. Blocks are appended to files named {@code blk00000.dat},
+ * {@code blk00001.dat} and so on, in the same format as Bitcoin Core uses, so the files can also be read back with
+ * {@link org.bitcoinj.utils.BlockFileLoader}, for example to rescan a wallet:</p>
+ *
+ * <pre>
+ * for (Block block : new BlockFileLoader(params, archive.getFiles()))
+ *     ...
+ * </pre>
+ *
+ * <p>A separate index file remembers where each block is and at which height, so single blocks can be looked up by
+ * hash. Reads memory map the block files and hand out views of the mapping, so serving a block doesn't copy it onto
+ * the Java heap. To save disk space, files that only contain blocks below a given height can be deleted with
+ * {@link #prune(int)}.</p>
+ *
+ * <p>Blocks are not forced to disk as they are added. If the process dies, blocks that didn't make it to disk are
+ * left out of the index when the archive is opened again.</p>
+ */
+public class BlockArchive implements RawBlockSource {
+    private static final Logger log = LoggerFactory.getLogger(BlockArchive.class);
+
+    /** The default size after which a new block file is started, the same as Bitcoin Core uses. */
+    public static final int DEFAULT_MAX_FILE_SIZE = 128 * 1024 * 1024;
+    public static final String INDEX_FILE_NAME = "blkindex.dat";
+    public static final String INDEX_MAGIC = "BLKI";
+
+    private static final Pattern BLOCK_FILE_NAME = Pattern.compile("blk(\\d{5})\\.dat");
+    // Each block in a block file is preceded by the packet magic and its length.
+    private static final int BLOCK_PROLOGUE_BYTES = 8;
+    // Index file format:
+    //   4 header bytes = "BLKI"
+    //   Then for each block:
+    //     32 bytes for the hash
+    //     4 bytes for the number of the block file
+    //     4 bytes for the offset of the block in that file
+    //     4 bytes for the length of the block
+    //     4 bytes for the height of the block
+    private static final int INDEX_RECORD_SIZE = 32 + 4 + 4 + 4 + 4;
+
+    private final NetworkParameters params;
+    private final File directory;
+    private final int maxFileSize;
+
+    private final ReentrantLock lock = Threading.lock("BlockArchive");
+    @GuardedBy("lock") private final HashMap<Sha256Hash, Location> index = new HashMap<Sha256Hash, Location>();
+    @GuardedBy("lock") private final TreeMap<Integer, BlockFile> files = new TreeMap<Integer, BlockFile>();
+    @GuardedBy("lock") private RandomAccessFile indexFile;
+    @GuardedBy("lock") private FileLock fileLock;
+    // The file blocks are appended to, always the last one.
+    @GuardedBy("lock") private BlockFile currentFile;
+    @GuardedBy("lock") private RandomAccessFile currentRandomAccessFile;
+    @GuardedBy("lock") private boolean closed;
+
+    private static class Location {
+        final int file;
+        final int offset;
+        final int length;
+        final int height;
+
+        Location(int file, int offset, int length, int height) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+            this.height = height;
+        }
+    }
+
+    private static class BlockFile {
+        final int number;
+        final File file;
+        int size;
+        int blocks;
+        int maxHeight = -1;
+        // Maps at least up to the end of the last block that was read, remapped when the file grows past it.
+        @Nullable MappedByteBuffer mapping;
+
+        BlockFile(int number, File file) {
+            this.number = number;
+            this.file = file;
+        }
+
+        void add(Location location) {
+            blocks++;
+            maxHeight = Math.max(maxHeight, location.height);
+            size = Math.max(size, location.offset + location.length);
+        }
+    }
+
+    /**
+     * Opens the archive in the given directory with the default maximum file size, creating it if it doesn't exist.
+     * This operation will block on disk.
+     */
+    public BlockArchive(NetworkParameters params, File directory) throws BlockStoreException {
+        this(params, directory, DEFAULT_MAX_FILE_SIZE);
+    }
+
+    /**
+     * Opens the archive in the given directory, creating it if it doesn't exist. A new block file is started when a
+     * block doesn't fit into the given size anymore. This operation will block on disk.
+     */
+    public BlockArchive(NetworkParameters params, File directory, int maxFileSize) throws BlockStoreException {
+        checkArgument(maxFileSize > BLOCK_PROLOGUE_BYTES);
+        this.params = checkNotNull(params);
+        this.directory = checkNotNull(directory);
+        this.maxFileSize = maxFileSize;
+        lock.lock();
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new BlockStoreException("Could not create directory " + directory);
+            indexFile = new RandomAccessFile(new File(directory, INDEX_FILE_NAME), "rw");
+            fileLock = indexFile.getChannel().tryLock();
+            if (fileLock == null)
+                throw new ChainFileLockedException("Block archive is already locked by another process");
+            findBlockFiles();
+            readIndex();
+            openCurrentFile(files.isEmpty() ? 0 : files.lastKey());
+        } catch (IOException e) {
+            closeQuietly();
+            throw new BlockStoreException(e);
+        } catch (BlockStoreException e) {
+            closeQuietly();
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void findBlockFiles() {
+        File[] list = directory.listFiles();
+        if (list == null)
+            return;
+        for (File file : list) {
+            Matcher matcher = BLOCK_FILE_NAME.matcher(file.getName());
+            if (matcher.matches()) {
+                int number = Integer.parseInt(matcher.group(1));
+                files.put(number, new BlockFile(number, file));
+            }
+        }
+    }
+
+    @GuardedBy("lock")
+    private void readIndex() throws IOException, BlockStoreException {
+        byte[] magic = INDEX_MAGIC.getBytes("US-ASCII");
+        if (indexFile.length() == 0) {
+            indexFile.write(magic);
+            return;
+        }
+        byte[] bytes = new byte[(int) indexFile.length()];
+        indexFile.seek(0);
+        indexFile.readFully(bytes);
+        if (bytes.length < magic.length || !Arrays.equals(magic, Arrays.copyOf(bytes, magic.length)))
+            throw new BlockStoreException("Header bytes do not equal " + INDEX_MAGIC);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, magic.length, bytes.length - magic.length);
+        boolean dirty = buffer.remaining() % INDEX_RECORD_SIZE != 0;
+        while (buffer.remaining() >= INDEX_RECORD_SIZE) {
+            // Sha256Hash.wrap doesn't copy, so every key needs an array of its own.
+            byte[] hashBytes = new byte[32];
+            buffer.get(hashBytes);
+            Sha256Hash hash = Sha256Hash.wrap(hashBytes);
+            Location location = new Location(buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt());
+            BlockFile file = files.get(location.file);
+            // Drop blocks of pruned files and blocks that didn't make it to disk.
+            if (file == null || (long) location.offset + location.length > file.file.length()
+                    || index.containsKey(hash)) {
+                dirty = true;
+                continue;
+            }
+            index.put(hash, location);
+            file.add(location);
+        }
+        if (dirty)
+            rewriteIndex();
+        log.info("Opened block archive {} with {} blocks in {} files", directory, index.size(), files.size());
+    }
+
+    @GuardedBy("lock")
+    private void openCurrentFile(int number) throws IOException {
+        BlockFile file = files.get(number);
+        if (file == null) {
+            file = new BlockFile(number, new File(directory, String.format(Locale.US, "blk%05d.dat", number)));
+            files.put(number, file);
+        }
+        currentRandomAccessFile = new RandomAccessFile(file.file, "rw");
+        // Cut off anything after the last indexed block, left over from a block whose index record was lost.
+        currentRandomAccessFile.setLength(file.size);
+        currentFile = file;
+    }
+
+    /**
+     * Appends the given block to the archive, unless it is already in there.
+     *
+     * @param height the height of the block in the chain, used for pruning
+     * @return true if the block was added, false if it was already in the archive
+     */
+    public boolean put(Block block, int height) throws BlockStoreException {
+        Sha256Hash hash = block.getHash();
+        byte[] bytes = block.bitcoinSerialize();
+        lock.lock();
+        try {
+            checkOpen();
+            if (index.containsKey(hash))
+                return false;
+            if (currentFile.size > 0 && (long) currentFile.size + BLOCK_PROLOGUE_BYTES + bytes.length > maxFileSize) {
+                currentRandomAccessFile.close();
+                openCurrentFile(currentFile.number + 1);
+            }
+            ByteBuffer prologue = ByteBuffer.allocate(BLOCK_PROLOGUE_BYTES);
+            prologue.putInt((int) params.getPacketMagic());
+            prologue.order(ByteOrder.LITTLE_ENDIAN).putInt(bytes.length);
+            prologue.flip();
+            ByteBuffer[] buffers = { prologue, ByteBuffer.wrap(bytes) };
+            FileChannel channel = currentRandomAccessFile.getChannel();
+            channel.position(currentFile.size);
+            while (buffers[1].hasRemaining())
+                channel.write(buffers);
+            Location location = new Location(currentFile.number, currentFile.size + BLOCK_PROLOGUE_BYTES,
+                    bytes.length, height);
+            indexFile.seek(indexFile.length());
+            indexFile.write(serialize(hash, location));
+            index.put(hash, location);
+            currentFile.add(location);
+            return true;
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The returned buffer is a read only view of the memory mapped block file.</p>
+     */
+    @Override
+    @Nullable
+    public ByteBuffer getRawBlock(Sha256Hash hash) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            Location location = index.get(hash);
+            if (location == null)
+                return null;
+            BlockFile file = files.get(location.file);
+            MappedByteBuffer mapping = file.mapping;
+            if (mapping == null || mapping.capacity() < location.offset + location.length) {
+                if (file == currentFile) {
+                    mapping = currentRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.size);
+                } else {
+                    // The mapping stays valid after the file is closed.
+                    RandomAccessFile randomAccessFile = new RandomAccessFile(file.file, "r");
+                    try {
+                        mapping = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                                randomAccessFile.length());
+                    } finally {
+                        randomAccessFile.close();
+                    }
+                }
+                file.mapping = mapping;
+            }
+            ByteBuffer block = mapping.duplicate();
+            block.limit(location.offset + location.length);
+            block.position(location.offset);
+            return block.slice();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the block with the given hash, or null if it isn't in the archive. */
+    @Nullable
+    public Block getBlock(Sha256Hash hash) throws BlockStoreException {
+        ByteBuffer raw = getRawBlock(hash);
+        if (raw == null)
+            return null;
+        byte[] bytes = new byte[raw.remaining()];
+        raw.get(bytes);
+        try {
+            return params.getDefaultSerializer().makeBlock(bytes);
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /** Returns whether the block with the given hash is in the archive. */
+    public boolean contains(Sha256Hash hash) {
+        lock.lock();
+        try {
+            return index.containsKey(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of blocks in the archive. */
+    public int size() {
+        lock.lock();
+        try {
+            return index.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the block files, in the order they were written. */
+    public List<File> getFiles() {
+        lock.lock();
+        try {
+            List<File> list = new ArrayList<File>(files.size());
+            for (BlockFile file : files.values())
+                list.add(file.file);
+            return list;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the block files whose blocks are all below the given height. The file currently being appended to is
+     * always kept, so some blocks below the height can remain. Buffers returned for the removed blocks must not be
+     * used afterwards.
+     *
+     * @return the number of blocks that were removed
+     */
+    public int prune(int height) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            int removed = 0;
+            Iterator<BlockFile> it = files.values().iterator();
+            while (it.hasNext()) {
+                BlockFile file = it.next();
+                if (file == currentFile || file.maxHeight >= height)
+                    continue;
+                // Delete the file before the index records, so a crash in between leaves records that are dropped
+                // when the index is read again.
+                release(file);
+                if (!file.file.delete() && file.file.exists())
+                    throw new BlockStoreException("Could not delete " + file.file);
+                it.remove();
+                removed += file.blocks;
+            }
+            if (removed > 0) {
+                Iterator<Location> locations = index.values().iterator();
+                while (locations.hasNext()) {
+                    if (!files.containsKey(locations.next().file))
+                        locations.remove();
+                }
+                rewriteIndex();
+                log.info("Pruned {} blocks below height {}", removed, height);
+            }
+            return removed;
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Writes the index anew, in place. Records only ever move towards the start of the file, so if this is interrupted
+    // the file still has every record, possibly twice.
+    @GuardedBy("lock")
+    private void rewriteIndex() throws IOException {
+        List<Map.Entry<Sha256Hash, Location>> entries = new ArrayList<Map.Entry<Sha256Hash, Location>>(index.entrySet());
+        // Keep the order blocks were added in, which is also what guarantees records only move backwards.
+        Collections.sort(entries, new Comparator<Map.Entry<Sha256Hash, Location>>() {
+            @Override
+            public int compare(Map.Entry<Sha256Hash, Location> a, Map.Entry<Sha256Hash, Location> b) {
+                Location x = a.getValue(), y = b.getValue();
+                if (x.file != y.file)
+                    return x.file < y.file ? -1 : 1;
+                return x.offset < y.offset ? -1 : (x.offset == y.offset ? 0 : 1);
+            }
+        });
+        ByteBuffer buffer = ByteBuffer.allocate(INDEX_MAGIC.length() + entries.size() * INDEX_RECORD_SIZE);
+        buffer.put(INDEX_MAGIC.getBytes("US-ASCII"));
+        for (Map.Entry<Sha256Hash, Location> entry : entries)
+            buffer.put(serialize(entry.getKey(), entry.getValue()));
+        indexFile.seek(0);
+        indexFile.write(buffer.array());
+        indexFile.setLength(buffer.capacity());
+    }
+
+    private static byte[] serialize(Sha256Hash hash, Location location) {
+        ByteBuffer buffer = ByteBuffer.allocate(INDEX_RECORD_SIZE);
+        buffer.put(hash.getBytes());
+        buffer.putInt(location.file);
+        buffer.putInt(location.offset);
+        buffer.putInt(location.length);
+        buffer.putInt(location.height);
+        return buffer.array();
+    }
+
+    @GuardedBy("lock")
+    private void checkOpen() throws BlockStoreException {
+        if (closed)
+            throw new BlockStoreException("Archive closed");
+    }
+
+    @GuardedBy("lock")
+    private void release(BlockFile file) {
+        if (file.mapping != null && System.getProperty("os.name").toLowerCase().contains("win")) {
+            log.info("Windows mmap hack: Forcing buffer cleaning");
+            WindowsMMapHack.forceRelease(file.mapping);
+        }
+        file.mapping = null;  // Allow it to be GCd and the underlying file mapping to go away.
+    }
+
+    /** Writes everything to disk and closes the archive. Buffers returned by it must not be used afterwards. */
+    public void close() throws BlockStoreException {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            currentRandomAccessFile.getChannel().force(true);
+            indexFile.getChannel().force(true);
+            closeQuietly();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void closeQuietly() {
+        closed = true;
+        for (BlockFile file : files.values())
+            release(file);
+        try {
+            if (currentRandomAccessFile != null)
+                currentRandomAccessFile.close();
+            if (indexFile != null)
+                indexFile.close();  // Also releases the file lock.
+        } catch (IOException e) {
+            log.warn("Error closing block archive", e);
+        }
+    }
+
+    public NetworkParameters getParams() {
+        return params;
+    }
+}
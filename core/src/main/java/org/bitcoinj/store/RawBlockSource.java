@@ -0,0 +1,36 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+
+/**
+ * A source of full blocks in their serialized form, as sent over the network. Unlike a {@link BlockStore}, which only
+ * keeps headers, this gives access to the transactions too, so that blocks can be served to other peers or scanned
+ * again without downloading them. Implementations are thread safe.
+ */
+public interface RawBlockSource {
+    /**
+     * Returns the serialized block with the given hash, from the position to the limit of the returned buffer, or null
+     * if it isn't available. The buffer may be a view of a memory mapped file and must not be modified.
+     */
+    @Nullable
+    ByteBuffer getRawBlock(Sha256Hash hash) throws BlockStoreException;
+}
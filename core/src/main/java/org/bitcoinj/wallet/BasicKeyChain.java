@@ -23,14 +23,20 @@ import org.bitcoinj.utils.ListenerRegistration;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.listeners.KeyChainEventListener;
 
+import com.google.common.base.Function;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.ByteString;
 import org.spongycastle.crypto.params.KeyParameter;
 
 import javax.annotation.Nullable;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -44,6 +50,10 @@ import static com.google.common.base.Preconditions.*;
 public class BasicKeyChain implements EncryptableKeyChain {
     private final ReentrantLock lock = Threading.lock("BasicKeyChain");
 
+    // Keys are encrypted and decrypted on the calling thread in batches smaller than this. Each key costs an AES
+    // operation and, when encrypting, deriving its public key again to check the result.
+    private static final int MIN_PARALLEL_BATCH_SIZE = 32;
+
     // Maps used to let us quickly look up a key given data we find in transcations or the block chain.
     private final LinkedHashMap<ByteString, ECKey> hashToKeys;
     private final LinkedHashMap<ByteString, ECKey> pubkeyToKeys;
@@ -463,17 +473,8 @@ public class BasicKeyChain implements EncryptableKeyChain {
             checkNotNull(keyCrypter);
             checkState(this.keyCrypter == null, "Key chain is already encrypted");
             BasicKeyChain encrypted = new BasicKeyChain(keyCrypter);
-            for (ECKey key : hashToKeys.values()) {
-                ECKey encryptedKey = key.encrypt(keyCrypter, aesKey);
-                // Check that the encrypted key can be successfully decrypted.
-                // This is done as it is a critical failure if the private key cannot be decrypted successfully
-                // (all bitcoin controlled by that private key is lost forever).
-                // For a correctly constructed keyCrypter the encryption should always be reversible so it is just
-                // being as cautious as possible.
-                if (!ECKey.encryptionIsReversible(key, encryptedKey, keyCrypter, aesKey))
-                    throw new KeyCrypterException("The key " + key.toString() + " cannot be successfully decrypted after encryption so aborting wallet encryption.");
+            for (ECKey encryptedKey : encryptKeys(new ArrayList<ECKey>(hashToKeys.values()), keyCrypter, aesKey))
                 encrypted.importKeyLocked(encryptedKey);
-            }
             return encrypted;
         } finally {
             lock.unlock();
@@ -496,15 +497,78 @@ public class BasicKeyChain implements EncryptableKeyChain {
             if (numKeys() > 0 && !checkAESKey(aesKey))
                 throw new KeyCrypterException("Password/key was incorrect.");
             BasicKeyChain decrypted = new BasicKeyChain();
-            for (ECKey key : hashToKeys.values()) {
-                decrypted.importKeyLocked(key.decrypt(aesKey));
-            }
+            for (ECKey key : decryptKeys(new ArrayList<ECKey>(hashToKeys.values()), aesKey))
+                decrypted.importKeyLocked(key);
             return decrypted;
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Encrypts the given keys, checking that each of them can be decrypted again. Large lists are split up and
+     * encrypted in parallel on {@link Threading#THREAD_POOL}. The result is in the same order as the keys.
+     *
+     * @throws KeyCrypterException if any key fails to encrypt.
+     */
+    static List<ECKey> encryptKeys(List<ECKey> keys, final KeyCrypter keyCrypter, final KeyParameter aesKey) {
+        checkNotNull(keyCrypter);
+        return transformKeys(keys, new Function<ECKey, ECKey>() {
+            @Override
+            public ECKey apply(ECKey key) {
+                ECKey encryptedKey = key.encrypt(keyCrypter, aesKey);
+                // Check that the encrypted key can be successfully decrypted.
+                // This is done as it is a critical failure if the private key cannot be decrypted successfully
+                // (all bitcoin controlled by that private key is lost forever).
+                // For a correctly constructed keyCrypter the encryption should always be reversible so it is just
+                // being as cautious as possible.
+                if (!ECKey.encryptionIsReversible(key, encryptedKey, keyCrypter, aesKey))
+                    throw new KeyCrypterException("The key " + key.toString() + " cannot be successfully decrypted after encryption so aborting wallet encryption.");
+                return encryptedKey;
+            }
+        });
+    }
+
+    /**
+     * Decrypts the given keys, in parallel for large lists like {@link #encryptKeys(List, KeyCrypter, KeyParameter)}.
+     *
+     * @throws KeyCrypterException if any key fails to decrypt.
+     */
+    static List<ECKey> decryptKeys(List<ECKey> keys, final KeyParameter aesKey) {
+        return transformKeys(keys, new Function<ECKey, ECKey>() {
+            @Override
+            public ECKey apply(ECKey key) {
+                return key.decrypt(aesKey);
+            }
+        });
+    }
+
+    private static List<ECKey> transformKeys(final List<ECKey> keys, final Function<ECKey, ECKey> function) {
+        int batches = Math.min(Runtime.getRuntime().availableProcessors(), keys.size() / MIN_PARALLEL_BATCH_SIZE);
+        if (batches <= 1)
+            return Lists.newArrayList(Lists.transform(keys, function));
+        int batchSize = (keys.size() + batches - 1) / batches;
+        List<ListenableFuture<List<ECKey>>> futures = Lists.newArrayList();
+        for (final List<ECKey> batch : Lists.partition(keys, batchSize)) {
+            futures.add(Threading.THREAD_POOL.submit(new Callable<List<ECKey>>() {
+                @Override
+                public List<ECKey> call() {
+                    return Lists.newArrayList(Lists.transform(batch, function));
+                }
+            }));
+        }
+        List<ECKey> result = new ArrayList<ECKey>(keys.size());
+        try {
+            for (List<ECKey> batch : Futures.allAsList(futures).get())
+                result.addAll(batch);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+        return result;
+    }
+
     /**
      * Returns whether the given password is correct for this key chain.
      * @throws IllegalStateException if the chain is not encrypted at all.
@@ -571,6 +635,21 @@ public class BasicKeyChain implements EncryptableKeyChain {
         }
     }
 
+    /** Returns the data elements {@link #getFilter(int, double, long)} inserts: each public key and its hash. */
+    public List<byte[]> getFilterElements() {
+        lock.lock();
+        try {
+            List<byte[]> elements = Lists.newArrayListWithCapacity(hashToKeys.size() * 2);
+            for (ECKey key : hashToKeys.values()) {
+                elements.add(key.getPubKey());
+                elements.add(key.getPubKeyHash());
+            }
+            return elements;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public int numBloomFilterEntries() {
         return numKeys() * 2;
@@ -0,0 +1,244 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A {@link CoinSelector} that looks for a set of outputs matching the target exactly, so that no change output is
+ * needed, and otherwise picks a set with as little excess value as it can find quickly. It is aimed at wallets with
+ * very many outputs, where {@link DefaultCoinSelector} spends a lot of time sorting and tends to gather many small
+ * outputs into large transactions.</p>
+ *
+ * <p>The selection works on outputs ordered by descending value. Candidates produced by
+ * {@link Wallet#calculateAllSpendCandidates(boolean, boolean)} come from the wallet's {@link UnspentOutputSet} and
+ * are already in that order, so usually no sorting is needed at all. First a depth first branch and bound search
+ * looks for a subset whose value lies between the target and the target plus the cost of change, giving up after a
+ * bounded number of tries. If it finds none, a randomized knapsack approximation over the outputs smaller than the
+ * target is compared with the smallest single output that covers the target, and the one wasting less is used.</p>
+ *
+ * <p>Only outputs whose transactions are selectable according to {@link DefaultCoinSelector#isSelectable(Transaction)}
+ * are used. Select one with {@link SendRequest#coinSelector} or {@link Wallet#setCoinSelector(CoinSelector)}.</p>
+ */
+public class BranchAndBoundCoinSelector implements CoinSelector {
+    /** The default number of search steps the branch and bound search is allowed. */
+    public static final int DEFAULT_MAX_TRIES = 100000;
+    // Upper bound of the total work done by the knapsack approximation, in output visits.
+    private static final int MAX_KNAPSACK_WORK = 1000000;
+    private static final int KNAPSACK_ITERATIONS = 1000;
+
+    private final long costOfChange;
+    private final int maxTries;
+    private final Random random;
+
+    /**
+     * Creates a selector that accepts up to {@link Transaction#MIN_NONDUST_OUTPUT} over the target as a match, which
+     * the wallet will add to the fee instead of creating a dust change output.
+     */
+    public BranchAndBoundCoinSelector() {
+        this(Transaction.MIN_NONDUST_OUTPUT, DEFAULT_MAX_TRIES, new Random());
+    }
+
+    /**
+     * @param costOfChange how much value over the target is accepted as an exact match, usually the cost of creating
+     *                     and later spending a change output
+     * @param maxTries how many steps the branch and bound search may take before falling back to the knapsack
+     * @param random source of randomness for the knapsack approximation
+     */
+    public BranchAndBoundCoinSelector(Coin costOfChange, int maxTries, Random random) {
+        checkArgument(costOfChange.signum() >= 0);
+        checkArgument(maxTries >= 0);
+        this.costOfChange = costOfChange.value;
+        this.maxTries = maxTries;
+        this.random = random;
+    }
+
+    @Override
+    public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+        List<TransactionOutput> usable = new ArrayList<TransactionOutput>(candidates.size());
+        long total = 0;
+        boolean sorted = true;
+        TransactionOutput previous = null;
+        for (TransactionOutput output : candidates) {
+            if (!shouldSelect(output.getParentTransaction()))
+                continue;
+            if (previous != null && previous.getValue().value < output.getValue().value)
+                sorted = false;
+            usable.add(output);
+            total += output.getValue().value;
+            previous = output;
+        }
+        // Asked for everything, or there's not enough: return all there is.
+        if (target.equals(NetworkParameters.MAX_MONEY) || total <= target.value)
+            return new CoinSelection(Coin.valueOf(total), usable);
+        if (!sorted)
+            Collections.sort(usable, UnspentOutputSet.DESCENDING_VALUE);
+
+        long[] values = new long[usable.size()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = usable.get(i).getValue().value;
+
+        boolean[] selection = branchAndBound(values, target.value);
+        if (selection == null)
+            selection = knapsack(values, target.value);
+        List<TransactionOutput> gathered = new ArrayList<TransactionOutput>();
+        long gatheredValue = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (selection[i]) {
+                gathered.add(usable.get(i));
+                gatheredValue += values[i];
+            }
+        }
+        return new CoinSelection(Coin.valueOf(gatheredValue), gathered);
+    }
+
+    /** Sub-classes can override this to customize which transactions' outputs may be spent. */
+    protected boolean shouldSelect(Transaction tx) {
+        return tx == null || DefaultCoinSelector.isSelectable(tx);
+    }
+
+    // Depth first search over include/exclude decisions, largest values first. Returns the selection with the least
+    // excess in [target, target + costOfChange], or null if none was found within maxTries steps.
+    private boolean[] branchAndBound(long[] values, long target) {
+        int n = values.length;
+        // remaining[i] is the sum of values[i..n-1], which bounds what can still be added at depth i.
+        long[] remaining = new long[n + 1];
+        for (int i = n - 1; i >= 0; i--)
+            remaining[i] = remaining[i + 1] + values[i];
+        boolean[] current = new boolean[n];
+        boolean[] best = null;
+        long bestExcess = Long.MAX_VALUE;
+        long currentValue = 0;
+        int depth = 0;
+        for (int tries = 0; tries < maxTries; tries++) {
+            boolean backtrack = false;
+            if (currentValue + remaining[depth] < target) {
+                backtrack = true;  // Can't reach the target any more.
+            } else if (currentValue > target + costOfChange) {
+                backtrack = true;  // Overshot.
+            } else if (currentValue >= target) {
+                long excess = currentValue - target;
+                if (excess < bestExcess) {
+                    bestExcess = excess;
+                    best = current.clone();
+                    if (excess == 0)
+                        break;
+                }
+                backtrack = true;
+            } else if (depth == n) {
+                backtrack = true;
+            }
+            if (backtrack) {
+                // Walk back to the last included output and exclude it instead. Everything at or past the new
+                // depth is then excluded, so nothing needs clearing.
+                depth--;
+                while (depth >= 0 && !current[depth])
+                    depth--;
+                if (depth < 0)
+                    break;  // Searched everything.
+                current[depth] = false;
+                currentValue -= values[depth];
+                depth++;
+            } else {
+                // Include the next output.
+                current[depth] = true;
+                currentValue += values[depth];
+                depth++;
+            }
+        }
+        return best;
+    }
+
+    // Randomized approximation of the subset of outputs smaller than the target with the least excess, compared with
+    // the smallest output that covers the target on its own. Always returns a selection reaching the target, as the
+    // caller checked there is enough value in total.
+    private boolean[] knapsack(long[] values, long target) {
+        int n = values.length;
+        boolean[] best = new boolean[n];
+        // Values are in descending order, so the smaller ones form a suffix.
+        int firstSmaller = 0;
+        while (firstSmaller < n && values[firstSmaller] >= target)
+            firstSmaller++;
+        int smallestLarger = firstSmaller - 1;
+        long smallerTotal = 0;
+        for (int i = firstSmaller; i < n; i++)
+            smallerTotal += values[i];
+
+        if (smallerTotal < target) {
+            // Only a single larger output can do it, and there must be one.
+            best[smallestLarger] = true;
+            return best;
+        }
+        if (smallerTotal == target) {
+            for (int i = firstSmaller; i < n; i++)
+                best[i] = true;
+            return best;
+        }
+
+        int count = n - firstSmaller;
+        int iterations = Math.max(1, Math.min(KNAPSACK_ITERATIONS, MAX_KNAPSACK_WORK / (2 * count)));
+        boolean[] bestSubset = new boolean[count];
+        for (int i = 0; i < count; i++)
+            bestSubset[i] = true;
+        long bestValue = smallerTotal;
+        boolean[] included = new boolean[count];
+        for (int rep = 0; rep < iterations && bestValue != target; rep++) {
+            for (int i = 0; i < count; i++)
+                included[i] = false;
+            long value = 0;
+            boolean reached = false;
+            // First pass includes outputs at random, the second fills up with what's left.
+            for (int pass = 0; pass < 2 && !reached; pass++) {
+                for (int i = 0; i < count; i++) {
+                    if (pass == 0 ? random.nextBoolean() : !included[i]) {
+                        value += values[firstSmaller + i];
+                        included[i] = true;
+                        if (value >= target) {
+                            reached = true;
+                            if (value < bestValue) {
+                                bestValue = value;
+                                System.arraycopy(included, 0, bestSubset, 0, count);
+                            }
+                            // Try without this one, maybe a later smaller one fits better.
+                            value -= values[firstSmaller + i];
+                            included[i] = false;
+                        }
+                    }
+                }
+            }
+        }
+
+        // Prefer the single larger output if it wastes no more than the subset, as it makes a smaller transaction.
+        if (smallestLarger >= 0 && values[smallestLarger] <= bestValue) {
+            best[smallestLarger] = true;
+        } else {
+            for (int i = 0; i < count; i++)
+                best[firstSmaller + i] = bestSubset[i];
+        }
+        return best;
+    }
+}
@@ -22,18 +22,22 @@ import org.spongycastle.crypto.params.KeyParameter;
 import javax.annotation.Nullable;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
  * A DecryptingKeyBag filters a pre-existing key bag, decrypting keys as they are requested using the provided
  * AES key. If the keys are encrypted and no AES key provided, {@link org.bitcoinj.core.ECKey.KeyIsEncryptedException}
- * will be thrown.
+ * will be thrown. Each key is decrypted only once, so a bag should not outlive the operation it was created for.
  */
 public class DecryptingKeyBag implements KeyBag {
     protected final KeyBag target;
     protected final KeyParameter aesKey;
+    // A transaction often spends several outputs of the same key, which is then only decrypted once.
+    private final Map<ECKey, ECKey> decryptedKeys = new HashMap<ECKey, ECKey>();
 
     public DecryptingKeyBag(KeyBag target, @Nullable KeyParameter aesKey) {
         this.target = checkNotNull(target);
@@ -47,7 +51,12 @@ public class DecryptingKeyBag implements KeyBag {
         else if (key.isEncrypted()) {
             if (aesKey == null)
                 throw new ECKey.KeyIsEncryptedException();
-            return key.decrypt(aesKey);
+            ECKey decryptedKey = decryptedKeys.get(key);
+            if (decryptedKey == null) {
+                decryptedKey = key.decrypt(aesKey);
+                decryptedKeys.put(key, decryptedKey);
+            }
+            return decryptedKey;
         } else {
             return key;
         }
@@ -1052,6 +1052,19 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
 
     }
 
+    /**
+     * Returns the data elements {@link #getFilter(int, double, long)} inserts, including those of the lookahead zone.
+     */
+    public List<byte[]> getFilterElements() {
+        lock.lock();
+        try {
+            maybeLookAhead();
+            return basicKeyChain.getFilterElements();
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * <p>The number of public keys we should pre-generate on each path before they are requested by the app. This is
      * required so that when scanning through the chain given only a seed, we can give enough keys to the remote node
@@ -1164,13 +1177,10 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
 
         List<DeterministicKey> result  = new ArrayList<DeterministicKey>(needed);
         final Stopwatch watch = Stopwatch.createStarted();
-        int nextChild = numChildren;
-        for (int i = 0; i < needed; i++) {
-            DeterministicKey key = HDKeyDerivation.deriveThisOrNextChildKey(parent, nextChild);
+        for (DeterministicKey key : HDKeyDerivation.deriveChildKeys(parent, new ChildNumber(numChildren, false), needed)) {
             key = key.dropPrivateBytes();
             hierarchy.putKey(key);
             result.add(key);
-            nextChild = key.getChildNumber().num() + 1;
         }
         watch.stop();
         log.info("Took {}", watch);
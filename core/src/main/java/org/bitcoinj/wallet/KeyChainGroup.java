@@ -184,6 +184,20 @@ public class KeyChainGroup implements KeyBag {
         }
     }
 
+    /**
+     * Returns the address {@link #currentAddress(KeyChain.KeyPurpose)} would return, or null if it would have to issue
+     * a key or create a chain to answer.
+     */
+    @Nullable
+    Address peekCurrentAddress(KeyChain.KeyPurpose purpose) {
+        if (chains.isEmpty())
+            return null;
+        if (getActiveKeyChain().isMarried())
+            return currentAddresses.get(purpose);
+        DeterministicKey current = currentKeys.get(purpose);
+        return current == null ? null : current.toAddress(params);
+    }
+
     /**
      * Returns a key that has not been returned by this method before (fresh). You can think of this as being
      * a newly created key, although the notion of "create" is not really valid for a
@@ -326,13 +340,11 @@ public class KeyChainGroup implements KeyBag {
     public int importKeysAndEncrypt(final List<ECKey> keys, KeyParameter aesKey) {
         // TODO: Firstly check if the aes key can decrypt any of the existing keys successfully.
         checkState(keyCrypter != null, "Not encrypted");
-        LinkedList<ECKey> encryptedKeys = Lists.newLinkedList();
         for (ECKey key : keys) {
             if (key.isEncrypted())
                 throw new IllegalArgumentException("Cannot provide already encrypted keys");
-            encryptedKeys.add(key.encrypt(keyCrypter, aesKey));
         }
-        return importKeys(encryptedKeys);
+        return importKeys(BasicKeyChain.encryptKeys(keys, keyCrypter, aesKey));
     }
 
     @Override
@@ -480,7 +492,7 @@ public class KeyChainGroup implements KeyBag {
 
     /**
      * Encrypt the keys in the group using the KeyCrypter and the AES key. A good default KeyCrypter to use is
-     * {@link org.bitcoinj.crypto.KeyCrypterScrypt}.
+     * {@link org.bitcoinj.crypto.KeyCrypterScrypt}. Large numbers of imported keys are encrypted in parallel.
      *
      * @throws org.bitcoinj.crypto.KeyCrypterException Thrown if the wallet encryption fails for some reason,
      *         leaving the group unchanged.
@@ -507,7 +519,8 @@ public class KeyChainGroup implements KeyBag {
 
     /**
      * Decrypt the keys in the group using the previously given key crypter and the AES key. A good default
-     * KeyCrypter to use is {@link org.bitcoinj.crypto.KeyCrypterScrypt}.
+     * KeyCrypter to use is {@link org.bitcoinj.crypto.KeyCrypterScrypt}. Large numbers of imported keys are decrypted
+     * in parallel.
      *
      * @throws org.bitcoinj.crypto.KeyCrypterException Thrown if the wallet decryption fails for some reason, leaving the group unchanged.
      */
@@ -594,6 +607,14 @@ public class KeyChainGroup implements KeyBag {
         return filter;
     }
 
+    /** Returns the data elements that {@link #getBloomFilter(int, double, long)} inserts into the filter. */
+    public List<byte[]> getBloomFilterElements() {
+        List<byte[]> elements = basic.getFilterElements();
+        for (DeterministicKeyChain chain : chains)
+            elements.addAll(chain.getFilterElements());
+        return elements;
+    }
+
     /** {@inheritDoc} */
     public boolean isRequiringUpdateAllBloomFilter() {
         throw new UnsupportedOperationException();   // Unused.
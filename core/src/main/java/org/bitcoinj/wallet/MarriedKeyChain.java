@@ -292,6 +292,21 @@ public class MarriedKeyChain extends DeterministicKeyChain {
         return filter;
     }
 
+    @Override
+    public List<byte[]> getFilterElements() {
+        lock.lock();
+        try {
+            List<byte[]> elements = Lists.newArrayListWithCapacity(marriedKeysRedeemData.size() * 2);
+            for (Map.Entry<ByteString, RedeemData> entry : marriedKeysRedeemData.entrySet()) {
+                elements.add(entry.getKey().toByteArray());
+                elements.add(entry.getValue().redeemScript.getProgram());
+            }
+            return elements;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public int numBloomFilterEntries() {
         maybeLookAhead();
@@ -109,8 +109,9 @@ public class SendRequest {
 
     /**
      * The AES key to use to decrypt the private keys before signing.
-     * If null then no decryption will be performed and if decryption is required an exception will be thrown.
-     * You can get this from a password by doing wallet.getKeyCrypter().deriveKey(password).
+     * If null then the key the wallet was unlocked with is used, see {@link Wallet#unlockKeys(CharSequence, long,
+     * java.util.concurrent.TimeUnit)}. If there is none, no decryption will be performed and if decryption is required
+     * an exception will be thrown. You can get this from a password by doing wallet.getKeyCrypter().deriveKey(password).
      */
     public KeyParameter aesKey = null;
 
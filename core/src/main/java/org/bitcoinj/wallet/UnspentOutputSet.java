@@ -0,0 +1,107 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.TransactionOutput;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * <p>The set of outputs a {@link Wallet} could spend. Membership tests are hash based as for any {@link HashSet}, but
+ * iteration is in order of descending value, because a second, value ordered index is kept up to date alongside. Spend
+ * candidates gathered by iterating the set are thus already sorted, and coin selectors such as
+ * {@link BranchAndBoundCoinSelector} don't need to sort them on every send.</p>
+ *
+ * <p>The value of an output must not change while it is in the set.</p>
+ */
+public class UnspentOutputSet extends HashSet<TransactionOutput> {
+    /** Orders outputs by descending value, then by outpoint. */
+    public static final Comparator<TransactionOutput> DESCENDING_VALUE = new Comparator<TransactionOutput>() {
+        @Override
+        public int compare(TransactionOutput a, TransactionOutput b) {
+            int c = Longs.compare(b.getValue().value, a.getValue().value);
+            if (c != 0) return c;
+            Sha256Hash aHash = a.getParentTransactionHash(), bHash = b.getParentTransactionHash();
+            if (aHash != null && bHash != null) {
+                c = aHash.compareTo(bHash);
+                if (c != 0) return c;
+                c = Ints.compare(a.getIndex(), b.getIndex());
+                if (c != 0) return c;
+            } else if (aHash != bHash) {
+                return aHash == null ? -1 : 1;
+            }
+            if (a.equals(b)) return 0;
+            // Distinct objects for the same outpoint. They shouldn't exist but mustn't be merged if they do.
+            return Ints.compare(System.identityHashCode(a), System.identityHashCode(b));
+        }
+    };
+
+    private final TreeSet<TransactionOutput> byValue = new TreeSet<TransactionOutput>(DESCENDING_VALUE);
+
+    @Override
+    public boolean add(TransactionOutput output) {
+        if (!super.add(output))
+            return false;
+        byValue.add(output);
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!super.remove(o))
+            return false;
+        byValue.remove(o);
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        byValue.clear();
+    }
+
+    /** Iterates over the outputs in order of descending value. */
+    @Override
+    public Iterator<TransactionOutput> iterator() {
+        final Iterator<TransactionOutput> it = byValue.iterator();
+        return new Iterator<TransactionOutput>() {
+            private TransactionOutput last;
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public TransactionOutput next() {
+                return last = it.next();
+            }
+
+            @Override
+            public void remove() {
+                it.remove();
+                UnspentOutputSet.super.remove(last);
+            }
+        };
+    }
+}
@@ -19,6 +19,7 @@ package org.bitcoinj.wallet;
 
 import com.google.common.annotations.*;
 import com.google.common.base.*;
+import com.google.common.base.Objects;
 import com.google.common.collect.*;
 import com.google.common.primitives.*;
 import com.google.common.util.concurrent.*;
@@ -125,7 +126,6 @@ import static com.google.common.base.Preconditions.*;
 public class Wallet extends BaseTaggableObject
     implements NewBestBlockListener, TransactionReceivedInBlockListener, PeerFilterProvider, KeyBag, TransactionBag, ReorganizeListener {
     private static final Logger log = LoggerFactory.getLogger(Wallet.class);
-    private static final int MINIMUM_BLOOM_DATA_LENGTH = 8;
 
     // Ordering: lock > keyChainGroupLock. KeyChainGroup is protected separately to allow fast querying of current receive address
     // even if the wallet itself is busy e.g. saving or processing a big reorg. Useful for reducing UI latency.
@@ -160,8 +160,9 @@ public class Wallet extends BaseTaggableObject
     protected final Map<Sha256Hash, Transaction> transactions;
 
     // All the TransactionOutput objects that we could spend (ignoring whether we have the private key or not).
-    // Used to speed up various calculations.
-    protected final HashSet<TransactionOutput> myUnspents = Sets.newHashSet();
+    // Used to speed up various calculations. Iterates in order of descending value, so spend candidates come out
+    // sorted for the coin selectors.
+    protected final HashSet<TransactionOutput> myUnspents = new UnspentOutputSet();
 
     // Transactions that were dropped by the risk analysis system. These are not in any pools and not serialized
     // to disk. We have to keep them around because if we ignore a tx because we think it will never confirm, but
@@ -181,8 +182,11 @@ public class Wallet extends BaseTaggableObject
     // outside the wallet lock. So don't expose this object directly via any accessors!
     @GuardedBy("keyChainGroupLock") private KeyChainGroup keyChainGroup;
 
-    // A list of scripts watched by this wallet.
-    @GuardedBy("keyChainGroupLock") private Set<Script> watchedScripts;
+    // The AES key while the wallet is unlocked, see unlockKeys(). Thread safe by itself.
+    private final SessionKeyCache sessionKey = new SessionKeyCache();
+
+    // The scripts watched by this wallet.
+    @GuardedBy("keyChainGroupLock") private WatchedScriptIndex watchedScripts;
 
     protected final Context context;
     protected final NetworkParameters params;
@@ -223,6 +227,14 @@ public class Wallet extends BaseTaggableObject
     // side effect of how the code is written (e.g. during re-orgs confidence data gets adjusted multiple times).
     private int onWalletChangedSuppressions;
     private boolean insideReorg;
+    // The read-only view returned by getSnapshot(), published at the end of each batch of changes. Only the parts of
+    // it that changed are rebuilt: snapshotChanges holds the hashes of the transactions added to, removed from or
+    // moved between the pools since the last one, and vSnapshotRecalculate is set when the balances or watched outputs
+    // may have changed for other reasons (coin selector, watched scripts).
+    private volatile WalletSnapshot vSnapshot;
+    @GuardedBy("lock") private final Set<Sha256Hash> snapshotChanges = new HashSet<Sha256Hash>();
+    private volatile boolean vSnapshotRecalculate;
+    @GuardedBy("keyChainGroupLock") private long snapshotVersion;
     private Map<Transaction, TransactionConfidence.Listener.ChangeReason> confidenceChanged;
     protected volatile WalletFiles vFileManager;
     // Object that is used to send transactions asynchronously when the wallet requires it.
@@ -318,18 +330,55 @@ public class Wallet extends BaseTaggableObject
         // we're probably being deserialized so leave things alone: the API user can upgrade later.
         if (this.keyChainGroup.numKeys() == 0)
             this.keyChainGroup.createAndActivateNewHDChain();
-        watchedScripts = Sets.newHashSet();
-        unspent = new HashMap<Sha256Hash, Transaction>();
-        spent = new HashMap<Sha256Hash, Transaction>();
-        pending = new HashMap<Sha256Hash, Transaction>();
-        dead = new HashMap<Sha256Hash, Transaction>();
-        transactions = new HashMap<Sha256Hash, Transaction>();
+        watchedScripts = new WatchedScriptIndex();
+        unspent = new PoolMap();
+        spent = new PoolMap();
+        pending = new PoolMap();
+        dead = new PoolMap();
+        transactions = new PoolMap();
         extensions = new HashMap<String, WalletExtension>();
         // Use a linked hash map to ensure ordering of event listeners is correct.
         confidenceChanged = new LinkedHashMap<Transaction, TransactionConfidence.Listener.ChangeReason>();
         signers = new ArrayList<TransactionSigner>();
         addTransactionSigner(new LocalTransactionSigner());
         createTransientState();
+        vSnapshot = WalletSnapshot.empty();
+        lock.lock();
+        try {
+            publishSnapshot();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // A transaction pool that notes the hashes it changes in snapshotChanges. Removal through the views isn't seen,
+    // so it has to be paired with a removal from the transactions map, as cleanup() does.
+    private class PoolMap extends HashMap<Sha256Hash, Transaction> {
+        @Override
+        public Transaction put(Sha256Hash hash, Transaction tx) {
+            snapshotChanges.add(hash);
+            return super.put(hash, tx);
+        }
+
+        @Override
+        public void putAll(Map<? extends Sha256Hash, ? extends Transaction> m) {
+            snapshotChanges.addAll(m.keySet());
+            super.putAll(m);
+        }
+
+        @Override
+        public Transaction remove(Object hash) {
+            Transaction tx = super.remove(hash);
+            if (tx != null)
+                snapshotChanges.add(tx.getHash());
+            return tx;
+        }
+
+        @Override
+        public void clear() {
+            snapshotChanges.addAll(keySet());
+            super.clear();
+        }
     }
 
     private void createTransientState() {
@@ -412,7 +461,10 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             maybeUpgradeToHD();
-            return keyChainGroup.currentKey(purpose);
+            DeterministicKey key = keyChainGroup.currentKey(purpose);
+            if (purpose == KeyChain.KeyPurpose.RECEIVE_FUNDS)
+                maybePublishSnapshotAddress();
+            return key;
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -433,7 +485,10 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             maybeUpgradeToHD();
-            return keyChainGroup.currentAddress(purpose);
+            Address address = keyChainGroup.currentAddress(purpose);
+            if (purpose == KeyChain.KeyPurpose.RECEIVE_FUNDS)
+                maybePublishSnapshotAddress();
+            return address;
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -473,6 +528,8 @@ public class Wallet extends BaseTaggableObject
         try {
             maybeUpgradeToHD();
             keys = keyChainGroup.freshKeys(purpose, numberOfKeys);
+            if (purpose == KeyChain.KeyPurpose.RECEIVE_FUNDS)
+                maybePublishSnapshotAddress();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -498,6 +555,8 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             key = keyChainGroup.freshAddress(purpose);
+            if (purpose == KeyChain.KeyPurpose.RECEIVE_FUNDS)
+                maybePublishSnapshotAddress();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -593,7 +652,7 @@ public class Wallet extends BaseTaggableObject
     public List<Script> getWatchedScripts() {
         keyChainGroupLock.lock();
         try {
-            return new ArrayList<Script>(watchedScripts);
+            return watchedScripts.getScripts();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -888,15 +947,14 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             for (final Script script : scripts) {
-                // Script.equals/hashCode() only takes into account the program bytes, so this step lets the user replace
-                // a script in the wallet with an incorrect creation time.
-                if (watchedScripts.contains(script))
-                    watchedScripts.remove(script);
+                // Script.equals/hashCode() only takes into account the program bytes, so adding an existing script
+                // lets the user replace a script in the wallet with an incorrect creation time.
                 if (script.getCreationTimeSeconds() == 0)
                     log.warn("Adding a script to the wallet with a creation time of zero, this will disable the checkpointing optimization!    {}", script);
                 watchedScripts.add(script);
                 added++;
             }
+            vSnapshotRecalculate = true;
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -938,21 +996,17 @@ public class Wallet extends BaseTaggableObject
      * @return true if successful
      */
     public boolean removeWatchedScripts(final List<Script> scripts) {
-        lock.lock();
+        keyChainGroupLock.lock();
         try {
-            for (final Script script : scripts) {
-                if (!watchedScripts.contains(script))
-                    continue;
-
+            for (final Script script : scripts)
                 watchedScripts.remove(script);
-            }
-
-            queueOnScriptsChanged(scripts, false);
-            saveNow();
-            return true;
+            vSnapshotRecalculate = true;
         } finally {
-            lock.unlock();
+            keyChainGroupLock.unlock();
         }
+        queueOnScriptsChanged(scripts, false);
+        saveNow();
+        return true;
     }
 
     /**
@@ -961,11 +1015,7 @@ public class Wallet extends BaseTaggableObject
     public List<Address> getWatchedAddresses() {
         keyChainGroupLock.lock();
         try {
-            List<Address> addresses = new LinkedList<Address>();
-            for (Script script : watchedScripts)
-                if (script.isSentToAddress())
-                    addresses.add(script.getToAddress(params));
-            return addresses;
+            return watchedScripts.getAddresses(params);
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1082,6 +1132,8 @@ public class Wallet extends BaseTaggableObject
                     log.warn("Could not parse tx output script: {}", e.toString());
                 }
             }
+            // The current receive key may have been used up and replaced.
+            maybePublishSnapshotAddress();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1127,6 +1179,7 @@ public class Wallet extends BaseTaggableObject
         try {
             final KeyCrypterScrypt scrypt = new KeyCrypterScrypt();
             keyChainGroup.encrypt(scrypt, scrypt.deriveKey(password));
+            sessionKey.clear();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1145,6 +1198,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keyChainGroup.encrypt(keyCrypter, aesKey);
+            sessionKey.clear();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1161,6 +1215,7 @@ public class Wallet extends BaseTaggableObject
             final KeyCrypter crypter = keyChainGroup.getKeyCrypter();
             checkState(crypter != null, "Not encrypted");
             keyChainGroup.decrypt(crypter.deriveKey(password));
+            sessionKey.clear();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1177,6 +1232,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keyChainGroup.decrypt(aesKey);
+            sessionKey.clear();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1213,6 +1269,68 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * <p>Unlocks an encrypted wallet for the given time. The AES key is derived from the password once and kept in
+     * memory, and transactions are then signed with it when their {@link SendRequest#aesKey} is null. This saves
+     * running the key derivation for every spend, which for {@link KeyCrypterScrypt} takes a good fraction of a
+     * second.</p>
+     *
+     * <p>The key is wiped when the time is up, or on {@link #lockKeys()}, or when the wallet is encrypted or
+     * decrypted.</p>
+     *
+     * @throws KeyCrypterException if the password is wrong.
+     * @throws IllegalStateException if the wallet is not encrypted.
+     */
+    public void unlockKeys(CharSequence password, long timeout, TimeUnit unit) {
+        KeyCrypter crypter = getKeyCrypter();
+        checkState(crypter != null, "Not encrypted");
+        // Deriving the key is slow, so don't hold the lock meanwhile.
+        KeyParameter aesKey = crypter.deriveKey(password);
+        try {
+            unlockKeys(aesKey, timeout, unit);
+        } finally {
+            Arrays.fill(aesKey.getKey(), (byte) 0);
+        }
+    }
+
+    /**
+     * Unlocks an encrypted wallet for the given time with an already derived AES key, see
+     * {@link #unlockKeys(CharSequence, long, TimeUnit)}. The wallet keeps its own copy of the key.
+     *
+     * @throws KeyCrypterException if the key is wrong.
+     * @throws IllegalStateException if the wallet is not encrypted.
+     */
+    public void unlockKeys(KeyParameter aesKey, long timeout, TimeUnit unit) {
+        keyChainGroupLock.lock();
+        try {
+            checkState(keyChainGroup.isEncrypted(), "Not encrypted");
+            if (!keyChainGroup.checkAESKey(aesKey))
+                throw new KeyCrypterException("Password/key was incorrect.");
+            sessionKey.put(aesKey, timeout, unit);
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
+    /** Wipes the AES key kept by {@link #unlockKeys(CharSequence, long, TimeUnit)}, if any. */
+    public void lockKeys() {
+        sessionKey.clear();
+    }
+
+    /** Returns true if the wallet was unlocked with {@link #unlockKeys(CharSequence, long, TimeUnit)} and hasn't timed out. */
+    public boolean isUnlocked() {
+        return sessionKey.hasKey();
+    }
+
+    /**
+     * Returns a copy of the AES key kept by {@link #unlockKeys(CharSequence, long, TimeUnit)}, or null if the wallet
+     * isn't unlocked. Callers should not keep it around.
+     */
+    @Nullable
+    public KeyParameter getSessionKey() {
+        return sessionKey.get();
+    }
+
     /**
      * Get the wallet's KeyCrypter, or null if the wallet is not encrypted.
      * (Used in encrypting/ decrypting an ECKey).
@@ -2741,6 +2859,7 @@ public class Wallet extends BaseTaggableObject
         checkState(lock.isHeldByCurrentThread());
         checkState(onWalletChangedSuppressions >= 0);
         if (onWalletChangedSuppressions > 0) return;
+        publishSnapshot();
         for (final ListenerRegistration<WalletChangeEventListener> registration : changeListeners) {
             registration.executor.execute(new Runnable() {
                 @Override
@@ -2824,6 +2943,110 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * <p>Returns an immutable view of the wallet as of the last completed batch of changes, for example the last block
+     * or pending transaction received. Unlike the query methods of the wallet itself, neither this method nor reading
+     * from the snapshot ever waits for the wallet lock, which may be held for a long time while catching up with the
+     * block chain.</p>
+     *
+     * <p>Snapshots are published by the thread changing the wallet, at the end of each batch of changes. Building one
+     * only copies what changed since the previous one, so the cost is proportional to the size of the change rather
+     * than the size of the wallet.</p>
+     */
+    public WalletSnapshot getSnapshot() {
+        return vSnapshot;
+    }
+
+    /** Publishes a snapshot of the wallet as it is now, for when it was changed outside of the usual batches. */
+    void refreshSnapshot() {
+        lock.lock();
+        try {
+            publishSnapshot();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Handing out a receive address doesn't change the wallet as far as the change listeners are concerned, but it
+    // changes the snapshot, so publish a copy of the current one with the new address.
+    private void maybePublishSnapshotAddress() {
+        checkState(keyChainGroupLock.isHeldByCurrentThread());
+        WalletSnapshot snapshot = vSnapshot;
+        if (snapshot == null)
+            return;
+        Address address = keyChainGroup.peekCurrentAddress(KeyChain.KeyPurpose.RECEIVE_FUNDS);
+        if (!Objects.equal(address, snapshot.currentReceiveAddress()))
+            vSnapshot = snapshot.withReceiveAddress(++snapshotVersion, address);
+    }
+
+    private void publishSnapshot() {
+        checkState(lock.isHeldByCurrentThread());
+        WalletSnapshot previous = vSnapshot;
+        boolean recalculate = vSnapshotRecalculate;
+        vSnapshotRecalculate = false;
+
+        ImmutableList<ImmutableMap<Sha256Hash, Transaction>> buckets = previous.getBuckets();
+        ImmutableSet<Sha256Hash> deadHashes = previous.getDead();
+        boolean poolsChanged = !snapshotChanges.isEmpty();
+        if (poolsChanged) {
+            // Rebuild only the buckets holding a changed transaction, from the previous bucket and the pools.
+            Map<Integer, Map<Sha256Hash, Transaction>> changedBuckets = new HashMap<Integer, Map<Sha256Hash, Transaction>>();
+            boolean deadChanged = false;
+            for (Sha256Hash hash : snapshotChanges) {
+                int bucket = WalletSnapshot.bucketOf(hash);
+                Map<Sha256Hash, Transaction> contents = changedBuckets.get(bucket);
+                if (contents == null) {
+                    contents = new HashMap<Sha256Hash, Transaction>(buckets.get(bucket));
+                    changedBuckets.put(bucket, contents);
+                }
+                Transaction tx = transactions.get(hash);
+                if (tx != null)
+                    contents.put(hash, tx);
+                else
+                    contents.remove(hash);
+                deadChanged |= dead.containsKey(hash) || deadHashes.contains(hash);
+            }
+            ImmutableList.Builder<ImmutableMap<Sha256Hash, Transaction>> builder = ImmutableList.builder();
+            for (int i = 0; i < buckets.size(); i++) {
+                Map<Sha256Hash, Transaction> contents = changedBuckets.get(i);
+                builder.add(contents == null ? buckets.get(i) : ImmutableMap.copyOf(contents));
+            }
+            buckets = builder.build();
+            if (deadChanged)
+                deadHashes = ImmutableSet.copyOf(dead.keySet());
+            snapshotChanges.clear();
+        }
+
+        // Besides the pools, the balances depend on the confidence of pending transactions and on the chain height,
+        // which matures coinbases. If neither can make a difference the previous balances still hold.
+        Map<BalanceType, Coin> balances = previous.getBalances();
+        if (poolsChanged || recalculate || !pending.isEmpty()
+                || !balances.get(BalanceType.AVAILABLE).equals(balances.get(BalanceType.ESTIMATED))
+                || !balances.get(BalanceType.AVAILABLE_SPENDABLE).equals(balances.get(BalanceType.ESTIMATED_SPENDABLE))) {
+            EnumMap<BalanceType, Coin> calculated = new EnumMap<BalanceType, Coin>(BalanceType.class);
+            for (BalanceType type : BalanceType.values())
+                calculated.put(type, getBalance(type));
+            balances = calculated;
+        }
+        List<TransactionOutput> watchedOutputs = previous.getWatchedOutputs(false);
+        List<TransactionOutput> matureWatchedOutputs = previous.getWatchedOutputs(true);
+        if (poolsChanged || recalculate || watchedOutputs.size() != matureWatchedOutputs.size()) {
+            watchedOutputs = getWatchedOutputs(false);
+            matureWatchedOutputs = getWatchedOutputs(true);
+        }
+
+        keyChainGroupLock.lock();
+        try {
+            // Published under the key chain lock, so it can't replace a snapshot with a newer receive address.
+            vSnapshot = new WalletSnapshot(++snapshotVersion, lastBlockSeenHash, lastBlockSeenHeight,
+                    lastBlockSeenTimeSecs, balances, buckets, deadHashes, ImmutableList.copyOf(watchedOutputs),
+                    ImmutableList.copyOf(matureWatchedOutputs),
+                    keyChainGroup.peekCurrentAddress(KeyChain.KeyPurpose.RECEIVE_FUNDS));
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
     /**
      * Returns a set of all WalletTransactions in the wallet.
      */
@@ -2997,6 +3220,7 @@ public class Wallet extends BaseTaggableObject
         try {
             if (fromHeight == 0) {
                 clearTransactions();
+                publishSnapshot();
                 saveLater();
             } else {
                 throw new UnsupportedOperationException();
@@ -3213,7 +3437,7 @@ public class Wallet extends BaseTaggableObject
 
             if (!watchedScripts.isEmpty()) {
                 builder.append("\nWatched scripts:\n");
-                for (Script script : watchedScripts) {
+                for (Script script : watchedScripts.getScripts()) {
                     builder.append("  ").append(script).append("\n");
                 }
             }
@@ -3307,9 +3531,8 @@ public class Wallet extends BaseTaggableObject
     public long getEarliestKeyCreationTime() {
         keyChainGroupLock.lock();
         try {
-            long earliestTime = keyChainGroup.getEarliestKeyCreationTime();
-            for (Script script : watchedScripts)
-                earliestTime = Math.min(script.getCreationTimeSeconds(), earliestTime);
+            long earliestTime = Math.min(keyChainGroup.getEarliestKeyCreationTime(),
+                    watchedScripts.getEarliestCreationTime());
             if (earliestTime == Long.MAX_VALUE)
                 return Utils.currentTimeSeconds();
             return earliestTime;
@@ -4038,6 +4261,8 @@ public class Wallet extends BaseTaggableObject
      * transaction will be complete in the end.</p>
      */
     public void signTransaction(SendRequest req) {
+        // A copy of the session key, ours to wipe once signing is done.
+        KeyParameter sessionAesKey = null;
         lock.lock();
         try {
             Transaction tx = req.tx;
@@ -4046,7 +4271,10 @@ public class Wallet extends BaseTaggableObject
             checkState(inputs.size() > 0);
             checkState(outputs.size() > 0);
 
-            KeyBag maybeDecryptingKeyBag = new DecryptingKeyBag(this, req.aesKey);
+            if (req.aesKey == null)
+                sessionAesKey = sessionKey.get();
+            KeyParameter aesKey = req.aesKey != null ? req.aesKey : sessionAesKey;
+            KeyBag maybeDecryptingKeyBag = new DecryptingKeyBag(this, aesKey);
 
             int numInputs = tx.getInputs().size();
             for (int i = 0; i < numInputs; i++) {
@@ -4083,6 +4311,8 @@ public class Wallet extends BaseTaggableObject
             // resolve missing sigs if any
             new MissingSigResolutionSigner(req.missingSigsMode).signInputs(proposal, maybeDecryptingKeyBag);
         } finally {
+            if (sessionAesKey != null)
+                Arrays.fill(sessionAesKey.getKey(), (byte) 0);
             lock.unlock();
         }
     }
@@ -4261,6 +4491,7 @@ public class Wallet extends BaseTaggableObject
         lock.lock();
         try {
             this.coinSelector = checkNotNull(coinSelector);
+            vSnapshotRecalculate = true;
         } finally {
             lock.unlock();
         }
@@ -4664,16 +4895,9 @@ public class Wallet extends BaseTaggableObject
         beginBloomFilterCalculation();
         try {
             BloomFilter filter = keyChainGroup.getBloomFilter(size, falsePositiveRate, nTweak);
-            for (Script script : watchedScripts) {
-                for (ScriptChunk chunk : script.getChunks()) {
-                    // Only add long (at least 64 bit) data to the bloom filter.
-                    // If any long constants become popular in scripts, we will need logic
-                    // here to exclude them.
-                    if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH) {
-                        filter.insert(chunk.data);
-                    }
-                }
-            }
+            // Only long (at least 64 bit) data of watched scripts is added to the bloom filter. The index keeps its
+            // part of the filter up to date as scripts are added, so this doesn't have to go over all of them.
+            watchedScripts.mergeInto(filter, size, falsePositiveRate, nTweak);
             for (TransactionOutPoint point : bloomOutPoints)
                 filter.insert(point.unsafeBitcoinSerialize());
             return filter;
@@ -4682,6 +4906,25 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Returns the data elements that {@link #getBloomFilter(int, double, long)} inserts into the filter: public keys
+     * and their hashes, data pushed by watched scripts and the outpoints of outputs that can't be matched by the
+     * spending input's scriptSig alone. This lets an owner of many wallets, like {@link WalletHost}, build its own
+     * index of them.
+     */
+    public List<byte[]> getBloomFilterElements() {
+        beginBloomFilterCalculation();
+        try {
+            List<byte[]> elements = keyChainGroup.getBloomFilterElements();
+            elements.addAll(watchedScripts.getBloomFilterElements());
+            for (TransactionOutPoint point : bloomOutPoints)
+                elements.add(point.unsafeBitcoinSerialize());
+            return elements;
+        } finally {
+            endBloomFilterCalculation();
+        }
+    }
+
     // Returns true if the output is one that won't be selected by a data element matching in the scriptSig.
     private boolean isTxOutputBloomFilterable(TransactionOutput out) {
         Script script = out.getScriptPubKey();
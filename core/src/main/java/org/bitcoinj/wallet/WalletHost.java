@@ -0,0 +1,554 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.core.listeners.OnTransactionBroadcastListener;
+import org.bitcoinj.core.listeners.TransactionReceivedInBlockListener;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptChunk;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.listeners.KeyChainEventListener;
+import org.bitcoinj.wallet.listeners.ScriptsChangeEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+import com.google.protobuf.ByteString;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Hosts many wallets on a single {@link AbstractBlockChain} and {@link PeerGroup}.</p>
+ *
+ * <p>When wallets are added to a chain and a peer group directly, every transaction is offered to every wallet and
+ * the peer group merges the Bloom filters of all of them each time one changes. That is fine for a handful of
+ * wallets but not for thousands. A wallet host instead registers itself once, as the only transaction listener and
+ * filter provider. It keeps a combined index that maps every data element of its wallets (public keys, key hashes,
+ * watched script data and unspent outpoints) to the wallets owning it, and hands each transaction only to the wallets
+ * that one of its elements points to. Outpoints are dropped from the index once they are spent, and only those the
+ * wallets themselves would put in their filters, of outputs that a spend can't be matched by otherwise, go into the
+ * Bloom filter. The cost of routing a transaction thus depends on the size of the transaction, not
+ * on the number of wallets. The same index backs a single Bloom filter which is kept up to date as elements are
+ * added, rather than recalculated from all wallets.</p>
+ *
+ * <p>Wallets that are hosted must not also be added to the chain or peer group with their own addWallet methods.
+ * Pending transactions announced by peers are handed to the relevant wallets without downloading their
+ * dependencies first.</p>
+ *
+ * <p>The host never calls into a wallet while holding its own lock, because wallets call back into the host from
+ * their event listeners while holding theirs.</p>
+ */
+public class WalletHost implements TransactionReceivedInBlockListener, PeerFilterProvider {
+    private static final Logger log = LoggerFactory.getLogger(WalletHost.class);
+
+    protected final ReentrantLock lock = Threading.lock("wallethost");
+
+    private final CopyOnWriteArrayList<Wallet> wallets = new CopyOnWriteArrayList<Wallet>();
+    @GuardedBy("lock") private final Map<Wallet, WalletListener> walletListeners = Maps.newHashMap();
+
+    // Everything that goes into the Bloom filter, mapped to the wallets it belongs to.
+    @GuardedBy("lock") private final SetMultimap<ByteString, Wallet> elements = HashMultimap.create();
+    // Unspent outpoints of outputs the wallets own or watch, to route the transactions spending them. Only those in
+    // elements as well are part of the filter. Entries are removed when the outpoint is spent.
+    @GuardedBy("lock") private final SetMultimap<ByteString, Wallet> unspentOutPoints = HashMultimap.create();
+    // Outpoints spent by transactions in the wallets, so double spends of them are routed too. Not part of the filter.
+    @GuardedBy("lock") private final SetMultimap<ByteString, Wallet> spentOutPoints = HashMultimap.create();
+    // Transactions the wallets know about, to route notifications of them being included in a block.
+    @GuardedBy("lock") private final SetMultimap<Sha256Hash, Wallet> transactions = HashMultimap.create();
+
+    // The merged filter of all elements and the parameters it was built for. New elements are inserted as they come.
+    @GuardedBy("lock") @Nullable private BloomFilter filter;
+    @GuardedBy("lock") private int filterElements;
+    @GuardedBy("lock") private double filterFalsePositiveRate;
+    @GuardedBy("lock") private long filterTweak;
+
+    // Collected from the wallets at the start of a filter calculation, before taking the lock.
+    @GuardedBy("lock") private long calculationEarliestKeyCreationTime;
+    @GuardedBy("lock") private boolean calculationRequiresUpdateAll;
+
+    @Nullable private volatile AbstractBlockChain chain;
+    @Nullable private volatile PeerGroup peerGroup;
+
+    private final OnTransactionBroadcastListener pendingTransactionListener = new OnTransactionBroadcastListener() {
+        @Override
+        public void onTransaction(Peer peer, Transaction tx) {
+            receivePending(tx);
+        }
+    };
+
+    /** Adds the given wallet and indexes its keys, scripts and transactions. */
+    public void addWallet(Wallet wallet) {
+        checkNotNull(wallet);
+        WalletListener listener = new WalletListener(wallet);
+        lock.lock();
+        try {
+            checkState(!walletListeners.containsKey(wallet), "Wallet is already hosted");
+            walletListeners.put(wallet, listener);
+        } finally {
+            lock.unlock();
+        }
+        wallets.add(wallet);
+        wallet.addKeyChainEventListener(Threading.SAME_THREAD, listener);
+        wallet.addScriptChangeEventListener(Threading.SAME_THREAD, listener);
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, listener);
+        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, listener);
+        index(wallet);
+        for (Transaction tx : wallet.getTransactions(true))
+            indexTransaction(wallet, tx);
+        AbstractBlockChain chain = this.chain;
+        if (chain != null) {
+            chain.addNewBestBlockListener(Threading.SAME_THREAD, wallet);
+            chain.addReorganizeListener(Threading.SAME_THREAD, wallet);
+        }
+        PeerGroup peerGroup = this.peerGroup;
+        if (peerGroup != null) {
+            wallet.setTransactionBroadcaster(peerGroup);
+            peerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED);
+        }
+    }
+
+    /** Removes the given wallet from the host. The merged filter is rebuilt the next time it is needed. */
+    public void removeWallet(Wallet wallet) {
+        WalletListener listener;
+        lock.lock();
+        try {
+            listener = walletListeners.remove(wallet);
+            checkArgument(listener != null, "Wallet is not hosted");
+            Collection<Wallet> only = Collections.singleton(wallet);
+            elements.values().removeAll(only);
+            unspentOutPoints.values().removeAll(only);
+            spentOutPoints.values().removeAll(only);
+            transactions.values().removeAll(only);
+            filter = null;
+        } finally {
+            lock.unlock();
+        }
+        wallets.remove(wallet);
+        wallet.removeKeyChainEventListener(listener);
+        wallet.removeScriptChangeEventListener(listener);
+        wallet.removeCoinsReceivedEventListener(listener);
+        wallet.removeCoinsSentEventListener(listener);
+        AbstractBlockChain chain = this.chain;
+        if (chain != null) {
+            chain.removeNewBestBlockListener(wallet);
+            chain.removeReorganizeListener(wallet);
+        }
+        if (peerGroup != null)
+            wallet.setTransactionBroadcaster(null);
+    }
+
+    /** Returns the hosted wallets. */
+    public List<Wallet> getWallets() {
+        return ImmutableList.copyOf(wallets);
+    }
+
+    /**
+     * Registers the host with the given chain, so that hosted wallets receive the transactions in new blocks that are
+     * relevant to them and learn about new best blocks and re-orgs. A host can be connected to one chain at a time.
+     */
+    public void connect(AbstractBlockChain chain) {
+        checkState(this.chain == null, "Already connected to a chain");
+        this.chain = checkNotNull(chain);
+        chain.addTransactionReceivedListener(Threading.SAME_THREAD, this);
+        for (Wallet wallet : wallets) {
+            chain.addNewBestBlockListener(Threading.SAME_THREAD, wallet);
+            chain.addReorganizeListener(Threading.SAME_THREAD, wallet);
+        }
+    }
+
+    /** Unregisters the host and all hosted wallets from the given chain. */
+    public void disconnect(AbstractBlockChain chain) {
+        checkArgument(this.chain == chain, "Not connected to this chain");
+        chain.removeTransactionReceivedListener(this);
+        for (Wallet wallet : wallets) {
+            chain.removeNewBestBlockListener(wallet);
+            chain.removeReorganizeListener(wallet);
+        }
+        this.chain = null;
+    }
+
+    /**
+     * Registers the host with the given peer group as its filter provider, so the peer group asks peers for everything
+     * relevant to any hosted wallet. Pending transactions are routed to the relevant wallets and the wallets broadcast
+     * their transactions through the peer group. A host can be connected to one peer group at a time.
+     */
+    public void connect(PeerGroup peerGroup) {
+        checkState(this.peerGroup == null, "Already connected to a peer group");
+        this.peerGroup = checkNotNull(peerGroup);
+        for (Wallet wallet : wallets)
+            wallet.setTransactionBroadcaster(peerGroup);
+        peerGroup.addOnTransactionBroadcastListener(Threading.SAME_THREAD, pendingTransactionListener);
+        peerGroup.addPeerFilterProvider(this);
+    }
+
+    /** Unregisters the host from the given peer group. */
+    public void disconnect(PeerGroup peerGroup) {
+        checkArgument(this.peerGroup == peerGroup, "Not connected to this peer group");
+        peerGroup.removePeerFilterProvider(this);
+        peerGroup.removeOnTransactionBroadcastListener(pendingTransactionListener);
+        for (Wallet wallet : wallets)
+            wallet.setTransactionBroadcaster(null);
+        this.peerGroup = null;
+    }
+
+    /**
+     * Returns the wallets the given transaction may be relevant to, because it pays to, spends from or conflicts with
+     * something they own. This is a superset: the wallets themselves make the final decision.
+     */
+    public Set<Wallet> getCandidateWallets(Transaction tx) {
+        Set<Wallet> candidates = Sets.newLinkedHashSet();
+        lock.lock();
+        try {
+            candidates.addAll(transactions.get(tx.getHash()));
+            for (TransactionOutput output : tx.getOutputs()) {
+                try {
+                    addCandidates(output.getScriptPubKey(), candidates);
+                } catch (ScriptException e) {
+                    // Nobody can own an output script we don't understand.
+                }
+            }
+            if (!tx.isCoinBase()) {
+                for (TransactionInput input : tx.getInputs()) {
+                    ByteString outPoint = ByteString.copyFrom(input.getOutpoint().unsafeBitcoinSerialize());
+                    candidates.addAll(elements.get(outPoint));
+                    candidates.addAll(unspentOutPoints.get(outPoint));
+                    candidates.addAll(spentOutPoints.get(outPoint));
+                    try {
+                        addCandidates(input.getScriptSig(), candidates);
+                    } catch (ScriptException e) {
+                        // Still matched by the outpoint, if at all.
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return candidates;
+    }
+
+    @GuardedBy("lock")
+    private void addCandidates(Script script, Set<Wallet> candidates) {
+        for (ScriptChunk chunk : script.getChunks()) {
+            if (chunk.isPushData() && chunk.data != null)
+                candidates.addAll(elements.get(ByteString.copyFrom(chunk.data)));
+        }
+    }
+
+    @Override
+    public void receiveFromBlock(Transaction tx, StoredBlock block, AbstractBlockChain.NewBlockType blockType,
+                                 int relativityOffset) throws VerificationException {
+        boolean first = true;
+        for (Wallet wallet : getCandidateWallets(tx)) {
+            // Wallets must not share transaction objects, see the comment in AbstractBlockChain about bug 257.
+            Transaction copy = first ? tx : copyOf(tx);
+            wallet.receiveFromBlock(copy, block, blockType, relativityOffset);
+            if (wallet.getTransaction(tx.getHash()) != null) {
+                indexTransaction(wallet, copy);
+                first = false;
+            }
+        }
+    }
+
+    @Override
+    public boolean notifyTransactionIsInBlock(Sha256Hash txHash, StoredBlock block,
+                                              AbstractBlockChain.NewBlockType blockType,
+                                              int relativityOffset) throws VerificationException {
+        List<Wallet> candidates;
+        lock.lock();
+        try {
+            candidates = Lists.newArrayList(transactions.get(txHash));
+        } finally {
+            lock.unlock();
+        }
+        boolean known = false;
+        for (Wallet wallet : candidates)
+            known |= wallet.notifyTransactionIsInBlock(txHash, block, blockType, relativityOffset);
+        return known;
+    }
+
+    /**
+     * Hands a transaction that isn't in a block yet to the wallets it is relevant to. This is done automatically for
+     * transactions announced by the peers of a connected peer group.
+     */
+    public void receivePending(Transaction tx) {
+        boolean first = true;
+        for (Wallet wallet : getCandidateWallets(tx)) {
+            try {
+                if (!wallet.isPendingTransactionRelevant(tx))
+                    continue;
+                Transaction copy = first ? tx : copyOf(tx);
+                wallet.receivePending(copy, null);
+                indexTransaction(wallet, copy);
+                first = false;
+            } catch (VerificationException e) {
+                log.error("Wallet failed to process pending transaction {}", tx.getHash(), e);
+            }
+        }
+    }
+
+    private static Transaction copyOf(Transaction tx) {
+        try {
+            return tx.getParams().getDefaultSerializer().makeTransaction(tx.bitcoinSerialize());
+        } catch (ProtocolException e) {
+            throw new RuntimeException(e);  // Cannot happen, we just serialized it.
+        }
+    }
+
+    // Indexes all current Bloom filter elements of the given wallet.
+    private void index(Wallet wallet) {
+        List<byte[]> walletElements = wallet.getBloomFilterElements();
+        lock.lock();
+        try {
+            if (!walletListeners.containsKey(wallet))
+                return;  // Removed in the meantime.
+            for (byte[] element : walletElements)
+                addElementLocked(element, wallet);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Indexes a transaction that the given wallet stored, and returns whether any of its outputs pays to a raw
+    // public key of the wallet.
+    private boolean indexTransaction(Wallet wallet, Transaction tx) {
+        List<byte[]> ownOutPoints = Lists.newArrayList();
+        List<byte[]> filterOutPoints = Lists.newArrayList();
+        boolean paysToRawPubKey = false;
+        for (TransactionOutput output : tx.getOutputs()) {
+            try {
+                if (output.isAvailableForSpending() && output.isMineOrWatched(wallet)) {
+                    byte[] outPoint = output.getOutPointFor().unsafeBitcoinSerialize();
+                    ownOutPoints.add(outPoint);
+                    // As in Wallet.isTxOutputBloomFilterable, spends of other outputs are matched by their scriptSig.
+                    Script script = output.getScriptPubKey();
+                    if (script.isSentToRawPubKey() || script.isPayToScriptHash() || output.isWatched(wallet))
+                        filterOutPoints.add(outPoint);
+                    paysToRawPubKey |= script.isSentToRawPubKey();
+                }
+            } catch (ScriptException e) {
+                // Not ours then.
+            }
+        }
+        lock.lock();
+        try {
+            if (!walletListeners.containsKey(wallet))
+                return false;
+            transactions.put(tx.getHash(), wallet);
+            if (!tx.isCoinBase()) {
+                for (TransactionInput input : tx.getInputs()) {
+                    ByteString outPoint = ByteString.copyFrom(input.getOutpoint().unsafeBitcoinSerialize());
+                    spentOutPoints.put(outPoint, wallet);
+                    // Spent, so it no longer needs routing by itself. Its bit stays in the filter until that is
+                    // rebuilt, but it isn't counted any more.
+                    unspentOutPoints.remove(outPoint, wallet);
+                    elements.remove(outPoint, wallet);
+                }
+            }
+            for (byte[] outPoint : ownOutPoints)
+                unspentOutPoints.put(ByteString.copyFrom(outPoint), wallet);
+            for (byte[] outPoint : filterOutPoints)
+                addElementLocked(outPoint, wallet);
+        } finally {
+            lock.unlock();
+        }
+        return paysToRawPubKey;
+    }
+
+    @GuardedBy("lock")
+    private void addElementLocked(byte[] element, Wallet wallet) {
+        ByteString key = ByteString.copyFrom(element);
+        boolean isNew = !elements.containsKey(key);
+        elements.put(key, wallet);
+        if (isNew && filter != null)
+            filter.insert(element);
+    }
+
+    private void recalculateFilter(PeerGroup.FilterRecalculateMode mode) {
+        PeerGroup peerGroup = this.peerGroup;
+        if (peerGroup != null)
+            peerGroup.recalculateFastCatchupAndFilter(mode);
+    }
+
+    /** Returns the number of distinct data elements over all hosted wallets. */
+    public int getElementCount() {
+        lock.lock();
+        try {
+            return elements.keySet().size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getEarliestKeyCreationTime() {
+        if (lock.isHeldByCurrentThread())
+            return calculationEarliestKeyCreationTime;
+        long earliest = Long.MAX_VALUE;
+        for (Wallet wallet : wallets)
+            earliest = Math.min(earliest, wallet.getEarliestKeyCreationTime());
+        return earliest == Long.MAX_VALUE ? Utils.currentTimeSeconds() : earliest;
+    }
+
+    @Override
+    public void beginBloomFilterCalculation() {
+        // Ask the wallets first: they take their own locks and must not be called into with ours held.
+        long earliest = getEarliestKeyCreationTime();
+        boolean requiresUpdateAll = false;
+        for (Wallet wallet : wallets)
+            requiresUpdateAll |= wallet.isRequiringUpdateAllBloomFilter();
+        lock.lock();
+        calculationEarliestKeyCreationTime = earliest;
+        calculationRequiresUpdateAll = requiresUpdateAll;
+    }
+
+    @Override
+    public int getBloomFilterElementCount() {
+        return getElementCount();
+    }
+
+    @Override
+    public BloomFilter getBloomFilter(int size, double falsePositiveRate, long nTweak) {
+        lock.lock();
+        try {
+            if (filter == null || filterElements != size || filterFalsePositiveRate != falsePositiveRate
+                    || filterTweak != nTweak) {
+                BloomFilter newFilter = new BloomFilter(size, falsePositiveRate, nTweak);
+                for (ByteString element : elements.keySet())
+                    newFilter.insert(element.toByteArray());
+                filter = newFilter;
+                filterElements = size;
+                filterFalsePositiveRate = falsePositiveRate;
+                filterTweak = nTweak;
+            }
+            // Hand out a copy, the cached filter keeps receiving new elements.
+            BloomFilter result = new BloomFilter(size, falsePositiveRate, nTweak);
+            result.merge(filter);
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isRequiringUpdateAllBloomFilter() {
+        if (lock.isHeldByCurrentThread())
+            return calculationRequiresUpdateAll;
+        for (Wallet wallet : wallets)
+            if (wallet.isRequiringUpdateAllBloomFilter())
+                return true;
+        return false;
+    }
+
+    @Override
+    public void endBloomFilterCalculation() {
+        lock.unlock();
+    }
+
+    // Keeps the index of one wallet up to date.
+    private class WalletListener implements KeyChainEventListener, ScriptsChangeEventListener,
+            WalletCoinsReceivedEventListener, WalletCoinsSentEventListener {
+        private final Wallet wallet;
+
+        WalletListener(Wallet wallet) {
+            this.wallet = wallet;
+        }
+
+        @Override
+        public void onKeysAdded(List<ECKey> keys) {
+            if (wallet.getActiveKeyChain().isMarried()) {
+                // The filter elements of married chains are P2SH scripts, not the keys themselves. This is called
+                // with the key chain lock held, which must not be held when taking the wallet lock, so do it later.
+                Threading.USER_THREAD.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        index(wallet);
+                        recalculateFilter(PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED);
+                    }
+                });
+                return;
+            }
+            lock.lock();
+            try {
+                if (!walletListeners.containsKey(wallet))
+                    return;
+                for (ECKey key : keys) {
+                    addElementLocked(key.getPubKey(), wallet);
+                    addElementLocked(key.getPubKeyHash(), wallet);
+                }
+            } finally {
+                lock.unlock();
+            }
+            recalculateFilter(PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED);
+        }
+
+        @Override
+        public void onScriptsChanged(Wallet wallet, List<Script> scripts, boolean isAddingScripts) {
+            if (!isAddingScripts) {
+                // Elements can't be taken out of a Bloom filter, so start over for this wallet.
+                lock.lock();
+                try {
+                    elements.values().removeAll(Collections.singleton(wallet));
+                    filter = null;
+                } finally {
+                    lock.unlock();
+                }
+            }
+            index(wallet);
+            recalculateFilter(PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED);
+        }
+
+        @Override
+        public void onCoinsReceived(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+            onTransaction(tx);
+        }
+
+        @Override
+        public void onCoinsSent(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+            onTransaction(tx);
+        }
+
+        private void onTransaction(Transaction tx) {
+            // As in PeerGroup, only outputs paying to raw public keys require a new filter, the rest will be matched
+            // by data in the inputs spending them.
+            if (indexTransaction(wallet, tx)) {
+                if (tx.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING)
+                    recalculateFilter(PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED);
+                else
+                    recalculateFilter(PeerGroup.FilterRecalculateMode.DONT_SEND);
+            }
+        }
+    }
+}
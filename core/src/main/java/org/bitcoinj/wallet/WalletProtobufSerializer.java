@@ -565,6 +565,9 @@ public class WalletProtobufSerializer {
         // Make sure the object can be re-used to read another wallet without corruption.
         txMap.clear();
 
+        // The wallet was filled in without going through its usual batches of changes.
+        wallet.refreshSnapshot();
+
         return wallet;
     }
 
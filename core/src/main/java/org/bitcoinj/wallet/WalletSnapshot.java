@@ -0,0 +1,186 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>An immutable view of the state of a {@link Wallet}, as returned by {@link Wallet#getSnapshot()}. The wallet
+ * publishes a new snapshot each time it finishes a batch of changes, that is whenever it would tell
+ * {@link org.bitcoinj.wallet.listeners.WalletChangeEventListener}s about a change, or hands out a new receive address.
+ * Reading a snapshot never waits for the wallet lock, so user interfaces and API servers stay responsive while the
+ * wallet is busy catching up with the block chain, at the price of seeing the state as of the last completed change.</p>
+ *
+ * <p>The collections held here don't change, but the {@link Transaction} objects in them are the wallet's own and
+ * their confidence objects keep being updated. Don't modify them.</p>
+ */
+public final class WalletSnapshot {
+    private final long version;
+    @Nullable private final Sha256Hash lastBlockSeenHash;
+    private final int lastBlockSeenHeight;
+    private final long lastBlockSeenTimeSecs;
+    private final Map<Wallet.BalanceType, Coin> balances;
+    // Transactions are spread over buckets by hash, so that a new snapshot only has to copy the buckets holding
+    // transactions that changed and can share the rest with the previous one.
+    static final int BUCKETS = 256;
+    private final ImmutableList<ImmutableMap<Sha256Hash, Transaction>> transactions;
+    private final int size;
+    private final ImmutableSet<Sha256Hash> dead;
+    private final ImmutableList<TransactionOutput> watchedOutputs;
+    private final ImmutableList<TransactionOutput> matureWatchedOutputs;
+    @Nullable private final Address currentReceiveAddress;
+
+    WalletSnapshot(long version, @Nullable Sha256Hash lastBlockSeenHash, int lastBlockSeenHeight,
+                   long lastBlockSeenTimeSecs, Map<Wallet.BalanceType, Coin> balances,
+                   ImmutableList<ImmutableMap<Sha256Hash, Transaction>> transactions, ImmutableSet<Sha256Hash> dead,
+                   ImmutableList<TransactionOutput> watchedOutputs,
+                   ImmutableList<TransactionOutput> matureWatchedOutputs, @Nullable Address currentReceiveAddress) {
+        checkArgument(transactions.size() == BUCKETS);
+        this.version = version;
+        this.lastBlockSeenHash = lastBlockSeenHash;
+        this.lastBlockSeenHeight = lastBlockSeenHeight;
+        this.lastBlockSeenTimeSecs = lastBlockSeenTimeSecs;
+        this.balances = Maps.immutableEnumMap(balances);
+        this.transactions = transactions;
+        int size = 0;
+        for (ImmutableMap<Sha256Hash, Transaction> bucket : transactions)
+            size += bucket.size();
+        this.size = size;
+        this.dead = dead;
+        this.watchedOutputs = watchedOutputs;
+        this.matureWatchedOutputs = matureWatchedOutputs;
+        this.currentReceiveAddress = currentReceiveAddress;
+    }
+
+    /** Returns a snapshot of a wallet that holds nothing, for a new wallet to publish its first snapshot from. */
+    static WalletSnapshot empty() {
+        EnumMap<Wallet.BalanceType, Coin> balances = new EnumMap<Wallet.BalanceType, Coin>(Wallet.BalanceType.class);
+        for (Wallet.BalanceType type : Wallet.BalanceType.values())
+            balances.put(type, Coin.ZERO);
+        ImmutableList<ImmutableMap<Sha256Hash, Transaction>> buckets =
+                ImmutableList.copyOf(Collections.nCopies(BUCKETS, ImmutableMap.<Sha256Hash, Transaction>of()));
+        return new WalletSnapshot(0, null, -1, 0, balances, buckets, ImmutableSet.<Sha256Hash>of(),
+                ImmutableList.<TransactionOutput>of(), ImmutableList.<TransactionOutput>of(), null);
+    }
+
+    /** Returns a copy of this snapshot with a different receive address, for when that is the only change. */
+    WalletSnapshot withReceiveAddress(long version, @Nullable Address currentReceiveAddress) {
+        return new WalletSnapshot(version, lastBlockSeenHash, lastBlockSeenHeight, lastBlockSeenTimeSecs, balances,
+                transactions, dead, watchedOutputs, matureWatchedOutputs, currentReceiveAddress);
+    }
+
+    static int bucketOf(Sha256Hash hash) {
+        return hash.hashCode() & (BUCKETS - 1);
+    }
+
+    ImmutableList<ImmutableMap<Sha256Hash, Transaction>> getBuckets() {
+        return transactions;
+    }
+
+    ImmutableSet<Sha256Hash> getDead() {
+        return dead;
+    }
+
+    Map<Wallet.BalanceType, Coin> getBalances() {
+        return balances;
+    }
+
+    /** Increases by one with each snapshot a wallet builds, so it can be used to tell whether anything changed. */
+    public long getVersion() {
+        return version;
+    }
+
+    /** See {@link Wallet#getLastBlockSeenHash()}. */
+    @Nullable
+    public Sha256Hash getLastBlockSeenHash() {
+        return lastBlockSeenHash;
+    }
+
+    /** See {@link Wallet#getLastBlockSeenHeight()}. */
+    public int getLastBlockSeenHeight() {
+        return lastBlockSeenHeight;
+    }
+
+    /** See {@link Wallet#getLastBlockSeenTimeSecs()}. */
+    public long getLastBlockSeenTimeSecs() {
+        return lastBlockSeenTimeSecs;
+    }
+
+    /** The balance of type {@link Wallet.BalanceType#AVAILABLE}, see {@link Wallet#getBalance()}. */
+    public Coin getBalance() {
+        return getBalance(Wallet.BalanceType.AVAILABLE);
+    }
+
+    /** See {@link Wallet#getBalance(Wallet.BalanceType)}. */
+    public Coin getBalance(Wallet.BalanceType balanceType) {
+        return checkNotNull(balances.get(balanceType));
+    }
+
+    /** See {@link Wallet#getTransactions(boolean)}. */
+    public Set<Transaction> getTransactions(boolean includeDead) {
+        ImmutableSet.Builder<Transaction> builder = ImmutableSet.builder();
+        for (ImmutableMap<Sha256Hash, Transaction> bucket : transactions)
+            for (Map.Entry<Sha256Hash, Transaction> entry : bucket.entrySet())
+                if (includeDead || !dead.contains(entry.getKey()))
+                    builder.add(entry.getValue());
+        return builder.build();
+    }
+
+    /** See {@link Wallet#getTransaction(Sha256Hash)}. */
+    @Nullable
+    public Transaction getTransaction(Sha256Hash hash) {
+        return transactions.get(bucketOf(hash)).get(hash);
+    }
+
+    /** See {@link Wallet#getWatchedOutputs(boolean)}. */
+    public List<TransactionOutput> getWatchedOutputs(boolean excludeImmatureCoinbases) {
+        return excludeImmatureCoinbases ? matureWatchedOutputs : watchedOutputs;
+    }
+
+    /**
+     * See {@link Wallet#currentReceiveAddress()}. Returns null if the wallet hadn't handed out a receive address yet
+     * when the snapshot was taken, or still had to be upgraded to a deterministic one.
+     */
+    @Nullable
+    public Address currentReceiveAddress() {
+        return currentReceiveAddress;
+    }
+
+    @Override
+    public String toString() {
+        return "Wallet snapshot " + version + " at height " + lastBlockSeenHeight + ", " + size
+                + " transactions, balance " + getBalance().toFriendlyString();
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.script.ScriptChunk;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.bitcoinj.script.ScriptOpCodes.*;
+
+/**
+ * <p>A compact set of watched output scripts, as used by {@link Wallet#addWatchedScripts(java.util.List)}.</p>
+ *
+ * <p>Pay-to-address and pay-to-script-hash scripts, which are what almost everyone watches, are not stored as
+ * {@link Script} objects at all. Instead their 20 byte hashes are packed into a single open addressed hash table made
+ * of primitive arrays, so watching millions of addresses costs a few dozen bytes each and checking whether an output
+ * is relevant is a constant time probe. Any other kind of script is kept in an ordinary map. Scripts compare by their
+ * program bytes, exactly as {@link Script#equals(Object)} does, so a pay-to-address script that uses a non-minimal
+ * push is stored (and matched) as an "other" script.</p>
+ *
+ * <p>The index also keeps the Bloom filter built from its contents around. As long as the filter it is merged into
+ * has the same size and number of hash functions, newly added scripts are inserted into that filter directly instead
+ * of rebuilding it from every watched script. Filters are capped at {@link BloomFilter}'s maximum size, so for big
+ * indexes that holds however many scripts are added. Removing scripts throws the cached filter away, as elements
+ * can't be removed from a Bloom filter.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads. The wallet guards it with its key chain
+ * group lock.</p>
+ */
+public class WatchedScriptIndex {
+    private static final int HASH_LENGTH = 20;
+    private static final int MIN_CAPACITY = 16;
+    // Only long (at least 64 bit) data is added to Bloom filters.
+    private static final int MINIMUM_BLOOM_DATA_LENGTH = 8;
+
+    private static final byte EMPTY = 0;
+    private static final byte TYPE_P2PKH = 1;
+    private static final byte TYPE_P2SH = 2;
+
+    // Slot i holds its hash at hashes[i * HASH_LENGTH], its type (or EMPTY) at types[i] and the creation time of the
+    // script at creationTimes[i].
+    private byte[] hashes;
+    private byte[] types;
+    private long[] creationTimes;
+    private int mask;
+    private int size;
+
+    // Everything that isn't in the standard pay-to-address or P2SH form. Script.equals() only looks at the program.
+    private final Map<Script, Script> otherScripts = Maps.newHashMap();
+
+    // The incrementally maintained Bloom filter.
+    @Nullable private BloomFilter filter;
+
+    public WatchedScriptIndex() {
+        allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        hashes = new byte[capacity * HASH_LENGTH];
+        types = new byte[capacity];
+        creationTimes = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Adds the given script. If an equal script is already present it is replaced, which lets callers update metadata
+     * such as the creation time.
+     *
+     * @return true if the script was not already present
+     */
+    public boolean add(Script script) {
+        byte type = typeOf(script);
+        if (type == EMPTY) {
+            boolean added = otherScripts.put(script, script) == null;
+            if (added && filter != null) {
+                List<byte[]> elements = Lists.newArrayList();
+                addChunkElements(script, elements);
+                for (byte[] element : elements)
+                    filter.insert(element);
+            }
+            return added;
+        }
+        byte[] hash = script.getPubKeyHash();
+        int slot = find(hash, 0, type);
+        if (slot >= 0) {
+            creationTimes[slot] = script.getCreationTimeSeconds();
+            return false;
+        }
+        if ((size + 1) * 4 > types.length * 3)
+            resize(types.length * 2);
+        slot = probeStart(hash, 0, type);
+        while (types[slot] != EMPTY)
+            slot = (slot + 1) & mask;
+        System.arraycopy(hash, 0, hashes, slot * HASH_LENGTH, HASH_LENGTH);
+        types[slot] = type;
+        creationTimes[slot] = script.getCreationTimeSeconds();
+        size++;
+        if (filter != null)
+            filter.insert(hash);
+        return true;
+    }
+
+    /**
+     * Removes the given script.
+     *
+     * @return true if the script was present
+     */
+    public boolean remove(Script script) {
+        byte type = typeOf(script);
+        boolean removed;
+        if (type == EMPTY) {
+            removed = otherScripts.remove(script) != null;
+        } else {
+            int slot = find(script.getPubKeyHash(), 0, type);
+            removed = slot >= 0;
+            if (removed)
+                removeSlot(slot);
+        }
+        if (removed)
+            filter = null;
+        return removed;
+    }
+
+    /** Returns true if the given script is in the index. Standard scripts need a single hash table probe. */
+    public boolean contains(Script script) {
+        byte type = typeOf(script);
+        if (type == EMPTY)
+            return otherScripts.containsKey(script);
+        return find(script.getPubKeyHash(), 0, type) >= 0;
+    }
+
+    /** Returns the number of watched scripts. */
+    public int size() {
+        return size + otherScripts.size();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /** Removes all scripts and forgets the cached Bloom filter. */
+    public void clear() {
+        allocate(MIN_CAPACITY);
+        size = 0;
+        otherScripts.clear();
+        filter = null;
+    }
+
+    /**
+     * Returns the earliest creation time of any script in the index, or {@link Long#MAX_VALUE} if the index is empty.
+     */
+    public long getEarliestCreationTime() {
+        long earliest = Long.MAX_VALUE;
+        for (int i = 0; i < types.length; i++)
+            if (types[i] != EMPTY)
+                earliest = Math.min(earliest, creationTimes[i]);
+        for (Script script : otherScripts.values())
+            earliest = Math.min(earliest, script.getCreationTimeSeconds());
+        return earliest;
+    }
+
+    /**
+     * Returns a newly created list of all scripts in the index, with their creation times. Standard scripts are
+     * rebuilt from their hashes, so this is comparatively expensive for big indexes.
+     */
+    public List<Script> getScripts() {
+        List<Script> scripts = Lists.newArrayListWithCapacity(size());
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] == EMPTY)
+                continue;
+            byte[] hash = Arrays.copyOfRange(hashes, i * HASH_LENGTH, (i + 1) * HASH_LENGTH);
+            Script script;
+            if (types[i] == TYPE_P2SH)
+                script = ScriptBuilder.createP2SHOutputScript(hash);
+            else
+                script = new ScriptBuilder().op(OP_DUP).op(OP_HASH160).data(hash).op(OP_EQUALVERIFY).op(OP_CHECKSIG).build();
+            script.setCreationTimeSeconds(creationTimes[i]);
+            scripts.add(script);
+        }
+        scripts.addAll(otherScripts.values());
+        return scripts;
+    }
+
+    /**
+     * Returns the addresses of all watched pay-to-address scripts. Pay-to-script-hash scripts are not included.
+     */
+    public List<Address> getAddresses(NetworkParameters params) {
+        List<Address> addresses = Lists.newLinkedList();
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] == TYPE_P2PKH)
+                addresses.add(new Address(params, Arrays.copyOfRange(hashes, i * HASH_LENGTH, (i + 1) * HASH_LENGTH)));
+        }
+        for (Script script : otherScripts.values())
+            if (script.isSentToAddress())
+                addresses.add(script.getToAddress(params));
+        return addresses;
+    }
+
+    /**
+     * Merges the data elements of all watched scripts into the given filter, which must have been created with the
+     * given parameters. The filter for the index is only rebuilt if it can't be merged into the target, because the
+     * target has a different size, number of hash functions or tweak, or if scripts were removed since the previous
+     * call. Otherwise the cached filter that new scripts have been inserted into is used. The element count alone
+     * doesn't matter: once filters hit the maximum size, asking for more elements gives the same filter.
+     */
+    public void mergeInto(BloomFilter target, int elements, double falsePositiveRate, long nTweak) {
+        if (filter == null || !filter.isMergeableWith(target)) {
+            BloomFilter newFilter = new BloomFilter(elements, falsePositiveRate, nTweak);
+            for (byte[] element : getBloomFilterElements())
+                newFilter.insert(element);
+            filter = newFilter;
+        }
+        target.merge(filter);
+    }
+
+    /** Returns the data elements of all watched scripts, which is what gets inserted into Bloom filters. */
+    public List<byte[]> getBloomFilterElements() {
+        List<byte[]> elements = Lists.newArrayListWithCapacity(size());
+        for (int i = 0; i < types.length; i++)
+            if (types[i] != EMPTY)
+                elements.add(Arrays.copyOfRange(hashes, i * HASH_LENGTH, (i + 1) * HASH_LENGTH));
+        for (Script script : otherScripts.values())
+            addChunkElements(script, elements);
+        return elements;
+    }
+
+    private static void addChunkElements(Script script, List<byte[]> elements) {
+        for (ScriptChunk chunk : script.getChunks()) {
+            // If any long constants become popular in scripts, we will need logic here to exclude them.
+            if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH)
+                elements.add(chunk.data);
+        }
+    }
+
+    // Returns the type the script is stored under, or EMPTY if it isn't in one of the exact standard forms.
+    private static byte typeOf(Script script) {
+        if (script.isPayToScriptHash())
+            return TYPE_P2SH;
+        // isSentToAddress() accepts any push of the hash, but only the minimal push reproduces the same program.
+        if (script.isSentToAddress() && script.getChunks().get(2).opcode == HASH_LENGTH)
+            return TYPE_P2PKH;
+        return EMPTY;
+    }
+
+    private int probeStart(byte[] buf, int offset, byte type) {
+        // The keys are hash160 outputs and already uniformly distributed, so some of their bits are a fine hash as
+        // long as they get mixed a little with the type.
+        long h = 0;
+        for (int i = 0; i < 8; i++)
+            h = (h << 8) | (buf[offset + i] & 0xFFL);
+        h ^= type * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h & mask;
+    }
+
+    // Returns the slot holding the given hash and type, or -1 if it isn't present.
+    private int find(byte[] hash, int offset, byte type) {
+        int slot = probeStart(hash, offset, type);
+        while (types[slot] != EMPTY) {
+            if (types[slot] == type && hashEquals(slot, hash, offset))
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private boolean hashEquals(int slot, byte[] hash, int offset) {
+        int base = slot * HASH_LENGTH;
+        for (int i = 0; i < HASH_LENGTH; i++)
+            if (hashes[base + i] != hash[offset + i])
+                return false;
+        return true;
+    }
+
+    private void removeSlot(int slot) {
+        types[slot] = EMPTY;
+        size--;
+        // Shift back any following entries of the cluster whose probe sequence crosses the new hole, so that lookups
+        // never stop early.
+        int hole = slot;
+        int next = (slot + 1) & mask;
+        while (types[next] != EMPTY) {
+            int home = probeStart(hashes, next * HASH_LENGTH, types[next]);
+            boolean movable = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+            if (movable) {
+                System.arraycopy(hashes, next * HASH_LENGTH, hashes, hole * HASH_LENGTH, HASH_LENGTH);
+                types[hole] = types[next];
+                creationTimes[hole] = creationTimes[next];
+                types[next] = EMPTY;
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+    }
+
+    private void resize(int newCapacity) {
+        byte[] oldHashes = hashes;
+        byte[] oldTypes = types;
+        long[] oldCreationTimes = creationTimes;
+        allocate(newCapacity);
+        for (int i = 0; i < oldTypes.length; i++) {
+            if (oldTypes[i] == EMPTY)
+                continue;
+            int slot = probeStart(oldHashes, i * HASH_LENGTH, oldTypes[i]);
+            while (types[slot] != EMPTY)
+                slot = (slot + 1) & mask;
+            System.arraycopy(oldHashes, i * HASH_LENGTH, hashes, slot * HASH_LENGTH, HASH_LENGTH);
+            types[slot] = oldTypes[i];
+            creationTimes[slot] = oldCreationTimes[i];
+        }
+    }
+}
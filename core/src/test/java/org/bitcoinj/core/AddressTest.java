@@ -76,6 +76,26 @@ public class AddressTest {
         assertEquals("4a22c3c4cbb31e4d03b15550636762bda0baf85a", Utils.HEX.encode(b.getHash160()));
     }
     
+    @Test
+    public void batch() throws Exception {
+        List<String> strings = Arrays.asList("17kzeh4N8g49GFvdDzSf8PjaPfyoD1MndL", "3MSvaVbVFFLML86rt5eqgA9SvW23upaXdY");
+        List<Address> addresses = Address.fromBase58(mainParams, strings);
+        assertEquals(Address.fromBase58(mainParams, strings.get(0)), addresses.get(0));
+        assertTrue(addresses.get(1).isP2SHAddress());
+        assertEquals(strings, Address.toBase58(addresses));
+
+        StringBuilder builder = new StringBuilder("to ");
+        addresses.get(0).toBase58(builder);
+        assertEquals("to " + strings.get(0), builder.toString());
+
+        try {
+            Address.fromBase58(testParams, strings);
+            fail();
+        } catch (WrongNetworkException e) {
+            // expected
+        }
+    }
+
     @Test
     public void errorPaths() {
         // Check what happens if we try and decode garbage.
@@ -21,6 +21,8 @@ import org.junit.Test;
 
 import java.math.BigInteger;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
 public class Base58Test extends TestCase {
     @Test
@@ -88,4 +90,89 @@ public class Base58Test extends TestCase {
         byte[] input = Base58.decode("129");
         assertEquals(new BigInteger(1, input), Base58.decodeToBigInteger("129"));
     }
+
+    @Test
+    public void testRandomRoundTrips() throws Exception {
+        Random random = new Random(5);
+        BigInteger base = BigInteger.valueOf(58);
+        for (int i = 0; i < 2000; i++) {
+            // Lengths around the limb sizes, and some leading zeros.
+            byte[] data = new byte[random.nextInt(70)];
+            random.nextBytes(data);
+            for (int j = 0; j < data.length && random.nextInt(4) == 0; j++)
+                data[j] = 0;
+            // Simple reference encoding.
+            StringBuilder expected = new StringBuilder();
+            for (BigInteger n = new BigInteger(1, data); n.signum() > 0; n = n.divide(base))
+                expected.insert(0, Base58.ALPHABET[n.mod(base).intValue()]);
+            for (int j = 0; j < data.length && data[j] == 0; j++)
+                expected.insert(0, '1');
+
+            String encoded = Base58.encode(data);
+            assertEquals(expected.toString(), encoded);
+            assertTrue(Arrays.equals(data, Base58.decode(encoded)));
+        }
+    }
+
+    @Test
+    public void testBuffers() throws Exception {
+        byte[] data = "Hello World".getBytes();
+        StringBuilder builder = new StringBuilder("x");
+        Base58.encode(new byte[] { 0, 0, 7 }, 0, 0, builder);
+        Base58.encode(data, 0, data.length, builder);
+        Base58.encode(new byte[] { 9, 0, 0, 7 }, 1, 3, builder);
+        assertEquals("xJxF12TrwUP45BMd118", builder.toString());
+
+        byte[] output = new byte[20];
+        assertEquals(data.length, Base58.decode("JxF12TrwUP45BMd", output, 3));
+        assertTrue(Arrays.equals(data, Arrays.copyOfRange(output, 3, 3 + data.length)));
+        assertEquals(3, Base58.decode(new StringBuilder("118"), output, 0));
+        assertTrue(Arrays.equals(new byte[] { 0, 0, 7 }, Arrays.copyOf(output, 3)));
+        try {
+            Base58.decode("JxF12TrwUP45BMd", output, 10);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        String checked = Base58.encodeChecked(128, data);
+        assertEquals(checked, Base58.encode(addChecksum(128, data)));
+        builder.setLength(0);
+        Base58.encodeChecked(128, data, builder);
+        assertEquals(checked, builder.toString());
+        byte[] versioned = Base58.decodeChecked(checked);
+        assertEquals(128, versioned[0] & 0xFF);
+        assertEquals(versioned.length, Base58.decodeChecked(checked, output, 1));
+        assertTrue(Arrays.equals(versioned, Arrays.copyOfRange(output, 1, 1 + versioned.length)));
+        try {
+            Base58.decodeChecked("4stwEBjT6FYyVW", output, 0);
+            fail();
+        } catch (AddressFormatException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        List<byte[]> data = Arrays.asList("Hello World".getBytes(), new byte[0], new byte[] { 0, 1 });
+        List<String> encoded = Base58.encodeAll(data);
+        assertEquals(Arrays.asList("JxF12TrwUP45BMd", "", "12"), encoded);
+        List<byte[]> decoded = Base58.decodeAll(encoded);
+        for (int i = 0; i < data.size(); i++)
+            assertTrue(Arrays.equals(data.get(i), decoded.get(i)));
+        try {
+            Base58.decodeAll(Arrays.asList("12", "0"));
+            fail();
+        } catch (AddressFormatException e) {
+            // expected
+        }
+    }
+
+    private static byte[] addChecksum(int version, byte[] data) {
+        byte[] versioned = new byte[data.length + 5];
+        versioned[0] = (byte) version;
+        System.arraycopy(data, 0, versioned, 1, data.length);
+        System.arraycopy(Sha256Hash.hashTwice(versioned, 0, data.length + 1), 0, versioned, data.length + 1, 4);
+        return versioned;
+    }
 }
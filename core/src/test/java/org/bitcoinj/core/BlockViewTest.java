@@ -0,0 +1,92 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.MainNetParams;
+import com.google.common.io.ByteStreams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class BlockViewTest {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = new Context(PARAMS);
+    }
+
+    @Test
+    public void matchesBlock() throws Exception {
+        byte[] bytes = ByteStreams.toByteArray(getClass().getResourceAsStream("block169482.dat"));
+        Block block = PARAMS.getDefaultSerializer().makeBlock(bytes);
+        BitcoinSerializer serializer = new BitcoinSerializer(PARAMS, false, true);
+        BlockView view = serializer.makeBlockView(bytes, 0, bytes.length);
+
+        assertEquals(block.getHash(), view.getHash());
+        assertEquals(block.getVersion(), view.getVersion());
+        assertEquals(block.getPrevBlockHash(), view.getPrevBlockHash());
+        assertEquals(block.getMerkleRoot(), view.getMerkleRoot());
+        assertEquals(block.getTimeSeconds(), view.getTimeSeconds());
+        assertEquals(block.getDifficultyTarget(), view.getDifficultyTarget());
+        assertEquals(block.getNonce(), view.getNonce());
+        assertEquals(bytes.length, view.getMessageSize());
+        assertTrue(view.hasTransactions());
+        assertEquals(block.getTransactions().size(), view.getTransactionCount());
+        for (int i = 0; i < view.getTransactionCount(); i++) {
+            Transaction tx = block.getTransactions().get(i);
+            assertEquals(tx.getHash(), view.getTransactionHash(i));
+            assertEquals(tx.getHash(), view.getTransaction(i).getHash());
+            assertEquals(tx.getOutputs().size(), view.getTransaction(i).getOutputCount());
+        }
+        assertSame(view.getTransaction(3), view.getTransaction(3));
+        assertEquals(block, view.getBlock());
+        assertArrayEquals(bytes, view.bitcoinSerialize());
+    }
+
+    @Test
+    public void headerAndLazySerializer() throws Exception {
+        byte[] bytes = ByteStreams.toByteArray(getClass().getResourceAsStream("block169482.dat"));
+        BitcoinSerializer serializer = new BitcoinSerializer(PARAMS, false, true);
+        assertTrue(serializer.isParseLazyMode());
+        BlockView header = serializer.makeBlockView(Arrays.copyOf(bytes, Block.HEADER_SIZE), 0, Block.HEADER_SIZE);
+        assertFalse(header.hasTransactions());
+        assertEquals(Block.HEADER_SIZE, header.getMessageSize());
+
+        // Whole messages come back as views, and serialize back to the same bytes.
+        Block block = PARAMS.getDefaultSerializer().makeBlock(bytes);
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        serializer.serialize(block, message);
+        BlockView view = (BlockView) serializer.deserialize(ByteBuffer.wrap(message.toByteArray()));
+        assertEquals(block.getHash(), view.getHash());
+        ByteArrayOutputStream reserialized = new ByteArrayOutputStream();
+        serializer.serialize(view, reserialized);
+        assertArrayEquals(message.toByteArray(), reserialized.toByteArray());
+
+        try {
+            serializer.makeBlockView(Arrays.copyOf(bytes, bytes.length - 1), 0, bytes.length - 1);
+            fail();
+        } catch (ProtocolException e) {
+            // Expected.
+        }
+    }
+}
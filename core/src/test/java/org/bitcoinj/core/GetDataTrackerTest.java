@@ -0,0 +1,168 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.testing.InboundMessageQueuer;
+import org.bitcoinj.testing.TestWithNetworkConnections;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.bitcoinj.core.Coin.COIN;
+import static org.bitcoinj.testing.FakeTxBuilder.createFakeTx;
+import static org.junit.Assert.*;
+
+@RunWith(value = Parameterized.class)
+public class GetDataTrackerTest extends TestWithNetworkConnections {
+    private Peer peer1, peer2;
+    private InboundMessageQueuer writeTarget1, writeTarget2;
+    private GetDataTracker tracker;
+    private Transaction tx1, tx2;
+
+    @Parameterized.Parameters
+    public static Collection<ClientType[]> parameters() {
+        return Arrays.asList(new ClientType[] {ClientType.NIO_CLIENT_MANAGER},
+                             new ClientType[] {ClientType.BLOCKING_CLIENT_MANAGER});
+    }
+
+    public GetDataTrackerTest(ClientType clientType) {
+        super(clientType);
+    }
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        Utils.setMockClock();
+        tracker = new GetDataTracker(PARAMS, 1, 3, 5000);
+        peer1 = createPeer(4000);
+        peer2 = createPeer(4001);
+        VersionMessage peerVersion = new VersionMessage(PARAMS, 1);
+        peerVersion.clientVersion = 70001;
+        peerVersion.localServices = VersionMessage.NODE_NETWORK;
+        writeTarget1 = connect(peer1, peerVersion);
+        writeTarget2 = connect(peer2, peerVersion);
+        tracker.addPeer(peer1);
+        tracker.addPeer(peer2);
+        tx1 = createFakeTx(PARAMS, COIN, address);
+        tx2 = createFakeTx(PARAMS, COIN.add(COIN), address);
+    }
+
+    @Override
+    @After
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    private Peer createPeer(int port) {
+        VersionMessage ver = new VersionMessage(PARAMS, 100);
+        Peer peer = new Peer(PARAMS, ver, new PeerAddress(PARAMS, new InetSocketAddress("127.0.0.1", port)), blockChain);
+        peer.setGetDataTracker(tracker);
+        return peer;
+    }
+
+    private void assertRequested(InboundMessageQueuer writeTarget, Transaction tx) throws Exception {
+        GetDataMessage getdata = (GetDataMessage) outbound(writeTarget);
+        assertEquals(Collections.singletonList(new InventoryItem(InventoryItem.Type.Transaction, tx.getHash())),
+                getdata.getItems());
+    }
+
+    @Test
+    public void coalescesRequests() throws Exception {
+        ListenableFuture<Transaction> future1 = peer1.getPeerMempoolTransaction(tx1.getHash());
+        ListenableFuture<Transaction> future2 = peer2.getPeerMempoolTransaction(tx1.getHash());
+        assertRequested(writeTarget1, tx1);
+        assertNull(outbound(writeTarget2));
+        assertEquals(1, tracker.numRequests());
+        // Cancelling one of them leaves the other alone.
+        future2.cancel(true);
+        inbound(writeTarget1, tx1);
+        assertEquals(tx1, future1.get(5, TimeUnit.SECONDS));
+        assertEquals(0, tracker.numRequests());
+    }
+
+    @Test
+    public void retriesOnNotFound() throws Exception {
+        ListenableFuture<Transaction> future = peer1.getPeerMempoolTransaction(tx1.getHash());
+        assertRequested(writeTarget1, tx1);
+        inbound(writeTarget1, new NotFoundMessage(PARAMS,
+                Collections.singletonList(new InventoryItem(InventoryItem.Type.Transaction, tx1.getHash()))));
+        pingAndWait(writeTarget1);
+        assertRequested(writeTarget2, tx1);
+        inbound(writeTarget2, tx1);
+        assertEquals(tx1, future.get(5, TimeUnit.SECONDS));
+
+        // Once every peer said it doesn't have it, the future is cancelled.
+        future = peer1.getPeerMempoolTransaction(tx2.getHash());
+        assertRequested(writeTarget1, tx2);
+        inbound(writeTarget1, new NotFoundMessage(PARAMS,
+                Collections.singletonList(new InventoryItem(InventoryItem.Type.Transaction, tx2.getHash()))));
+        pingAndWait(writeTarget1);
+        assertRequested(writeTarget2, tx2);
+        inbound(writeTarget2, new NotFoundMessage(PARAMS,
+                Collections.singletonList(new InventoryItem(InventoryItem.Type.Transaction, tx2.getHash()))));
+        pingAndWait(writeTarget2);
+        assertTrue(future.isCancelled());
+        assertEquals(0, tracker.numRequests());
+    }
+
+    @Test
+    public void retriesOnTimeoutAndDisconnect() throws Exception {
+        ListenableFuture<Transaction> future1 = peer1.getPeerMempoolTransaction(tx1.getHash());
+        assertRequested(writeTarget1, tx1);
+        Utils.rollMockClock(6);
+        tracker.checkForTimeouts();
+        assertRequested(writeTarget2, tx1);
+
+        // Only one request may be in flight per peer, so the next one goes to peer 1 instead. Once that disconnects,
+        // it waits for peer 2 to deliver the first.
+        ListenableFuture<Transaction> future2 = peer2.getPeerMempoolTransaction(tx2.getHash());
+        assertRequested(writeTarget1, tx2);
+        tracker.removePeer(peer1);
+        assertEquals(2, tracker.numRequests());
+        inbound(writeTarget2, tx1);
+        assertEquals(tx1, future1.get(5, TimeUnit.SECONDS));
+        assertRequested(writeTarget2, tx2);
+        inbound(writeTarget2, tx2);
+        assertEquals(tx2, future2.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void dependenciesShareRequestsButAreNotRetried() throws Exception {
+        ListenableFuture<List<Transaction>> future1 = peer1.downloadDependencies(tx1);
+        ListenableFuture<List<Transaction>> future2 = peer2.downloadDependencies(tx1);
+        Sha256Hash dependency = tx1.getInput(0).getOutpoint().getHash();
+        GetDataMessage getdata = (GetDataMessage) outbound(writeTarget1);
+        assertEquals(dependency, getdata.getItems().get(0).hash);
+        assertNull(outbound(writeTarget2));
+        // The dependency is in the chain, so the peer doesn't have it. There's no point asking the other.
+        inbound(writeTarget1, new NotFoundMessage(PARAMS, getdata.getItems()));
+        assertEquals(Collections.<Transaction>emptyList(), future1.get(5, TimeUnit.SECONDS));
+        assertEquals(Collections.<Transaction>emptyList(), future2.get(5, TimeUnit.SECONDS));
+        assertNull(outbound(writeTarget2));
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HashingOutputStreamTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    @Test
+    public void mixedWrites() throws Exception {
+        Random random = new Random(3);
+        byte[] data = new byte[5000];
+        random.nextBytes(data);
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        HashingOutputStream stream = new HashingOutputStream(copy);
+        // Single bytes, small writes that fill up the buffer, and writes larger than the buffer.
+        int offset = 0;
+        while (offset < data.length) {
+            int len = Math.min(data.length - offset, random.nextInt(4) == 0 ? 1 : random.nextInt(700));
+            if (len == 1)
+                stream.write(data[offset]);
+            else
+                stream.write(data, offset, len);
+            offset += len;
+        }
+        assertEquals(data.length, stream.getCount());
+        assertArrayEquals(data, copy.toByteArray());
+        assertEquals(Sha256Hash.twiceOf(data), stream.hashTwice());
+
+        // Finishing resets the stream.
+        assertEquals(0, stream.getCount());
+        stream.write(data, 0, 10);
+        assertEquals(Sha256Hash.of(Arrays.copyOf(data, 10)), stream.hash());
+        byte[] output = new byte[40];
+        stream.hashTwice(output, 8);
+        assertArrayEquals(Sha256Hash.hashTwice(new byte[0]), Arrays.copyOfRange(output, 8, 40));
+    }
+
+    @Test
+    public void hashTwiceIntoArray() {
+        byte[] data = { 1, 2, 3, 4, 5 };
+        byte[] output = new byte[33];
+        Sha256Hash.hashTwice(data, 1, 3, output, 1);
+        assertEquals(Sha256Hash.wrap(Sha256Hash.hashTwice(data, 1, 3)),
+                Sha256Hash.wrap(Arrays.copyOfRange(output, 1, 33)));
+        try {
+            Sha256Hash.hashTwice(data, 0, 5, output, 2);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void transactionAndBlockHashes() throws Exception {
+        Transaction tx = FakeTxBuilder.createFakeTx(PARAMS, Coin.COIN, new ECKey().toAddress(PARAMS));
+        assertEquals(Sha256Hash.wrapReversed(Sha256Hash.hashTwice(tx.bitcoinSerialize())), tx.getHash());
+        Block block = PARAMS.getGenesisBlock().createNextBlock(new ECKey().toAddress(PARAMS));
+        assertEquals(Sha256Hash.wrapReversed(Sha256Hash.hashTwice(block.bitcoinSerialize(), 0, Block.HEADER_SIZE)),
+                block.getHash());
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.bitcoinj.core.Coin.COIN;
+import static org.bitcoinj.core.Utils.HEX;
+import static org.junit.Assert.*;
+
+public class ImmutableBloomFilterTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+    }
+
+    @Test
+    public void sameAsBloomFilter() {
+        ImmutableBloomFilter filter = new BloomFilter(3, 0.01, 0, BloomFilter.BloomUpdate.UPDATE_ALL).toImmutable();
+        ImmutableBloomFilter empty = filter;
+        filter = filter.insert(HEX.decode("99108ad8ed9bb6274d3980bab5a85c048f0950c8"));
+        assertTrue(filter.contains(HEX.decode("99108ad8ed9bb6274d3980bab5a85c048f0950c8")));
+        // One bit different in first byte
+        assertFalse(filter.contains(HEX.decode("19108ad8ed9bb6274d3980bab5a85c048f0950c8")));
+        // Inserting made a copy.
+        assertFalse(empty.contains(HEX.decode("99108ad8ed9bb6274d3980bab5a85c048f0950c8")));
+
+        filter = filter.insert(HEX.decode("b5a2c786d9ef4658287ced5914b37a1b4aa32eee"));
+        filter = filter.insert(HEX.decode("b9300670b4c5366e95b2699e8b18bc75e5f729c5"));
+        // Matching a slice of a bigger buffer.
+        byte[] buffer = HEX.decode("00b9300670b4c5366e95b2699e8b18bc75e5f729c500");
+        assertTrue(filter.contains(buffer, 1, 20));
+        assertFalse(filter.contains(buffer, 0, 20));
+
+        // Value generated by Bitcoin Core
+        assertArrayEquals(HEX.decode("03614e9b050000000000000001"), filter.toBloomFilter().unsafeBitcoinSerialize());
+        assertEquals(filter, filter.toBloomFilter().toImmutable());
+        assertFalse(filter.matchesAll());
+        BloomFilter all = new BloomFilter(3, 0.01, 0);
+        all.setMatchAll();
+        assertTrue(all.toImmutable().matchesAll());
+    }
+
+    @Test
+    public void outpoints() {
+        Transaction tx = FakeTxBuilder.createFakeTx(PARAMS, COIN, new ECKey());
+        BloomFilter filter = new BloomFilter(10, 0.0001, 12345);
+        filter.insert(tx.getOutput(1).getOutPointFor().unsafeBitcoinSerialize());
+        ImmutableBloomFilter immutable = filter.toImmutable();
+        assertTrue(immutable.contains(tx.getOutput(1).getOutPointFor()));
+        assertFalse(immutable.contains(tx.getOutput(0).getOutPointFor()));
+    }
+
+    @Test
+    public void applyAndUpdate() {
+        ECKey key = new ECKey();
+        BloomFilter filter = new BloomFilter(10, 0.0001, 0, BloomFilter.BloomUpdate.UPDATE_P2PUBKEY_ONLY);
+        filter.insert(key.getPubKey());
+        AtomicReference<ImmutableBloomFilter> ref = new AtomicReference<ImmutableBloomFilter>(filter.toImmutable());
+        ImmutableBloomFilter before = ref.get();
+
+        // A pay to pubkey output matches, and its outpoint goes into the filter so the spend matches too.
+        Transaction tx1 = FakeTxBuilder.createFakeTx(PARAMS, COIN, key);
+        Transaction tx2 = new Transaction(PARAMS);
+        tx2.addInput(tx1.getOutput(0));
+        tx2.addOutput(COIN, new ECKey().toAddress(PARAMS));
+        assertTrue(ImmutableBloomFilter.applyAndUpdate(ref, tx1));
+        assertNotSame(before, ref.get());
+        assertNull(before.applyAndUpdate(tx2));
+        assertTrue(ImmutableBloomFilter.applyAndUpdate(ref, tx2));
+        assertFalse(ImmutableBloomFilter.applyAndUpdate(ref, FakeTxBuilder.createFakeTx(PARAMS, COIN, new ECKey())));
+
+        // And it ends up with the same bits as a filter updated in place.
+        assertTrue(filter.applyAndUpdate(tx1));
+        assertTrue(filter.applyAndUpdate(tx2));
+        assertTrue(Arrays.equals(filter.unsafeBitcoinSerialize(), ref.get().toBloomFilter().unsafeBitcoinSerialize()));
+    }
+
+    @Test
+    public void filteredBlock() throws Exception {
+        ECKey key = new ECKey();
+        Block block = PARAMS.getGenesisBlock().createNextBlock(new ECKey().toAddress(PARAMS));
+        Transaction tx = FakeTxBuilder.createFakeTx(PARAMS, COIN, key);
+        block.addTransaction(tx);
+        BloomFilter filter = new BloomFilter(10, 0.0001, 0);
+        filter.insert(key.getPubKey());
+        AtomicReference<ImmutableBloomFilter> ref = new AtomicReference<ImmutableBloomFilter>(filter.toImmutable());
+        FilteredBlock filtered = ImmutableBloomFilter.applyAndUpdate(ref, block);
+        assertEquals(filter.applyAndUpdate(block), filtered);
+        assertEquals(Arrays.asList(tx.getHash()), filtered.getTransactionHashes());
+    }
+
+    @Test
+    public void emptyFilterMatchesNothing() throws Exception {
+        // A filterload with no data, 10 hash functions, tweak 0 and UPDATE_ALL.
+        ImmutableBloomFilter empty = new BloomFilter(PARAMS, HEX.decode("000a0000000000000001")).toImmutable();
+        assertFalse(empty.contains(HEX.decode("99108ad8ed9bb6274d3980bab5a85c048f0950c8")));
+        assertSame(empty, empty.insert(HEX.decode("99108ad8ed9bb6274d3980bab5a85c048f0950c8")));
+        assertFalse(empty.matchesAll());
+        Transaction tx = FakeTxBuilder.createFakeTx(PARAMS, COIN, new ECKey());
+        assertFalse(empty.contains(tx.getOutput(0).getOutPointFor()));
+        assertNull(empty.applyAndUpdate(tx));
+        assertEquals(empty, empty.toBloomFilter().toImmutable());
+    }
+}
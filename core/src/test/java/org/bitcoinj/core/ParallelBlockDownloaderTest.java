@@ -0,0 +1,190 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.testing.InboundMessageQueuer;
+import org.bitcoinj.testing.TestWithNetworkConnections;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.bitcoinj.testing.FakeTxBuilder.makeSolvedTestBlock;
+import static org.junit.Assert.*;
+
+@RunWith(value = Parameterized.class)
+public class ParallelBlockDownloaderTest extends TestWithNetworkConnections {
+    private static final int OTHER_PEER_CHAIN_HEIGHT = 4;
+
+    private Peer peer1, peer2;
+    private InboundMessageQueuer writeTarget1, writeTarget2;
+    private ParallelBlockDownloader downloader;
+    private Block b1, b2, b3, b4;
+
+    @Parameterized.Parameters
+    public static Collection<ClientType[]> parameters() {
+        return Arrays.asList(new ClientType[] {ClientType.NIO_CLIENT_MANAGER},
+                             new ClientType[] {ClientType.BLOCKING_CLIENT_MANAGER});
+    }
+
+    public ParallelBlockDownloaderTest(ClientType clientType) {
+        super(clientType);
+    }
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        Utils.setMockClock();
+        downloader = new ParallelBlockDownloader(blockChain, 2, 5000);
+        peer1 = createPeer(4000);
+        peer2 = createPeer(4001);
+        writeTarget1 = connect(peer1, peerVersion());
+        writeTarget2 = connect(peer2, peerVersion());
+        b1 = makeSolvedTestBlock(PARAMS.getGenesisBlock());
+        b2 = makeSolvedTestBlock(b1);
+        b3 = makeSolvedTestBlock(b2);
+        b4 = makeSolvedTestBlock(b3);
+    }
+
+    @Override
+    @After
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    private Peer createPeer(int port) {
+        VersionMessage ver = new VersionMessage(PARAMS, 100);
+        Peer peer = new Peer(PARAMS, ver, new PeerAddress(PARAMS, new InetSocketAddress("127.0.0.1", port)), blockChain);
+        peer.addWallet(wallet);
+        peer.setParallelDownloader(downloader);
+        return peer;
+    }
+
+    private VersionMessage peerVersion() {
+        VersionMessage peerVersion = new VersionMessage(PARAMS, OTHER_PEER_CHAIN_HEIGHT);
+        peerVersion.clientVersion = 70001;
+        peerVersion.localServices = VersionMessage.NODE_NETWORK;
+        return peerVersion;
+    }
+
+    private Set<Sha256Hash> requested(GetDataMessage getdata) {
+        return requested(getdata, InventoryItem.Type.Block);
+    }
+
+    private Set<Sha256Hash> requested(GetDataMessage getdata, InventoryItem.Type type) {
+        Set<Sha256Hash> hashes = new HashSet<Sha256Hash>();
+        for (InventoryItem item : getdata.getItems()) {
+            assertEquals(type, item.type);
+            hashes.add(item.hash);
+        }
+        return hashes;
+    }
+
+    private void startWithHeaders(Block... blocks) throws Exception {
+        downloader.addPeer(peer1);
+        downloader.addPeer(peer2);
+        peer1.startBlockChainDownload();
+        GetHeadersMessage getheaders = (GetHeadersMessage) outbound(writeTarget1);
+        assertEquals(Arrays.asList(PARAMS.getGenesisBlock().getHash()), getheaders.getLocator());
+        assertEquals(Sha256Hash.ZERO_HASH, getheaders.getStopHash());
+        Block[] headers = new Block[blocks.length];
+        for (int i = 0; i < blocks.length; i++)
+            headers[i] = blocks[i].cloneAsHeader();
+        inbound(writeTarget1, new HeadersMessage(PARAMS, headers));
+    }
+
+    @Test
+    public void downloadsFromBothPeersInOrder() throws Exception {
+        startWithHeaders(b1, b2, b3, b4);
+        // The blocks are spread over both peers.
+        Set<Sha256Hash> fromPeer1 = requested((GetDataMessage) outbound(writeTarget1));
+        Set<Sha256Hash> fromPeer2 = requested((GetDataMessage) outbound(writeTarget2));
+        assertEquals(new HashSet<Sha256Hash>(Arrays.asList(b1.getHash(), b3.getHash())), fromPeer1);
+        assertEquals(new HashSet<Sha256Hash>(Arrays.asList(b2.getHash(), b4.getHash())), fromPeer2);
+        assertTrue(downloader.isActive());
+
+        // Blocks arriving ahead of time are held back until the chain can take them.
+        inbound(writeTarget2, b2);
+        inbound(writeTarget2, b4);
+        pingAndWait(writeTarget2);
+        assertEquals(0, blockChain.getBestChainHeight());
+        assertEquals(4, downloader.getPendingBlocks());
+        inbound(writeTarget1, b1);
+        inbound(writeTarget1, b3);
+        pingAndWait(writeTarget1);
+        assertEquals(4, blockChain.getBestChainHeight());
+        assertEquals(b4.getHash(), blockChain.getChainHead().getHeader().getHash());
+        assertEquals(0, downloader.getPendingBlocks());
+        assertFalse(downloader.isActive());
+    }
+
+    @Test
+    public void reassignsFromStalledPeer() throws Exception {
+        startWithHeaders(b1, b2);
+        assertEquals(new HashSet<Sha256Hash>(Arrays.asList(b1.getHash())),
+                requested((GetDataMessage) outbound(writeTarget1)));
+        assertEquals(new HashSet<Sha256Hash>(Arrays.asList(b2.getHash())),
+                requested((GetDataMessage) outbound(writeTarget2)));
+        inbound(writeTarget1, b1);
+        pingAndWait(writeTarget1);
+        assertEquals(1, blockChain.getBestChainHeight());
+
+        // Peer 2 doesn't deliver, nothing happens until the stall timeout passed.
+        downloader.checkForStalls();
+        assertNull(outbound(writeTarget1));
+        Utils.rollMockClock(10);
+        downloader.checkForStalls();
+        assertEquals(new HashSet<Sha256Hash>(Arrays.asList(b2.getHash())),
+                requested((GetDataMessage) outbound(writeTarget1)));
+        // A late reply from the stalled peer is ignored.
+        inbound(writeTarget2, b2);
+        pingAndWait(writeTarget2);
+        assertEquals(1, blockChain.getBestChainHeight());
+        inbound(writeTarget1, b2);
+        pingAndWait(writeTarget1);
+        assertEquals(2, blockChain.getBestChainHeight());
+        assertFalse(downloader.isActive());
+    }
+
+    @Test
+    public void downloadsFilteredBlocks() throws Exception {
+        // Like the PeerGroup, send the filters before the peers join the download, then switch to filtered blocks.
+        BloomFilter filter = wallet.getBloomFilter(1e-5);
+        peer1.setBloomFilter(filter, false);
+        peer2.setBloomFilter(filter, false);
+        assertTrue(outbound(writeTarget1) instanceof BloomFilter);
+        assertTrue(outbound(writeTarget2) instanceof BloomFilter);
+        peer1.setDownloadParameters(0, true);
+        peer2.setDownloadParameters(0, true);
+        startWithHeaders(b1, b2);
+        assertEquals(new HashSet<Sha256Hash>(Arrays.asList(b1.getHash())),
+                requested((GetDataMessage) outbound(writeTarget1), InventoryItem.Type.FilteredBlock));
+        assertTrue(outbound(writeTarget1) instanceof Ping);
+        assertEquals(new HashSet<Sha256Hash>(Arrays.asList(b2.getHash())),
+                requested((GetDataMessage) outbound(writeTarget2), InventoryItem.Type.FilteredBlock));
+        assertTrue(outbound(writeTarget2) instanceof Ping);
+        assertTrue(downloader.isActive());
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.params.UnitTestParams;
+import com.google.common.net.InetAddresses;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PeerAddressManagerTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        Utils.setMockClock();
+        file = File.createTempFile("peeraddresses", null);
+        file.delete();
+        file.deleteOnExit();
+    }
+
+    private static PeerAddress address(String ip, long services) {
+        PeerAddress address = new PeerAddress(PARAMS, InetAddresses.forString(ip), PARAMS.getPort());
+        address.setServices(BigInteger.valueOf(services));
+        return address;
+    }
+
+    @Test
+    public void ranksAddresses() throws Exception {
+        PeerAddressManager manager = new PeerAddressManager(PARAMS);
+        PeerAddress a = address("1.2.3.4", VersionMessage.NODE_NETWORK);
+        PeerAddress b = address("1.2.3.5", VersionMessage.NODE_NETWORK);
+        PeerAddress c = address("2001:db8::1", VersionMessage.NODE_NETWORK);
+        PeerAddress d = address("1.2.3.6", 0);
+        manager.addAddresses(Arrays.asList(a, b, c, d));
+        assertEquals(4, manager.size());
+        // Addresses without the required services are left out.
+        assertEquals(3, manager.getBestAddresses(10, VersionMessage.NODE_NETWORK).size());
+        assertEquals(4, manager.getBestAddresses(10, 0).size());
+
+        manager.markConnected(b, VersionMessage.NODE_NETWORK);
+        manager.markLatency(b, 300);
+        manager.markConnected(c, VersionMessage.NODE_NETWORK);
+        manager.markLatency(c, 100);
+        manager.markFailed(a);
+        List<PeerAddress> best = manager.getBestAddresses(3, VersionMessage.NODE_NETWORK);
+        assertEquals(c.toSocketAddress(), best.get(0).toSocketAddress());
+        assertEquals(b.toSocketAddress(), best.get(1).toSocketAddress());
+        assertEquals(a.toSocketAddress(), best.get(2).toSocketAddress());
+
+        // Addresses that keep failing lose their place.
+        for (int i = 0; i < 3; i++)
+            manager.markFailed(c);
+        best = manager.getBestAddresses(1, VersionMessage.NODE_NETWORK);
+        assertEquals(b.toSocketAddress(), best.get(0).toSocketAddress());
+    }
+
+    @Test
+    public void savesAndLoads() throws Exception {
+        PeerAddressManager manager = new PeerAddressManager(PARAMS, file);
+        PeerAddress a = address("1.2.3.4", VersionMessage.NODE_NETWORK);
+        PeerAddress b = address("2001:db8::1", VersionMessage.NODE_NETWORK | VersionMessage.NODE_GETUTXOS);
+        manager.addAddresses(Arrays.asList(a, b));
+        manager.markConnected(b, VersionMessage.NODE_NETWORK | VersionMessage.NODE_GETUTXOS);
+        manager.markLatency(b, 50);
+        manager.save();
+        assertTrue(file.exists());
+
+        PeerAddressManager loaded = new PeerAddressManager(PARAMS, file);
+        assertEquals(2, loaded.size());
+        List<PeerAddress> best = loaded.getBestAddresses(10, VersionMessage.NODE_GETUTXOS);
+        assertEquals(1, best.size());
+        assertEquals(b.toSocketAddress(), best.get(0).toSocketAddress());
+        best = loaded.getBestAddresses(10, VersionMessage.NODE_NETWORK);
+        assertEquals(2, best.size());
+        assertEquals(a.toSocketAddress(), best.get(1).toSocketAddress());
+
+        // Files for other networks are ignored.
+        assertEquals(0, new PeerAddressManager(MainNetParams.get(), file).size());
+    }
+
+    @Test
+    public void ignoresDamagedFile() throws Exception {
+        FileOutputStream stream = new FileOutputStream(file);
+        stream.write(new byte[] { 1, 2, 3 });
+        stream.close();
+        PeerAddressManager manager = new PeerAddressManager(PARAMS, file);
+        assertEquals(0, manager.size());
+        manager.addAddresses(Arrays.asList(address("1.2.3.4", VersionMessage.NODE_NETWORK)));
+        manager.save();
+        assertEquals(1, new PeerAddressManager(PARAMS, file).size());
+    }
+
+    @Test
+    public void keepsTheBest() throws Exception {
+        PeerAddressManager manager = new PeerAddressManager(PARAMS);
+        PeerAddress good = address("10.0.0.1", VersionMessage.NODE_NETWORK);
+        manager.markConnected(good, VersionMessage.NODE_NETWORK);
+        for (int i = 0; i < PeerAddressManager.MAX_ENTRIES; i++)
+            manager.addAddresses(Arrays.asList(address("10.1." + (i / 256) + "." + (i % 256), VersionMessage.NODE_NETWORK)));
+        assertEquals(PeerAddressManager.MAX_ENTRIES, manager.size());
+        assertEquals(good.toSocketAddress(), manager.getBestAddresses(1, 0).get(0).toSocketAddress());
+    }
+}
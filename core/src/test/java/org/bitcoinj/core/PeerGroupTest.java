@@ -20,6 +20,7 @@ package org.bitcoinj.core;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.*;
 import com.google.common.net.*;
+import com.google.common.primitives.Bytes;
 import com.google.common.util.concurrent.*;
 import org.bitcoinj.core.listeners.*;
 import org.bitcoinj.net.discovery.*;
@@ -31,6 +32,7 @@ import org.junit.runner.*;
 import org.junit.runners.*;
 
 import java.io.*;
+import java.math.BigInteger;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
@@ -163,6 +165,40 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertTrue(result.get());
     }
 
+    @Test
+    public void addressManagerSkipsDiscovery() throws Exception {
+        final AtomicInteger discoveries = new AtomicInteger();
+        peerGroup.addPeerDiscovery(new PeerDiscovery() {
+            @Override
+            public InetSocketAddress[] getPeers(long services, long unused, TimeUnit unused2) throws PeerDiscoveryException {
+                discoveries.incrementAndGet();
+                return new InetSocketAddress[0];
+            }
+
+            @Override
+            public void shutdown() {
+            }
+        });
+        peerGroup.setMaxConnections(1);
+        PeerAddressManager addressManager = new PeerAddressManager(PARAMS);
+        addressManager.markConnected(new PeerAddress(PARAMS, new InetSocketAddress("127.0.0.1", 2001)),
+                VersionMessage.NODE_NETWORK);
+        peerGroup.setAddressManager(addressManager);
+        peerGroup.start();
+        // The remembered peer is connected to without asking the discovery.
+        InboundMessageQueuer p1 = handleConnectToPeer(1);
+        p1.peer = peerGroup.waitForPeers(1).get().get(0);
+        assertEquals(0, discoveries.get());
+
+        // Addresses the peer tells us about are remembered.
+        PeerAddress heard = new PeerAddress(PARAMS, new InetSocketAddress("127.0.0.2", 2002));
+        heard.setServices(BigInteger.valueOf(VersionMessage.NODE_NETWORK));
+        heard.setTime(Utils.currentTimeSeconds());
+        inbound(p1, new AddressMessage(PARAMS, Bytes.concat(new VarInt(1).encode(), heard.bitcoinSerialize())));
+        pingAndWait(p1);
+        assertEquals(2, addressManager.size());
+    }
+
     // Utility method to create a PeerDiscovery with a certain number of addresses.
     private PeerDiscovery createPeerDiscovery(int nrOfAddressesWanted, int port) {
         final InetSocketAddress[] addresses = new InetSocketAddress[nrOfAddressesWanted];
@@ -498,6 +534,31 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertEquals(d.peer, peerGroup.getDownloadPeer());*/
     }
 
+    @Test
+    public void downloadPeerSelectionByThroughput() throws Exception {
+        peerGroup.start();
+        Utils.setMockClock();
+        VersionMessage ver = new VersionMessage(PARAMS, 2);
+        ver.clientVersion = NetworkParameters.ProtocolVersion.BLOOM_FILTER.getBitcoinProtocolVersion();
+        ver.localServices = VersionMessage.NODE_NETWORK;
+        Peer a = connectPeer(1, ver).peer;
+        Peer b = connectPeer(2, ver).peer;
+        // b delivered a block and is fast, a never delivered any.
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1 });
+        b.getStats().blockRequested(hash);
+        b.getStats().addBytesReceived(100000);
+        b.getStats().blockReceived(hash);
+        Utils.rollMockClock(1);
+        List<Peer> peers = Arrays.asList(a, b);
+        for (int i = 0; i < 10; i++)
+            assertEquals(b, peerGroup.selectDownloadPeer(peers));
+        // Once it stalled the chain download, it is passed over for a while.
+        b.getStats().recordDownloadStall();
+        assertEquals(a, peerGroup.selectDownloadPeer(peers));
+        // Unless there's no one else.
+        assertEquals(b, peerGroup.selectDownloadPeer(Arrays.asList(b)));
+    }
+
     @Test
     public void peerTimeoutTest() throws Exception {
         final int timeout = 100;
@@ -672,6 +733,75 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertFalse(f1.contains(key.getPubKeyHash()));
     }
 
+    @Test
+    public void testBloomRecalculationDelay() throws Exception {
+        // Check that changes made within the delay end up in a single filter, and that a filter the peers already
+        // match everything of is not sent.
+        peerGroup.setBloomFilterRecalculationDelay(500);
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+        peerGroup.waitForJobQueue();
+        while (outbound(p1) != null);
+        List<Address> addresses = new ArrayList<Address>();
+        for (int i = 0; i < 3; i++) {
+            Address address = new ECKey().toAddress(PARAMS);
+            wallet.addWatchedAddress(address);
+            addresses.add(address);
+        }
+        // Picks up the recalculation already waiting.
+        BloomFilter filter = peerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED).get();
+        for (Address address : addresses)
+            assertTrue(filter.contains(address.getHash160()));
+        assertArrayEquals(filter.bitcoinSerialize(), outbound(p1).bitcoinSerialize());
+        assertEquals(MemoryPoolMessage.class, outbound(p1).getClass());
+        assertNull(outbound(p1));
+
+        // Dropping a script makes for a new filter, but the peers don't need it.
+        wallet.removeWatchedAddress(addresses.get(0));
+        BloomFilter filter2 = peerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED).get();
+        assertNotEquals(filter, filter2);
+        assertTrue(filter.covers(filter2));
+        assertNull(outbound(p1));
+    }
+
+    @Test
+    public void testBloomRecalculationAfterNewPeer() throws Exception {
+        // A peer that connects after a narrower filter was calculated but not sent holds that narrower filter, so
+        // widening it again must reach that peer even though the earlier peers still match everything.
+        peerGroup.setBloomFilterRecalculationDelay(500);
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+        peerGroup.waitForJobQueue();
+        while (outbound(p1) != null);
+        // Keep one address watched throughout, so the filter's update flags don't change.
+        wallet.addWatchedAddress(new ECKey().toAddress(PARAMS));
+        Address address = new ECKey().toAddress(PARAMS);
+        wallet.addWatchedAddress(address);
+        BloomFilter filter = peerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED).get();
+        assertTrue(filter.contains(address.getHash160()));
+        assertArrayEquals(filter.bitcoinSerialize(), outbound(p1).bitcoinSerialize());
+        assertEquals(MemoryPoolMessage.class, outbound(p1).getClass());
+
+        wallet.removeWatchedAddress(address);
+        BloomFilter filter2 = peerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED).get();
+        assertFalse(filter2.contains(address.getHash160()));
+        assertNull(outbound(p1));
+
+        InboundMessageQueuer p2 = connectPeer(2);
+        peerGroup.waitForJobQueue();
+        while (outbound(p2) != null);
+        Peer peer2 = peerGroup.getConnectedPeers().get(1);
+        assertEquals(filter2, peer2.getBloomFilter());
+
+        wallet.addWatchedAddress(address);
+        BloomFilter filter3 = peerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED).get();
+        assertTrue(filter.covers(filter3));
+        assertNull(outbound(p1));
+        assertArrayEquals(filter3.bitcoinSerialize(), outbound(p2).bitcoinSerialize());
+        assertEquals(MemoryPoolMessage.class, outbound(p2).getClass());
+        assertTrue(peer2.getBloomFilter().contains(address.getHash160()));
+    }
+
     @Test
     public void waitForNumPeers1() throws Exception {
         ListenableFuture<List<Peer>> future = peerGroup.waitForPeers(3);
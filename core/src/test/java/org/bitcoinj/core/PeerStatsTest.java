@@ -0,0 +1,82 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PeerStatsTest {
+    @Before
+    public void setUp() throws Exception {
+        Utils.setMockClock();
+    }
+
+    @Test
+    public void throughputWindow() throws Exception {
+        PeerStats stats = new PeerStats(5);
+        assertEquals(0, stats.getBytesPerSecond());
+        stats.addBytesReceived(1000);
+        // The current second doesn't count yet.
+        assertEquals(0, stats.getBytesPerSecond());
+        Utils.rollMockClock(1);
+        assertEquals(1000, stats.getBytesPerSecond());
+        stats.addBytesReceived(3000);
+        Utils.rollMockClock(1);
+        assertEquals(2000, stats.getBytesPerSecond());
+        // Once the window is full, old seconds drop out of it.
+        Utils.rollMockClock(3);
+        assertEquals(800, stats.getBytesPerSecond());
+        Utils.rollMockClock(1);
+        assertEquals(600, stats.getBytesPerSecond());
+        Utils.rollMockClock(10);
+        assertEquals(0, stats.getBytesPerSecond());
+        assertEquals(4000, stats.getTotalBytesReceived());
+    }
+
+    @Test
+    public void blockLatency() throws Exception {
+        PeerStats stats = new PeerStats();
+        Sha256Hash a = Sha256Hash.of(new byte[] { 1 });
+        Sha256Hash b = Sha256Hash.of(new byte[] { 2 });
+        assertEquals(Long.MAX_VALUE, stats.getBlockLatency());
+        assertFalse(stats.isDeliveringBlocks());
+        stats.blockRequested(a);
+        stats.blockRequested(b);
+        Utils.rollMockClockMillis(100);
+        stats.blockReceived(a);
+        Utils.rollMockClockMillis(200);
+        stats.blockReceived(b);
+        // Unrequested blocks are ignored.
+        stats.blockReceived(Sha256Hash.of(new byte[] { 3 }));
+        assertEquals(200, stats.getBlockLatency());
+        assertEquals(2, stats.getBlocksReceived());
+        assertTrue(stats.isDeliveringBlocks());
+        Utils.rollMockClock(PeerStats.DEFAULT_WINDOW_SECONDS);
+        assertFalse(stats.isDeliveringBlocks());
+    }
+
+    @Test
+    public void downloadStalls() throws Exception {
+        PeerStats stats = new PeerStats();
+        assertEquals(0, stats.getLastDownloadStallTimeMillis());
+        stats.recordDownloadStall();
+        assertEquals(1, stats.getDownloadStalls());
+        assertEquals(Utils.currentTimeMillis(), stats.getLastDownloadStallTimeMillis());
+    }
+}
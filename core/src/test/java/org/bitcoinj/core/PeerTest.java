@@ -22,6 +22,7 @@ import org.bitcoinj.params.TestNet3Params;
 import org.bitcoinj.testing.FakeTxBuilder;
 import org.bitcoinj.testing.InboundMessageQueuer;
 import org.bitcoinj.testing.TestWithNetworkConnections;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
@@ -46,8 +47,12 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -537,6 +542,64 @@ public class PeerTest extends TestWithNetworkConnections {
         assertEquals(7250, peer.getPingTime());
     }
 
+    @Test
+    public void messagesProcessedOnExecutor() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor(new ContextPropagatingThreadFactory("parser"));
+        final List<String> threadNames = Collections.synchronizedList(new ArrayList<String>());
+        peer.addPreMessageReceivedEventListener(Threading.SAME_THREAD, new PreMessageReceivedEventListener() {
+            @Override
+            public Message onPreMessageReceived(Peer peer, Message m) {
+                threadNames.add(Thread.currentThread().getName());
+                return m;
+            }
+        });
+        peer.setMessageExecutor(executor);
+        connect();
+        // Messages are still handled in order, so the pong to our ping is seen after the inv.
+        InventoryMessage inv = new InventoryMessage(PARAMS);
+        inv.addTransaction(FakeTxBuilder.createFakeTx(PARAMS, COIN, new ECKey().toAddress(PARAMS)));
+        inbound(writeTarget, inv);
+        pingAndWait(writeTarget);
+        assertTrue(outbound(writeTarget) instanceof GetDataMessage);
+        assertFalse(threadNames.isEmpty());
+        for (String name : threadNames)
+            assertEquals("parser", name);
+        executor.shutdown();
+    }
+
+    @Test
+    public void readingPausedWhileMessagesQueue() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor(new ContextPropagatingThreadFactory("parser"));
+        peer.setMessageExecutor(executor);
+        peer.setMaxQueuedMessageBytes(1000);
+        connect();
+        final CountDownLatch latch = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Uninterruptibles.awaitUninterruptibly(latch);
+            }
+        });
+        List<InventoryMessage> invs = new ArrayList<InventoryMessage>();
+        for (int i = 0; i < 3; i++) {
+            InventoryMessage inv = new InventoryMessage(PARAMS);
+            for (int j = 0; j < 20; j++)
+                inv.addTransaction(FakeTxBuilder.createFakeTx(PARAMS, COIN, new ECKey().toAddress(PARAMS)));
+            invs.add(inv);
+            inbound(writeTarget, inv);
+        }
+        // The executor is stuck, so the messages pile up until reading stops.
+        for (int i = 0; i < 100 && !peer.isReadingPaused(); i++)
+            Thread.sleep(10);
+        assertTrue(peer.isReadingPaused());
+        latch.countDown();
+        pingAndWait(writeTarget);
+        assertFalse(peer.isReadingPaused());
+        for (InventoryMessage inv : invs)
+            assertEquals(inv.getItems(), ((GetDataMessage) outbound(writeTarget)).getItems());
+        executor.shutdown();
+    }
+
     @Test
     public void recursiveDependencyDownloadDisabled() throws Exception {
         peer.setDownloadTxDependencies(false);
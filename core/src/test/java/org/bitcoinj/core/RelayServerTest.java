@@ -0,0 +1,230 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.core.listeners.PreMessageReceivedEventListener;
+import org.bitcoinj.net.NioClientManager;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.store.RawBlockSource;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.bitcoinj.utils.BriefLogFormatter;
+import org.bitcoinj.utils.Threading;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nullable;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.bitcoinj.core.Utils.HEX;
+import static org.junit.Assert.*;
+
+public class RelayServerTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final InetSocketAddress ADDRESS = new InetSocketAddress("127.0.0.1", 4250);
+
+    private final Map<Sha256Hash, byte[]> rawBlocks = Collections.synchronizedMap(new HashMap<Sha256Hash, byte[]>());
+    private final List<Block> blocks = new ArrayList<Block>();
+    private ECKey key;
+    private BlockChain chain;
+    private RelayServer server;
+    private NioClientManager clients;
+    private Peer peer;
+    private final BlockingQueue<Message> received = new LinkedBlockingQueue<Message>();
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        Context.propagate(new Context(PARAMS, 100, Coin.ZERO, false));
+        key = new ECKey();
+        chain = new BlockChain(PARAMS, new MemoryBlockStore(PARAMS));
+        for (int i = 0; i < 5; i++)
+            addBlock();
+        server = new RelayServer(PARAMS, chain, new RawBlockSource() {
+            @Nullable
+            @Override
+            public ByteBuffer getRawBlock(Sha256Hash hash) throws BlockStoreException {
+                byte[] bytes = rawBlocks.get(hash);
+                return bytes == null ? null : ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+            }
+        }, ADDRESS);
+        server.startAsync().awaitRunning();
+
+        clients = new NioClientManager();
+        clients.startAsync().awaitRunning();
+        BlockChain clientChain = new BlockChain(PARAMS, new MemoryBlockStore(PARAMS));
+        peer = new Peer(PARAMS, new VersionMessage(PARAMS, 0), new PeerAddress(PARAMS, ADDRESS), clientChain);
+        peer.addPreMessageReceivedEventListener(Threading.SAME_THREAD, new PreMessageReceivedEventListener() {
+            @Override
+            public Message onPreMessageReceived(Peer peer, Message m) {
+                received.add(m);
+                // The peer isn't downloading the chain, so it doesn't expect any headers.
+                return m instanceof HeadersMessage ? null : m;
+            }
+        });
+        clients.openConnection(ADDRESS, peer);
+        peer.getVersionHandshakeFuture().get(10, TimeUnit.SECONDS);
+        // Our verack may still be on its way. The server answers pings in order, so once it did, it is serving us.
+        peer.ping().get(10, TimeUnit.SECONDS);
+        assertEquals(5, peer.getBestHeight());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        clients.stopAsync().awaitTerminated();
+        server.stopAsync().awaitTerminated();
+    }
+
+    private Block addBlock() throws Exception {
+        Block block = chain.getChainHead().getHeader().createNextBlock(key.toAddress(PARAMS));
+        assertTrue(chain.add(block));
+        rawBlocks.put(block.getHash(), block.bitcoinSerialize());
+        blocks.add(block);
+        return block;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends Message> T waitFor(Class<T> type) throws InterruptedException {
+        while (true) {
+            Message m = received.poll(10, TimeUnit.SECONDS);
+            assertNotNull("Timed out waiting for " + type.getSimpleName(), m);
+            if (type.isInstance(m))
+                return (T) m;
+        }
+    }
+
+    @Test
+    public void servesBlocks() throws Exception {
+        Block block = blocks.get(2);
+        Block served = peer.getBlock(block.getHash()).get(10, TimeUnit.SECONDS);
+        assertEquals(block, served);
+        assertEquals(block.getTransactions(), served.getTransactions());
+
+        // Blocks we don't have are reported as not found.
+        GetDataMessage getdata = new GetDataMessage(PARAMS);
+        getdata.addBlock(Sha256Hash.of(new byte[] { 1 }));
+        peer.sendMessage(getdata);
+        NotFoundMessage notFound = waitFor(NotFoundMessage.class);
+        assertEquals(getdata.getItems(), notFound.getItems());
+    }
+
+    @Test
+    public void servesHeaders() throws Exception {
+        List<Sha256Hash> locator = Collections.singletonList(blocks.get(1).getHash());
+        peer.sendMessage(new GetHeadersMessage(PARAMS, locator, Sha256Hash.ZERO_HASH));
+        HeadersMessage headers = waitFor(HeadersMessage.class);
+        assertEquals(3, headers.getBlockHeaders().size());
+        assertEquals(blocks.get(2).getHash(), headers.getBlockHeaders().get(0).getHash());
+        assertEquals(blocks.get(4).getHash(), headers.getBlockHeaders().get(2).getHash());
+
+        // Headers stop at the stop hash, and follow the chain as it grows.
+        addBlock();
+        peer.sendMessage(new GetHeadersMessage(PARAMS, locator, blocks.get(3).getHash()));
+        headers = waitFor(HeadersMessage.class);
+        assertEquals(2, headers.getBlockHeaders().size());
+        peer.sendMessage(new GetHeadersMessage(PARAMS, Collections.singletonList(blocks.get(4).getHash()),
+                Sha256Hash.ZERO_HASH));
+        headers = waitFor(HeadersMessage.class);
+        assertEquals(1, headers.getBlockHeaders().size());
+        assertEquals(blocks.get(5).getHash(), headers.getBlockHeaders().get(0).getHash());
+    }
+
+    @Test
+    public void announcesNewBlocks() throws Exception {
+        Block block = addBlock();
+        InventoryMessage inv = waitFor(InventoryMessage.class);
+        assertEquals(block.getHash(), inv.getItems().get(0).hash);
+    }
+
+    @Test
+    public void servesFilteredBlocks() throws Exception {
+        BloomFilter filter = new BloomFilter(1, 0.000001, 0);
+        filter.insert(key.getPubKeyHash());
+        peer.sendMessage(filter);
+        Block block = blocks.get(3);
+        GetDataMessage getdata = new GetDataMessage(PARAMS);
+        getdata.addFilteredBlock(block.getHash());
+        peer.sendMessage(getdata);
+        FilteredBlock filtered = waitFor(FilteredBlock.class);
+        assertEquals(block.getHash(), filtered.getHash());
+        // The block pays to our key in its second transaction, which is sent along.
+        Sha256Hash payment = block.getTransactions().get(1).getHash();
+        assertEquals(Collections.singletonList(payment), filtered.getTransactionHashes());
+        assertEquals(payment, waitFor(Transaction.class).getHash());
+    }
+
+    @Test
+    public void badFilters() throws Exception {
+        // A filter without data matches nothing, and doesn't get in the way of relaying.
+        peer.sendMessage(new BloomFilter(PARAMS, HEX.decode("000a0000000000000001")));
+        peer.ping().get(10, TimeUnit.SECONDS);
+        received.clear();
+        Transaction tx = FakeTxBuilder.createFakeTx(PARAMS, Coin.COIN, key);
+        server.relayTransaction(tx);
+        peer.ping().get(10, TimeUnit.SECONDS);
+        for (Message m : received)
+            assertFalse(m instanceof InventoryMessage);
+
+        // Update flags we don't know get the peer disconnected.
+        peer.sendMessage(new BloomFilter(PARAMS, HEX.decode("01ff010000000000000003")));
+        for (int i = 0; i < 100 && server.numConnectedPeers() > 0; i++)
+            Thread.sleep(100);
+        assertEquals(0, server.numConnectedPeers());
+    }
+
+    @Test
+    public void servesManyBlocksAsWritesDrain() throws Exception {
+        // With the smallest limit, each block is only sent once the one before it was written.
+        server.setMaxPendingWriteBytes(1);
+        received.clear();
+        GetDataMessage getdata = new GetDataMessage(PARAMS);
+        for (Block block : blocks)
+            getdata.addBlock(block.getHash());
+        getdata.addBlock(Sha256Hash.of(new byte[] { 1 }));
+        peer.sendMessage(getdata);
+        peer.ping().get(10, TimeUnit.SECONDS);
+        // The ping sent right after the getdata is answered after all of it.
+        List<Sha256Hash> served = new ArrayList<Sha256Hash>();
+        boolean notFound = false;
+        for (Message m : received) {
+            if (m instanceof Block) {
+                served.add(m.getHash());
+            } else if (m instanceof NotFoundMessage) {
+                assertEquals(blocks.size(), served.size());
+                notFound = true;
+            } else if (m instanceof Pong) {
+                assertTrue(notFound);
+            }
+        }
+        List<Sha256Hash> expected = new ArrayList<Sha256Hash>();
+        for (Block block : blocks)
+            expected.add(block.getHash());
+        assertEquals(expected, served);
+        assertTrue(notFound);
+    }
+}
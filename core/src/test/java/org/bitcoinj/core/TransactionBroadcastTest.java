@@ -145,6 +145,40 @@ public class TransactionBroadcastTest extends TestWithPeerGroup {
         }
     }
 
+    @Test
+    public void trickledBroadcast() throws Exception {
+        // With a trickle interval, transactions are only announced with the next batch, parents first.
+        peerGroup.setBroadcastTrickleInterval(TimeUnit.HOURS.toMillis(1));
+        InboundMessageQueuer p1 = connectPeer(1);
+        Address dest = new ECKey().toAddress(PARAMS);
+        Transaction parent = FakeTxBuilder.createFakeTx(PARAMS, CENT, dest);
+        Transaction child = new Transaction(PARAMS);
+        child.addInput(parent.getOutput(0));
+        child.addOutput(CENT, dest);
+        List<TransactionBroadcast> broadcasts = peerGroup.broadcastTransactions(Arrays.asList(child, parent), 1);
+        assertNull(outbound(p1));
+        assertFalse(broadcasts.get(0).future().isDone());
+        assertFalse(broadcasts.get(1).future().isDone());
+        assertEquals(2, peerGroup.getBroadcastScheduler().numQueued());
+
+        peerGroup.getBroadcastScheduler().trickle();
+        assertEquals(0, peerGroup.getBroadcastScheduler().numQueued());
+        InventoryMessage inv = (InventoryMessage) outbound(p1);
+        assertEquals(2, inv.getItems().size());
+        assertEquals(parent.getHash(), inv.getItems().get(0).hash);
+        assertEquals(child.getHash(), inv.getItems().get(1).hash);
+        assertEquals(parent, broadcasts.get(0).future().get());
+        assertEquals(child, broadcasts.get(1).future().get());
+
+        // The peer fetches them from us.
+        GetDataMessage getdata = new GetDataMessage(PARAMS);
+        getdata.addTransaction(parent.getHash());
+        getdata.addTransaction(child.getHash());
+        inbound(p1, getdata);
+        assertEquals(parent, outbound(p1));
+        assertEquals(child, outbound(p1));
+    }
+
     @Test
     public void retryFailedBroadcast() throws Exception {
         // If we create a spend, it's sent to a peer that swallows it, and the peergroup is removed/re-added then
@@ -404,4 +404,50 @@ public class TransactionTest {
             };
         }
     }
+
+    @Test
+    public void hashCachedUntilChanged() throws Exception {
+        Transaction tx = new Transaction(PARAMS);
+        TransactionOutPoint outpoint = new TransactionOutPoint(PARAMS, 0, Sha256Hash.of(new byte[] { 1 }));
+        tx.addInput(new TransactionInput(PARAMS, tx, new byte[] { 1, 2 }, outpoint));
+        tx.addOutput(Coin.COIN, ADDRESS);
+        tx.addOutput(Coin.CENT, ADDRESS);
+        Sha256Hash hash = tx.getHash();
+        assertSame(hash, tx.getHash());
+        assertFalse(tx.isCached());
+        assertConsistent(tx);
+
+        // Changes anywhere in the tx drop the hash.
+        tx.getInput(0).getOutpoint().setIndex(1);
+        assertNotEquals(hash, tx.getHash());
+        assertConsistent(tx);
+        tx.getInput(0).getOutpoint().setIndex(0);
+        assertEquals(hash, tx.getHash());
+        tx.getInput(0).setSequenceNumber(5);
+        assertConsistent(tx);
+        tx.getOutput(1).setValue(Coin.SATOSHI);
+        assertConsistent(tx);
+        for (int i = 0; i < 10; i++) {
+            tx.getHash();
+            tx.shuffleOutputs();
+            assertConsistent(tx);
+        }
+
+        // An outpoint shared by a second input still serializes as it is now.
+        tx.addInput(new TransactionInput(PARAMS, tx, new byte[] { 3 }, outpoint));
+        tx.getHash();
+        outpoint.setIndex(2);
+        Transaction copy = new Transaction(PARAMS, tx.bitcoinSerialize());
+        assertEquals(2, copy.getInput(1).getOutpoint().getIndex());
+        assertEquals(copy.getHash(), tx.getHash());
+    }
+
+    private static void assertConsistent(Transaction tx) {
+        Transaction copy = new Transaction(PARAMS, tx.bitcoinSerialize());
+        assertEquals(copy.getHash(), tx.getHash());
+        assertEquals(copy.getInput(0).getOutpoint(), tx.getInput(0).getOutpoint());
+        assertEquals(copy.getInput(0).getSequenceNumber(), tx.getInput(0).getSequenceNumber());
+        assertEquals(copy.getOutput(0).getValue(), tx.getOutput(0).getValue());
+        assertEquals(copy.getOutput(1).getValue(), tx.getOutput(1).getValue());
+    }
 }
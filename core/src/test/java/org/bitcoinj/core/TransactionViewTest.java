@@ -0,0 +1,112 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TransactionViewTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    @Test
+    public void matchesTransaction() throws Exception {
+        Transaction tx = FakeTxBuilder.createFakeTx(PARAMS, Coin.COIN, new ECKey().toAddress(PARAMS));
+        tx.getInput(0).setSequenceNumber(7);
+        tx.setLockTime(1000);
+        // Put the tx in the middle of a larger array, as it would be in a block.
+        byte[] txBytes = tx.bitcoinSerialize();
+        byte[] bytes = new byte[txBytes.length + 10];
+        System.arraycopy(txBytes, 0, bytes, 5, txBytes.length);
+        TransactionView view = new TransactionView(PARAMS, bytes, 5, null, PARAMS.getDefaultSerializer(),
+                Message.UNKNOWN_LENGTH);
+
+        assertEquals(txBytes.length, view.getMessageSize());
+        assertEquals(tx.getHash(), view.getHash());
+        assertEquals(tx.getVersion(), view.getVersion());
+        assertEquals(1000, view.getLockTime());
+        assertSame(bytes, view.getRawBytes());
+        assertEquals(tx.getInputs().size(), view.getInputCount());
+        for (int i = 0; i < view.getInputCount(); i++) {
+            TransactionInput input = tx.getInput(i);
+            assertEquals(input.getOutpoint().getHash(), view.getOutPointHash(i));
+            assertEquals(input.getOutpoint().getIndex(), view.getOutPointIndex(i));
+            assertEquals(input.getSequenceNumber(), view.getInputSequenceNumber(i));
+            assertArrayEquals(input.getScriptBytes(), range(bytes, view.getInputScriptOffset(i),
+                    view.getInputScriptLength(i)));
+            assertEquals(input.getOutpoint(), view.getInput(i).getOutpoint());
+        }
+        assertEquals(tx.getOutputs().size(), view.getOutputCount());
+        for (int i = 0; i < view.getOutputCount(); i++) {
+            TransactionOutput output = tx.getOutput(i);
+            assertEquals(output.getValue().value, view.getOutputValue(i));
+            assertArrayEquals(output.getScriptBytes(), range(bytes, view.getOutputScriptOffset(i),
+                    view.getOutputScriptLength(i)));
+            assertEquals(output.getValue(), view.getOutput(i).getValue());
+            assertSame(view.getOutput(i), view.getOutput(i));
+        }
+        assertEquals(tx, view.getTransaction());
+        assertEquals(tx.getHash(), view.getTransaction().getHash());
+        assertArrayEquals(txBytes, view.bitcoinSerialize());
+    }
+
+    @Test
+    public void lazySerializer() throws Exception {
+        Transaction tx = FakeTxBuilder.createFakeTx(PARAMS);
+        BitcoinSerializer serializer = new BitcoinSerializer(PARAMS, false, true);
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        serializer.serialize(tx, message);
+        TransactionView view = (TransactionView) serializer.deserialize(ByteBuffer.wrap(message.toByteArray()));
+        assertEquals(tx.getHash(), view.getHash());
+        ByteArrayOutputStream reserialized = new ByteArrayOutputStream();
+        serializer.serialize(view, reserialized);
+        assertArrayEquals(message.toByteArray(), reserialized.toByteArray());
+        // Without the lazy mode, nothing changes.
+        assertTrue(PARAMS.getDefaultSerializer().deserialize(ByteBuffer.wrap(message.toByteArray())) instanceof Transaction);
+    }
+
+    @Test
+    public void truncated() throws Exception {
+        byte[] txBytes = FakeTxBuilder.createFakeTx(PARAMS).bitcoinSerialize();
+        for (int length : new int[] { 0, 3, 10, txBytes.length - 1 }) {
+            try {
+                new TransactionView(PARAMS, Arrays.copyOf(txBytes, length));
+                fail();
+            } catch (ProtocolException e) {
+                // Expected.
+            }
+        }
+        // A script length that would overflow.
+        txBytes[4 + 1 + 36] = (byte) 0xff;
+        try {
+            new TransactionView(PARAMS, txBytes);
+            fail();
+        } catch (ProtocolException e) {
+            // Expected.
+        }
+    }
+
+    private static byte[] range(byte[] bytes, int offset, int length) {
+        return Arrays.copyOfRange(bytes, offset, offset + length);
+    }
+}
@@ -22,6 +22,8 @@ import org.bitcoinj.utils.*;
 import org.junit.*;
 
 import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 import static org.bitcoinj.core.Coin.*;
 import static org.junit.Assert.*;
@@ -99,4 +101,90 @@ public class TxConfidenceTableTest {
         assertEquals(3, tx2.getConfidence().numBroadcastPeers());
         assertEquals(3, table.numBroadcastPeers(tx1.getHash()));
     }
+
+    @Test
+    public void evictsWhenFull() throws Exception {
+        TxConfidenceTable small = new TxConfidenceTable(64, 4);
+        assertEquals(4, small.getShardCount());
+        List<TransactionConfidence> pinned = new ArrayList<TransactionConfidence>();
+        for (int i = 0; i < 1000; i++)
+            pinned.add(small.getOrCreate(Sha256Hash.of(new byte[] { (byte) i, (byte) (i >> 8) })));
+        // Each shard holds its share of the size, so the table as a whole holds about that many.
+        assertTrue(small.size() <= 64);
+        long evictions = 0;
+        for (TxConfidenceTable.ShardStats stats : small.getShardStats()) {
+            assertEquals(16, stats.getSize());
+            evictions += stats.getEvictions();
+        }
+        assertEquals(1000 - 64, evictions);
+        // The most recently used entry survives.
+        Sha256Hash last = pinned.get(999).getTransactionHash();
+        assertSame(pinned.get(999), small.get(last));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        TxConfidenceTable single = new TxConfidenceTable(2, 1);
+        TransactionConfidence a = single.getOrCreate(Sha256Hash.of(new byte[] { 1 }));
+        TransactionConfidence b = single.getOrCreate(Sha256Hash.of(new byte[] { 2 }));
+        // Touching the first entry makes the second the eldest.
+        assertSame(a, single.get(a.getTransactionHash()));
+        TransactionConfidence c = single.getOrCreate(Sha256Hash.of(new byte[] { 3 }));
+        assertSame(a, single.get(a.getTransactionHash()));
+        assertNull(single.get(b.getTransactionHash()));
+        assertSame(c, single.get(c.getTransactionHash()));
+    }
+
+    @Test
+    public void collectedEntriesRemoved() throws Exception {
+        TxConfidenceTable sharded = new TxConfidenceTable(1000, 8);
+        for (int i = 0; i < 100; i++)
+            sharded.seen(Sha256Hash.of(new byte[] { (byte) i }), address1);
+        assertEquals(100, sharded.size());
+        TransactionConfidence kept = sharded.getOrCreate(tx1.getHash());
+        for (int i = 0; i < 10 && sharded.size() > 1; i++) {
+            System.gc();
+            Thread.sleep(10);
+            sharded.numBroadcastPeers(tx1.getHash());
+        }
+        assertEquals(1, sharded.size());
+        assertSame(kept, sharded.get(tx1.getHash()));
+    }
+
+    @Test
+    public void concurrentSeen() throws Exception {
+        final TxConfidenceTable sharded = new TxConfidenceTable(1000, 16);
+        final List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        for (int i = 0; i < 200; i++)
+            hashes.add(Sha256Hash.of(new byte[] { (byte) i }));
+        final PeerAddress[] peers = { address1, address2, address3 };
+        // Hold on to the confidences, so none of them are collected while the threads run.
+        final List<TransactionConfidence> pinned = new ArrayList<TransactionConfidence>();
+        for (Sha256Hash hash : hashes)
+            pinned.add(sharded.getOrCreate(hash));
+        ExecutorService executor = Executors.newFixedThreadPool(peers.length);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (final PeerAddress peer : peers) {
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int round = 0; round < 5; round++)
+                        for (Sha256Hash hash : hashes)
+                            sharded.seen(hash, peer);
+                }
+            }));
+        }
+        for (Future<?> future : futures)
+            future.get();
+        executor.shutdown();
+        for (Sha256Hash hash : hashes)
+            assertEquals(peers.length, sharded.numBroadcastPeers(hash));
+        long acquisitions = 0;
+        for (TxConfidenceTable.ShardStats stats : sharded.getShardStats()) {
+            assertTrue(stats.getContendedAcquisitions() <= stats.getLockAcquisitions());
+            acquisitions += stats.getLockAcquisitions();
+        }
+        assertTrue(acquisitions >= hashes.size() * (1 + peers.length * 5 + 1));
+        assertEquals(hashes.size(), pinned.size());
+    }
 }
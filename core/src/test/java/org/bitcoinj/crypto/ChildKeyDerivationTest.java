@@ -22,6 +22,8 @@ import org.bitcoinj.params.*;
 import org.junit.*;
 import org.spongycastle.crypto.params.*;
 
+import java.util.*;
+
 import static org.bitcoinj.core.Utils.*;
 import static org.junit.Assert.*;
 
@@ -185,6 +187,39 @@ public class ChildKeyDerivationTest {
         assertEquals(key3.getPubKeyPoint(), pubkey3.getPubKeyPoint());
     }
 
+    @Test
+    public void batchDerivation() throws Exception {
+        DeterministicKey master = HDKeyDerivation.createMasterPrivateKey("batch derivation".getBytes());
+        // Large enough to be split up over several threads.
+        int count = 200;
+        List<DeterministicKey> batch = HDKeyDerivation.deriveChildKeys(master, new ChildNumber(5, false), count);
+        assertEquals(count, batch.size());
+        for (int i = 0; i < count; i++) {
+            DeterministicKey single = HDKeyDerivation.deriveChildKey(master, new ChildNumber(5 + i, false));
+            assertEquals(single, batch.get(i));
+            assertEquals(single.getPrivKey(), batch.get(i).getPrivKey());
+            assertEquals(single.getPath(), batch.get(i).getPath());
+            assertArrayEquals(single.getChainCode(), batch.get(i).getChainCode());
+        }
+
+        // Public only derivation gives the same public keys.
+        DeterministicKey watching = master.dropPrivateBytes().dropParent();
+        List<DeterministicKey> pubBatch = HDKeyDerivation.deriveChildKeys(watching, new ChildNumber(5, false), count);
+        for (int i = 0; i < count; i++) {
+            assertFalse(pubBatch.get(i).hasPrivKey());
+            assertArrayEquals(batch.get(i).getPubKey(), pubBatch.get(i).getPubKey());
+        }
+
+        List<DeterministicKey> hardened = HDKeyDerivation.deriveChildKeys(master, ChildNumber.ZERO_HARDENED, 3);
+        assertEquals(HDKeyDerivation.deriveChildKey(master, new ChildNumber(2, true)), hardened.get(2));
+        try {
+            HDKeyDerivation.deriveChildKeys(watching, ChildNumber.ZERO_HARDENED, 3);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
     @Test
     public void testSerializationMainAndTestNetworks() {
         DeterministicKey key1 = HDKeyDerivation.createMasterPrivateKey("satoshi lives!".getBytes());
@@ -0,0 +1,84 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.bitcoinj.core.ECKey;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.spongycastle.math.ec.ECPoint;
+
+import static org.junit.Assert.*;
+
+public class DecodedPointCacheTest {
+    private DecodedPointCache previous;
+    private DecodedPointCache cache;
+
+    @Before
+    public void setUp() {
+        previous = DecodedPointCache.getDefault();
+        cache = new DecodedPointCache(2);
+        DecodedPointCache.setDefault(cache);
+    }
+
+    @After
+    public void tearDown() {
+        DecodedPointCache.setDefault(previous);
+    }
+
+    @Test
+    public void decodesOnce() {
+        ECKey key = new ECKey();
+        byte[] pub = key.getPubKey();
+        ECPoint point = cache.decode(pub);
+        assertEquals(key.getPubKeyPoint(), point);
+        assertSame(point, ECKey.fromPublicOnly(pub).getPubKeyPoint());
+        assertSame(point, new LazyECPoint(ECKey.CURVE.getCurve(), pub).get());
+        assertEquals(1, cache.getStats().missCount());
+        assertEquals(3, cache.getStats().hitCount());
+
+        // Uncompressed is another encoding of the same point.
+        byte[] uncompressed = key.decompress().getPubKey();
+        assertEquals(cache.decode(pub), cache.decode(uncompressed));
+        assertEquals(2, cache.size());
+
+        // Bounded.
+        cache.decode(new ECKey().getPubKey());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void invalidPointsNotCached() {
+        byte[] bad = new ECKey().getPubKey();
+        bad[0] = 0x05;
+        try {
+            cache.decode(bad);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void disabled() {
+        DecodedPointCache.setDefault(new DecodedPointCache(0));
+        byte[] pub = new ECKey().getPubKey();
+        assertEquals(ECKey.fromPublicOnly(pub).getPubKeyPoint(), ECKey.fromPublicOnly(pub).getPubKeyPoint());
+        assertEquals(0, DecodedPointCache.getDefault().size());
+    }
+}
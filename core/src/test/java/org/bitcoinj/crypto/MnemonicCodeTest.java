@@ -29,6 +29,7 @@ import java.util.List;
 
 import static org.bitcoinj.core.Utils.HEX;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class MnemonicCodeTest {
     // These vectors are from https://github.com/trezor/python-mnemonic/blob/master/vectors.json
@@ -176,6 +177,29 @@ public class MnemonicCodeTest {
         }
     }
 
+    @Test
+    public void testBulk() throws Exception {
+        List<List<String>> mnemonics = new ArrayList<List<String>>();
+        List<String> seeds = new ArrayList<String>();
+        // Enough to be split up between threads.
+        for (int copy = 0; copy < 4; copy++) {
+            for (int ii = 0; ii < vectors.length; ii += 3) {
+                mnemonics.add(split(vectors[ii + 1]));
+                seeds.add(vectors[ii + 2]);
+            }
+        }
+        List<byte[]> derived = MnemonicCode.toSeeds(mnemonics, "TREZOR");
+        assertEquals(seeds.size(), derived.size());
+        for (int i = 0; i < seeds.size(); i++)
+            assertEquals(seeds.get(i), HEX.encode(derived.get(i)));
+
+        List<List<String>> toCheck = Lists.newArrayList(mnemonics.get(0),
+                split("risk tiger venture dinner xyzzy assume float denial penalty hello game wing"),
+                split("bless cloud wheel regular tiny venue bird web grief security dignity zoo"),
+                mnemonics.get(1));
+        assertTrue(Arrays.equals(new boolean[] { true, false, false, true }, mc.checkAll(toCheck)));
+    }
+
     @Test(expected = MnemonicException.MnemonicLengthException.class)
     public void testBadEntropyLength() throws Exception {
         byte[] entropy = HEX.decode("7f7f7f7f7f7f7f7f7f7f7f7f7f7f");
@@ -0,0 +1,63 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.junit.Test;
+import org.spongycastle.crypto.digests.SHA512Digest;
+import org.spongycastle.crypto.generators.PKCS5S2ParametersGenerator;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.util.Random;
+
+import static org.bitcoinj.core.Utils.HEX;
+import static org.junit.Assert.*;
+
+public class PBKDF2SHA512Test {
+    private static byte[] spongyCastle(byte[] password, byte[] salt, int c, int dkLen) {
+        PKCS5S2ParametersGenerator generator = new PKCS5S2ParametersGenerator(new SHA512Digest());
+        generator.init(password, salt, c);
+        return ((KeyParameter) generator.generateDerivedParameters(dkLen * 8)).getKey();
+    }
+
+    @Test
+    public void knownVector() {
+        // The widely published vector for one iteration over "password" and "salt".
+        assertEquals("867f70cf1ade02cff3752599a3a53dc4af34c7a669815ae5d513554e1c8cf252"
+                        + "c02d470a285a0501bad999bfe943c08f050235d7d68b1da55e63f73b60a57fce",
+                HEX.encode(PBKDF2SHA512.derive("password", "salt", 1, 64)));
+    }
+
+    @Test
+    public void matchesSpongyCastle() {
+        Random random = new Random(1);
+        // Passwords shorter and longer than a SHA-512 block, and keys that are shorter than, equal to and longer than
+        // a hash, including a partial last word.
+        int[] passwordLengths = { 0, 12, 128, 129, 300 };
+        int[] keyLengths = { 1, 20, 64, 100, 131 };
+        for (int passwordLength : passwordLengths) {
+            for (int keyLength : keyLengths) {
+                byte[] password = new byte[passwordLength];
+                byte[] salt = new byte[random.nextInt(40)];
+                random.nextBytes(password);
+                random.nextBytes(salt);
+                int c = 1 + random.nextInt(50);
+                assertArrayEquals(spongyCastle(password, salt, c, keyLength),
+                        PBKDF2SHA512.derive(password, salt, c, keyLength));
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.bitcoinj.core.Utils;
+import org.junit.Test;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SessionKeyCacheTest {
+    private static final byte[] KEY_BYTES = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 };
+
+    @Test
+    public void putGetClear() {
+        SessionKeyCache cache = new SessionKeyCache();
+        assertNull(cache.get());
+        assertFalse(cache.hasKey());
+
+        KeyParameter key = new KeyParameter(KEY_BYTES);
+        cache.put(key, 1, TimeUnit.MINUTES);
+        assertTrue(cache.hasKey());
+        KeyParameter copy = cache.get();
+        assertArrayEquals(KEY_BYTES, copy.getKey());
+        assertNotSame(key, copy);
+
+        cache.clear();
+        assertFalse(cache.hasKey());
+        assertNull(cache.get());
+        assertEquals(0, cache.getExpiryTimeMillis());
+        // Neither the caller's key nor the copy it was given are wiped.
+        assertArrayEquals(KEY_BYTES, key.getKey());
+        assertArrayEquals(KEY_BYTES, copy.getKey());
+    }
+
+    @Test
+    public void expires() {
+        Utils.setMockClock();
+        SessionKeyCache cache = new SessionKeyCache();
+        cache.put(new KeyParameter(KEY_BYTES), 60, TimeUnit.SECONDS);
+        assertEquals(Utils.currentTimeMillis() + 60000, cache.getExpiryTimeMillis());
+        Utils.rollMockClock(59);
+        assertNotNull(cache.get());
+        Utils.rollMockClock(1);
+        assertNull(cache.get());
+        assertFalse(cache.hasKey());
+    }
+
+    @Test
+    public void wipedInBackground() throws Exception {
+        SessionKeyCache cache = new SessionKeyCache();
+        cache.put(new KeyParameter(KEY_BYTES), 50, TimeUnit.MILLISECONDS);
+        // Replacing the key cancels the first wipe, the second one still happens.
+        cache.put(new KeyParameter(KEY_BYTES), 100, TimeUnit.MILLISECONDS);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (cache.hasKey() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertFalse(cache.hasKey());
+    }
+}
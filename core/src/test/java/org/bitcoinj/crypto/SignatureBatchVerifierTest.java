@@ -0,0 +1,86 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.utils.Threading;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SignatureBatchVerifierTest {
+    private static SignatureBatchVerifier.Item sign(ECKey key, Sha256Hash hash) {
+        return new SignatureBatchVerifier.Item(hash.getBytes(), key.sign(hash).encodeToDER(), key.getPubKey());
+    }
+
+    @Test
+    public void mixedBatch() {
+        DecodedPointCache cache = new DecodedPointCache(100);
+        SignatureBatchVerifier verifier = new SignatureBatchVerifier(Threading.THREAD_POOL, cache, true, true);
+        ECKey[] keys = { new ECKey(), new ECKey(), new ECKey() };
+        List<SignatureBatchVerifier.Item> items = new ArrayList<SignatureBatchVerifier.Item>();
+        boolean[] expected = new boolean[100];
+        for (int i = 0; i < expected.length; i++) {
+            ECKey key = keys[i % keys.length];
+            Sha256Hash hash = Sha256Hash.of(new byte[] { (byte) i });
+            SignatureBatchVerifier.Item item = sign(key, hash);
+            expected[i] = i % 7 != 0;
+            if (!expected[i])  // Signed by one key, checked against another.
+                item = new SignatureBatchVerifier.Item(item.hash, item.signature, keys[(i + 1) % keys.length].getPubKey());
+            items.add(item);
+        }
+        assertTrue(Arrays.equals(expected, verifier.verify(items)));
+        // Each key was decoded once.
+        assertEquals(keys.length, cache.size());
+        assertEquals(keys.length, cache.getStats().missCount());
+        assertEquals(0, verifier.verify(new ArrayList<SignatureBatchVerifier.Item>()).length);
+    }
+
+    @Test
+    public void strictness() {
+        ECKey key = new ECKey();
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1 });
+        ECKey.ECDSASignature sig = key.sign(hash);
+        // The same signature with a high S value is valid ECDSA, but not standard.
+        byte[] highS = new ECKey.ECDSASignature(sig.r, ECKey.CURVE.getN().subtract(sig.s)).encodeToDER();
+        // And with R padded by an extra zero byte, which isn't strict DER.
+        byte[] der = sig.encodeToDER();
+        byte[] padded = new byte[der.length + 1];
+        padded[0] = 0x30;
+        padded[1] = (byte) (der[1] + 1);
+        padded[2] = 0x02;
+        padded[3] = (byte) (der[3] + 1);
+        System.arraycopy(der, 4, padded, 5, der.length - 4);
+        List<SignatureBatchVerifier.Item> items = Arrays.asList(
+                new SignatureBatchVerifier.Item(hash.getBytes(), highS, key.getPubKey()),
+                new SignatureBatchVerifier.Item(hash.getBytes(), padded, key.getPubKey()),
+                new SignatureBatchVerifier.Item(hash.getBytes(), new byte[] { 0x30, 0x00 }, key.getPubKey()),
+                new SignatureBatchVerifier.Item(hash.getBytes(), der, new byte[] { 0x02, 0x01 }));
+
+        assertTrue(SignatureBatchVerifier.isStrictDER(der));
+        assertFalse(SignatureBatchVerifier.isStrictDER(padded));
+        assertTrue(Arrays.equals(new boolean[] { false, false, false, false },
+                new SignatureBatchVerifier(true, true).verify(items)));
+        assertTrue(Arrays.equals(new boolean[] { true, true, false, false },
+                new SignatureBatchVerifier(false, false).verify(items)));
+    }
+}
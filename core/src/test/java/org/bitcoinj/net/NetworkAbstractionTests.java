@@ -49,7 +49,8 @@ public class NetworkAbstractionTests {
 
     @Parameterized.Parameters
     public static Collection<Integer[]> parameters() {
-        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3});
+        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3},
+                new Integer[]{4});
     }
 
     public NetworkAbstractionTests(Integer clientType) throws Exception {
@@ -57,6 +58,9 @@ public class NetworkAbstractionTests {
         if (clientType == 0) {
             channels = new NioClientManager();
             channels.startAsync();
+        } else if (clientType == 4) {
+            channels = new NioClientManager(3);
+            channels.startAsync();
         } else if (clientType == 1) {
             channels = new BlockingClientManager();
             channels.startAsync();
@@ -65,7 +69,7 @@ public class NetworkAbstractionTests {
     }
 
     private MessageWriteTarget openConnection(SocketAddress addr, ProtobufConnection<TwoWayChannelMessage> parser) throws Exception {
-        if (clientType == 0 || clientType == 1) {
+        if (clientType == 0 || clientType == 1 || clientType == 4) {
             channels.openConnection(addr, parser);
             if (parser.writeTarget.get() == null)
                 Thread.sleep(100);
@@ -556,7 +560,7 @@ public class NetworkAbstractionTests {
                     }
                 }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
             }
-        }, new InetSocketAddress("localhost", 4243));
+        }, new InetSocketAddress("localhost", 4243), clientType == 4 ? 3 : 1);
         server.startAsync();
         server.awaitRunning();
 
@@ -0,0 +1,164 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.utils.BlockFileLoader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BlockArchiveTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private File directory;
+    private BlockArchive archive;
+    private List<Block> blocks;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        directory = File.createTempFile("blockarchive", null);
+        directory.delete();
+        blocks = new ArrayList<Block>();
+        Address to = new ECKey().toAddress(PARAMS);
+        Block block = PARAMS.getGenesisBlock();
+        for (int i = 0; i < 10; i++) {
+            block = block.createNextBlock(to);
+            blocks.add(block);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (archive != null)
+            archive.close();
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void basics() throws Exception {
+        archive = new BlockArchive(PARAMS, directory);
+        for (int i = 0; i < blocks.size(); i++)
+            assertTrue(archive.put(blocks.get(i), i + 1));
+        assertFalse(archive.put(blocks.get(0), 1));
+        assertEquals(blocks.size(), archive.size());
+        for (Block block : blocks) {
+            assertArrayEquals(block.bitcoinSerialize(), bytes(archive.getRawBlock(block.getHash())));
+            assertEquals(block, archive.getBlock(block.getHash()));
+        }
+        assertNull(archive.getRawBlock(Sha256Hash.ZERO_HASH));
+        assertTrue(archive.getRawBlock(blocks.get(0).getHash()).isReadOnly());
+
+        // Check we can get them back out again if we reopen the archive.
+        archive.close();
+        archive = new BlockArchive(PARAMS, directory);
+        assertEquals(blocks.size(), archive.size());
+        for (Block block : blocks) {
+            assertTrue(archive.contains(block.getHash()));
+            assertEquals(block, archive.getBlock(block.getHash()));
+        }
+        Block last = blocks.get(blocks.size() - 1);
+        Block next = last.createNextBlock(new ECKey().toAddress(PARAMS));
+        archive.put(next, blocks.size() + 1);
+        assertEquals(next, archive.getBlock(next.getHash()));
+    }
+
+    @Test
+    public void readableByBlockFileLoader() throws Exception {
+        int blockSize = blocks.get(0).bitcoinSerialize().length;
+        // Room for three blocks per file.
+        archive = new BlockArchive(PARAMS, directory, 3 * (blockSize + 8) + 1);
+        for (int i = 0; i < blocks.size(); i++)
+            archive.put(blocks.get(i), i + 1);
+        assertEquals(4, archive.getFiles().size());
+        List<Block> loaded = new ArrayList<Block>();
+        for (Block block : new BlockFileLoader(PARAMS, archive.getFiles()))
+            loaded.add(block);
+        assertEquals(blocks, loaded);
+    }
+
+    @Test
+    public void prune() throws Exception {
+        int blockSize = blocks.get(0).bitcoinSerialize().length;
+        archive = new BlockArchive(PARAMS, directory, 3 * (blockSize + 8) + 1);
+        for (int i = 0; i < blocks.size(); i++)
+            archive.put(blocks.get(i), i + 1);
+        // Heights 1-3 and 4-6 are in the first two files, only the first can go.
+        assertEquals(3, archive.prune(5));
+        assertEquals(7, archive.size());
+        assertEquals(3, archive.getFiles().size());
+        assertNull(archive.getRawBlock(blocks.get(2).getHash()));
+        assertNotNull(archive.getRawBlock(blocks.get(3).getHash()));
+        // The file being written to is kept.
+        assertEquals(6, archive.prune(100));
+        assertEquals(1, archive.size());
+        assertEquals(blocks.get(9), archive.getBlock(blocks.get(9).getHash()));
+
+        archive.close();
+        archive = new BlockArchive(PARAMS, directory);
+        assertEquals(1, archive.size());
+        assertEquals(blocks.get(9), archive.getBlock(blocks.get(9).getHash()));
+    }
+
+    @Test
+    public void recoversFromTruncatedFiles() throws Exception {
+        archive = new BlockArchive(PARAMS, directory);
+        for (int i = 0; i < 3; i++)
+            archive.put(blocks.get(i), i + 1);
+        archive.close();
+        archive = null;
+        // Lose the end of the last block, as if the process died before it made it to disk.
+        RandomAccessFile file = new RandomAccessFile(new File(directory, "blk00000.dat"), "rw");
+        file.setLength(file.length() - 10);
+        file.close();
+
+        archive = new BlockArchive(PARAMS, directory);
+        assertEquals(2, archive.size());
+        assertFalse(archive.contains(blocks.get(2).getHash()));
+        assertTrue(archive.put(blocks.get(2), 3));
+        assertEquals(blocks.get(2), archive.getBlock(blocks.get(2).getHash()));
+        List<Block> loaded = new ArrayList<Block>();
+        for (Block block : new BlockFileLoader(PARAMS, archive.getFiles()))
+            loaded.add(block);
+        assertEquals(blocks.subList(0, 3), loaded);
+    }
+}
@@ -31,6 +31,7 @@ import org.bitcoinj.wallet.KeyChain;
 import org.bitcoinj.wallet.Protos;
 import org.bitcoinj.wallet.listeners.AbstractKeyChainEventListener;
 import org.junit.Before;
+import org.spongycastle.crypto.params.KeyParameter;
 import org.junit.Test;
 
 import java.util.ArrayList;
@@ -170,6 +171,27 @@ public class BasicKeyChainTest {
         key.getPrivKeyBytes();
     }
 
+    @Test
+    public void encryptDecryptMany() {
+        // Enough keys to be split up and done in parallel.
+        List<ECKey> keys = new ArrayList<ECKey>();
+        for (int i = 0; i < 500; i++)
+            keys.add(new ECKey());
+        chain.importKeys(keys);
+        KeyCrypter keyCrypter = new KeyCrypterScrypt(2);
+        KeyParameter aesKey = keyCrypter.deriveKey("foobar");
+        BasicKeyChain encrypted = chain.toEncrypted(keyCrypter, aesKey);
+        List<ECKey> encryptedKeys = encrypted.getKeys();
+        assertEquals(keys.size(), encryptedKeys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            assertTrue(encryptedKeys.get(i).isEncrypted());
+            assertArrayEquals(keys.get(i).getPubKey(), encryptedKeys.get(i).getPubKey());
+        }
+        List<ECKey> decryptedKeys = encrypted.toDecrypted(aesKey).getKeys();
+        for (int i = 0; i < keys.size(); i++)
+            assertEquals(keys.get(i).getPrivKey(), decryptedKeys.get(i).getPrivKey());
+    }
+
     @Test(expected = KeyCrypterException.class)
     public void cannotImportEncryptedKey() {
         final ECKey key1 = new ECKey();
@@ -0,0 +1,162 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.testing.TestWithWallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class BranchAndBoundCoinSelectorTest extends TestWithWallet {
+    private BranchAndBoundCoinSelector selector;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        selector = new BranchAndBoundCoinSelector(Coin.ZERO, BranchAndBoundCoinSelector.DEFAULT_MAX_TRIES, new Random(1));
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    private List<TransactionOutput> outputs(long... values) {
+        Transaction tx = new Transaction(PARAMS);
+        List<TransactionOutput> result = new ArrayList<TransactionOutput>();
+        for (long value : values)
+            result.add(tx.addOutput(Coin.valueOf(value), myAddress));
+        tx.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+        return result;
+    }
+
+    private static long sum(CoinSelection selection) {
+        long sum = 0;
+        for (TransactionOutput output : selection.gathered)
+            sum += output.getValue().value;
+        return sum;
+    }
+
+    @Test
+    public void findsExactMatch() throws Exception {
+        List<TransactionOutput> candidates = outputs(1000, 700, 500, 300, 200, 100);
+        CoinSelection selection = selector.select(Coin.valueOf(1300), candidates);
+        assertEquals(1300, selection.valueGathered.value);
+        assertEquals(1300, sum(selection));
+        // Unsorted input gives the same result.
+        List<TransactionOutput> reversed = new ArrayList<TransactionOutput>(candidates);
+        Collections.reverse(reversed);
+        assertEquals(1300, selector.select(Coin.valueOf(1300), reversed).valueGathered.value);
+    }
+
+    @Test
+    public void acceptsWithinCostOfChange() throws Exception {
+        BranchAndBoundCoinSelector tolerant = new BranchAndBoundCoinSelector(Coin.valueOf(50), 1000, new Random(1));
+        CoinSelection selection = tolerant.select(Coin.valueOf(960), outputs(5000, 630, 340, 120));
+        assertEquals(970, selection.valueGathered.value);
+    }
+
+    @Test
+    public void fallsBackToSmallestLargerOutput() throws Exception {
+        CoinSelection selection = selector.select(Coin.valueOf(450), outputs(2000, 500, 100, 100));
+        assertEquals(1, selection.gathered.size());
+        assertEquals(500, selection.valueGathered.value);
+    }
+
+    @Test
+    public void fallsBackToSmallOutputs() throws Exception {
+        // 3 * 400 can't hit 1000 exactly; the single larger output wastes more than 400 + 400 + 400 - 1000.
+        CoinSelection selection = selector.select(Coin.valueOf(1000), outputs(5000, 400, 400, 400));
+        assertEquals(1200, selection.valueGathered.value);
+        assertEquals(3, selection.gathered.size());
+    }
+
+    @Test
+    public void notEnough() throws Exception {
+        CoinSelection selection = selector.select(Coin.valueOf(1000), outputs(300, 200));
+        assertEquals(500, selection.valueGathered.value);
+        assertEquals(2, selection.gathered.size());
+    }
+
+    @Test
+    public void skipsUnselectable() throws Exception {
+        Transaction pending = new Transaction(PARAMS);
+        TransactionOutput unconfirmed = pending.addOutput(Coin.valueOf(150), myAddress);
+        pending.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.PENDING);
+        List<TransactionOutput> candidates = outputs(100);
+        candidates.add(unconfirmed);
+        assertEquals(100, selector.select(Coin.valueOf(200), candidates).valueGathered.value);
+    }
+
+    @Test
+    public void manyOutputs() throws Exception {
+        Random random = new Random(2);
+        long[] values = new long[5000];
+        for (int i = 0; i < values.length; i++)
+            values[i] = 1 + random.nextInt(100000);
+        CoinSelection selection = selector.select(Coin.valueOf(123456), outputs(values));
+        assertTrue(selection.valueGathered.value >= 123456);
+        assertEquals(selection.valueGathered.value, sum(selection));
+    }
+
+    @Test
+    public void unspentSetIteratesByValue() throws Exception {
+        UnspentOutputSet set = new UnspentOutputSet();
+        List<TransactionOutput> outputs = outputs(300, 100, 500, 100, 200);
+        set.addAll(outputs);
+        assertFalse(set.add(outputs.get(0)));
+        assertEquals(5, set.size());
+        long previous = Long.MAX_VALUE;
+        for (TransactionOutput output : set) {
+            assertTrue(output.getValue().value <= previous);
+            previous = output.getValue().value;
+        }
+        assertTrue(set.remove(outputs.get(2)));
+        Iterator<TransactionOutput> it = set.iterator();
+        assertEquals(300, it.next().getValue().value);
+        it.remove();
+        assertFalse(set.contains(outputs.get(0)));
+        assertEquals(3, set.size());
+        assertEquals(200, set.iterator().next().getValue().value);
+    }
+
+    @Test
+    public void walletCandidatesAreSorted() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, MILLICOIN);
+        List<TransactionOutput> candidates = wallet.calculateAllSpendCandidates();
+        assertEquals(3, candidates.size());
+        assertEquals(COIN, candidates.get(0).getValue());
+        assertEquals(CENT, candidates.get(1).getValue());
+        assertEquals(MILLICOIN, candidates.get(2).getValue());
+        CoinSelection selection = selector.select(CENT, candidates);
+        assertEquals(CENT, selection.valueGathered);
+    }
+}
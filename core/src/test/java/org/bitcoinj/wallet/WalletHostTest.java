@@ -0,0 +1,151 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.bitcoinj.utils.BriefLogFormatter;
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Set;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class WalletHostTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private BlockStore blockStore;
+    private BlockChain chain;
+    private WalletHost host;
+    private Wallet wallet1, wallet2;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        Context.propagate(new Context(PARAMS, 100, Coin.ZERO, false));
+        blockStore = new MemoryBlockStore(PARAMS);
+        chain = new BlockChain(PARAMS, blockStore);
+        host = new WalletHost();
+        wallet1 = new Wallet(PARAMS);
+        wallet2 = new Wallet(PARAMS);
+        host.addWallet(wallet1);
+        host.addWallet(wallet2);
+        host.connect(chain);
+    }
+
+    @Test
+    public void routesOnlyToOwner() throws Exception {
+        Transaction tx = FakeTxBuilder.createFakeTx(PARAMS, COIN, wallet1.currentReceiveAddress());
+        Set<Wallet> candidates = host.getCandidateWallets(tx);
+        assertEquals(1, candidates.size());
+        assertTrue(candidates.contains(wallet1));
+
+        chain.add(FakeTxBuilder.createFakeBlock(blockStore, tx).block);
+        assertEquals(COIN, wallet1.getBalance());
+        assertEquals(ZERO, wallet2.getBalance());
+        assertEquals(chain.getBestChainHeight(), wallet1.getLastBlockSeenHeight());
+        assertEquals(chain.getBestChainHeight(), wallet2.getLastBlockSeenHeight());
+    }
+
+    @Test
+    public void routesSpendsAndWatchedScripts() throws Exception {
+        Address watched = new ECKey().toAddress(PARAMS);
+        wallet2.addWatchedAddress(watched);
+        Transaction tx = FakeTxBuilder.createFakeTx(PARAMS, COIN, wallet1.currentReceiveAddress());
+        chain.add(FakeTxBuilder.createFakeBlock(blockStore, tx).block);
+        // A spend from wallet1 to the address wallet2 watches concerns both.
+        Transaction spend = new Transaction(PARAMS);
+        spend.addInput(tx.getOutput(0));
+        spend.addOutput(CENT, watched);
+        Set<Wallet> candidates = host.getCandidateWallets(spend);
+        assertEquals(2, candidates.size());
+        chain.add(FakeTxBuilder.createFakeBlock(blockStore, spend).block);
+        assertEquals(ZERO, wallet1.getBalance());
+        assertEquals(1, wallet2.getWatchedOutputs(true).size());
+    }
+
+    @Test
+    public void spentOutPointsLeaveIndex() throws Exception {
+        ECKey key = wallet1.currentReceiveKey();
+        Transaction toAddress = FakeTxBuilder.createFakeTx(PARAMS, COIN, key.toAddress(PARAMS));
+        chain.add(FakeTxBuilder.createFakeBlock(blockStore, toAddress).block);
+        // Spends of a pay to address output are matched by the key in their scriptSig, so its outpoint isn't needed.
+        int elements = host.getElementCount();
+        Transaction toPubKey = FakeTxBuilder.createFakeTx(PARAMS, COIN, key);
+        chain.add(FakeTxBuilder.createFakeBlock(blockStore, toPubKey).block);
+        assertEquals(elements + 1, host.getElementCount());
+
+        Transaction spend = new Transaction(PARAMS);
+        spend.addInput(toAddress.getOutput(0));
+        spend.addInput(toPubKey.getOutput(0));
+        spend.addOutput(CENT, new ECKey().toAddress(PARAMS));
+        assertTrue(host.getCandidateWallets(spend).contains(wallet1));
+        chain.add(FakeTxBuilder.createFakeBlock(blockStore, spend).block);
+        assertEquals(ZERO, wallet1.getBalance());
+        assertEquals(elements, host.getElementCount());
+        // Double spends are still routed.
+        Transaction doubleSpend = new Transaction(PARAMS);
+        doubleSpend.addInput(toAddress.getOutput(0));
+        doubleSpend.addOutput(CENT, new ECKey().toAddress(PARAMS));
+        assertTrue(host.getCandidateWallets(doubleSpend).contains(wallet1));
+    }
+
+    @Test
+    public void newKeysAreIndexed() throws Exception {
+        int before = host.getElementCount();
+        // Issue keys beyond the lookahead zone.
+        for (int i = 0; i < 20; i++)
+            wallet1.freshReceiveKey();
+        assertTrue(host.getElementCount() > before);
+        Transaction tx = FakeTxBuilder.createFakeTx(PARAMS, COIN, wallet1.freshReceiveAddress());
+        assertTrue(host.getCandidateWallets(tx).contains(wallet1));
+    }
+
+    @Test
+    public void mergedFilter() throws Exception {
+        long tweak = 1;
+        host.beginBloomFilterCalculation();
+        int elements;
+        try {
+            elements = host.getBloomFilterElementCount() + 100;
+            host.getBloomFilter(elements, 0.001, tweak);
+        } finally {
+            host.endBloomFilterCalculation();
+        }
+        ECKey key = wallet2.freshReceiveKey();
+        BloomFilter filter = host.getBloomFilter(elements, 0.001, tweak);
+        assertTrue(filter.contains(key.getPubKeyHash()));
+        assertTrue(filter.contains(wallet1.currentReceiveKey().getPubKey()));
+    }
+
+    @Test
+    public void removeWallet() throws Exception {
+        Address address = wallet2.currentReceiveAddress();
+        host.removeWallet(wallet2);
+        assertEquals(ImmutableList.of(wallet1), host.getWallets());
+        Transaction tx = FakeTxBuilder.createFakeTx(PARAMS, COIN, address);
+        assertTrue(host.getCandidateWallets(tx).isEmpty());
+        chain.add(FakeTxBuilder.createFakeBlock(blockStore, tx).block);
+        assertEquals(ZERO, wallet2.getBalance());
+    }
+}
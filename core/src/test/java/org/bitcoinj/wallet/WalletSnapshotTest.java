@@ -0,0 +1,146 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.testing.TestWithWallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class WalletSnapshotTest extends TestWithWallet {
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    @Test
+    public void publishedAfterChanges() throws Exception {
+        WalletSnapshot empty = wallet.getSnapshot();
+        assertSame(empty, wallet.getSnapshot());
+        assertEquals(ZERO, empty.getBalance());
+        assertTrue(empty.getTransactions(true).isEmpty());
+        assertEquals(wallet.currentReceiveAddress(), empty.currentReceiveAddress());
+
+        Transaction tx = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        WalletSnapshot snapshot = wallet.getSnapshot();
+        assertTrue(snapshot.getVersion() > empty.getVersion());
+        assertEquals(COIN, snapshot.getBalance());
+        assertEquals(COIN, snapshot.getBalance(Wallet.BalanceType.ESTIMATED_SPENDABLE));
+        assertEquals(tx, snapshot.getTransaction(tx.getHash()));
+        assertEquals(wallet.getLastBlockSeenHash(), snapshot.getLastBlockSeenHash());
+        assertEquals(wallet.getLastBlockSeenHeight(), snapshot.getLastBlockSeenHeight());
+        // The old snapshot is unaffected.
+        assertEquals(ZERO, empty.getBalance());
+        assertNull(empty.getTransaction(tx.getHash()));
+    }
+
+    @Test
+    public void watchedOutputs() throws Exception {
+        Address watched = new ECKey().toAddress(PARAMS);
+        wallet.addWatchedAddress(watched);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT, watched);
+        assertEquals(1, wallet.getSnapshot().getWatchedOutputs(true).size());
+        assertEquals(wallet.getWatchedOutputs(true), wallet.getSnapshot().getWatchedOutputs(true));
+    }
+
+    @Test
+    public void readableWhileLocked() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        final AtomicReference<Coin> balance = new AtomicReference<Coin>();
+        final CountDownLatch done = new CountDownLatch(1);
+        wallet.lock.lock();
+        try {
+            new Thread() {
+                @Override
+                public void run() {
+                    balance.set(wallet.getSnapshot().getBalance());
+                    done.countDown();
+                }
+            }.start();
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        } finally {
+            wallet.lock.unlock();
+        }
+        assertEquals(COIN, balance.get());
+    }
+
+    @Test
+    public void publishedByWriter() throws Exception {
+        WalletSnapshot empty = wallet.getSnapshot();
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        WalletSnapshot first = wallet.getSnapshot();
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        WalletSnapshot second = wallet.getSnapshot();
+        assertTrue(first.getVersion() > empty.getVersion());
+        assertTrue(second.getVersion() > first.getVersion());
+        assertEquals(COIN, first.getBalance());
+        assertEquals(COIN.add(COIN), second.getBalance());
+        // Reading doesn't build anything.
+        assertSame(second, wallet.getSnapshot());
+    }
+
+    @Test
+    public void unchangedBucketsShared() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        WalletSnapshot before = wallet.getSnapshot();
+        Transaction tx = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        WalletSnapshot after = wallet.getSnapshot();
+        int changed = WalletSnapshot.bucketOf(tx.getHash());
+        for (int i = 0; i < WalletSnapshot.BUCKETS; i++) {
+            if (i == changed)
+                assertNotSame(before.getBuckets().get(i), after.getBuckets().get(i));
+            else
+                assertSame(before.getBuckets().get(i), after.getBuckets().get(i));
+        }
+        assertSame(before.getDead(), after.getDead());
+    }
+
+    @Test
+    public void noKeyIssuedForSnapshot() throws Exception {
+        Wallet fresh = new Wallet(PARAMS);
+        assertNull(fresh.getSnapshot().currentReceiveAddress());
+        assertEquals(0, fresh.getActiveKeyChain().getIssuedExternalKeys());
+        Address address = fresh.currentReceiveAddress();
+        assertEquals(address, fresh.getSnapshot().currentReceiveAddress());
+    }
+
+    @Test
+    public void receiveAddressAdvances() throws Exception {
+        Address current = wallet.currentReceiveAddress();
+        assertEquals(current, wallet.getSnapshot().currentReceiveAddress());
+        // Receiving to the current address uses its key up, so both the wallet and the snapshot move on.
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN, current);
+        Address next = wallet.getSnapshot().currentReceiveAddress();
+        assertNotEquals(current, next);
+        assertEquals(wallet.currentReceiveAddress(), next);
+    }
+}
@@ -2006,6 +2006,46 @@ public class WalletTest extends TestWithWallet {
         assertFalse(encryptedWallet.checkPassword(WRONG_PASSWORD));
     }
 
+    @Test
+    public void unlockKeys() throws Exception {
+        Wallet encryptedWallet = new Wallet(PARAMS);
+        encryptedWallet.encrypt(PASSWORD1);
+        receiveATransaction(encryptedWallet, encryptedWallet.freshReceiveKey().toAddress(PARAMS));
+        assertFalse(encryptedWallet.isUnlocked());
+        try {
+            encryptedWallet.unlockKeys(WRONG_PASSWORD, 1, TimeUnit.MINUTES);
+            fail();
+        } catch (KeyCrypterException e) {
+            // Expected.
+        }
+        assertFalse(encryptedWallet.isUnlocked());
+
+        // While unlocked, requests without a key are signed with the one from the password.
+        encryptedWallet.unlockKeys(PASSWORD1, 1, TimeUnit.MINUTES);
+        assertTrue(encryptedWallet.isUnlocked());
+        assertTrue(encryptedWallet.checkAESKey(encryptedWallet.getSessionKey()));
+        SendRequest req = SendRequest.to(OTHER_ADDRESS, valueOf(0, 10));
+        encryptedWallet.completeTx(req);
+        req.tx.getInput(0).verify();
+        // Signing wipes its own copy of the key, not the one the session keeps.
+        assertTrue(encryptedWallet.checkAESKey(encryptedWallet.getSessionKey()));
+
+        encryptedWallet.lockKeys();
+        assertFalse(encryptedWallet.isUnlocked());
+        assertNull(encryptedWallet.getSessionKey());
+        try {
+            encryptedWallet.completeTx(SendRequest.to(OTHER_ADDRESS, valueOf(0, 10)));
+            fail();
+        } catch (ECKey.MissingPrivateKeyException e) {
+            // Expected.
+        }
+
+        // Decrypting the wallet ends the session.
+        encryptedWallet.unlockKeys(PASSWORD1, 1, TimeUnit.MINUTES);
+        encryptedWallet.decrypt(PASSWORD1);
+        assertFalse(encryptedWallet.isUnlocked());
+    }
+
     @Test
     public void changeAesKeyTest() {
         Wallet encryptedWallet = new Wallet(PARAMS);
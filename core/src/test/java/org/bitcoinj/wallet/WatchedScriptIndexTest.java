@@ -0,0 +1,208 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.bitcoinj.script.ScriptOpCodes.*;
+import static org.junit.Assert.*;
+
+public class WatchedScriptIndexTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private WatchedScriptIndex index;
+    private Random random;
+
+    @Before
+    public void setUp() {
+        index = new WatchedScriptIndex();
+        random = new Random(1);
+    }
+
+    private Script randomP2PKH(long creationTime) {
+        byte[] hash = new byte[20];
+        random.nextBytes(hash);
+        Script script = ScriptBuilder.createOutputScript(new Address(PARAMS, hash));
+        script.setCreationTimeSeconds(creationTime);
+        return script;
+    }
+
+    private Script randomP2SH() {
+        byte[] hash = new byte[20];
+        random.nextBytes(hash);
+        return ScriptBuilder.createP2SHOutputScript(hash);
+    }
+
+    @Test
+    public void addContainsRemove() {
+        Script p2pkh = randomP2PKH(1000);
+        Script p2sh = randomP2SH();
+        Script raw = ScriptBuilder.createOutputScript(new ECKey());
+        assertTrue(index.isEmpty());
+        assertTrue(index.add(p2pkh));
+        assertTrue(index.add(p2sh));
+        assertTrue(index.add(raw));
+        assertFalse(index.add(p2pkh));
+        assertEquals(3, index.size());
+        // Parsed copies must match as well as the originals.
+        assertTrue(index.contains(new Script(p2pkh.getProgram())));
+        assertTrue(index.contains(new Script(p2sh.getProgram())));
+        assertTrue(index.contains(new Script(raw.getProgram())));
+        assertFalse(index.contains(randomP2PKH(0)));
+        assertTrue(index.remove(p2sh));
+        assertFalse(index.remove(p2sh));
+        assertFalse(index.contains(p2sh));
+        assertTrue(index.contains(p2pkh));
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void sameHashDifferentType() {
+        byte[] hash = new byte[20];
+        random.nextBytes(hash);
+        index.add(ScriptBuilder.createP2SHOutputScript(hash));
+        assertFalse(index.contains(ScriptBuilder.createOutputScript(new Address(PARAMS, hash))));
+    }
+
+    @Test
+    public void nonMinimalPushIsDistinct() {
+        byte[] hash = new byte[20];
+        random.nextBytes(hash);
+        Script minimal = ScriptBuilder.createOutputScript(new Address(PARAMS, hash));
+        byte[] program = new byte[26];
+        program[0] = (byte) OP_DUP;
+        program[1] = (byte) OP_HASH160;
+        program[2] = (byte) OP_PUSHDATA1;
+        program[3] = 20;
+        System.arraycopy(hash, 0, program, 4, 20);
+        program[24] = (byte) OP_EQUALVERIFY;
+        program[25] = (byte) OP_CHECKSIG;
+        Script nonMinimal = new Script(program);
+        assertTrue(nonMinimal.isSentToAddress());
+        index.add(minimal);
+        assertFalse(index.contains(nonMinimal));
+        index.add(nonMinimal);
+        assertEquals(2, index.size());
+        assertTrue(index.getScripts().contains(nonMinimal));
+    }
+
+    @Test
+    public void manyScriptsWithRemovals() {
+        List<Script> scripts = new ArrayList<Script>();
+        for (int i = 0; i < 20000; i++) {
+            Script script = i % 3 == 0 ? randomP2SH() : randomP2PKH(i);
+            scripts.add(script);
+            assertTrue(index.add(script));
+        }
+        assertEquals(scripts.size(), index.size());
+        for (int i = 0; i < scripts.size(); i += 2)
+            assertTrue(index.remove(scripts.get(i)));
+        for (int i = 0; i < scripts.size(); i++)
+            assertEquals(i % 2 == 1, index.contains(scripts.get(i)));
+        assertEquals(scripts.size() / 2, index.size());
+        HashSet<Script> remaining = new HashSet<Script>(index.getScripts());
+        for (int i = 1; i < scripts.size(); i += 2)
+            assertTrue(remaining.contains(scripts.get(i)));
+    }
+
+    @Test
+    public void creationTimes() {
+        assertEquals(Long.MAX_VALUE, index.getEarliestCreationTime());
+        Script script = randomP2PKH(5000);
+        index.add(script);
+        index.add(randomP2PKH(6000));
+        assertEquals(5000, index.getEarliestCreationTime());
+        Script replacement = new Script(script.getProgram(), 4000);
+        assertFalse(index.add(replacement));
+        assertEquals(4000, index.getEarliestCreationTime());
+        assertEquals(2, index.getAddresses(PARAMS).size());
+    }
+
+    @Test
+    public void incrementalBloomFilter() {
+        long tweak = 1234;
+        List<Script> scripts = new ArrayList<Script>();
+        for (int i = 0; i < 100; i++) {
+            Script script = randomP2PKH(0);
+            scripts.add(script);
+            index.add(script);
+        }
+        BloomFilter first = new BloomFilter(200, 0.001, tweak);
+        index.mergeInto(first, 200, 0.001, tweak);
+        // Scripts added later must be in the filter even though it's not rebuilt.
+        for (int i = 0; i < 50; i++) {
+            Script script = randomP2SH();
+            scripts.add(script);
+            index.add(script);
+        }
+        BloomFilter incremental = new BloomFilter(200, 0.001, tweak);
+        index.mergeInto(incremental, 200, 0.001, tweak);
+        for (Script script : scripts)
+            assertTrue(incremental.contains(script.getPubKeyHash()));
+
+        WatchedScriptIndex fresh = new WatchedScriptIndex();
+        for (Script script : scripts)
+            fresh.add(script);
+        BloomFilter rebuilt = new BloomFilter(200, 0.001, tweak);
+        fresh.mergeInto(rebuilt, 200, 0.001, tweak);
+        assertEquals(rebuilt, incremental);
+
+        index.remove(scripts.get(0));
+        BloomFilter afterRemoval = new BloomFilter(200, 0.001, tweak);
+        index.mergeInto(afterRemoval, 200, 0.001, tweak);
+        assertFalse(afterRemoval.contains(scripts.get(0).getPubKeyHash()));
+    }
+
+    @Test
+    public void bloomFilterKeptAtMaximumSize() {
+        long tweak = 1234;
+        // Both counts give filters of the maximum size with a single hash function, so they are interchangeable.
+        BloomFilter first = new BloomFilter(1000000, 0.001, tweak);
+        BloomFilter second = new BloomFilter(1500000, 0.001, tweak);
+        assertTrue(first.isMergeableWith(second));
+        assertFalse(first.isMergeableWith(new BloomFilter(200, 0.001, tweak)));
+
+        List<Script> scripts = new ArrayList<Script>();
+        for (int i = 0; i < 10; i++) {
+            Script script = randomP2PKH(0);
+            scripts.add(script);
+            index.add(script);
+        }
+        index.mergeInto(first, 1000000, 0.001, tweak);
+        for (int i = 0; i < 10; i++) {
+            Script script = randomP2SH();
+            scripts.add(script);
+            index.add(script);
+        }
+        index.mergeInto(second, 1500000, 0.001, tweak);
+        for (Script script : scripts)
+            assertTrue(second.contains(script.getPubKeyHash()));
+    }
+}